@@ -33,6 +33,9 @@ import ca.corbett.imageviewer.extensions.ice.actions.TagDirStatsAction;
 import ca.corbett.imageviewer.extensions.ice.actions.TagMultipleImagesAction;
 import ca.corbett.imageviewer.extensions.ice.actions.TagSingleImageAction;
 import ca.corbett.imageviewer.extensions.ice.actions.TagStatsAction;
+import ca.corbett.imageviewer.extensions.ice.io.DirectoryListingCache;
+import ca.corbett.imageviewer.extensions.ice.io.FileAttributes;
+import ca.corbett.imageviewer.extensions.ice.threads.TagIndexWatcher;
 import ca.corbett.imageviewer.extensions.ice.ui.QuickTagPanel;
 import ca.corbett.imageviewer.extensions.ice.ui.TagPreviewPanel;
 import ca.corbett.imageviewer.extensions.ice.ui.formfield.TagHotkeyProperty;
@@ -101,6 +104,12 @@ public class IceExtension extends ImageViewerExtension implements UIReloadable {
     public static final String quickTagPanelPositionProp = "ICE.ICE options.quickTagPanelPosition";
     public static final String quickTagPanelWidthProp = "ICE.ICE options.quickTagPanelWidth";
     public static final String fontSizeProp = "Thumbnails.Companion files.linkFontSize";
+    public static final String indexOnlySearchProp = "ICE.ICE options.indexOnlySearch";
+    public static final String indexOnlySearchVerifyProp = "ICE.ICE options.indexOnlySearchVerify";
+    public static final String scanThreadsProp = "ICE.ICE options.scanThreads";
+    public static final String incrementalScanProp = "ICE.ICE options.incrementalScan";
+    public static final String watchForChangesProp = "ICE.ICE options.watchForChanges";
+    public static final String watchDirsProp = "ICE.ICE options.watchDirs";
     public static final String quickTagLeftSourceProp = "Hidden.quickTagsLeft.source";
     public static final String quickTagRightSourceProp = "Hidden.quickTagsRight.source";
     public static final String imageTagShortcutProp = AppConfig.KEYSTROKE_PREFIX + "ICE - General.quickTagPanel";
@@ -129,6 +138,8 @@ public class IceExtension extends ImageViewerExtension implements UIReloadable {
     private final List<TagPreviewPanel> tagPreviewPanels = new ArrayList<>();
     private final List<QuickTagPanel> quickTagPanels = new ArrayList<>();
 
+    private TagIndexWatcher tagIndexWatcher;
+
     private final String requestTemplate;
     private String sysPromptTagged;
     private String sysPromptUntagged;
@@ -175,6 +186,35 @@ public class IceExtension extends ImageViewerExtension implements UIReloadable {
         list.add(new IntegerProperty(quickTagPanelWidthProp, "Quick tag panel width:", 200, 120, 300, 10));
         list.add(new IntegerProperty(fontSizeProp, "Hyperlink font size", 10, 8, 16, 1));
         list.add(new BooleanProperty(TagIndex.PROP_NAME, "Enable tag index for faster searches", true));
+        list.add(new BooleanProperty(TagIndex.CONTENT_HASH_PROP_NAME, "Hash tag file contents as they are indexed", false)
+                         .setHelpText("<html>If checked, the tag index also remembers a hash of each tag file, so that<br>" +
+                                              "\"Tag scan: verify tag file contents\" can find tag files that were changed<br>" +
+                                              "without their size or timestamp changing, as some sync tools do.</html>"));
+        list.add(new BooleanProperty(indexOnlySearchProp, "Search the tag index only (skip filesystem scan)", false)
+                         .setHelpText("<html>If checked, searches are answered directly from the tag index,<br>" +
+                                              "without looking for tag files on disk. This is much faster,<br>" +
+                                              "but tag files that have never been scanned will not be found.</html>"));
+        list.add(new BooleanProperty(indexOnlySearchVerifyProp, "Check index for stale entries after searching", true)
+                         .setHelpText("<html>Only applies to index-only searches. If checked, a background check<br>" +
+                                              "will refresh or remove index entries that are out of date.</html>"));
+        list.add(new IntegerProperty(scanThreadsProp, "Tag scan threads:",
+                                     Math.min(Runtime.getRuntime().availableProcessors(), 64), 1, 64, 1)
+                         .setHelpText("<html>How many tag files to read in parallel when scanning directories.<br>" +
+                                              "Fast local disks benefit from one per CPU core; network drives<br>" +
+                                              "may benefit from more, to hide the latency of each request.</html>"));
+        list.add(new BooleanProperty(incrementalScanProp, "Skip unchanged directories when scanning", false)
+                         .setHelpText("<html>If checked, tag scans skip any directory that hasn't changed since it<br>" +
+                                              "was last scanned, which makes rescanning a large, mostly unchanging<br>" +
+                                              "collection much faster. Tag files edited in place outside ImageViewer<br>" +
+                                              "don't change their directory, so won't be noticed unless watched.</html>"));
+        list.add(new BooleanProperty(watchForChangesProp, "Watch for tag changes made outside ImageViewer", false)
+                         .setHelpText("<html>If checked, the directories listed below are watched for new, changed<br>" +
+                                              "or deleted tag files and images, and the tag index is updated as they<br>" +
+                                              "happen. Useful if your tag files are synced from another machine.</html>"));
+        list.add(new ShortTextProperty(watchDirsProp, "Watch directories:", "")
+                         .setAllowBlank(true)
+                         .setHelpText("<html>Semicolon-separated list of directories to watch.<br>" +
+                                              "Subdirectories are watched automatically.</html>"));
         list.add(new ShortTextProperty(quickTagLeftSourceProp, "quickTagsLeftSource",
                                        QuickTagPanel.DEFAULT_SOURCE_NAME).setExposed(false));
         list.add(new ShortTextProperty(quickTagRightSourceProp, "quickTagsRightSource",
@@ -315,10 +355,12 @@ public class IceExtension extends ImageViewerExtension implements UIReloadable {
         sysPromptUntagged = getLongTextPropValue(sysPromptTaglessProp, sysPromptUntagged);
         AutoTagAction.getInstance(requestTemplate).setSysPrompts(sysPromptTagged, sysPromptUntagged);
         AutoTagBatchAction.getInstance(requestTemplate).setSysPrompts(sysPromptTagged, sysPromptUntagged);
+        restartTagIndexWatcher();
     }
 
     @Override
     public void onDeactivate() {
+        stopTagIndexWatcher();
         TagIndex.getInstance().save();
         ReloadUIAction.getInstance().unregisterReloadable(this);
         for (QuickTagPanel panel : quickTagPanels) {
@@ -424,6 +466,7 @@ public class IceExtension extends ImageViewerExtension implements UIReloadable {
             if (browseMode == MainWindow.BrowseMode.FILE_SYSTEM && TagIndex.isEnabled()) {
                 actions.add(new ScanDirAction("Tag scan: current directory", false));
                 actions.add(new ScanDirAction("Tag scan: current directory recursively", true));
+                actions.add(new ScanDirAction("Tag scan: verify tag file contents recursively", true, true));
             }
 
             actions.add(new TagStatsAction());
@@ -469,20 +512,13 @@ public class IceExtension extends ImageViewerExtension implements UIReloadable {
      * companion file naming such that we use the ENTIRE name and not just the base name.
      * In the above example, the companion file(s) would be image01.jpg.ice, image01.png.ice and etc.
      * But that's ugly and I kind of don't want to do it. Right now the workaround is
-     * "be smarter about how you name your files".
+     * "be smarter about how you name your files". (Since we now go by a listing of the directory
+     * rather than probing for each extension, the winner is at least consistent: see
+     * DirectoryListingCache.IMAGE_EXTENSIONS for the order of preference.)
      */
     public static File getMatchingImageFile(File companionFile) {
-        // I hate that this code is case-sensitive...
-        String[] imageExtensions = new String[]{"gif", "GIF", "jpg", "JPG", "jpeg", "JPEG", "png", "PNG", "tiff", "bmp"};
-        File dir = companionFile.getParentFile();
-        String basename = FilenameUtils.getBaseName(companionFile.getName());
-        for (String ext : imageExtensions) {
-            File test = new File(dir, basename + "." + ext);
-            if (test.exists()) {
-                return test;
-            }
-        }
-        return null;
+        return DirectoryListingCache.getInstance().findImageFile(companionFile.getAbsoluteFile().getParentFile(),
+                                                                 FilenameUtils.getBaseName(companionFile.getName()));
     }
 
     @Override
@@ -511,11 +547,14 @@ public class IceExtension extends ImageViewerExtension implements UIReloadable {
         File imageFile = selectedImage.getImageFile();
         if (imageFile != null && imageFile.exists()) {
             File file = new File(imageFile.getParentFile(), FilenameUtils.getBaseName(imageFile.getName()) + ".ice");
-            if (! file.exists()) {
+            FileAttributes tagFileAttributes = FileAttributes.read(file); // before reading, so a change since isn't missed
+            if (! tagFileAttributes.exists()) {
                 return;
             }
-            TagList tagList = TagList.fromFile(file);
-            TagIndex.getInstance().addOrUpdateEntry(imageFile, file); // keep tag index up to date as we browse
+            TagList tagList = TagList.fromFile(file, true);
+            // Keep tag index up to date as we browse:
+            TagIndex.getInstance().addOrUpdateEntry(imageFile, file, tagFileAttributes.getSize(),
+                                                    tagFileAttributes.getLastModified(), tagList);
             for (TagPreviewPanel tagPreviewPanel : tagPreviewPanels) {
                 tagPreviewPanel.setTagList(tagList);
             }
@@ -528,6 +567,9 @@ public class IceExtension extends ImageViewerExtension implements UIReloadable {
      */
     @Override
     public void postImageOperation(ImageOperation.Type opType, File srcFile, File destFile) {
+        // Don't wait for directory timestamps to tell us what we already know:
+        DirectoryListingCache.getInstance().invalidate(srcFile == null ? null : srcFile.getAbsoluteFile().getParentFile());
+        DirectoryListingCache.getInstance().invalidate(destFile == null ? null : destFile.getAbsoluteFile().getParentFile());
         switch (opType) {
             case DELETE: TagIndex.getInstance().removeEntry(srcFile); break;
 
@@ -669,6 +711,38 @@ public class IceExtension extends ImageViewerExtension implements UIReloadable {
             AutoTagAction.getInstance(requestTemplate).setSysPrompts(sysPromptTagged, sysPromptUntagged);
             AutoTagBatchAction.getInstance(requestTemplate).setSysPrompts(sysPromptTagged, sysPromptUntagged);
         }
+
+        // The user may have changed which directories we watch, or turned watching on or off:
+        List<File> watchDirs = getWatchForChangesOption() && TagIndex.isEnabled() ? getWatchDirsOption() : List.of();
+        List<File> currentDirs = tagIndexWatcher == null ? List.of() : tagIndexWatcher.getRoots();
+        if (!watchDirs.equals(currentDirs)) {
+            restartTagIndexWatcher();
+        }
+    }
+
+    /**
+     * Stops the tag index watcher if it's running, and starts a new one if watching is
+     * enabled in config and there is at least one directory to watch.
+     */
+    private void restartTagIndexWatcher() {
+        stopTagIndexWatcher();
+        if (!getWatchForChangesOption() || !TagIndex.isEnabled()) {
+            return;
+        }
+        List<File> watchDirs = getWatchDirsOption();
+        if (watchDirs.isEmpty()) {
+            log.info("IceExtension: watching for tag changes is enabled, but no watch directories are configured.");
+            return;
+        }
+        tagIndexWatcher = new TagIndexWatcher(watchDirs);
+        tagIndexWatcher.start();
+    }
+
+    private void stopTagIndexWatcher() {
+        if (tagIndexWatcher != null) {
+            tagIndexWatcher.stop();
+            tagIndexWatcher = null;
+        }
     }
 
     /**
@@ -799,6 +873,89 @@ public class IceExtension extends ImageViewerExtension implements UIReloadable {
         return false; // default to false if something goes wrong
     }
 
+    /**
+     * Returns the currently-configured value of the "search the tag index only" option.
+     */
+    public static boolean getIndexOnlySearchOption() {
+        PropertiesManager propsManager = AppConfig.getInstance().getPropertiesManager();
+        AbstractProperty prop = propsManager.getProperty(IceExtension.indexOnlySearchProp);
+        if (prop instanceof BooleanProperty boolProp) {
+            return boolProp.getValue();
+        }
+
+        return false; // default to the old (safe) behaviour if something goes wrong
+    }
+
+    /**
+     * Returns the currently-configured value of the "check index for stale entries" option.
+     */
+    public static boolean getIndexOnlySearchVerifyOption() {
+        PropertiesManager propsManager = AppConfig.getInstance().getPropertiesManager();
+        AbstractProperty prop = propsManager.getProperty(IceExtension.indexOnlySearchVerifyProp);
+        if (prop instanceof BooleanProperty boolProp) {
+            return boolProp.getValue();
+        }
+
+        return true; // default to true if something goes wrong
+    }
+
+    /**
+     * Returns the configured number of threads to use when scanning for tag files.
+     */
+    public static int getScanThreadsOption() {
+        PropertiesManager propsManager = AppConfig.getInstance().getPropertiesManager();
+        AbstractProperty prop = propsManager.getProperty(IceExtension.scanThreadsProp);
+        if (prop instanceof IntegerProperty intProp) {
+            return Math.max(1, intProp.getValue());
+        }
+
+        return Math.max(1, Runtime.getRuntime().availableProcessors()); // default to one per core
+    }
+
+    /**
+     * Returns the currently-configured value of the "skip unchanged directories" option.
+     */
+    public static boolean getIncrementalScanOption() {
+        PropertiesManager propsManager = AppConfig.getInstance().getPropertiesManager();
+        AbstractProperty prop = propsManager.getProperty(IceExtension.incrementalScanProp);
+        if (prop instanceof BooleanProperty boolProp) {
+            return boolProp.getValue();
+        }
+
+        return false; // default to a full scan if something goes wrong
+    }
+
+    /**
+     * Returns the currently-configured value of the "watch for tag changes" option.
+     */
+    public static boolean getWatchForChangesOption() {
+        PropertiesManager propsManager = AppConfig.getInstance().getPropertiesManager();
+        AbstractProperty prop = propsManager.getProperty(IceExtension.watchForChangesProp);
+        if (prop instanceof BooleanProperty boolProp) {
+            return boolProp.getValue();
+        }
+
+        return false; // default to off if something goes wrong
+    }
+
+    /**
+     * Returns the configured list of directories to watch for tag changes.
+     * Will return an empty list if none are configured, but never null.
+     */
+    public static List<File> getWatchDirsOption() {
+        PropertiesManager propsManager = AppConfig.getInstance().getPropertiesManager();
+        AbstractProperty prop = propsManager.getProperty(IceExtension.watchDirsProp);
+        List<File> dirs = new ArrayList<>();
+        if (prop instanceof ShortTextProperty textProp && textProp.getValue() != null) {
+            for (String path : textProp.getValue().split(";")) {
+                if (!path.isBlank()) {
+                    dirs.add(new File(path.trim()));
+                }
+            }
+        }
+        return dirs;
+    }
+
     /**
      * Returns the list of options for the auto-downscale combo property (for auto-tag requests).
      */
@@ -4,26 +4,90 @@ import ca.corbett.extras.properties.AbstractProperty;
 import ca.corbett.extras.properties.BooleanProperty;
 import ca.corbett.imageviewer.AppConfig;
 import ca.corbett.imageviewer.Version;
+import ca.corbett.imageviewer.extensions.ice.index.DirectoryStats;
+import ca.corbett.imageviewer.extensions.ice.index.DirectoryStatsTree;
+import ca.corbett.imageviewer.extensions.ice.index.TagBitmap;
+import ca.corbett.imageviewer.extensions.ice.index.TagBkTree;
+import ca.corbett.imageviewer.extensions.ice.index.TagCooccurrence;
+import ca.corbett.imageviewer.extensions.ice.index.TagDictionary;
+import ca.corbett.imageviewer.extensions.ice.index.TagVocabulary;
+import ca.corbett.imageviewer.extensions.ice.io.DirectoryScanState;
+import ca.corbett.imageviewer.extensions.ice.io.FileAttributes;
+import ca.corbett.imageviewer.extensions.ice.io.TagFileHash;
+import ca.corbett.imageviewer.extensions.ice.io.TagIndexJournal;
 import ca.corbett.imageviewer.extensions.ice.io.TagIndexPersistence;
+import ca.corbett.imageviewer.extensions.ice.query.QueryContext;
+import ca.corbett.imageviewer.extensions.ice.query.QueryPlan;
+import ca.corbett.imageviewer.extensions.ice.query.QueryPlanner;
+import ca.corbett.imageviewer.extensions.ice.query.TagPattern;
+import ca.corbett.imageviewer.extensions.ice.query.TagQuery;
 import ca.corbett.imageviewer.extensions.ice.threads.ScanThread;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.util.Collections;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
  * If enabled, we'll manage an index file storing all known tags for all known images, along
  * with a lastModified timestamp for the tag file to very quickly determine if reload is needed.
  * SearchThread will be updated to use TagIndex if its enabled.
+ * <p>
+ *     <b>Inverted index</b> - each entry is given a small integer image id when it enters
+ *     the index, and for each distinct tag (keyed by its TagDictionary id) we keep a posting
+ *     list of the ids of all images that have that tag. The posting lists are maintained incrementally as entries are
+ *     added, updated, or removed. Each posting list is a compressed TagBitmap, so that
+ *     the search() method can answer ALL/ANY/NONE queries across the whole index with
+ *     word-wise AND/OR/ANDNOT, without looking at each entry in turn and without touching
+ *     the filesystem. The per-image containsAll/containsAny/containsNone checks are
+ *     answered from the same bitmaps.
+ * </p>
+ * <p>
+ *     <b>Journal</b> - every change made through addOrUpdateEntry() or removeEntry() is also
+ *     appended to a TagIndexJournal next to the index file, and the journal is replayed on
+ *     load(). This way, tag edits survive a crash even if save() is never reached. Once the
+ *     journal grows past JOURNAL_COMPACTION_THRESHOLD bytes, it is folded into the main
+ *     index file on a background thread.
+ * </p>
+ * <p>
+ *     <b>Content hashes</b> - a tag file is normally judged unchanged if its size and last
+ *     modified time are. Where that can't be relied on, the "hash tag file contents" option
+ *     has each entry also remember a TagFileHash of its tag file, and verify() starts a scan
+ *     that rehashes the tag files whose size and timestamp say they're unchanged, in parallel,
+ *     re-reading the tags of any whose content turns out to be different after all.
+ * </p>
+ * <p>
+ *     <b>Incremental scans</b> - alongside the entries, we keep a DirectoryScanState recording
+ *     what each scanned directory looked like when its scan finished, so that a ScanThread in
+ *     incremental mode can skip directories that haven't changed since. It is saved next to
+ *     the index file, and only trusted for as long as the index it was built with.
+ * </p>
+ * <p>
+ *     <b>Thread safety</b> - this class is safe to use from background scans, search threads
+ *     and the EDT at the same time. Entries live in a ConcurrentHashMap, so lookups by image
+ *     never block. The secondary structures (image ids and posting lists) are guarded by a
+ *     read/write lock: searches share the read lock, and the write lock is only held for the
+ *     brief in-memory update at the end of each change. Changes to the same image are
+ *     serialized by a striped lock on the image path, so that writers for different images
+ *     (including any tag file parsing they do) don't wait on one another.
+ * </p>
  *
  * @author <a href="https://github.com/scorbo2">scorbo2</a>
  */
@@ -32,6 +96,17 @@ public class TagIndex {
     private static final Logger log = Logger.getLogger(TagIndex.class.getName());
 
     public static final String PROP_NAME = "ICE.ICE options.enableTagIndex";
+    public static final String CONTENT_HASH_PROP_NAME = "ICE.ICE options.hashTagFiles";
+
+    /**
+     * Once the journal grows past this many bytes, it is compacted into the main index file.
+     */
+    public static final long JOURNAL_COMPACTION_THRESHOLD = 4L * 1024 * 1024;
+
+    /**
+     * Related tags must share at least this many images; a single coincidence isn't a relationship.
+     */
+    public static final int MIN_COOCCURRENCE = 2;
 
     /**
      * Possible return codes for addOrUpdate() method.
@@ -43,6 +118,20 @@ public class TagIndex {
         SkippedBecauseDisabled
     }
 
+    /**
+     * The ways in which a list of search tags can be matched against the index.
+     */
+    public enum MatchMode {
+        /** Images must have all of the given tags. */
+        ALL,
+
+        /** Images must have at least one of the given tags. */
+        ANY,
+
+        /** Images must have none of the given tags. */
+        NONE
+    }
+
     /**
      * A package-protected functional interface to provide AppConfig instance
      * for unit tests.
@@ -55,20 +144,82 @@ public class TagIndex {
     // Default provider - normal operation uses AppConfig singleton:
     AppConfigProvider appConfigProvider = AppConfig::getInstance;
 
-    private static TagIndex instance;
-    private File indexFile;
+    private static final int PATH_LOCK_STRIPES = 64;
+
+    private static volatile TagIndex instance;
+    private volatile File indexFile;
     private final Map<String, TagIndexEntry> indexEntries;
+    private final List<TagIndexEntry> entriesById; // image id -> entry, or null if that id is free
+    private final Deque<Integer> freeImageIds; // ids of removed entries, reused to keep the id space dense
+    private final List<TagBitmap> postings; // tag id -> ids of all images with that tag, or null if none
+    private final TagBitmap allImageIds; // ids of all images in the index
+    private final TagVocabulary vocabulary; // sorted set of tags with a non-empty posting list
+    private int[] tagCounts; // tag id -> number of indexed images with that tag
+    private final DirectoryStatsTree directoryStats; // per-directory totals of images and tags
+    private final TagCooccurrence cooccurrence; // number of images with each pair of tags
+    private volatile TagIndexJournal journal;
+    private final DirectoryScanState scanState; // what each directory looked like when last scanned
+    private final ReentrantReadWriteLock structureLock; // guards entriesById, freeImageIds, postings, allImageIds, vocabulary, tagCounts, directoryStats, cooccurrence
+    private final Object[] pathLocks; // serializes changes to any one image, striped by path
+    private final QueryContext queryContext; // our posting lists, as seen by the query planner; read lock required
+    private final Object saveLock = new Object(); // only one full write of the index file at a time
+    private final AtomicBoolean isCompacting = new AtomicBoolean(false);
+    private volatile long generation; // bumped on every change to the index contents, under the write lock
+    private long saveGeneration; // bumped on every full write, guarded by saveLock
 
     protected TagIndex() {
         indexFile = new File(Version.SETTINGS_DIR, "tagIndex.ice");
-        indexEntries = new HashMap<>();
+        journal = new TagIndexJournal(getJournalFile(indexFile));
+        indexEntries = new ConcurrentHashMap<>();
+        entriesById = new ArrayList<>();
+        freeImageIds = new ArrayDeque<>();
+        postings = new ArrayList<>();
+        allImageIds = new TagBitmap();
+        vocabulary = new TagVocabulary();
+        tagCounts = new int[64];
+        directoryStats = new DirectoryStatsTree();
+        cooccurrence = new TagCooccurrence();
+        scanState = new DirectoryScanState();
+        structureLock = new ReentrantReadWriteLock();
+        pathLocks = new Object[PATH_LOCK_STRIPES];
+        for (int i = 0; i < pathLocks.length; i++) {
+            pathLocks[i] = new Object();
+        }
+        queryContext = new QueryContext() {
+            @Override
+            public TagBitmap getPostingList(String tag) {
+                return TagIndex.this.getPostingList(tag);
+            }
+
+            @Override
+            public TagBitmap getAllImageIds() {
+                return allImageIds;
+            }
+
+            @Override
+            public List<String> expand(TagPattern pattern) {
+                return pattern.expand(vocabulary);
+            }
+
+            @Override
+            public List<String> expandFuzzy(String tag, int maxDistance) {
+                return vocabulary.getTagsWithin(tag, maxDistance);
+            }
+        };
     }
 
     public static TagIndex getInstance() {
-        if (instance == null) {
-            instance = new TagIndex();
+        TagIndex result = instance;
+        if (result == null) {
+            synchronized (TagIndex.class) {
+                result = instance;
+                if (result == null) {
+                    result = new TagIndex();
+                    instance = result;
+                }
+            }
         }
-        return instance;
+        return result;
     }
 
     public int size() {
@@ -79,34 +230,128 @@ public class TagIndex {
         return ! indexFile.exists() ? 0L : indexFile.length();
     }
 
+    /**
+     * Returns a number that goes up every time an entry is added, changed or removed. If two calls
+     * return the same value, nothing in the index changed between them, so anything computed from
+     * the index in the meantime (a search result, for example) is still good.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
     /**
      * For statistics purposes only (for example, in the TagStatsDialog), we offer the ability
      * to return a list of top N most frequently-occurring tags, with an optional exclusion list
-     * to filter out tags that shouldn't count for this purpose.
+     * to filter out tags that shouldn't count for this purpose. Per-tag image counts are kept
+     * up to date as entries come and go, so this costs time in proportion to the number of
+     * distinct tags, not the number of indexed images. Tags used equally often are returned
+     * in alphabetical order.
      *
      * @param N How many tags should be returned (ordered by most frequently occurring)
      * @param exceptTheseTags An optional list of tags to exclude from the search
      * @return A List of the most frequently occurring tags in decreasing order of occurrence.
      */
     public List<String> getMostFrequentTags(int N, List<String> exceptTheseTags) {
-        Set<String> excludedTags = exceptTheseTags == null ?
-                Collections.emptySet() :
-                exceptTheseTags.stream()
-                               .map(String::toLowerCase)
-                               .collect(Collectors.toSet());
-
-        return indexEntries.values().stream()
-                       .flatMap(tagList -> tagList.getTagList().getTags().stream())
-                       .filter(tag -> !excludedTags.contains(tag))
-                       .collect(Collectors.groupingBy(
-                               Function.identity(),
-                               Collectors.counting()
-                       ))
-                       .entrySet().stream()
-                       .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
-                       .limit(N)
-                       .map(Map.Entry::getKey)
-                       .collect(Collectors.toList());
+        if (N <= 0) {
+            return new ArrayList<>();
+        }
+        TagDictionary dictionary = TagDictionary.getInstance();
+        Set<Integer> excludedTagIds = new HashSet<>();
+        if (exceptTheseTags != null) {
+            for (String tag : exceptTheseTags) {
+                excludedTagIds.add(dictionary.getId(TagList.stripTag(tag)));
+            }
+        }
+
+        structureLock.readLock().lock();
+        try {
+            // Keep the best N seen so far in a min-heap, so that the weakest of them is always on top
+            // and each tag costs at most one log(N) step. Ties go to the alphabetically first tag.
+            Comparator<Integer> byFrequency = Comparator.<Integer>comparingInt(tagId -> tagCounts[tagId])
+                                                        .thenComparing(dictionary::getTag, Comparator.reverseOrder());
+            PriorityQueue<Integer> best = new PriorityQueue<>(Math.min(N, 1024), byFrequency);
+            for (int tagId = 0; tagId < tagCounts.length; tagId++) {
+                if (tagCounts[tagId] == 0 || excludedTagIds.contains(tagId)) {
+                    continue;
+                }
+                if (best.size() < N) {
+                    best.add(tagId);
+                }
+                else if (byFrequency.compare(tagId, best.peek()) > 0) {
+                    best.poll();
+                    best.add(tagId);
+                }
+            }
+            String[] result = new String[best.size()];
+            for (int i = result.length - 1; i >= 0; i--) {
+                result[i] = dictionary.getTag(best.poll());
+            }
+            return new ArrayList<>(Arrays.asList(result));
+        }
+        finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns up to k tags that indexed images with the given tag also tend to have, strongest
+     * relationship first. Tags are ranked by lift (see TagCooccurrence), and only tags that share
+     * at least MIN_COOCCURRENCE images with the given tag are considered.
+     */
+    public List<TagCooccurrence.RelatedTag> getRelatedTags(String tag, int k) {
+        structureLock.readLock().lock();
+        try {
+            int tagId = TagDictionary.getInstance().getId(TagList.stripTag(tag));
+            if (tagId < 0) {
+                return new ArrayList<>();
+            }
+            return cooccurrence.getRelatedTags(tagId, k, MIN_COOCCURRENCE, this::getTagCountLocked, getImageCountLocked());
+        }
+        finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Suggests up to k tags to add to an image that has the given tags, based on which tags
+     * tend to go together across the whole index. The best suggestions are related to several
+     * of the given tags. Returns an empty list if nothing stands out.
+     */
+    public List<String> suggestRelatedTags(TagList tags, int k) {
+        if (tags == null || tags.isEmpty()) {
+            return new ArrayList<>();
+        }
+        int[] tagIds = tags.getTags().stream()
+                           .mapToInt(tag -> TagDictionary.getInstance().getId(tag))
+                           .filter(tagId -> tagId >= 0)
+                           .toArray();
+        structureLock.readLock().lock();
+        try {
+            return cooccurrence.suggest(tagIds, k, MIN_COOCCURRENCE, this::getTagCountLocked, getImageCountLocked());
+        }
+        finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * For statistics purposes, returns the n pairs of tags that appear together on the most images,
+     * as "tag1 + tag2" strings, ignoring any pair that involves one of the given tags.
+     */
+    public List<String> getMostCommonTagPairs(int n, List<String> exceptTheseTags) {
+        Set<Integer> excludedTagIds = new HashSet<>();
+        if (exceptTheseTags != null) {
+            for (String tag : exceptTheseTags) {
+                excludedTagIds.add(TagDictionary.getInstance().getId(TagList.stripTag(tag)));
+            }
+        }
+        structureLock.readLock().lock();
+        try {
+            return cooccurrence.getMostCommonPairs(n, excludedTagIds);
+        }
+        finally {
+            structureLock.readLock().unlock();
+        }
     }
 
     /**
@@ -133,6 +378,8 @@ public class TagIndex {
             file.getParentFile().mkdirs();
         }
         indexFile = file;
+        journal.close();
+        journal = new TagIndexJournal(getJournalFile(file));
     }
 
     /**
@@ -150,44 +397,280 @@ public class TagIndex {
         return false; // If we can't find the property, assume disabled.
     }
 
+    /**
+     * Queries AppConfig to see if the content of each tag file should be hashed as it is indexed.
+     */
+    public static boolean isContentHashEnabled() {
+        AppConfig appConfig = getInstance().appConfigProvider.getAppConfig();
+        AbstractProperty prop = appConfig.getPropertiesManager().getProperty(CONTENT_HASH_PROP_NAME);
+        if (prop instanceof BooleanProperty booleanProp) {
+            return booleanProp.getValue();
+        }
+        return false;
+    }
+
     public EntryAddResult addOrUpdateEntry(File imageFile, File tagFile) {
+        FileAttributes tagFileAttributes = FileAttributes.read(tagFile);
+        return addOrUpdateEntry(imageFile, tagFile, tagFileAttributes.getSize(), tagFileAttributes.getLastModified(), null);
+    }
+
+    /**
+     * Adds or updates the entry for the given image, using tag file metadata and (optionally)
+     * tags that the caller has already read. This lets callers such as ScanThread do the slow
+     * part - statting and parsing the tag file - on their own threads, leaving only the cheap
+     * in-memory update to be done here.
+     *
+     * @param imageFile           The image file.
+     * @param tagFile             The tag file for that image.
+     * @param tagFileSize         The size of the tag file, as the caller saw it.
+     * @param tagFileLastModified The last modified time of the tag file, as the caller saw it.
+     * @param tagList             The tags read from the tag file, or null to read them here if needed.
+     */
+    public EntryAddResult addOrUpdateEntry(File imageFile, File tagFile, long tagFileSize, long tagFileLastModified,
+                                           TagList tagList) {
+        return addOrUpdateEntry(imageFile, tagFile, tagFileSize, tagFileLastModified, tagList, TagFileHash.NONE);
+    }
+
+    /**
+     * As above, with a TagFileHash of the tag file's content, computed by the caller from the same
+     * bytes as the given tags. If the size and timestamp match the existing entry but the hash
+     * doesn't, the entry is updated anyway: the file was rewritten without them changing.
+     * If the entry had no hash before, the given one is recorded, and the tags are only
+     * updated if they differ.
+     *
+     * @param tagFileHash The hash of the tag file content, or TagFileHash.NONE if not known.
+     *                    If not known, the tags are null, and hashing is enabled in configuration,
+     *                    the hash is computed here as the tags are read.
+     */
+    public EntryAddResult addOrUpdateEntry(File imageFile, File tagFile, long tagFileSize, long tagFileLastModified,
+                                           TagList tagList, long tagFileHash) {
         // If disabled by configuration, just do nothing:
         if (! isEnabled()) {
             return EntryAddResult.SkippedBecauseDisabled;
         }
 
-        // Is there an existing entry for this image?
-        TagIndexEntry existingEntry = indexEntries.get(imageFile.getAbsolutePath());
-        if (existingEntry != null) {
-            // And has the tag file changed since we last saw it?
-            if (existingEntry.getTagFileLastModified() != tagFile.lastModified() ||
-                    existingEntry.getTagFileSize() != tagFile.length()) {
-                existingEntry.setTagFileLastModified(tagFile.lastModified());
-                existingEntry.setTagFileSize(tagFile.length());
-                existingEntry.setTagList(TagList.fromFile(tagFile));
-                return EntryAddResult.ExistingEntryUpdated;
+        synchronized (getPathLock(imageFile)) {
+            // Is there an existing entry for this image?
+            TagIndexEntry existingEntry = indexEntries.get(imageFile.getAbsolutePath());
+            if (existingEntry != null) {
+                // And has the tag file changed since we last saw it?
+                boolean isMetadataChanged = existingEntry.getTagFileLastModified() != tagFileLastModified
+                        || existingEntry.getTagFileSize() != tagFileSize;
+                boolean isContentChanged = ! isMetadataChanged && tagFileHash != TagFileHash.NONE
+                        && existingEntry.getTagFileHash() != tagFileHash;
+                if (isContentChanged && existingEntry.getTagFileHash() == TagFileHash.NONE
+                        && tagList != null && existingEntry.hasSameTags(tagList)) {
+                    existingEntry.setTagFileHash(tagFileHash); // first time we've hashed it, and nothing changed
+                    journalPut(existingEntry);
+                    return EntryAddResult.SkippedBecauseUpToDate;
+                }
+                if (isMetadataChanged || isContentChanged) {
+                    ParsedTagFile parsed = parseIfNeeded(tagFile, tagList, tagFileHash); // before we lock
+                    updateEntry(existingEntry, tagFileSize, tagFileLastModified, parsed.tags, parsed.hash);
+                    return EntryAddResult.ExistingEntryUpdated;
+                }
+                else {
+                    return EntryAddResult.SkippedBecauseUpToDate;
+                }
             }
-            else {
+
+            // Otherwise, make an entry for this guy:
+            ParsedTagFile parsed = parseIfNeeded(tagFile, tagList, tagFileHash);
+            createEntry(imageFile, tagFile, tagFileSize, tagFileLastModified, parsed.tags, parsed.hash);
+            return EntryAddResult.NewEntryCreated;
+        }
+    }
+
+    /**
+     * Writes the given TagList to its tag file, and updates the entry for the given image to
+     * match, without reading the tag file back: the tags come straight from the given list, and
+     * the size and timestamp from a single stat of the file after it's written. Anything that
+     * edits tags should use this, rather than saving the TagList and then calling
+     * addOrUpdateEntry(), which would read and parse the file it just wrote.
+     * <p>
+     *     The tag file is written even if the index is disabled. If it can't be written, the
+     *     entry is brought in line with whatever is left on disk, the slow way.
+     * </p>
+     *
+     * @param imageFile The image that the tags belong to.
+     * @param tagList   The tags to save, with their persistence file set to the image's tag file.
+     * @return true if the tag file was written.
+     */
+    public boolean saveTagList(File imageFile, TagList tagList) {
+        byte[] content = tagList.write();
+        File tagFile = tagList.getPersistenceFile();
+        if (content == null) {
+            if (tagFile != null) {
+                addOrUpdateEntry(imageFile, tagFile);
+            }
+            return false;
+        }
+        putEntry(imageFile, tagList, FileAttributes.read(tagFile),
+                 isContentHashEnabled() ? TagFileHash.of(content) : TagFileHash.NONE);
+        return true;
+    }
+
+    /**
+     * Sets the entry for the given image to the given tags, which the caller has just written to
+     * the tag file described by the given attributes (the TagList's persistence file). Unlike
+     * addOrUpdateEntry(), which trusts the tag file's size and timestamp to say whether anything
+     * changed, this compares the tags themselves: a file system with coarse timestamps may not
+     * notice two quick edits of the same length, but we know what we wrote.
+     *
+     * @param imageFile         The image that the tags belong to.
+     * @param tagList           The tags that were written.
+     * @param tagFileAttributes A snapshot of the tag file, taken after it was written.
+     * @param tagFileHash       The TagFileHash of what was written, or TagFileHash.NONE if not known.
+     */
+    public EntryAddResult putEntry(File imageFile, TagList tagList, FileAttributes tagFileAttributes,
+                                   long tagFileHash) {
+        if (! isEnabled()) {
+            return EntryAddResult.SkippedBecauseDisabled;
+        }
+
+        long tagFileSize = tagFileAttributes.getSize();
+        long tagFileLastModified = tagFileAttributes.getLastModified();
+        synchronized (getPathLock(imageFile)) {
+            TagIndexEntry existingEntry = indexEntries.get(imageFile.getAbsolutePath());
+            if (existingEntry == null) {
+                createEntry(imageFile, tagFileAttributes.getFile(), tagFileSize, tagFileLastModified, tagList,
+                            tagFileHash);
+                return EntryAddResult.NewEntryCreated;
+            }
+            if (existingEntry.getTagFileSize() == tagFileSize
+                    && existingEntry.getTagFileLastModified() == tagFileLastModified
+                    && existingEntry.getTagFileHash() == tagFileHash
+                    && existingEntry.hasSameTags(tagList)) {
                 return EntryAddResult.SkippedBecauseUpToDate;
             }
+            updateEntry(existingEntry, tagFileSize, tagFileLastModified, tagList, tagFileHash);
+            return EntryAddResult.ExistingEntryUpdated;
+        }
+    }
+
+    /**
+     * Replaces the tags and tag file metadata of the given entry, and journals the change.
+     * The caller must hold the path lock for the entry's image.
+     */
+    private void updateEntry(TagIndexEntry entry, long tagFileSize, long tagFileLastModified,
+                             TagList tags, long tagFileHash) {
+        structureLock.writeLock().lock();
+        try {
+            entry.setGeneration(generation + 1); // before anything else changes; see TagIndexEntry.getGeneration()
+            entry.setTagFileLastModified(tagFileLastModified);
+            entry.setTagFileSize(tagFileSize);
+            entry.setTagFileHash(tagFileHash);
+            removePostings(entry);
+            entry.setTagList(tags);
+            addPostings(entry);
+            generation++;
         }
+        finally {
+            structureLock.writeLock().unlock();
+        }
+        journalPut(entry);
+    }
 
-        // Otherwise, make an entry for this guy:
+    /**
+     * Makes a new entry for the given image, and journals it.
+     * The caller must hold the path lock for the image.
+     */
+    private void createEntry(File imageFile, File tagFile, long tagFileSize, long tagFileLastModified,
+                             TagList tags, long tagFileHash) {
         TagIndexEntry newEntry = new TagIndexEntry();
         newEntry.setImageFile(imageFile);
         newEntry.setTagFile(tagFile);
-        newEntry.setTagFileLastModified(tagFile.lastModified());
-        newEntry.setTagFileSize(tagFile.length());
-        newEntry.setTagList(TagList.fromFile(tagFile));
-        indexEntries.put(imageFile.getAbsolutePath(), newEntry);
-        return EntryAddResult.NewEntryCreated;
+        newEntry.setTagFileLastModified(tagFileLastModified);
+        newEntry.setTagFileSize(tagFileSize);
+        newEntry.setTagFileHash(tagFileHash);
+        newEntry.setTagList(tags);
+        insertEntry(newEntry);
+        journalPut(newEntry);
+    }
+
+    /**
+     * Tags read from a tag file, with the TagFileHash of the bytes they were read from, if asked for.
+     */
+    private static final class ParsedTagFile {
+        final TagList tags;
+        final long hash;
+
+        ParsedTagFile(TagList tags, long hash) {
+            this.tags = tags;
+            this.hash = hash;
+        }
     }
 
     /**
-     * Removes the index entry for the given image file, if there is one.
+     * Returns the given tags and hash if we have tags, or reads them from the tag file if not,
+     * hashing the content as we go if hashing is enabled and the caller didn't give a hash.
+     */
+    private static ParsedTagFile parseIfNeeded(File tagFile, TagList tagList, long tagFileHash) {
+        if (tagList != null) {
+            return new ParsedTagFile(tagList, tagFileHash);
+        }
+        if (tagFileHash == TagFileHash.NONE && isContentHashEnabled()) {
+            try {
+                byte[] content = TagFileHash.readContent(tagFile);
+                return new ParsedTagFile(TagList.fromBytes(tagFile, content), TagFileHash.of(content));
+            }
+            catch (IOException ioe) {
+                log.log(Level.WARNING, "TagIndex: unable to hash tag file " + tagFile.getAbsolutePath(), ioe);
+            }
+        }
+        return new ParsedTagFile(TagList.fromFile(tagFile), tagFileHash);
+    }
+
+    /**
+     * Reports whether the index already has an entry for the given image whose tag file
+     * metadata matches the given values, meaning the tag file doesn't need to be read again.
+     */
+    public boolean isUpToDate(File imageFile, long tagFileSize, long tagFileLastModified) {
+        TagIndexEntry entry = indexEntries.get(imageFile.getAbsolutePath());
+        return entry != null
+                && entry.getTagFileSize() == tagFileSize
+                && entry.getTagFileLastModified() == tagFileLastModified;
+    }
+
+    /**
+     * Removes the index entry for the given image file, if there is one. The DirectoryScanState
+     * forgets the image's directory, since removing an entry doesn't necessarily change anything
+     * on disk: if the tag file is still there, the next incremental scan should find it again.
      */
     public void removeEntry(File imageFile) {
-        indexEntries.remove(imageFile.getAbsolutePath());
+        if (removeEntryInternal(imageFile)) {
+            scanState.remove(imageFile.getAbsoluteFile().getParentFile());
+            if (isEnabled()) {
+                journal.appendRemove(imageFile);
+                compactJournalIfNeeded();
+            }
+        }
+    }
+
+    /**
+     * Removes the given image from the in-memory index without journaling the change.
+     *
+     * @return true if there was an entry to remove.
+     */
+    private boolean removeEntryInternal(File imageFile) {
+        synchronized (getPathLock(imageFile)) {
+            structureLock.writeLock().lock();
+            try {
+                TagIndexEntry entry = indexEntries.remove(imageFile.getAbsolutePath());
+                if (entry == null) {
+                    return false;
+                }
+                removePostings(entry);
+                allImageIds.remove(entry.getImageId());
+                entriesById.set(entry.getImageId(), null);
+                freeImageIds.push(entry.getImageId());
+                generation++;
+                return true;
+            }
+            finally {
+                structureLock.writeLock().unlock();
+            }
+        }
     }
 
     /**
@@ -200,25 +683,467 @@ public class TagIndex {
         if (entry == null) {
             return false;
         }
-        if (entry.getTagFileSize() != tagFile.length() || entry.getTagFileLastModified() != tagFile.lastModified()) {
-            addOrUpdateEntry(imageFile, tagFile);
+        FileAttributes tagFileAttributes = FileAttributes.read(tagFile);
+        if (entry.getTagFileSize() != tagFileAttributes.getSize()
+                || entry.getTagFileLastModified() != tagFileAttributes.getLastModified()) {
+            addOrUpdateEntry(imageFile, tagFile, tagFileAttributes.getSize(), tagFileAttributes.getLastModified(), null);
         }
         return true;
     }
 
     public boolean containsAll(File imageFile, TagList tags) {
         TagIndexEntry indexEntry = indexEntries.get(imageFile.getAbsolutePath());
-        return indexEntry != null && indexEntry.containsAll(tags);
+        if (indexEntry == null) {
+            return false;
+        }
+        structureLock.readLock().lock();
+        try {
+            for (String tag : tags.getTags()) {
+                if (! hasTag(indexEntry, tag)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        finally {
+            structureLock.readLock().unlock();
+        }
     }
 
     public boolean containsAny(File imageFile, TagList tags) {
         TagIndexEntry indexEntry = indexEntries.get(imageFile.getAbsolutePath());
-        return indexEntry != null && indexEntry.containsAny(tags);
+        if (indexEntry == null) {
+            return false;
+        }
+        structureLock.readLock().lock();
+        try {
+            for (String tag : tags.getTags()) {
+                if (hasTag(indexEntry, tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        finally {
+            structureLock.readLock().unlock();
+        }
     }
 
     public boolean containsNone(File imageFile, TagList tags) {
         TagIndexEntry indexEntry = indexEntries.get(imageFile.getAbsolutePath());
-        return indexEntry != null && indexEntry.containsNone(tags);
+        if (indexEntry == null) {
+            return false;
+        }
+        structureLock.readLock().lock();
+        try {
+            for (String tag : tags.getTags()) {
+                if (hasTag(indexEntry, tag)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Searches the entire index for images matching the given search tags, without looking
+     * at the filesystem. The semantics are the same as a regular search: each non-empty list
+     * narrows the result set, and empty lists are ignored. If all three lists are empty,
+     * every indexed image is returned.
+     *
+     * @param findAll  Images must have all of these tags (may be empty).
+     * @param findAny  Images must have at least one of these tags (may be empty).
+     * @param findNone Images must have none of these tags (may be empty).
+     * @return The matching image files, in no particular order. Never null.
+     */
+    public List<File> search(TagList findAll, TagList findAny, TagList findNone) {
+        return search(null, true, findAll, findAny, findNone);
+    }
+
+    /**
+     * Searches the index for images matching the given search tags, limited to images that
+     * live in the given directory (with optional recursion). As with search(TagList, TagList, TagList),
+     * this never touches the filesystem, so the results are only as fresh as the index itself.
+     *
+     * @param dir         The directory to search, or null to search the entire index.
+     * @param isRecursive Whether images in subdirectories of dir should also be considered.
+     * @param findAll     Images must have all of these tags (may be empty).
+     * @param findAny     Images must have at least one of these tags (may be empty).
+     * @param findNone    Images must have none of these tags (may be empty).
+     * @return The matching image files, in no particular order. Never null.
+     */
+    public List<File> search(File dir, boolean isRecursive, TagList findAll, TagList findAny, TagList findNone) {
+        structureLock.readLock().lock();
+        try {
+            return searchLocked(dir, isRecursive, findAll, findAny, findNone);
+        }
+        finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    private List<File> searchLocked(File dir, boolean isRecursive, TagList findAll, TagList findAny, TagList findNone) {
+        TagBitmap matchingIds = null; // null means "everything" until something narrows it
+        if (findAll != null && ! findAll.isEmpty()) {
+            matchingIds = getImageIds(MatchMode.ALL, findAll);
+        }
+        if (findAny != null && ! findAny.isEmpty()) {
+            TagBitmap anyIds = getImageIds(MatchMode.ANY, findAny);
+            if (matchingIds == null) {
+                matchingIds = anyIds;
+            }
+            else {
+                matchingIds.andInPlace(anyIds);
+            }
+        }
+        if (findNone != null && ! findNone.isEmpty()) {
+            if (matchingIds == null) {
+                matchingIds = getImageIds(MatchMode.NONE, findNone);
+            }
+            else {
+                matchingIds.andNotInPlace(getImageIds(MatchMode.ANY, findNone));
+            }
+        }
+        if (matchingIds == null) {
+            matchingIds = allImageIds.copy();
+        }
+        return getImageFilesLocked(matchingIds, dir, isRecursive);
+    }
+
+    /**
+     * Searches the index for images matching the given query, limited to images that live in
+     * the given directory (with optional recursion). The query is planned against the current
+     * contents of the index and then executed entirely on posting lists. As with the other
+     * search methods, the filesystem is not consulted.
+     *
+     * @param dir         The directory to search, or null to search the entire index.
+     * @param isRecursive Whether images in subdirectories of dir should also be considered.
+     * @param query       The query to run.
+     * @return The matching image files, in no particular order. Never null.
+     */
+    public List<File> search(File dir, boolean isRecursive, TagQuery query) {
+        structureLock.readLock().lock();
+        try {
+            QueryPlan plan = QueryPlanner.plan(query.getRoot(), queryContext);
+            log.fine("TagIndex: query plan for " + query + ": " + plan);
+            return getImageFilesLocked(plan.execute(queryContext), dir, isRecursive);
+        }
+        finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Plans the given query against the current contents of the index. The returned plan can
+     * be used to check tag files that aren't in the index yet, in the same order the index would.
+     */
+    public QueryPlan plan(TagQuery query) {
+        structureLock.readLock().lock();
+        try {
+            return QueryPlanner.plan(query.getRoot(), queryContext);
+        }
+        finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Runs the given query against the whole index and returns the ids of all matching images.
+     * Check an entry against the result with getEntry(imageFile).getImageId(). The returned
+     * bitmap is a snapshot; it won't reflect later changes to the index. Image ids are reused
+     * once their entry is removed, so the result only holds for entries whose generation is no
+     * newer than getGeneration() was before this was called.
+     */
+    public TagBitmap getMatchingImageIds(TagQuery query) {
+        structureLock.readLock().lock();
+        try {
+            return QueryPlanner.plan(query.getRoot(), queryContext).execute(queryContext);
+        }
+        finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Resolves the given image ids to image files, keeping only those in the given scope.
+     * Caller must hold the structure read lock.
+     */
+    private List<File> getImageFilesLocked(TagBitmap matchingIds, File dir, boolean isRecursive) {
+        String dirPath = dir == null ? null : dir.getAbsolutePath();
+        List<File> results = new ArrayList<>(matchingIds.getCardinality());
+        matchingIds.forEach(imageId -> {
+            TagIndexEntry entry = entriesById.get(imageId);
+            if (dirPath == null || isInScope(entry, dirPath, isRecursive)) {
+                results.add(entry.getImageFile());
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Returns the image ids of those of the given image files that are in the index.
+     * Files that aren't indexed are skipped.
+     */
+    public TagBitmap getImageIds(Collection<File> imageFiles) {
+        TagBitmap imageIds = new TagBitmap();
+        for (File imageFile : imageFiles) {
+            TagIndexEntry entry = indexEntries.get(imageFile.getAbsolutePath());
+            if (entry != null) {
+                imageIds.add(entry.getImageId());
+            }
+        }
+        return imageIds;
+    }
+
+    /**
+     * Returns a facet histogram of the given images: up to n of their tags, each mapped to the number
+     * of the given images that have it, from most to least common (ties in alphabetical order).
+     * Tags that all of the given images have are left out, as they can't narrow anything down.
+     * This is meant for refining a search result - see filterByTag().
+     * <p>
+     *     For a small set of images, we just add up the tags of each one. For a large set, it's cheaper
+     *     to intersect it with each tag's posting list instead, which doesn't look at entries at all.
+     * </p>
+     */
+    public Map<String, Integer> getFacetCounts(TagBitmap imageIds, int n) {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        if (n <= 0) {
+            return result;
+        }
+        structureLock.readLock().lock();
+        try {
+            int total = imageIds.getCardinality();
+            int[] counts = new int[postings.size()];
+            if (total < vocabulary.size()) {
+                imageIds.forEach(imageId -> {
+                    TagIndexEntry entry = imageId < entriesById.size() ? entriesById.get(imageId) : null;
+                    if (entry != null) {
+                        for (int tagId : entry.getTagIdsInternal()) {
+                            counts[tagId]++;
+                        }
+                    }
+                });
+            }
+            else {
+                for (int tagId = 0; tagId < counts.length; tagId++) {
+                    TagBitmap postingList = postings.get(tagId);
+                    if (postingList != null) {
+                        counts[tagId] = TagBitmap.andCardinality(postingList, imageIds);
+                    }
+                }
+            }
+
+            TagDictionary dictionary = TagDictionary.getInstance();
+            Comparator<Integer> byCount = Comparator.<Integer>comparingInt(tagId -> counts[tagId])
+                                                    .thenComparing(dictionary::getTag, Comparator.reverseOrder());
+            PriorityQueue<Integer> best = new PriorityQueue<>(byCount); // least common on top
+            for (int tagId = 0; tagId < counts.length; tagId++) {
+                if (counts[tagId] == 0 || counts[tagId] == total) {
+                    continue;
+                }
+                best.add(tagId);
+                if (best.size() > n) {
+                    best.poll();
+                }
+            }
+            List<Integer> tagIds = new ArrayList<>(best);
+            tagIds.sort(byCount.reversed());
+            for (int tagId : tagIds) {
+                result.put(dictionary.getTag(tagId), counts[tagId]);
+            }
+            return result;
+        }
+        finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns those of the given image files that have the given tag (or, if keep is false, that
+     * don't have it), in the same order. This is answered from the posting lists, so refining a
+     * search result never needs to touch the filesystem. Files that aren't indexed are treated
+     * as not having the tag.
+     */
+    public List<File> filterByTag(List<File> imageFiles, String tag, boolean keep) {
+        structureLock.readLock().lock();
+        try {
+            TagBitmap postingList = getPostingList(TagList.stripTag(tag));
+            List<File> result = new ArrayList<>();
+            for (File imageFile : imageFiles) {
+                TagIndexEntry entry = indexEntries.get(imageFile.getAbsolutePath());
+                boolean hasTag = entry != null && postingList != null && postingList.contains(entry.getImageId());
+                if (hasTag == keep) {
+                    result.add(imageFile);
+                }
+            }
+            return result;
+        }
+        finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the index entry for the given image file, or null if it is not indexed.
+     */
+    public TagIndexEntry getEntry(File imageFile) {
+        return indexEntries.get(imageFile.getAbsolutePath());
+    }
+
+    /**
+     * Returns a copy of all index entries for images in the given directory, with optional
+     * recursion. This is answered from memory; the filesystem is not consulted.
+     */
+    public List<TagIndexEntry> getEntries(File dir, boolean isRecursive) {
+        String dirPath = dir.getAbsolutePath();
+        List<TagIndexEntry> entries = new ArrayList<>();
+        for (TagIndexEntry entry : indexEntries.values()) {
+            if (isInScope(entry, dirPath, isRecursive)) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the ids of all indexed images that match the given tags in the given mode.
+     * ALL is answered by intersecting the posting lists of each tag (smallest first),
+     * ANY by taking their union, and NONE by subtracting that union from the set of
+     * all indexed images. The returned bitmap is a new copy and may be freely modified.
+     */
+    TagBitmap getImageIds(MatchMode mode, TagList tags) {
+        structureLock.readLock().lock();
+        try {
+            return getImageIdsLocked(mode, tags);
+        }
+        finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    private TagBitmap getImageIdsLocked(MatchMode mode, TagList tags) {
+        List<String> tagNames = tags.getTags();
+        switch (mode) {
+            case ALL: {
+                if (tagNames.isEmpty()) {
+                    return allImageIds.copy();
+                }
+                List<TagBitmap> lists = new ArrayList<>(tagNames.size());
+                for (String tag : tagNames) {
+                    TagBitmap postingList = getPostingList(tag);
+                    if (postingList == null) {
+                        return new TagBitmap(); // no image has this tag, so no image has all of them
+                    }
+                    lists.add(postingList);
+                }
+                lists.sort((a, b) -> Integer.compare(a.getCardinality(), b.getCardinality())); // most selective first
+                TagBitmap result = lists.get(0).copy();
+                for (int i = 1; i < lists.size() && ! result.isEmpty(); i++) {
+                    result.andInPlace(lists.get(i));
+                }
+                return result;
+            }
+
+            case ANY: {
+                TagBitmap result = new TagBitmap();
+                for (String tag : tagNames) {
+                    TagBitmap postingList = getPostingList(tag);
+                    if (postingList != null) {
+                        result.orInPlace(postingList);
+                    }
+                }
+                return result;
+            }
+
+            case NONE: {
+                return TagBitmap.andNot(allImageIds, getImageIds(MatchMode.ANY, tags));
+            }
+        }
+        return new TagBitmap();
+    }
+
+    /**
+     * Returns the number of indexed images that have the given tag.
+     */
+    public int getTagCount(String tag) {
+        structureLock.readLock().lock();
+        try {
+            return getTagCountLocked(TagList.stripTag(tag));
+        }
+        finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns statistics for the indexed images in the given directory, and optionally in all of
+     * its subdirectories. These come from totals that are kept up to date as entries change,
+     * so this is cheap no matter how many images are involved. Untagged images are not in the
+     * index, so they're not counted here.
+     */
+    public DirectoryStats getDirectoryStats(File dir, boolean isRecursive) {
+        structureLock.readLock().lock();
+        try {
+            return directoryStats.getStats(dir, isRecursive);
+        }
+        finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the tags in use in the index that are within maxDistance edits (inserted, deleted
+     * or changed characters) of the given tag, not counting the tag itself. The closest tags
+     * come first, and tags at the same distance are ordered from most to least used.
+     */
+    public List<String> findSimilarTags(String tag, int maxDistance) {
+        String stripped = TagList.stripTag(tag);
+        if (stripped.isEmpty() || maxDistance <= 0) {
+            return new ArrayList<>();
+        }
+        structureLock.readLock().lock();
+        try {
+            List<String> matches = vocabulary.getTagsWithin(stripped, maxDistance);
+            matches.remove(stripped);
+            Map<String, Integer> distances = new HashMap<>();
+            Map<String, Integer> counts = new HashMap<>();
+            for (String match : matches) {
+                distances.put(match, TagBkTree.distance(stripped, match));
+                counts.put(match, getTagCountLocked(match));
+            }
+            matches.sort(Comparator.<String>comparingInt(distances::get)
+                                   .thenComparing(counts::get, Comparator.reverseOrder())
+                                   .thenComparing(Comparator.naturalOrder()));
+            return matches;
+        }
+        finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * If the given tag looks like a typo of a tag that's already in the index, returns that tag.
+     * Otherwise, returns null. A tag looks like a typo if hardly any image uses it, but something
+     * within an edit or two of it (two only for longer tags) is used by more images. Tags shorter than
+     * TagQuery.MIN_FUZZY_TAG_LENGTH are never reported, as there are too many legitimate near-misses
+     * among short words.
+     */
+    public String suggestCorrection(String tag) {
+        String stripped = TagList.stripTag(tag);
+        if (stripped.length() < TagQuery.MIN_FUZZY_TAG_LENGTH) {
+            return null;
+        }
+        int maxDistance = stripped.length() >= 8 ? 2 : 1;
+        List<String> similarTags = findSimilarTags(stripped, maxDistance);
+        if (similarTags.isEmpty()) {
+            return null;
+        }
+        String suggestion = similarTags.get(0);
+        int count = getTagCount(stripped);
+        return count <= 1 && getTagCount(suggestion) > count ? suggestion : null;
     }
 
     /**
@@ -229,8 +1154,38 @@ public class TagIndex {
         return new ScanThread(dir, isRecursive);
     }
 
+    /**
+     * Like scan(), but also rehashes every tag file whose size and timestamp say it hasn't changed,
+     * to catch those that were rewritten without either changing. Slower than a normal scan, since
+     * every tag file is read, but much faster than clearing the index and scanning it again.
+     */
+    public ScanThread verify(File dir, boolean isRecursive) {
+        return new ScanThread(dir, isRecursive, IceExtension.getScanThreadsOption(), ScanThread.ScanMode.VERIFY);
+    }
+
+    /**
+     * Clears the in-memory index. Note that this does not touch the index file or journal on disk;
+     * call save() afterwards to make the change permanent.
+     */
     public void clear() {
-        indexEntries.clear();
+        journal.close();
+        structureLock.writeLock().lock();
+        try {
+            indexEntries.clear();
+            entriesById.clear();
+            freeImageIds.clear();
+            postings.clear();
+            allImageIds.clear();
+            vocabulary.clear();
+            Arrays.fill(tagCounts, 0);
+            directoryStats.clear();
+            cooccurrence.clear();
+            scanState.clear(); // it describes the entries we just threw away
+            generation++;
+        }
+        finally {
+            structureLock.writeLock().unlock();
+        }
     }
 
     public void load() {
@@ -243,38 +1198,331 @@ public class TagIndex {
 
         if (! indexFile.exists()) {
             log.info("IceExtension: tag index file not found.");
+            clear();
+        }
+        else {
+            try {
+                clear();
+                // Auto-detects the file version. If there are duplicates in the file, last one wins:
+                TagIndexPersistence.load(indexFile, this::putEntry);
+                loadScanState();
+            }
+            catch (IOException | UncheckedIOException ioe) {
+                log.log(Level.SEVERE, "TagIndex: problem reading tag index: "+ioe.getMessage(), ioe);
+                clear(); // rather than keep whatever part of it was read before the problem
+                return; // don't replay changes on top of an index we couldn't read
+            }
+        }
+
+        // Replay whatever changes were made after the index file was last written:
+        int replayed = journal.replay(new TagIndexJournal.Listener() {
+            @Override
+            public void entryPut(TagIndexEntry entry) {
+                putEntry(entry);
+            }
+
+            @Override
+            public void entryRemoved(File imageFile) {
+                if (removeEntryInternal(imageFile)) {
+                    scanState.remove(imageFile.getAbsoluteFile().getParentFile()); // as removeEntry() did
+                }
+            }
+        });
+        if (replayed > 0) {
+            log.info("IceExtension: replayed " + replayed + " tag index changes from journal.");
+            if (isEnabled()) {
+                compactJournalInBackground(); // if disabled, leave the files alone; we'll replay again next time
+            }
+        }
+    }
+
+    public void save() {
+        if (! isEnabled()) {
             return;
         }
 
-        try {
-            List<TagIndexEntry> entries = TagIndexPersistence.load(indexFile); // auto-detects file version
-            clear(); // after we read the file but before we start processing it
-            for (TagIndexEntry entry : entries) {
-                indexEntries.put(entry.getImageFile().getAbsolutePath(), entry);
+        synchronized (saveLock) {
+            saveGeneration++; // any compaction still waiting to write is now out of date
+            try {
+                // Set the journal aside before taking our snapshot, so every journaled change is in it:
+                journal.rotate();
+                List<TagIndexEntry> sortedList = getSortedEntries(false);
+                TagIndexPersistence.save(sortedList, indexFile);
+                journal.finishCompaction();
+                log.log(Level.INFO, "IceExtension: saved "+sortedList.size() + " entries to tag index.");
             }
+            catch (IOException ioe) {
+                log.log(Level.SEVERE, "TagIndex: problem writing tag index: "+ioe.getMessage(), ioe);
+                return; // an old index with a new scan state could have incremental scans skip what it's missing
+            }
+            saveScanState();
         }
-        catch (IOException | UncheckedIOException ioe) {
-            log.log(Level.SEVERE, "TagIndex: problem reading tag index: "+ioe.getMessage(), ioe);
+    }
+
+    /**
+     * Returns what each scanned directory looked like when its last scan finished. Used by
+     * ScanThread to skip unchanged directories when scanning incrementally.
+     */
+    public DirectoryScanState getDirectoryScanState() {
+        return scanState;
+    }
+
+    /**
+     * Returns the number of entries whose tag file is in each directory, keyed by absolute
+     * directory. ScanThread compares these against the DirectoryScanState, so that a directory
+     * whose entries have changed since its last scan isn't skipped, even if it looks unchanged.
+     */
+    public Map<File, Integer> countEntriesByDirectory() {
+        Map<File, Integer> counts = new HashMap<>();
+        for (TagIndexEntry entry : indexEntries.values()) {
+            counts.merge(entry.getTagFile().getAbsoluteFile().getParentFile(), 1, Integer::sum);
         }
+        return counts;
     }
 
-    public void save() {
+    /**
+     * Saves the directory scan state without the rest of the index. Useful after a scan that
+     * found nothing new in the index, but did find out more about the directories it looked in.
+     * The index itself is always written first by save(), so the scan state never describes
+     * entries that aren't in the saved index (or its journal).
+     */
+    public void saveScanState() {
         if (! isEnabled()) {
             return;
         }
+        synchronized (saveLock) {
+            try {
+                scanState.save(getScanStateFile(indexFile));
+            }
+            catch (IOException ioe) {
+                log.log(Level.WARNING, "TagIndex: problem writing directory scan state: "+ioe.getMessage(), ioe);
+            }
+        }
+    }
 
-        // Sort the entries by image file path:
-        List<TagIndexEntry> sortedList = indexEntries.entrySet().stream()
-                                              .sorted(Map.Entry.comparingByKey())
-                                              .map(Map.Entry::getValue)
-                                              .toList();
+    private void loadScanState() {
+        try {
+            scanState.load(getScanStateFile(indexFile));
+        }
+        catch (IOException ioe) {
+            // Not a problem, just means the next incremental scan has to look at everything:
+            log.log(Level.WARNING, "TagIndex: problem reading directory scan state: "+ioe.getMessage(), ioe);
+        }
+    }
 
+    /**
+     * Returns the entries sorted by image file path, which is the order we write them in.
+     * If makeCopies is set, each entry is copied so that the result can safely be used
+     * on another thread while this index continues to be modified.
+     */
+    private List<TagIndexEntry> getSortedEntries(boolean makeCopies) {
+        return indexEntries.entrySet().stream()
+                           .sorted(Map.Entry.comparingByKey())
+                           .map(Map.Entry::getValue)
+                           .map(entry -> makeCopies ? entry.copy() : entry)
+                           .toList();
+    }
+
+    private void journalPut(TagIndexEntry entry) {
+        journal.appendPut(entry);
+        compactJournalIfNeeded();
+    }
+
+    private void compactJournalIfNeeded() {
+        if (journal.size() > JOURNAL_COMPACTION_THRESHOLD) {
+            compactJournalInBackground();
+        }
+    }
+
+    /**
+     * Folds the journal into the main index file on a background thread. Only the journal is
+     * rotated on the calling thread; the snapshot of the entries and the write of the index file
+     * both happen in the background. Changes made after the rotation go to the new journal, and
+     * may or may not also make it into the snapshot, which is harmless: replaying them on top of
+     * the index file just sets those entries to the same state again.
+     */
+    private void compactJournalInBackground() {
+        if (! isCompacting.compareAndSet(false, true)) {
+            return; // one at a time
+        }
+        final long generation;
+        final File targetFile = indexFile;
+        final TagIndexJournal targetJournal = journal;
         try {
-            TagIndexPersistence.save(sortedList, indexFile);
-            log.log(Level.INFO, "IceExtension: saved "+sortedList.size() + " entries to tag index.");
+            synchronized (saveLock) {
+                journal.rotate();
+                generation = ++saveGeneration;
+            }
         }
         catch (IOException ioe) {
-            log.log(Level.SEVERE, "TagIndex: problem writing tag index: "+ioe.getMessage(), ioe);
+            log.log(Level.WARNING, "TagIndex: unable to rotate journal: "+ioe.getMessage(), ioe);
+            isCompacting.set(false);
+            return;
+        }
+
+        Thread thread = new Thread(() -> {
+            List<TagIndexEntry> snapshot;
+            try {
+                synchronized (saveLock) {
+                    if (generation != saveGeneration) {
+                        return; // a full save() got there first, and already wrote everything we would have
+                    }
+                    snapshot = getSortedEntries(true);
+                    TagIndexPersistence.save(snapshot, targetFile);
+                    targetJournal.finishCompaction();
+                }
+                log.info("IceExtension: compacted tag index journal (" + snapshot.size() + " entries).");
+            }
+            catch (IOException ioe) {
+                log.log(Level.SEVERE, "TagIndex: problem compacting tag index journal: "+ioe.getMessage(), ioe);
+            }
+            finally {
+                isCompacting.set(false);
+            }
+        }, "ICE-tag-index-compaction");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private static File getJournalFile(File indexFile) {
+        return new File(indexFile.getPath() + ".journal");
+    }
+
+    private static File getScanStateFile(File indexFile) {
+        return new File(indexFile.getPath() + ".dirs");
+    }
+
+    /**
+     * Adds the given entry to the index, replacing any existing entry for the same image.
+     * Nothing is journaled - this is for entries that came from disk.
+     */
+    private void putEntry(TagIndexEntry entry) {
+        synchronized (getPathLock(entry.getImageFile())) {
+            removeEntryInternal(entry.getImageFile());
+            insertEntry(entry);
+        }
+    }
+
+    private Object getPathLock(File imageFile) {
+        int hash = imageFile.getAbsolutePath().hashCode();
+        return pathLocks[(hash ^ (hash >>> 16)) & (PATH_LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Assigns an image id to the given new entry and adds it to the index and to the
+     * posting lists of each of its tags.
+     */
+    private void insertEntry(TagIndexEntry entry) {
+        structureLock.writeLock().lock();
+        try {
+            entry.setGeneration(generation + 1);
+            int imageId;
+            if (freeImageIds.isEmpty()) {
+                imageId = entriesById.size();
+                entriesById.add(entry);
+            }
+            else {
+                imageId = freeImageIds.pop();
+                entriesById.set(imageId, entry);
+            }
+            entry.setImageId(imageId);
+            indexEntries.put(entry.getImageFile().getAbsolutePath(), entry);
+            allImageIds.add(imageId);
+            addPostings(entry);
+            generation++;
+        }
+        finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    // Caller must hold the structure write lock:
+    private void addPostings(TagIndexEntry entry) {
+        directoryStats.add(entry.getImageFile().getAbsoluteFile().getParentFile(), entry.getTagIdsInternal());
+        cooccurrence.add(entry.getTagIdsInternal());
+        for (int tagId : entry.getTagIdsInternal()) {
+            while (postings.size() <= tagId) {
+                postings.add(null);
+            }
+            TagBitmap postingList = postings.get(tagId);
+            if (postingList == null) {
+                postingList = new TagBitmap();
+                postings.set(tagId, postingList);
+                vocabulary.add(TagDictionary.getInstance().getTag(tagId));
+            }
+            postingList.add(entry.getImageId());
+            if (tagId >= tagCounts.length) {
+                tagCounts = Arrays.copyOf(tagCounts, Math.max(tagCounts.length * 2, tagId + 1));
+            }
+            tagCounts[tagId]++;
+        }
+    }
+
+    // Caller must hold the structure write lock:
+    private void removePostings(TagIndexEntry entry) {
+        directoryStats.remove(entry.getImageFile().getAbsoluteFile().getParentFile(), entry.getTagIdsInternal());
+        cooccurrence.remove(entry.getTagIdsInternal());
+        for (int tagId : entry.getTagIdsInternal()) {
+            TagBitmap postingList = tagId < postings.size() ? postings.get(tagId) : null;
+            if (postingList != null) {
+                postingList.remove(entry.getImageId());
+                tagCounts[tagId]--;
+                if (postingList.isEmpty()) {
+                    postings.set(tagId, null); // don't keep empty lists around for tags nobody uses anymore
+                    vocabulary.remove(TagDictionary.getInstance().getTag(tagId));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the posting list for the given (already stripped) tag, or null if no indexed
+     * image has that tag. Search terms are looked up without being interned, so that searching
+     * for tags nobody has doesn't grow the TagDictionary.
+     */
+    private TagBitmap getPostingList(String tag) {
+        int tagId = TagDictionary.getInstance().getId(tag);
+        return (tagId < 0 || tagId >= postings.size()) ? null : postings.get(tagId);
+    }
+
+    // Caller must hold the structure read or write lock:
+    private int getTagCountLocked(int tagId) {
+        return (tagId < 0 || tagId >= tagCounts.length) ? 0 : tagCounts[tagId];
+    }
+
+    // Caller must hold the structure read or write lock:
+    private int getImageCountLocked() {
+        return entriesById.size() - freeImageIds.size();
+    }
+
+    // Caller must hold the structure read or write lock:
+    private int getTagCountLocked(String tag) {
+        int tagId = TagDictionary.getInstance().getId(tag);
+        return (tagId < 0 || tagId >= tagCounts.length) ? 0 : tagCounts[tagId];
+    }
+
+    private boolean hasTag(TagIndexEntry entry, String tag) {
+        TagBitmap postingList = getPostingList(tag);
+        return postingList != null && postingList.contains(entry.getImageId());
+    }
+
+    /**
+     * Reports whether the image for the given entry lives in the given directory, or
+     * (if isRecursive) anywhere underneath it.
+     */
+    private static boolean isInScope(TagIndexEntry entry, String dirPath, boolean isRecursive) {
+        String parentPath = entry.getImageFile().getAbsoluteFile().getParent();
+        if (parentPath == null) {
+            return false;
+        }
+        if (parentPath.equals(dirPath)) {
+            return true;
+        }
+        if (! isRecursive) {
+            return false;
         }
+        String prefix = dirPath.endsWith(File.separator) ? dirPath : dirPath + File.separator;
+        return parentPath.startsWith(prefix);
     }
 }
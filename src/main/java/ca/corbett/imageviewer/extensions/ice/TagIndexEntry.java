@@ -1,6 +1,12 @@
 package ca.corbett.imageviewer.extensions.ice;
 
+import ca.corbett.imageviewer.extensions.ice.index.TagDictionary;
+import ca.corbett.imageviewer.extensions.ice.io.TagFileHash;
+
 import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 
 /**
@@ -22,6 +28,26 @@ import java.util.Objects;
  * The tag file size and last modified values are stored here for performance reasons.
  * We can very quickly check these values to see if they have changed since the last time
  * the tag file was scanned. If so, the tag file is re-parsed and stored in the index entry.
+ * <p>
+ *     <b>Sort key</b> - each entry can give a normalized (lower case) form of its image path,
+ *     computed once and then kept, so that search results can be sorted by path without building
+ *     new strings inside every comparison.
+ * </p>
+ * <p>
+ *     <b>Content hash</b> - optionally, each entry also remembers a TagFileHash of its tag file's
+ *     content, for file systems (or sync tools) that rewrite files without changing their size or
+ *     timestamp. It is TagFileHash.NONE if it was never computed, and it is not part of equals().
+ * </p>
+ * <p>
+ *     <b>Threading</b> - the TagIndex may update an entry on one thread while another thread
+ *     reads it, so the mutable fields are volatile. Entries handed out by the TagIndex
+ *     should be treated as read-only.
+ * </p>
+ * <p>
+ *     <b>Memory</b> - in memory, the tags are held as an array of TagDictionary ids rather
+ *     than as a TagList, so that the many entries sharing the same tags don't each carry
+ *     their own copy of the tag strings. getTagList() builds a TagList on demand.
+ * </p>
  *
  * @author <a href="https://github.com/scorbo2">scorbo2</a>
  */
@@ -29,12 +55,16 @@ public class TagIndexEntry {
 
     private File imageFile;
     private File tagFile;
-    private TagList tagList;
-    private long tagFileLastModified;
-    private long tagFileSize;
+    private volatile int[] tagIds;
+    private volatile long tagFileLastModified;
+    private volatile long tagFileSize;
+    private volatile long tagFileHash = TagFileHash.NONE;
+    private volatile String pathSortKey; // computed on first use
+    private volatile int imageId = -1;
+    private volatile long generation;
 
     public TagIndexEntry() {
-        tagList = new TagList();
+        tagIds = new int[0];
     }
 
     public File getImageFile() {
@@ -43,6 +73,46 @@ public class TagIndexEntry {
 
     public void setImageFile(File imageFile) {
         this.imageFile = imageFile;
+        this.pathSortKey = null;
+    }
+
+    /**
+     * Returns the absolute path of the image file in lower case, for case-insensitive sorting.
+     */
+    public String getPathSortKey() {
+        String key = pathSortKey;
+        if (key == null) {
+            key = imageFile.getAbsolutePath().toLowerCase(Locale.ROOT);
+            pathSortKey = key;
+        }
+        return key;
+    }
+
+    /**
+     * Returns the image id assigned to this entry by the TagIndex, or -1 if this entry
+     * has not (yet) been added to the index. Image ids are only meaningful in memory
+     * and are not persisted.
+     */
+    public int getImageId() {
+        return imageId;
+    }
+
+    void setImageId(int imageId) {
+        this.imageId = imageId;
+    }
+
+    /**
+     * Returns the TagIndex generation (see TagIndex.getGeneration()) at which this entry was
+     * added to the index or last changed. Like the image id, this is not persisted.
+     * The TagIndex sets this before it changes anything else about the entry, so a caller
+     * that reads the tag file metadata first and this second won't miss a change.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    void setGeneration(long generation) {
+        this.generation = generation;
     }
 
     public File getTagFile() {
@@ -52,33 +122,88 @@ public class TagIndexEntry {
         this.tagFile = tagFile;
     }
 
+    /**
+     * Returns a new TagList containing the tags of this entry. Changes to the returned
+     * list are not reflected in this entry.
+     */
     public TagList getTagList() {
-        return tagList;
+        return TagList.fromTagIds(tagIds);
     }
 
-    public boolean containsAll(TagList tags) {
-        if (tagList == null) {
+    /**
+     * Returns the TagDictionary ids of the tags of this entry, in their original order.
+     */
+    public int[] getTagIds() {
+        return tagIds.clone();
+    }
+
+    /**
+     * Returns the number of tags this entry has.
+     */
+    public int getTagCount() {
+        return tagIds.length;
+    }
+
+    /**
+     * Package-protected access to our tag ids without a defensive copy, for use on the
+     * TagIndex hot path. Callers must not modify the returned array.
+     */
+    int[] getTagIdsInternal() {
+        return tagIds;
+    }
+
+    /**
+     * Reports whether this entry has exactly the given tags, in the same order, without
+     * interning any of them. Package-protected, for the TagIndex to tell whether an update
+     * would change anything.
+     */
+    boolean hasSameTags(TagList tags) {
+        List<String> tagNames = tags.getTags();
+        if (tagNames.size() != tagIds.length) {
             return false;
         }
-        return tagList.containsAll(tags);
+        TagDictionary dictionary = TagDictionary.getInstance();
+        for (int i = 0; i < tagIds.length; i++) {
+            if (dictionary.getId(tagNames.get(i)) != tagIds[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean containsAll(TagList tags) {
+        TagDictionary dictionary = TagDictionary.getInstance();
+        for (String tag : tags.getTags()) {
+            if (! hasTagId(dictionary.getId(tag))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public boolean containsAny(TagList tags) {
-        if (tagList == null) {
-            return false;
+        TagDictionary dictionary = TagDictionary.getInstance();
+        for (String tag : tags.getTags()) {
+            if (hasTagId(dictionary.getId(tag))) {
+                return true;
+            }
         }
-        return tagList.containsAny(tags);
+        return false;
     }
 
     public boolean containsNone(TagList tags) {
-        if (tagList == null) {
-            return false;
-        }
-        return tagList.containsNone(tags);
+        return ! containsAny(tags);
     }
 
     public void setTagList(TagList tagList) {
-        this.tagList = TagList.of(tagList.toString()); // make our own copy of it for immutability
+        this.tagIds = tagList.getTagIds(); // a new array, so we don't share state with the given list
+    }
+
+    /**
+     * Sets the tags of this entry by TagDictionary id. The given array is copied.
+     */
+    public void setTagIds(int[] tagIds) {
+        this.tagIds = tagIds.clone();
     }
 
     public long getTagFileLastModified() {
@@ -97,6 +222,47 @@ public class TagIndexEntry {
         this.tagFileSize = tagFileSize;
     }
 
+    /**
+     * Returns the TagFileHash of the tag file's content as of when this entry was last indexed,
+     * or TagFileHash.NONE if it wasn't computed.
+     */
+    public long getTagFileHash() {
+        return tagFileHash;
+    }
+
+    public void setTagFileHash(long tagFileHash) {
+        this.tagFileHash = tagFileHash;
+    }
+
+    /**
+     * Returns a copy of this entry, including its image id.
+     */
+    public TagIndexEntry copy() {
+        TagIndexEntry copy = new TagIndexEntry();
+        copy.imageFile = imageFile;
+        copy.tagFile = tagFile;
+        copy.tagIds = tagIds; // safe to share, since we replace this array rather than modify it
+        copy.tagFileLastModified = tagFileLastModified;
+        copy.tagFileSize = tagFileSize;
+        copy.tagFileHash = tagFileHash;
+        copy.pathSortKey = pathSortKey;
+        copy.imageId = imageId;
+        copy.generation = generation; // last, as described in getGeneration()
+        return copy;
+    }
+
+    private boolean hasTagId(int tagId) {
+        if (tagId < 0) {
+            return false; // never interned, so nobody can have it
+        }
+        for (int id : tagIds) {
+            if (id == tagId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public boolean equals(Object object) {
         if (!(object instanceof TagIndexEntry that)) { return false; }
@@ -104,21 +270,18 @@ public class TagIndexEntry {
         String thatImageFilePath = (that.imageFile == null) ? "" : that.imageFile.getAbsolutePath();
         String tagFilePath = (tagFile == null) ? "" : tagFile.getAbsolutePath();
         String thatTagFilePath = (that.tagFile == null) ? "" : that.tagFile.getAbsolutePath();
-        String rawTagList = (tagList == null) ? "" : tagList.toString();
-        String thatRawTagList = (that.tagList == null) ? "" : that.tagList.toString();
         return tagFileLastModified == that.tagFileLastModified
                 && tagFileSize == that.tagFileSize
                 && Objects.equals(imageFilePath, thatImageFilePath)
                 && Objects.equals(tagFilePath, thatTagFilePath)
-                && Objects.equals(rawTagList, thatRawTagList);
+                && Arrays.equals(tagIds, that.tagIds);
     }
 
     @Override
     public int hashCode() {
         String imageFilePath = (imageFile == null) ? "" : imageFile.getAbsolutePath();
         String tagFilePath = (tagFile == null) ? "" : tagFile.getAbsolutePath();
-        String rawTagList = (tagList == null) ? "" : tagList.toString();
-        return Objects.hash(imageFilePath, tagFilePath, rawTagList, tagFileLastModified, tagFileSize);
+        return Objects.hash(imageFilePath, tagFilePath, Arrays.hashCode(tagIds), tagFileLastModified, tagFileSize);
     }
 
     @Override
@@ -132,7 +295,7 @@ public class TagIndexEntry {
         sb.append("|");
         sb.append(tagFileLastModified);
         sb.append("|");
-        sb.append(tagList == null ? "" : tagList.toString());
+        sb.append(getTagList().toString());
         return sb.toString();
     }
 }
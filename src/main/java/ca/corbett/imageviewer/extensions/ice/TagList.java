@@ -1,12 +1,16 @@
 package ca.corbett.imageviewer.extensions.ice;
 
+import ca.corbett.imageviewer.extensions.ice.index.TagDictionary;
+
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
@@ -39,10 +43,65 @@ public class TagList {
         return list;
     }
 
+    /**
+     * Builds a TagList from the given tag ids, as assigned by the TagDictionary.
+     * Unknown ids are ignored.
+     */
+    public static TagList fromTagIds(int[] tagIds) {
+        TagList list = new TagList();
+        TagDictionary dictionary = TagDictionary.getInstance();
+        for (int tagId : tagIds) {
+            String tag = dictionary.getTag(tagId);
+            if (tag != null) {
+                list.tags.add(tag);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Parses the given comma-separated input straight to TagDictionary ids, without building
+     * an intermediate TagList. Tags are normalized in the same way as TagList.of(), and
+     * duplicates are removed while preserving order. Every tag is interned, so this is only
+     * for tags that are entering the TagIndex, such as those of entries being loaded.
+     */
+    public static int[] parseTagIds(String commaSeparatedInput) {
+        if (commaSeparatedInput == null || commaSeparatedInput.isBlank()) {
+            return new int[0];
+        }
+        String[] parts = commaSeparatedInput.split(",");
+        int[] tagIds = new int[parts.length];
+        int count = 0;
+        TagDictionary dictionary = TagDictionary.getInstance();
+        for (String part : parts) {
+            String strippedTag = stripTag(part);
+            if (strippedTag.isBlank()) {
+                continue;
+            }
+            int tagId = dictionary.intern(strippedTag);
+            boolean isDuplicate = false;
+            for (int i = 0; i < count && ! isDuplicate; i++) {
+                isDuplicate = tagIds[i] == tagId;
+            }
+            if (! isDuplicate) {
+                tagIds[count++] = tagId;
+            }
+        }
+        return count == tagIds.length ? tagIds : Arrays.copyOf(tagIds, count);
+    }
+
     public static TagList fromFile(File inputFile) {
+        return fromFile(inputFile, inputFile.exists());
+    }
+
+    /**
+     * Like fromFile(File), for callers that already know whether the file exists
+     * (typically from a FileAttributes snapshot), to save asking the filesystem again.
+     */
+    public static TagList fromFile(File inputFile, boolean exists) {
         TagList tagList = new TagList();
         tagList.setPersistenceFile(inputFile);
-        if (! inputFile.exists()) {
+        if (! exists) {
             return tagList; // this is not an error... just return an empty list
         }
         try (BufferedReader reader = new BufferedReader(new FileReader(inputFile))) {
@@ -58,6 +117,29 @@ public class TagList {
         return tagList;
     }
 
+    /**
+     * Parses the given tag file content, which the caller has already read from the given file,
+     * exactly as fromFile() would have. Useful when the same bytes are also needed for something
+     * else, such as a TagFileHash.
+     */
+    public static TagList fromBytes(File inputFile, byte[] content) {
+        TagList tagList = new TagList();
+        tagList.setPersistenceFile(inputFile);
+        String text = new String(content, Charset.defaultCharset()); // what FileReader would have used
+        try (BufferedReader reader = new BufferedReader(new StringReader(text))) {
+            String line = reader.readLine();
+            while (line != null) {
+                tagList.add(line);
+                line = reader.readLine();
+            }
+        }
+        catch (IOException ioe) {
+            // Not possible with a StringReader, but the compiler doesn't know that
+            log.log(Level.SEVERE, "IceExtension: problem parsing tag list: "+ioe.getMessage(), ioe);
+        }
+        return tagList;
+    }
+
     public void setPersistenceFile(File f) {
         this.persistenceFile = f;
     }
@@ -87,7 +169,7 @@ public class TagList {
 
         // Out with the old and in with the new:
         tags.remove(old);
-        tags.add(stripTag(newValue));
+        tags.add(TagDictionary.getInstance().canonicalIfKnown(stripTag(newValue)));
     }
 
     public void remove(String tag) {
@@ -127,7 +209,7 @@ public class TagList {
             log.warning("TagList: Ignoring blank tag.");
             return;
         }
-        tags.add(strippedTag);
+        tags.add(TagDictionary.getInstance().canonicalIfKnown(strippedTag)); // never interned just for being here
     }
 
     public boolean hasTag(String tag) {
@@ -138,6 +220,21 @@ public class TagList {
         return new ArrayList<>(tags);
     }
 
+    /**
+     * Returns the TagDictionary ids of the tags in this list, in the same order as getTags().
+     * Any tag not yet in the dictionary is interned, so this is only for tags that are entering
+     * the TagIndex. To compare against an entry, use TagIndexEntry.hasSameTags() instead.
+     */
+    public int[] getTagIds() {
+        int[] tagIds = new int[tags.size()];
+        int i = 0;
+        TagDictionary dictionary = TagDictionary.getInstance();
+        for (String tag : tags) {
+            tagIds[i++] = dictionary.intern(tag);
+        }
+        return tagIds;
+    }
+
     /**
      * Convert to lowercase, remove leading and trailing whitespace,
      * remove DISALLOWED characters, convert null to empty string.
@@ -182,19 +279,37 @@ public class TagList {
         return true;
     }
 
+    /**
+     * Writes this list to its persistence file. If the TagIndex should hear about the change,
+     * use TagIndex.saveTagList() instead, which does this and updates the index to match.
+     */
     public void save() {
+        write();
+    }
+
+    /**
+     * Writes this list to its persistence file, and returns the bytes that were written, so that
+     * the TagIndex can hash them without reading the file back. Returns null if nothing could
+     * be written.
+     */
+    byte[] write() {
         if (persistenceFile == null) {
             log.warning("TagList: no persistence file set, unable to save.");
-            return;
+            return null;
         }
 
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(persistenceFile))) {
-            for (String tag : getTags()) {
-                writer.write(tag+System.lineSeparator());
-            }
+        StringBuilder sb = new StringBuilder();
+        for (String tag : getTags()) {
+            sb.append(tag).append(System.lineSeparator());
+        }
+        byte[] content = sb.toString().getBytes(Charset.defaultCharset()); // what FileWriter would have used
+        try {
+            Files.write(persistenceFile.toPath(), content);
+            return content;
         }
         catch (IOException ioe) {
             log.log(Level.SEVERE, "IceExtension: problem saving tag file: "+ioe.getMessage(), ioe);
+            return null;
         }
     }
 
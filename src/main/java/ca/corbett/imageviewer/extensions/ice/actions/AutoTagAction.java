@@ -172,8 +172,7 @@ public class AutoTagAction extends EnhancedAction {
             // Otherwise, add all the new tags to the original tag list:
             TagList modifiedTags = TagList.of(modifiedTagStr);
             originalTags.addAll(modifiedTags); // duplicates are pruned automatically, not a big deal.
-            originalTags.save(); // commit changes to disk
-            TagIndex.getInstance().addOrUpdateEntry(imageFile, tagFile); // tell the TagIndex of this change
+            TagIndex.getInstance().saveTagList(imageFile, originalTags); // commit to disk and tell the TagIndex
 
             // Select the already-selected image to force a UI update of the displayed tags:
             ImageViewerExtensionManager.getInstance().imageSelected(MainWindow.getInstance().getSelectedImage());
@@ -14,10 +14,20 @@ import java.io.File;
 public class ScanDirAction extends EnhancedAction {
 
     private final boolean isRecursive;
+    private final boolean isVerify;
 
     public ScanDirAction(String name, boolean isRecursive) {
+        this(name, isRecursive, false);
+    }
+
+    /**
+     * @param isVerify If true, also rehash tag files whose size and timestamp haven't changed;
+     *                 see TagIndex.verify().
+     */
+    public ScanDirAction(String name, boolean isRecursive, boolean isVerify) {
         super(name);
         this.isRecursive = isRecursive;
+        this.isVerify = isVerify;
     }
 
     @Override
@@ -28,7 +38,9 @@ public class ScanDirAction extends EnhancedAction {
             return;
         }
 
-        final ScanThread scanThread = TagIndex.getInstance().scan(dir, isRecursive);
+        final ScanThread scanThread = isVerify
+                ? TagIndex.getInstance().verify(dir, isRecursive)
+                : TagIndex.getInstance().scan(dir, isRecursive);
         scanThread.addProgressListener(new MultiProgressAdapter() {
             @Override
             public void progressComplete() {
@@ -40,7 +52,11 @@ public class ScanDirAction extends EnhancedAction {
                                                                        + "; entries updated: "
                                                                        + scanThread.getEntriesUpdated()
                                                                        + "; entries skipped (unchanged): "
-                                                                       + scanThread.getEntriesSkippedBecauseUpToDate());
+                                                                       + scanThread.getEntriesSkippedBecauseUpToDate()
+                                                                       + "; directories skipped (unchanged): "
+                                                                       + scanThread.getDirectoriesSkippedBecauseUnchanged()
+                                                                       + (isVerify ? "; tag files rehashed: "
+                                                                               + scanThread.getTagFilesRehashed() : ""));
                 });
             }
         });
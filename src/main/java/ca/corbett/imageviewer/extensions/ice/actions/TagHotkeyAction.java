@@ -97,12 +97,10 @@ public class TagHotkeyAction extends EnhancedAction {
                              FilenameUtils.getBaseName(currentImage.getImageFile().getName()) + ".ice");
         TagList savedList = TagList.fromFile(file); // Will be empty if file does not exist
 
-        // Add our tags to the saved list and save it:
+        // Add our tags to the saved list, save it and update the tag index,
+        // then re-select the current image to refresh it:
         savedList.addAll(tagList); // idempotent! Does nothing if they're already there, which is fine.
-        savedList.save();
-
-        // Update the tag index and then re-select the current image to refresh it:
-        TagIndex.getInstance().addOrUpdateEntry(currentImage.getImageFile(), savedList.getPersistenceFile());
+        TagIndex.getInstance().saveTagList(currentImage.getImageFile(), savedList);
         ImageViewerExtensionManager.getInstance().imageSelected(currentImage);
     }
 }
@@ -0,0 +1,69 @@
+package ca.corbett.imageviewer.extensions.ice.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of tag statistics for the indexed images in one directory, or in one
+ * directory and everything beneath it. See DirectoryStatsTree, which produces these.
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public final class DirectoryStats {
+
+    public static final DirectoryStats EMPTY = new DirectoryStats(0, 0, Map.of());
+
+    private final int taggedImageCount;
+    private final long totalTagCount;
+    private final Map<String, Integer> tagCounts;
+
+    DirectoryStats(int taggedImageCount, long totalTagCount, Map<String, Integer> tagCounts) {
+        this.taggedImageCount = taggedImageCount;
+        this.totalTagCount = totalTagCount;
+        this.tagCounts = Collections.unmodifiableMap(tagCounts);
+    }
+
+    /**
+     * Returns the number of indexed (that is, tagged) images.
+     */
+    public int getTaggedImageCount() {
+        return taggedImageCount;
+    }
+
+    /**
+     * Returns the total number of tags across all indexed images, counting a tag once for
+     * every image that has it.
+     */
+    public long getTotalTagCount() {
+        return totalTagCount;
+    }
+
+    /**
+     * Returns the number of indexed images that have the given (already stripped) tag.
+     */
+    public int getTagCount(String tag) {
+        return tagCounts.getOrDefault(tag, 0);
+    }
+
+    /**
+     * Returns every tag in use, mapped to the number of images that have it.
+     */
+    public Map<String, Integer> getTagCounts() {
+        return tagCounts;
+    }
+
+    /**
+     * Returns up to n tags, from most to least used. Tags used equally often are returned
+     * in alphabetical order.
+     */
+    public List<String> getMostFrequentTags(int n) {
+        List<String> tags = new ArrayList<>(tagCounts.keySet());
+        tags.sort(Comparator.<String, Integer>comparing(tagCounts::get, Comparator.reverseOrder())
+                            .thenComparing(Comparator.naturalOrder()));
+        return new ArrayList<>(tags.subList(0, Math.min(Math.max(n, 0), tags.size())));
+    }
+}
@@ -0,0 +1,115 @@
+package ca.corbett.imageviewer.extensions.ice.index;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Running totals of indexed images and their tags, kept per directory. Each directory node
+ * holds two sets of totals: one for the images directly inside it, and one for everything
+ * beneath it. Adding or removing an image updates the first set for its own directory and
+ * the second for that directory and each of its ancestors, so the cost of a change depends on
+ * how deep the image is, not on how many images there are. Statistics for any directory,
+ * recursive or not, can then be read straight off one node.
+ * <p>
+ *     Directories are identified by absolute path. Nodes are created on demand and dropped
+ *     again once nothing beneath them is indexed.
+ * </p>
+ * <p>
+ *     This class is not thread-safe. The TagIndex guards it with the same lock
+ *     as its posting lists.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public final class DirectoryStatsTree {
+
+    private static final class Totals {
+        int imageCount;
+        long tagCount;
+        final Map<Integer, Integer> tagCounts = new HashMap<>(); // tag id -> images with that tag
+
+        void add(int[] tagIds, int delta) {
+            imageCount += delta;
+            tagCount += (long)tagIds.length * delta;
+            for (int tagId : tagIds) {
+                tagCounts.merge(tagId, delta, (a, b) -> a + b == 0 ? null : a + b);
+            }
+        }
+    }
+
+    private static final class Node {
+        final String path;
+        final Node parent; // null for a file system root
+        final Totals direct = new Totals();
+        final Totals recursive = new Totals();
+
+        Node(String path, Node parent) {
+            this.path = path;
+            this.parent = parent;
+        }
+    }
+
+    private final Map<String, Node> nodes = new HashMap<>();
+
+    /**
+     * Counts an image with the given tags as being in the given directory.
+     */
+    public void add(File dir, int[] tagIds) {
+        update(getOrCreateNode(dir.getAbsolutePath()), tagIds, 1);
+    }
+
+    /**
+     * Stops counting an image with the given tags as being in the given directory. The tags must
+     * be the same ones it was added with.
+     */
+    public void remove(File dir, int[] tagIds) {
+        Node node = nodes.get(dir.getAbsolutePath());
+        if (node != null) {
+            update(node, tagIds, -1);
+        }
+    }
+
+    public void clear() {
+        nodes.clear();
+    }
+
+    /**
+     * Returns statistics for the indexed images in the given directory, and optionally in all of
+     * its subdirectories as well.
+     */
+    public DirectoryStats getStats(File dir, boolean isRecursive) {
+        Node node = nodes.get(dir.getAbsolutePath());
+        if (node == null) {
+            return DirectoryStats.EMPTY;
+        }
+        Totals totals = isRecursive ? node.recursive : node.direct;
+        Map<String, Integer> tagCounts = new HashMap<>();
+        TagDictionary dictionary = TagDictionary.getInstance();
+        for (Map.Entry<Integer, Integer> entry : totals.tagCounts.entrySet()) {
+            tagCounts.put(dictionary.getTag(entry.getKey()), entry.getValue());
+        }
+        return new DirectoryStats(totals.imageCount, totals.tagCount, tagCounts);
+    }
+
+    private void update(Node node, int[] tagIds, int delta) {
+        node.direct.add(tagIds, delta);
+        for (Node ancestor = node; ancestor != null; ancestor = ancestor.parent) {
+            ancestor.recursive.add(tagIds, delta);
+            if (ancestor.recursive.imageCount == 0) {
+                nodes.remove(ancestor.path);
+            }
+        }
+    }
+
+    private Node getOrCreateNode(String path) {
+        Node node = nodes.get(path);
+        if (node == null) {
+            String parentPath = new File(path).getParent();
+            node = new Node(path, parentPath == null ? null : getOrCreateNode(parentPath));
+            nodes.put(path, node);
+        }
+        return node;
+    }
+}
@@ -0,0 +1,671 @@
+package ca.corbett.imageviewer.extensions.ice.index;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of non-negative int values, used by the TagIndex to store the posting list
+ * (the set of image ids) for each tag. The layout follows the general idea of a "roaring" bitmap:
+ * the 32-bit value space is split into chunks of 65536 values keyed by the high 16 bits of
+ * each value, and each non-empty chunk is stored in whichever container is smaller for it:
+ * <ul>
+ *     <li><b>array container</b> - a sorted array of the low 16 bits of each value. Used for
+ *     sparse chunks with up to 4096 values (at most 8KB).</li>
+ *     <li><b>bitmap container</b> - a fixed 1024-word (8KB) bitmap. Used for dense chunks.</li>
+ * </ul>
+ * Containers switch representation automatically as values are added or removed.
+ * Intersection, union and difference are computed container by container, and between
+ * two bitmap containers they come down to word-wise AND, OR and ANDNOT.
+ * <p>
+ *     This class is not thread-safe. The static set operations never modify their inputs.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ */
+public final class TagBitmap {
+
+    /**
+     * Array containers larger than this are converted to bitmap containers, and vice versa.
+     * At exactly this size, both representations take 8KB.
+     */
+    static final int ARRAY_MAX_SIZE = 4096;
+
+    private char[] keys;
+    private Container[] containers;
+    private int size; // number of containers in use
+
+    public TagBitmap() {
+        keys = new char[4];
+        containers = new Container[4];
+        size = 0;
+    }
+
+    /**
+     * Creates a TagBitmap containing the given values, which may be in any order.
+     */
+    public static TagBitmap of(int... values) {
+        TagBitmap bitmap = new TagBitmap();
+        for (int value : values) {
+            bitmap.add(value);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Adds the given value to this bitmap. Negative values are not supported.
+     *
+     * @return true if the value was added, false if it was already present.
+     */
+    public boolean add(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("TagBitmap: negative values are not supported: " + value);
+        }
+        char high = highBits(value);
+        int index = findContainer(high);
+        if (index < 0) {
+            index = -index - 1;
+            insertContainer(index, high, new ArrayContainer());
+        }
+        Container container = containers[index];
+        int before = container.cardinality();
+        containers[index] = container.add(lowBits(value));
+        return containers[index].cardinality() > before;
+    }
+
+    /**
+     * Removes the given value from this bitmap, if present.
+     *
+     * @return true if the value was removed, false if it was not present.
+     */
+    public boolean remove(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int index = findContainer(highBits(value));
+        if (index < 0) {
+            return false;
+        }
+        Container container = containers[index];
+        int before = container.cardinality();
+        containers[index] = container.remove(lowBits(value));
+        boolean wasRemoved = containers[index].cardinality() < before;
+        if (containers[index].cardinality() == 0) {
+            removeContainer(index);
+        }
+        return wasRemoved;
+    }
+
+    public boolean contains(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int index = findContainer(highBits(value));
+        return index >= 0 && containers[index].contains(lowBits(value));
+    }
+
+    /**
+     * Returns the number of values in this bitmap.
+     */
+    public int getCardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += containers[i].cardinality();
+        }
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(containers, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Invokes the given consumer for each value in this bitmap, in ascending order.
+     */
+    public void forEach(IntConsumer consumer) {
+        for (int i = 0; i < size; i++) {
+            containers[i].forEach(keys[i] << 16, consumer);
+        }
+    }
+
+    /**
+     * Returns all values in this bitmap as a sorted int array.
+     */
+    public int[] toArray() {
+        int[] values = new int[getCardinality()];
+        int[] position = {0};
+        forEach(value -> values[position[0]++] = value);
+        return values;
+    }
+
+    /**
+     * Returns a deep copy of this bitmap.
+     */
+    public TagBitmap copy() {
+        TagBitmap copy = new TagBitmap();
+        copy.keys = Arrays.copyOf(keys, Math.max(size, 4));
+        copy.containers = new Container[copy.keys.length];
+        for (int i = 0; i < size; i++) {
+            copy.containers[i] = containers[i].copy();
+        }
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * Returns a new bitmap containing the values that are in both a and b.
+     */
+    public static TagBitmap and(TagBitmap a, TagBitmap b) {
+        TagBitmap result = new TagBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            }
+            else if (a.keys[i] > b.keys[j]) {
+                j++;
+            }
+            else {
+                Container container = a.containers[i].and(b.containers[j]);
+                if (container.cardinality() > 0) {
+                    result.appendContainer(a.keys[i], container);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of values that are in both a and b, without building the intersection.
+     */
+    public static int andCardinality(TagBitmap a, TagBitmap b) {
+        int cardinality = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            }
+            else if (a.keys[i] > b.keys[j]) {
+                j++;
+            }
+            else {
+                cardinality += a.containers[i].andCardinality(b.containers[j]);
+                i++;
+                j++;
+            }
+        }
+        return cardinality;
+    }
+
+    /**
+     * Returns a new bitmap containing the values that are in a, b, or both.
+     */
+    public static TagBitmap or(TagBitmap a, TagBitmap b) {
+        TagBitmap result = new TagBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < a.size || j < b.size) {
+            if (j >= b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+                result.appendContainer(a.keys[i], a.containers[i].copy());
+                i++;
+            }
+            else if (i >= a.size || a.keys[i] > b.keys[j]) {
+                result.appendContainer(b.keys[j], b.containers[j].copy());
+                j++;
+            }
+            else {
+                result.appendContainer(a.keys[i], a.containers[i].or(b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a new bitmap containing the values that are in a but not in b.
+     */
+    public static TagBitmap andNot(TagBitmap a, TagBitmap b) {
+        TagBitmap result = new TagBitmap();
+        int j = 0;
+        for (int i = 0; i < a.size; i++) {
+            while (j < b.size && b.keys[j] < a.keys[i]) {
+                j++;
+            }
+            Container container = (j < b.size && b.keys[j] == a.keys[i])
+                    ? a.containers[i].andNot(b.containers[j])
+                    : a.containers[i].copy();
+            if (container.cardinality() > 0) {
+                result.appendContainer(a.keys[i], container);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the contents of this bitmap with its intersection with the given bitmap.
+     */
+    public void andInPlace(TagBitmap other) {
+        replaceWith(and(this, other));
+    }
+
+    /**
+     * Replaces the contents of this bitmap with its union with the given bitmap.
+     */
+    public void orInPlace(TagBitmap other) {
+        replaceWith(or(this, other));
+    }
+
+    /**
+     * Removes all values in the given bitmap from this bitmap.
+     */
+    public void andNotInPlace(TagBitmap other) {
+        replaceWith(andNot(this, other));
+    }
+
+    /**
+     * Returns an estimate of the heap used by this bitmap, in bytes.
+     */
+    public long getSizeInBytes() {
+        long bytes = 32L + keys.length * 2L + containers.length * 8L;
+        for (int i = 0; i < size; i++) {
+            bytes += containers[i].sizeInBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof TagBitmap that)) { return false; }
+        return Arrays.equals(toArray(), that.toArray());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toArray());
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    private void replaceWith(TagBitmap other) {
+        keys = other.keys;
+        containers = other.containers;
+        size = other.size;
+    }
+
+    private int findContainer(char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void insertContainer(int index, char key, Container container) {
+        ensureCapacity(size + 1);
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = key;
+        containers[index] = container;
+        size++;
+    }
+
+    private void appendContainer(char key, Container container) {
+        ensureCapacity(size + 1);
+        keys[size] = key;
+        containers[size] = container;
+        size++;
+    }
+
+    private void removeContainer(int index) {
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+        size--;
+        containers[size] = null;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > keys.length) {
+            int newLength = Math.max(capacity, keys.length * 2);
+            keys = Arrays.copyOf(keys, newLength);
+            containers = Arrays.copyOf(containers, newLength);
+        }
+    }
+
+    private static char highBits(int value) {
+        return (char)(value >>> 16);
+    }
+
+    private static char lowBits(int value) {
+        return (char)value;
+    }
+
+    /**
+     * Holds the low 16 bits of all values sharing the same high 16 bits.
+     * Mutating methods return the container to use from now on, which may be
+     * a different container type if the cardinality crossed ARRAY_MAX_SIZE.
+     */
+    private static abstract class Container {
+        abstract int cardinality();
+
+        abstract boolean contains(char value);
+
+        abstract Container add(char value);
+
+        abstract Container remove(char value);
+
+        abstract Container and(Container other);
+
+        abstract int andCardinality(Container other);
+
+        abstract Container or(Container other);
+
+        abstract Container andNot(Container other);
+
+        abstract void forEach(int highBits, IntConsumer consumer);
+
+        abstract Container copy();
+
+        abstract long sizeInBytes();
+    }
+
+    private static final class ArrayContainer extends Container {
+        private char[] values;
+        private int cardinality;
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        Container add(char value) {
+            int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if (index >= 0) {
+                return this;
+            }
+            if (cardinality >= ARRAY_MAX_SIZE) {
+                return toBitmap().add(value);
+            }
+            index = -index - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX_SIZE, Math.max(4, values.length * 2)));
+            }
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if (index >= 0) {
+                System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+                cardinality--;
+            }
+            return this;
+        }
+
+        @Override
+        Container and(Container other) {
+            char[] result = new char[cardinality];
+            int count = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (other.contains(values[i])) {
+                    result[count++] = values[i];
+                }
+            }
+            return new ArrayContainer(result, count);
+        }
+
+        @Override
+        int andCardinality(Container other) {
+            int count = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (other.contains(values[i])) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof BitmapContainer) {
+                return other.or(this);
+            }
+            ArrayContainer that = (ArrayContainer)other;
+            char[] result = new char[cardinality + that.cardinality];
+            int i = 0;
+            int j = 0;
+            int count = 0;
+            while (i < cardinality || j < that.cardinality) {
+                if (j >= that.cardinality || (i < cardinality && values[i] < that.values[j])) {
+                    result[count++] = values[i++];
+                }
+                else if (i >= cardinality || values[i] > that.values[j]) {
+                    result[count++] = that.values[j++];
+                }
+                else {
+                    result[count++] = values[i++];
+                    j++;
+                }
+            }
+            ArrayContainer merged = new ArrayContainer(result, count);
+            return count > ARRAY_MAX_SIZE ? merged.toBitmap() : merged;
+        }
+
+        @Override
+        Container andNot(Container other) {
+            char[] result = new char[cardinality];
+            int count = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (!other.contains(values[i])) {
+                    result[count++] = values[i];
+                }
+            }
+            return new ArrayContainer(result, count);
+        }
+
+        @Override
+        void forEach(int highBits, IntConsumer consumer) {
+            for (int i = 0; i < cardinality; i++) {
+                consumer.accept(highBits | values[i]);
+            }
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(cardinality, 1)), cardinality);
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 24L + values.length * 2L;
+        }
+
+        private BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.set(values[i]);
+            }
+            return bitmap;
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        private final long[] words;
+        private int cardinality;
+
+        BitmapContainer() {
+            this(new long[1024], 0);
+        }
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        void set(char value) {
+            long before = words[value >>> 6];
+            long after = before | (1L << value);
+            if (before != after) {
+                words[value >>> 6] = after;
+                cardinality++;
+            }
+        }
+
+        @Override
+        Container add(char value) {
+            set(value);
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            long before = words[value >>> 6];
+            long after = before & ~(1L << value);
+            if (before != after) {
+                words[value >>> 6] = after;
+                cardinality--;
+            }
+            return cardinality <= ARRAY_MAX_SIZE ? toArrayContainer() : this;
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+            long[] otherWords = ((BitmapContainer)other).words;
+            long[] result = new long[words.length];
+            int count = 0;
+            for (int i = 0; i < words.length; i++) {
+                result[i] = words[i] & otherWords[i];
+                count += Long.bitCount(result[i]);
+            }
+            return fromWords(result, count);
+        }
+
+        @Override
+        int andCardinality(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.andCardinality(this);
+            }
+            long[] otherWords = ((BitmapContainer)other).words;
+            int count = 0;
+            for (int i = 0; i < words.length; i++) {
+                count += Long.bitCount(words[i] & otherWords[i]);
+            }
+            return count;
+        }
+
+        @Override
+        Container or(Container other) {
+            BitmapContainer result = (BitmapContainer)copy();
+            if (other instanceof ArrayContainer array) {
+                for (int i = 0; i < array.cardinality; i++) {
+                    result.set(array.values[i]);
+                }
+                return result;
+            }
+            long[] otherWords = ((BitmapContainer)other).words;
+            int count = 0;
+            for (int i = 0; i < words.length; i++) {
+                result.words[i] |= otherWords[i];
+                count += Long.bitCount(result.words[i]);
+            }
+            result.cardinality = count;
+            return result;
+        }
+
+        @Override
+        Container andNot(Container other) {
+            long[] result = Arrays.copyOf(words, words.length);
+            if (other instanceof ArrayContainer array) {
+                int count = cardinality;
+                for (int i = 0; i < array.cardinality; i++) {
+                    char value = array.values[i];
+                    if ((result[value >>> 6] & (1L << value)) != 0) {
+                        result[value >>> 6] &= ~(1L << value);
+                        count--;
+                    }
+                }
+                return fromWords(result, count);
+            }
+            long[] otherWords = ((BitmapContainer)other).words;
+            int count = 0;
+            for (int i = 0; i < result.length; i++) {
+                result[i] &= ~otherWords[i];
+                count += Long.bitCount(result[i]);
+            }
+            return fromWords(result, count);
+        }
+
+        @Override
+        void forEach(int highBits, IntConsumer consumer) {
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    int bit = Long.numberOfTrailingZeros(word);
+                    consumer.accept(highBits | (i << 6) | bit);
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(Arrays.copyOf(words, words.length), cardinality);
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 24L + words.length * 8L;
+        }
+
+        private ArrayContainer toArrayContainer() {
+            char[] values = new char[cardinality];
+            int[] count = {0};
+            forEach(0, value -> values[count[0]++] = (char)value);
+            return new ArrayContainer(values, cardinality);
+        }
+
+        private static Container fromWords(long[] words, int cardinality) {
+            BitmapContainer bitmap = new BitmapContainer(words, cardinality);
+            return cardinality <= ARRAY_MAX_SIZE ? bitmap.toArrayContainer() : bitmap;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package ca.corbett.imageviewer.extensions.ice.index;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A BK-tree of tags, for finding every tag within a given edit (Levenshtein) distance of
+ * some input without comparing the input against every tag. Each node's children are keyed
+ * by their distance from that node, and the triangle inequality means that when looking
+ * for matches within distance k of a query that is distance d from a node, only children
+ * keyed d-k through d+k can possibly contain a match. For small k this visits a small
+ * fraction of the tree.
+ * <p>
+ *     BK-trees don't support removal, so this tree only grows. The TagVocabulary that owns it
+ *     filters out tags that are no longer in use, and rebuilds the tree when too many of them
+ *     have piled up.
+ * </p>
+ * <p>
+ *     This class is not thread-safe.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public final class TagBkTree {
+
+    private static final class Node {
+        final String tag;
+        Map<Integer, Node> children; // created on first use; most nodes are leaves
+
+        Node(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    private Node root;
+    private int size;
+
+    /**
+     * Adds the given tag, if it's not already in the tree.
+     *
+     * @return true if the tag was added.
+     */
+    public boolean add(String tag) {
+        if (root == null) {
+            root = new Node(tag);
+            size = 1;
+            return true;
+        }
+        Node node = root;
+        while (true) {
+            int distance = distance(tag, node.tag);
+            if (distance == 0) {
+                return false;
+            }
+            if (node.children == null) {
+                node.children = new HashMap<>(4);
+            }
+            Node child = node.children.get(distance);
+            if (child == null) {
+                node.children.put(distance, new Node(tag));
+                size++;
+                return true;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Returns the number of tags that have been added to this tree.
+     */
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        root = null;
+        size = 0;
+    }
+
+    /**
+     * Returns every tag in the tree within maxDistance edits of the given tag, in no particular order.
+     * The given tag itself is included if it's in the tree.
+     */
+    public List<String> find(String tag, int maxDistance) {
+        List<String> matches = new ArrayList<>();
+        if (root == null) {
+            return matches;
+        }
+        Deque<Node> toVisit = new ArrayDeque<>();
+        toVisit.push(root);
+        while (!toVisit.isEmpty()) {
+            Node node = toVisit.pop();
+            int distance = distance(tag, node.tag);
+            if (distance <= maxDistance) {
+                matches.add(node.tag);
+            }
+            if (node.children == null) {
+                continue;
+            }
+            for (Map.Entry<Integer, Node> child : node.children.entrySet()) {
+                if (Math.abs(child.getKey() - distance) <= maxDistance) {
+                    toVisit.push(child.getValue());
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the Levenshtein distance between the two given strings: the smallest number of
+     * single-character insertions, deletions and substitutions needed to turn one into the other.
+     */
+    public static int distance(String a, String b) {
+        if (a.equals(b)) {
+            return 0;
+        }
+        if (a.length() < b.length()) {
+            String swap = a;
+            a = b;
+            b = swap;
+        }
+        // Two rows of the classic dynamic programming table are all we need:
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            char ca = a.charAt(i - 1);
+            for (int j = 1; j <= b.length(); j++) {
+                int substitution = previous[j - 1] + (ca == b.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+}
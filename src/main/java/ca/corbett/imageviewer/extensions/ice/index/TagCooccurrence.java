@@ -0,0 +1,240 @@
+package ca.corbett.imageviewer.extensions.ice.index;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Counts how many images have each pair of tags, so that we can answer "images tagged X are
+ * also often tagged Y" without looking at any images. Only pairs that actually occur together
+ * are stored, as a map of neighbours per tag id, and each image contributes to the count of
+ * every pair of its tags. Adding or removing an image with k tags therefore costs k*(k-1)
+ * updates, regardless of how many other images there are.
+ * <p>
+ *     Raw pair counts mostly tell you which tags are popular, so related tags are ranked by
+ *     lift instead: how much more often the two tags appear together than they would if they
+ *     were independent. A lift of 1 means no relationship at all. Lift is unreliable for pairs
+ *     seen only once or twice, so callers give a minimum number of shared images to consider.
+ *     Per-tag and total image counts aren't kept here, since the TagIndex already has them.
+ * </p>
+ * <p>
+ *     This class is not thread-safe. The TagIndex guards it with the same lock
+ *     as its posting lists.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public final class TagCooccurrence {
+
+    /**
+     * A tag that co-occurs with some other tag, and how strongly.
+     */
+    public static final class RelatedTag {
+        private final String tag;
+        private final int count;
+        private final double lift;
+
+        RelatedTag(String tag, int count, double lift) {
+            this.tag = tag;
+            this.count = count;
+            this.lift = lift;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+
+        /**
+         * Returns the number of images that have both tags.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Returns P(both) / (P(this) * P(other)): above 1 if the tags go together more often than
+         * chance would suggest, below 1 if less often.
+         */
+        public double getLift() {
+            return lift;
+        }
+
+        /**
+         * Returns the pointwise mutual information of the two tags, in bits. This is just log2 of
+         * the lift, so it ranks tags the same way, but adds up more sensibly across several tags.
+         */
+        public double getPmi() {
+            return Math.log(lift) / Math.log(2);
+        }
+
+        @Override
+        public String toString() {
+            return tag;
+        }
+    }
+
+    private final Map<Integer, Map<Integer, Integer>> neighbours = new HashMap<>(); // tag id -> (tag id -> shared images)
+
+    /**
+     * Counts an image that has the given tags.
+     */
+    public void add(int[] tagIds) {
+        update(tagIds, 1);
+    }
+
+    /**
+     * Stops counting an image that has the given tags. The tags must be the same ones
+     * it was added with.
+     */
+    public void remove(int[] tagIds) {
+        update(tagIds, -1);
+    }
+
+    public void clear() {
+        neighbours.clear();
+    }
+
+    /**
+     * Returns the number of images that have both of the given tags.
+     */
+    public int getCount(int tagId, int otherTagId) {
+        Map<Integer, Integer> counts = neighbours.get(tagId);
+        return counts == null ? 0 : counts.getOrDefault(otherTagId, 0);
+    }
+
+    /**
+     * Returns up to k tags that go with the given tag more often than chance, strongest first.
+     *
+     * @param tagId      The tag to find related tags for.
+     * @param k          How many related tags to return, at most.
+     * @param minCount   Ignore tags that share fewer than this many images with the given tag.
+     * @param tagCounts  Gives the number of images that have a given tag id.
+     * @param imageCount The total number of images.
+     */
+    public List<RelatedTag> getRelatedTags(int tagId, int k, int minCount, IntUnaryOperator tagCounts, int imageCount) {
+        Map<Integer, Integer> counts = neighbours.get(tagId);
+        if (counts == null || k <= 0) {
+            return new ArrayList<>();
+        }
+        Comparator<RelatedTag> byStrength = Comparator.comparingDouble(RelatedTag::getLift)
+                                                      .thenComparingInt(RelatedTag::getCount)
+                                                      .thenComparing(RelatedTag::getTag, Comparator.reverseOrder());
+        PriorityQueue<RelatedTag> best = new PriorityQueue<>(byStrength); // weakest on top
+        int count = tagCounts.applyAsInt(tagId);
+        for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() < minCount) {
+                continue;
+            }
+            double lift = lift(entry.getValue(), count, tagCounts.applyAsInt(entry.getKey()), imageCount);
+            if (lift <= 1) {
+                continue;
+            }
+            best.add(new RelatedTag(TagDictionary.getInstance().getTag(entry.getKey()), entry.getValue(), lift));
+            if (best.size() > k) {
+                best.poll();
+            }
+        }
+        List<RelatedTag> result = new ArrayList<>(best);
+        result.sort(byStrength.reversed());
+        return result;
+    }
+
+    /**
+     * Returns up to k tags, other than the given ones, that go with the given tags more often than
+     * chance, strongest first. Each candidate is scored by adding up its PMI with each of the given
+     * tags it's related to, so a tag that goes with several of them beats one that goes with only one.
+     * The parameters are as for getRelatedTags().
+     */
+    public List<String> suggest(int[] tagIds, int k, int minCount, IntUnaryOperator tagCounts, int imageCount) {
+        Set<Integer> given = new HashSet<>();
+        for (int tagId : tagIds) {
+            given.add(tagId);
+        }
+        Map<Integer, Double> scores = new HashMap<>();
+        for (int tagId : given) {
+            Map<Integer, Integer> counts = neighbours.get(tagId);
+            if (counts == null) {
+                continue;
+            }
+            int count = tagCounts.applyAsInt(tagId);
+            for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+                if (entry.getValue() < minCount || given.contains(entry.getKey())) {
+                    continue;
+                }
+                double lift = lift(entry.getValue(), count, tagCounts.applyAsInt(entry.getKey()), imageCount);
+                if (lift > 1) {
+                    scores.merge(entry.getKey(), Math.log(lift) / Math.log(2), Double::sum);
+                }
+            }
+        }
+        List<Map.Entry<Integer, Double>> ranked = new ArrayList<>(scores.entrySet());
+        ranked.sort(Map.Entry.<Integer, Double>comparingByValue().reversed()
+                             .thenComparing(entry -> TagDictionary.getInstance().getTag(entry.getKey())));
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < Math.min(k, ranked.size()); i++) {
+            result.add(TagDictionary.getInstance().getTag(ranked.get(i).getKey()));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the n pairs of tags that share the most images, as "tag1 + tag2" strings with
+     * the two tags in alphabetical order, skipping any pair that involves one of the given tag ids.
+     */
+    public List<String> getMostCommonPairs(int n, Set<Integer> excludedTagIds) {
+        Comparator<int[]> byCount = Comparator.comparingInt(pair -> pair[2]); // {tag id, other tag id, count}
+        PriorityQueue<int[]> best = new PriorityQueue<>(byCount);
+        for (Map.Entry<Integer, Map<Integer, Integer>> tag : neighbours.entrySet()) {
+            if (excludedTagIds.contains(tag.getKey())) {
+                continue;
+            }
+            for (Map.Entry<Integer, Integer> other : tag.getValue().entrySet()) {
+                if (other.getKey() < tag.getKey() || excludedTagIds.contains(other.getKey())) {
+                    continue; // each pair is stored both ways round; only look at it once
+                }
+                best.add(new int[]{tag.getKey(), other.getKey(), other.getValue()});
+                if (best.size() > n) {
+                    best.poll();
+                }
+            }
+        }
+        List<int[]> pairs = new ArrayList<>(best);
+        pairs.sort(byCount.reversed());
+        List<String> result = new ArrayList<>();
+        for (int[] pair : pairs) {
+            String first = TagDictionary.getInstance().getTag(pair[0]);
+            String second = TagDictionary.getInstance().getTag(pair[1]);
+            result.add(first.compareTo(second) < 0 ? first + " + " + second : second + " + " + first);
+        }
+        return result;
+    }
+
+    private void update(int[] tagIds, int delta) {
+        for (int tagId : tagIds) {
+            for (int otherTagId : tagIds) {
+                if (tagId == otherTagId) {
+                    continue;
+                }
+                Map<Integer, Integer> counts = neighbours.computeIfAbsent(tagId, id -> new HashMap<>());
+                counts.merge(otherTagId, delta, (a, b) -> a + b == 0 ? null : a + b);
+                if (counts.isEmpty()) {
+                    neighbours.remove(tagId);
+                }
+            }
+        }
+    }
+
+    private static double lift(int together, int count, int otherCount, int imageCount) {
+        if (count == 0 || otherCount == 0) {
+            return 0;
+        }
+        return (double)together * imageCount / ((double)count * otherCount);
+    }
+}
@@ -0,0 +1,113 @@
+package ca.corbett.imageviewer.extensions.ice.index;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A global, append-only dictionary of every distinct tag seen since startup. Each tag is
+ * assigned a small integer id the first time it is seen, and keeps that id for the life of
+ * the application. This lets the TagIndex store the tags of each entry as a compact int array
+ * instead of a set of Strings, and lets TagLists share one canonical String instance per
+ * indexed tag instead of each holding its own copy.
+ * <p>
+ *     Since nothing is ever removed, only tags that are actually entering the index should be
+ *     interned. Everything else - search terms, tags being typed, throwaway TagLists - should
+ *     go through getId() or canonicalIfKnown(), which never grow the dictionary.
+ * </p>
+ * <p>
+ *     Tags are expected to already be normalized (see TagList.stripTag()) before they are
+ *     interned here - this class does no normalization of its own. Tag ids are only meaningful
+ *     in memory and must not be persisted as-is, since the same tag may receive a different
+ *     id in the next session.
+ * </p>
+ * <p>
+ *     This class is thread-safe. Lookups do not lock; only the assignment of new ids is synchronized.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ */
+public final class TagDictionary {
+
+    private static final TagDictionary instance = new TagDictionary();
+
+    private final Map<String, Integer> idsByTag;
+    private volatile String[] tagsById;
+    private int size;
+
+    private TagDictionary() {
+        idsByTag = new ConcurrentHashMap<>();
+        tagsById = new String[256];
+        size = 0;
+    }
+
+    public static TagDictionary getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the id for the given tag, assigning a new one if this tag has not been seen before.
+     */
+    public int intern(String tag) {
+        Integer id = idsByTag.get(tag);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = idsByTag.get(tag);
+            if (id != null) {
+                return id; // someone else beat us to it
+            }
+            String[] tags = tagsById;
+            if (size == tags.length) {
+                tags = Arrays.copyOf(tags, tags.length * 2);
+            }
+            tags[size] = tag;
+            tagsById = tags; // publish before the id becomes visible in the map
+            idsByTag.put(tag, size);
+            return size++;
+        }
+    }
+
+    /**
+     * Returns the canonical String instance for the given tag, interning it if needed.
+     * Callers can hold on to the returned String instead of their own copy.
+     */
+    public String canonical(String tag) {
+        return getTag(intern(tag));
+    }
+
+    /**
+     * Returns the canonical String instance for the given tag if it has been interned,
+     * or the given tag itself if not. Unlike canonical(), this never grows the dictionary.
+     */
+    public String canonicalIfKnown(String tag) {
+        Integer id = idsByTag.get(tag);
+        return id == null ? tag : getTag(id);
+    }
+
+    /**
+     * Returns the id of the given tag, or -1 if this tag has never been interned.
+     * Unlike intern(), this never grows the dictionary, so it's the right choice for
+     * search terms that may not exist.
+     */
+    public int getId(String tag) {
+        Integer id = idsByTag.get(tag);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the tag with the given id, or null if no such id has been assigned.
+     */
+    public String getTag(int id) {
+        String[] tags = tagsById;
+        return (id < 0 || id >= tags.length) ? null : tags[id];
+    }
+
+    /**
+     * Returns the number of distinct tags in the dictionary. Valid tag ids are 0 to size()-1.
+     */
+    public int size() {
+        return idsByTag.size();
+    }
+}
@@ -0,0 +1,114 @@
+package ca.corbett.imageviewer.extensions.ice.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * The sorted set of distinct tags currently in use by at least one indexed image.
+ * Unlike the TagDictionary, which only ever grows, tags are removed from here once
+ * the last image using them is removed. Tags are kept sorted both forwards and
+ * reversed, so that both prefix lookups (car*) and suffix lookups (*_2024) take
+ * O(log n + matches) time instead of a scan of every tag. A TagBkTree over the same
+ * tags answers "which tags are within k typos of this one" without a full scan either.
+ * <p>
+ *     This class is not thread-safe. The TagIndex guards it with the same lock
+ *     as its posting lists.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public final class TagVocabulary {
+
+    private final NavigableSet<String> tags = new TreeSet<>();
+    private final NavigableSet<String> reversedTags = new TreeSet<>();
+    private final TagBkTree similarTags = new TagBkTree(); // may also hold tags that have since been removed
+
+    public void add(String tag) {
+        if (tags.add(tag)) {
+            reversedTags.add(reverse(tag));
+            similarTags.add(tag);
+        }
+    }
+
+    public void remove(String tag) {
+        if (tags.remove(tag)) {
+            reversedTags.remove(reverse(tag));
+
+            // The BK-tree can't remove anything, so once it's mostly dead weight, start it over:
+            if (similarTags.size() > 2 * tags.size() + 64) {
+                similarTags.clear();
+                for (String remaining : tags) {
+                    similarTags.add(remaining);
+                }
+            }
+        }
+    }
+
+    public boolean contains(String tag) {
+        return tags.contains(tag);
+    }
+
+    public int size() {
+        return tags.size();
+    }
+
+    public void clear() {
+        tags.clear();
+        reversedTags.clear();
+        similarTags.clear();
+    }
+
+    /**
+     * Returns all tags, in sorted order.
+     */
+    public List<String> getTags() {
+        return new ArrayList<>(tags);
+    }
+
+    /**
+     * Returns all tags that start with the given prefix, in sorted order.
+     */
+    public List<String> getTagsWithPrefix(String prefix) {
+        return new ArrayList<>(range(tags, prefix));
+    }
+
+    /**
+     * Returns all tags that end with the given suffix, in no particular order.
+     */
+    public List<String> getTagsWithSuffix(String suffix) {
+        List<String> result = new ArrayList<>();
+        for (String reversed : range(reversedTags, reverse(suffix))) {
+            result.add(reverse(reversed));
+        }
+        return result;
+    }
+
+    /**
+     * Returns all tags within maxDistance edits (insertions, deletions or substitutions) of
+     * the given tag, in no particular order. The given tag itself is included if it's in use.
+     */
+    public List<String> getTagsWithin(String tag, int maxDistance) {
+        List<String> result = similarTags.find(tag, maxDistance);
+        result.removeIf(match -> !tags.contains(match));
+        return result;
+    }
+
+    /**
+     * Returns the part of the given set that starts with the given prefix. Every string with that
+     * prefix sorts at or after the prefix itself, and before the prefix followed by the highest
+     * possible char.
+     */
+    private static NavigableSet<String> range(NavigableSet<String> set, String prefix) {
+        if (prefix.isEmpty()) {
+            return set;
+        }
+        return set.subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    private static String reverse(String value) {
+        return new StringBuilder(value).reverse().toString();
+    }
+}
@@ -0,0 +1,173 @@
+package ca.corbett.imageviewer.extensions.ice.io;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers which image files are in each directory, so that finding the image that goes with a
+ * tag file doesn't mean probing for every possible image extension one by one. On a network share,
+ * each of those probes is a round trip; here, a directory is listed once, and after that each
+ * lookup costs a single check of the directory's last modified time.
+ * <p>
+ *     <b>Staying current</b> - adding, removing or renaming a file changes the last modified time of
+ *     its directory, and a listing is thrown away as soon as that changes. Some file systems only
+ *     keep that time to the second (or two), so a listing taken within that window of the last
+ *     change might not notice another change in the same window. Those listings are taken again
+ *     once the window has passed. Code that knows it just changed a directory can call invalidate()
+ *     to have it listed again right away.
+ * </p>
+ * <p>
+ *     Base names and extensions are both matched without regard to case, so IMG.ice finds img.jpg,
+ *     just as probing with File.exists() did on case-insensitive file systems, and image.JPG and
+ *     image.Jpeg are found too. If there are several images with the same base name, the one whose
+ *     extension comes first in IMAGE_EXTENSIONS wins (and between names that differ only in case,
+ *     the alphabetically first). The number of directories remembered is bounded; the least recently
+ *     used are dropped first. This class is thread-safe.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public final class DirectoryListingCache {
+
+    private static final Logger log = Logger.getLogger(DirectoryListingCache.class.getName());
+
+    /**
+     * The image extensions we recognize, in order of preference.
+     */
+    public static final List<String> IMAGE_EXTENSIONS = List.of("gif", "jpg", "jpeg", "png", "tiff", "bmp");
+
+    private static final int MAX_DIRECTORIES = 4096;
+
+    /**
+     * Listings taken less than this long after their directory last changed may miss a later change.
+     */
+    private static final long TIMESTAMP_GRANULARITY_MS = 2000;
+
+    private static final DirectoryListingCache instance = new DirectoryListingCache(MAX_DIRECTORIES);
+
+    private static final class Listing {
+        final long lastModified;
+        final boolean isTrusted;
+        final Map<String, File> imagesByBaseName;
+
+        Listing(long lastModified, boolean isTrusted, Map<String, File> imagesByBaseName) {
+            this.lastModified = lastModified;
+            this.isTrusted = isTrusted;
+            this.imagesByBaseName = imagesByBaseName;
+        }
+    }
+
+    private final Map<String, Listing> listings;
+
+    DirectoryListingCache(int maxDirectories) {
+        listings = new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+                return size() > maxDirectories;
+            }
+        };
+    }
+
+    public static DirectoryListingCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the image file in the given directory with the given base name (that is, file name
+     * without extension), or null if there isn't one.
+     */
+    public File findImageFile(File dir, String baseName) {
+        if (dir == null) {
+            return null;
+        }
+        String key = dir.getAbsolutePath();
+        long lastModified = dir.lastModified();
+        if (lastModified == 0L) {
+            invalidate(dir); // it doesn't exist, or we can't see it
+            return null;
+        }
+
+        Listing listing;
+        synchronized (listings) {
+            listing = listings.get(key);
+        }
+        if (listing == null || listing.lastModified != lastModified
+                || (! listing.isTrusted && System.currentTimeMillis() - lastModified > TIMESTAMP_GRANULARITY_MS)) {
+            listing = list(dir, lastModified);
+            if (listing == null) {
+                return null;
+            }
+            synchronized (listings) {
+                listings.put(key, listing);
+            }
+        }
+        return listing.imagesByBaseName.get(baseName.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Forgets what we know about the given directory, so that it's listed again on next use.
+     */
+    public void invalidate(File dir) {
+        if (dir != null) {
+            synchronized (listings) {
+                listings.remove(dir.getAbsolutePath());
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (listings) {
+            listings.clear();
+        }
+    }
+
+    int size() {
+        synchronized (listings) {
+            return listings.size();
+        }
+    }
+
+    private static Listing list(File dir, long lastModified) {
+        long listedAt = System.currentTimeMillis();
+        Map<String, File> imagesByBaseName = new HashMap<>(); // keyed on lower case base name
+        Map<String, Integer> preferences = new HashMap<>(); // lower case base name -> index of its extension
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                int preference = IMAGE_EXTENSIONS.indexOf(FilenameUtils.getExtension(name).toLowerCase(Locale.ROOT));
+                if (preference < 0) {
+                    continue;
+                }
+                String baseName = FilenameUtils.getBaseName(name).toLowerCase(Locale.ROOT);
+                Integer existing = preferences.get(baseName);
+                if (existing == null || preference < existing
+                        || (preference == existing && name.compareTo(imagesByBaseName.get(baseName).getName()) < 0)) {
+                    preferences.put(baseName, preference);
+                    imagesByBaseName.put(baseName, new File(dir, name));
+                }
+            }
+        }
+        catch (NoSuchFileException nsfe) {
+            return null;
+        }
+        catch (IOException | SecurityException e) {
+            log.log(Level.FINE, "Unable to list directory " + dir.getAbsolutePath(), e);
+            return null;
+        }
+        return new Listing(lastModified, listedAt - lastModified > TIMESTAMP_GRANULARITY_MS, imagesByBaseName);
+    }
+}
@@ -0,0 +1,222 @@
+package ca.corbett.imageviewer.extensions.ice.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers what each directory looked like the last time a scan finished with it: its last
+ * modified time, how many index entries had their tag file in it, and the names of its
+ * subdirectories. Adding, removing or renaming a file changes the last modified time of its
+ * directory, so if that time hasn't changed since, and the index still has as many entries
+ * for the directory, an incremental scan can skip listing the directory and statting its tag
+ * files altogether, and go straight to its subdirectories.
+ * <p>
+ *     <b>Limitations</b> - editing a tag file in place doesn't change the last modified time
+ *     of its directory. Changes made within ImageViewer update the TagIndex directly, and
+ *     the TagIndexWatcher can pick up changes made elsewhere, but otherwise only a full scan
+ *     will notice them. Entries can also leave the index without anything changing on disk,
+ *     so the TagIndex forgets a directory whenever an entry in it is removed. Some file
+ *     systems only keep the last modified time to the second (or two), so a directory is only
+ *     remembered if it hadn't changed for a little while before it was listed; see
+ *     isTrustworthy().
+ * </p>
+ * <p>
+ *     This is only meaningful alongside the index it was built with, so the TagIndex saves
+ *     it next to the index file, and clears it whenever the index itself is cleared.
+ *     This class is thread-safe.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public final class DirectoryScanState {
+
+    private static final int MAGIC = 0x49434544; // "ICED"
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Listings taken less than this long after their directory last changed may miss a later change.
+     */
+    private static final long TIMESTAMP_GRANULARITY_MS = 2000;
+
+    /**
+     * What a directory looked like when it was last scanned.
+     */
+    public static final class Record {
+        private final long lastModified;
+        private final int tagFileCount;
+        private final List<String> subdirectories;
+
+        public Record(long lastModified, int tagFileCount, List<String> subdirectories) {
+            this.lastModified = lastModified;
+            this.tagFileCount = tagFileCount;
+            this.subdirectories = List.copyOf(subdirectories);
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns the number of index entries whose tag file was in the directory.
+         */
+        public int getTagFileCount() {
+            return tagFileCount;
+        }
+
+        /**
+         * Returns the names (not paths) of the directory's subdirectories.
+         */
+        public List<String> getSubdirectories() {
+            return subdirectories;
+        }
+    }
+
+    private final Map<String, Record> records = new ConcurrentHashMap<>();
+
+    /**
+     * Returns true if a directory listed at the given time, having last changed at the given
+     * time, can be remembered: that is, any later change is sure to change its timestamp.
+     */
+    public static boolean isTrustworthy(long lastModified, long listedAt) {
+        return lastModified != 0L && listedAt - lastModified > TIMESTAMP_GRANULARITY_MS;
+    }
+
+    /**
+     * Returns what we know about the given directory, or null if it hasn't been scanned.
+     */
+    public Record get(File dir) {
+        return records.get(dir.getAbsolutePath());
+    }
+
+    /**
+     * Remembers what the given directory looks like now. Any subdirectories it had before
+     * that are now gone are forgotten, along with everything beneath them.
+     */
+    public void put(File dir, Record record) {
+        Record previous = records.put(dir.getAbsolutePath(), record);
+        if (previous == null) {
+            return;
+        }
+        Set<String> current = new HashSet<>(record.getSubdirectories());
+        for (String name : previous.getSubdirectories()) {
+            if (! current.contains(name)) {
+                removeTree(new File(dir, name));
+            }
+        }
+    }
+
+    /**
+     * Forgets the given directory, so that the next incremental scan lists it again.
+     */
+    public void remove(File dir) {
+        records.remove(dir.getAbsolutePath());
+    }
+
+    public void clear() {
+        records.clear();
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * Replaces what we know with the contents of the given file. If the file doesn't exist,
+     * we're left knowing nothing, which just means the next incremental scan is a full one.
+     */
+    public void load(File file) throws IOException {
+        records.clear();
+        if (! file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Not a directory scan state file: " + file.getAbsolutePath());
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long lastModified = in.readLong();
+                int tagFileCount = in.readInt();
+                int subdirectoryCount = in.readInt();
+                List<String> subdirectories = new ArrayList<>(subdirectoryCount);
+                for (int j = 0; j < subdirectoryCount; j++) {
+                    subdirectories.add(in.readUTF());
+                }
+                records.put(path, new Record(lastModified, tagFileCount, subdirectories));
+            }
+        }
+        catch (IOException ioe) {
+            records.clear(); // half a state is worse than none
+            throw ioe;
+        }
+    }
+
+    /**
+     * Writes what we know to the given file, replacing it atomically where the file system allows.
+     */
+    public void save(File file) throws IOException {
+        Path target = file.toPath().toAbsolutePath();
+        Path tempFile = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            List<Map.Entry<String, Record>> snapshot = new ArrayList<>(records.entrySet());
+            try (OutputStream stream = Files.newOutputStream(tempFile);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Record> entry : snapshot) {
+                    Record record = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(record.getLastModified());
+                    out.writeInt(record.getTagFileCount());
+                    out.writeInt(record.getSubdirectories().size());
+                    for (String name : record.getSubdirectories()) {
+                        out.writeUTF(name);
+                    }
+                }
+            }
+            try {
+                Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(tempFile); // no-op if the move succeeded
+        }
+    }
+
+    private void removeTree(File dir) {
+        Deque<File> pending = new ArrayDeque<>();
+        pending.push(dir);
+        while (! pending.isEmpty()) {
+            File next = pending.pop();
+            Record removed = records.remove(next.getAbsolutePath());
+            if (removed != null) {
+                for (String name : removed.getSubdirectories()) {
+                    pending.push(new File(next, name));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package ca.corbett.imageviewer.extensions.ice.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A snapshot of the metadata of a single file: whether it exists, whether it's a directory,
+ * its size and its last modified time, all read with one call to the file system. Asking a
+ * File for its length() and lastModified() separately costs one call each, and checking
+ * exists() first costs another; on a network share, each of those is a round trip. Code that
+ * needs more than one of these should take a snapshot and pass it along instead.
+ * <p>
+ *     Snapshots can also come from a directory listing or walk, via list() and findFiles(). On
+ *     some platforms (Windows, notably) the listing already includes this metadata, so the
+ *     snapshots cost nothing extra at all; elsewhere, it's one call per file, which is still no
+ *     more than File.isDirectory() was costing us to tell files and directories apart.
+ * </p>
+ * <p>
+ *     A snapshot of a file that doesn't exist (or can't be read) has a size and last modified
+ *     time of zero, just like File.length() and File.lastModified() report. Snapshots are
+ *     immutable, and never refreshed: if the file might have changed, take another one.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public final class FileAttributes {
+
+    private static final Logger log = Logger.getLogger(FileAttributes.class.getName());
+
+    private final File file;
+    private final boolean exists;
+    private final boolean isDirectory;
+    private final long size;
+    private final long lastModified;
+
+    private FileAttributes(File file, boolean exists, boolean isDirectory, long size, long lastModified) {
+        this.file = file;
+        this.exists = exists;
+        this.isDirectory = isDirectory;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Reads the metadata of the given file, with one call to the file system.
+     */
+    public static FileAttributes read(File file) {
+        try {
+            return of(file, Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+        }
+        catch (NoSuchFileException nsfe) {
+            return missing(file);
+        }
+        catch (IOException | SecurityException e) {
+            log.log(Level.FINE, "Unable to read attributes of " + file.getAbsolutePath(), e);
+            return missing(file);
+        }
+    }
+
+    /**
+     * Wraps metadata that the caller has already read, for example during a directory walk.
+     */
+    public static FileAttributes of(File file, BasicFileAttributes attributes) {
+        return new FileAttributes(file, true, attributes.isDirectory(), attributes.size(),
+                                  attributes.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * Returns a snapshot for a file that doesn't exist.
+     */
+    public static FileAttributes missing(File file) {
+        return new FileAttributes(file, false, false, 0L, 0L);
+    }
+
+    /**
+     * Returns snapshots of everything in the given directory (not recursively), or null if it
+     * isn't a directory or can't be listed. Anything that vanishes while we list is left out.
+     */
+    public static List<FileAttributes> list(File dir) {
+        List<FileAttributes> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+            for (Path path : stream) {
+                FileAttributes child = read(path.toFile());
+                if (child.exists()) {
+                    children.add(child);
+                }
+            }
+        }
+        catch (IOException | SecurityException e) {
+            log.log(Level.FINE, "Unable to list directory " + dir.getAbsolutePath(), e);
+            return null;
+        }
+        return children;
+    }
+
+    /**
+     * Returns snapshots of all files (not directories) under the given directory with the given
+     * extension, ignoring case, sorted by path. Symbolic links are followed.
+     *
+     * @param dir         The directory to look in.
+     * @param isRecursive Whether to look in subdirectories too.
+     * @param extension   The extension to look for, without the dot.
+     */
+    public static List<FileAttributes> findFiles(File dir, boolean isRecursive, String extension) {
+        final String suffix = "." + extension.toLowerCase(Locale.ROOT);
+        final List<FileAttributes> found = new ArrayList<>();
+        try {
+            Files.walkFileTree(dir.toPath(), EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+                               isRecursive ? Integer.MAX_VALUE : 1, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (! attributes.isDirectory()
+                            && file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(suffix)) {
+                        found.add(of(file.toFile(), attributes));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE; // unreadable, or gone already; either way, skip it
+                }
+            });
+        }
+        catch (IOException | SecurityException e) {
+            log.log(Level.WARNING, "Unable to search directory " + dir.getAbsolutePath(), e);
+        }
+        found.sort(Comparator.comparing(FileAttributes::getFile));
+        return found;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean exists() {
+        return exists;
+    }
+
+    public boolean isDirectory() {
+        return isDirectory;
+    }
+
+    /**
+     * Returns the size of the file in bytes, or zero if it doesn't exist.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the last modified time of the file in milliseconds, or zero if it doesn't exist.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+}
@@ -0,0 +1,55 @@
+package ca.corbett.imageviewer.extensions.ice.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.zip.CRC32C;
+
+/**
+ * Content hashes for tag files, for telling whether a tag file has really changed when its size
+ * and last modified time can't be trusted to say so: some sync tools rewrite files but keep their
+ * old timestamps, and since tag files are short lists of words, rewriting one with different tags
+ * often leaves its size the same.
+ * <p>
+ *     The hash is CRC32C, which is not cryptographic but is more than enough to notice an edit,
+ *     and which the JVM computes with dedicated CPU instructions where they exist. Hashes are
+ *     always computed from the same bytes that the tags are parsed from (see TagList.fromBytes()),
+ *     so that a hash never describes newer content than the tags stored alongside it.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public final class TagFileHash {
+
+    /**
+     * Stands in for a hash that hasn't been computed. Real hashes are never negative.
+     */
+    public static final long NONE = -1L;
+
+    private TagFileHash() {
+    }
+
+    /**
+     * Returns the hash of the given content.
+     */
+    public static long of(byte[] content) {
+        CRC32C crc = new CRC32C();
+        crc.update(content, 0, content.length);
+        return crc.getValue();
+    }
+
+    /**
+     * Reads the whole of the given tag file. A tag file that doesn't exist reads as empty,
+     * just as TagList.fromFile() treats it as having no tags.
+     */
+    public static byte[] readContent(File tagFile) throws IOException {
+        try {
+            return Files.readAllBytes(tagFile.toPath());
+        }
+        catch (NoSuchFileException nsfe) {
+            return new byte[0];
+        }
+    }
+}
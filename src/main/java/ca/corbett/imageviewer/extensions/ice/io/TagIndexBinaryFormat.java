@@ -0,0 +1,523 @@
+package ca.corbett.imageviewer.extensions.ice.io;
+
+import ca.corbett.imageviewer.extensions.ice.TagIndexEntry;
+import ca.corbett.imageviewer.extensions.ice.TagList;
+import ca.corbett.imageviewer.extensions.ice.index.TagDictionary;
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads and writes the binary (v5) tag index format. This replaces the pipe-delimited text
+ * format of earlier versions: nothing needs to be split or parsed on load, and the file is
+ * memory-mapped with FileChannel.map() and decoded straight out of the mapped buffers,
+ * one entry at a time as the reader asks for them.
+ * <p>
+ *     <b>Layout</b> - all values are big-endian. Strings are stored as an int byte length
+ *     followed by that many bytes of UTF-8.
+ * </p>
+ * <ol>
+ *     <li><b>header</b> (32 bytes) - the magic bytes "ICEINDEX", the format version (int),
+ *     the size of each entry record in bytes (int), the entry count (int), the section
+ *     count (int), and 8 reserved bytes.</li>
+ *     <li><b>section table</b> - for each section: its type (int), offset (long) and length (long).
+ *     Sections may appear in the file in any order, and readers skip section types they
+ *     don't recognize.</li>
+ *     <li><b>META section</b> - the version of the extension that wrote the file.</li>
+ *     <li><b>LOCATIONS section</b> - a count (int) followed by each unique parent directory path.</li>
+ *     <li><b>TAGS section</b> - a count (int) followed by each unique tag. Entries refer to tags
+ *     by their position in this list.</li>
+ *     <li><b>RECORDS section</b> - one fixed-width record per entry: location id (int),
+ *     heap offset (long), tag file size (long), tag file last modified (long), tag file content
+ *     hash (long, or TagFileHash.NONE).</li>
+ *     <li><b>HEAP section</b> - the variable-length part of each entry, at the offset given in its
+ *     record: the image file name, then a tag count (int) followed by that many tag ids (int).</li>
+ * </ol>
+ * The record size is stored in the header so that later versions can append fields to
+ * each record without breaking older readers, which simply ignore the extra bytes.
+ * The per-tag posting lists are not stored in the file, because the TagIndex rebuilds them
+ * from the tag ids of each entry as it loads them.
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+final class TagIndexBinaryFormat {
+
+    private static final Logger log = Logger.getLogger(TagIndexBinaryFormat.class.getName());
+
+    static final byte[] MAGIC = "ICEINDEX".getBytes(StandardCharsets.US_ASCII);
+    static final int FORMAT_VERSION = 5;
+    static final int HEADER_SIZE = 32;
+    static final int SECTION_TABLE_ENTRY_SIZE = 20;
+    static final int RECORD_SIZE = 36;
+
+    static final int SECTION_META = 1;
+    static final int SECTION_LOCATIONS = 2;
+    static final int SECTION_TAGS = 3;
+    static final int SECTION_RECORDS = 4;
+    static final int SECTION_HEAP = 5;
+
+    // There is no public API for unmapping a buffer, so we use Unsafe.invokeCleaner() where we can:
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            log.log(Level.FINE, "TagIndexBinaryFormat: mapped buffers will be released by the garbage collector.", e);
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private TagIndexBinaryFormat() {
+    }
+
+    /**
+     * Reports whether the given file starts with our magic bytes.
+     */
+    static boolean isBinaryIndex(File file) throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            return false;
+        }
+        byte[] magic = new byte[MAGIC.length];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            return in.readNBytes(magic, 0, magic.length) == magic.length && Arrays.equals(MAGIC, magic);
+        }
+    }
+
+    /**
+     * Returns the version of the extension that wrote the given binary index file.
+     */
+    static String readExtensionVersion(File file) throws IOException {
+        try (MappedIndex index = MappedIndex.open(file)) {
+            ByteBuffer meta = index.getSection(SECTION_META);
+            return meta == null ? "" : readString(meta);
+        }
+        catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Tag index file is truncated or corrupt: " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Writes the given entries to the given file in the binary format, in a single pass.
+     * <p>
+     *     Nothing is built up in memory beyond a few small write buffers and the location and
+     *     tag id maps: the fixed-width records are written in place at their known offsets,
+     *     the heap is streamed out behind them, and the LOCATIONS, TAGS and META sections
+     *     (which are only complete once every entry has been seen) are appended at the end.
+     *     The header and section table are written last.
+     * </p>
+     * <p>
+     *     Everything is written to a temporary file in the same directory, which is then
+     *     atomically renamed over the target. If we crash or fail part way through,
+     *     the previous index file is left untouched.
+     * </p>
+     */
+    static void write(List<TagIndexEntry> indexEntries, File file, String extensionVersion) throws IOException {
+        Path target = file.toPath().toAbsolutePath();
+        Path tempFile = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                writeSections(indexEntries, channel, extensionVersion);
+                channel.force(true);
+            }
+            try {
+                Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(tempFile); // no-op if the move succeeded
+        }
+    }
+
+    private static void writeSections(List<TagIndexEntry> indexEntries, FileChannel channel,
+                                      String extensionVersion) throws IOException {
+        final int sectionCount = 5;
+        long recordsOffset = HEADER_SIZE + (long)sectionCount * SECTION_TABLE_ENTRY_SIZE;
+        long recordsLength = (long)indexEntries.size() * RECORD_SIZE;
+        long heapOffset = recordsOffset + recordsLength;
+
+        // Location and file-local tag ids are assigned in order of first appearance:
+        Map<String, Integer> locationIds = new LinkedHashMap<>();
+        Map<Integer, Integer> fileTagIds = new LinkedHashMap<>(); // global TagDictionary id -> file tag id
+
+        SectionWriter records = new SectionWriter(channel, recordsOffset);
+        SectionWriter heap = new SectionWriter(channel, heapOffset);
+        for (TagIndexEntry entry : indexEntries) {
+            String location = entry.getImageFile().getParentFile().getAbsolutePath();
+            Integer locationId = locationIds.get(location);
+            if (locationId == null) {
+                locationId = locationIds.size();
+                locationIds.put(location, locationId);
+            }
+            records.putInt(locationId);
+            records.putLong(heap.length());
+            records.putLong(entry.getTagFileSize());
+            records.putLong(entry.getTagFileLastModified());
+            records.putLong(entry.getTagFileHash());
+
+            heap.putString(entry.getImageFile().getName());
+            int[] tagIds = entry.getTagIds();
+            heap.putInt(tagIds.length);
+            for (int tagId : tagIds) {
+                Integer fileTagId = fileTagIds.get(tagId);
+                if (fileTagId == null) {
+                    fileTagId = fileTagIds.size();
+                    fileTagIds.put(tagId, fileTagId);
+                }
+                heap.putInt(fileTagId);
+            }
+        }
+        records.flush();
+        heap.flush();
+
+        SectionWriter locations = new SectionWriter(channel, heapOffset + heap.length());
+        locations.putInt(locationIds.size());
+        for (String location : locationIds.keySet()) {
+            locations.putString(location);
+        }
+        locations.flush();
+
+        SectionWriter tags = new SectionWriter(channel, locations.end());
+        tags.putInt(fileTagIds.size());
+        TagDictionary dictionary = TagDictionary.getInstance();
+        for (int tagId : fileTagIds.keySet()) {
+            tags.putString(dictionary.getTag(tagId));
+        }
+        tags.flush();
+
+        SectionWriter meta = new SectionWriter(channel, tags.end());
+        meta.putString(extensionVersion);
+        meta.flush();
+
+        SectionWriter header = new SectionWriter(channel, 0);
+        header.putBytes(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putInt(RECORD_SIZE);
+        header.putInt(indexEntries.size());
+        header.putInt(sectionCount);
+        header.putLong(0L); // reserved
+        int[] sectionTypes = {SECTION_META, SECTION_LOCATIONS, SECTION_TAGS, SECTION_RECORDS, SECTION_HEAP};
+        SectionWriter[] sections = {meta, locations, tags, records, heap};
+        for (int i = 0; i < sectionCount; i++) {
+            header.putInt(sectionTypes[i]);
+            header.putLong(sections[i].start());
+            header.putLong(sections[i].length());
+        }
+        header.flush();
+    }
+
+    /**
+     * Memory-maps the given binary index file and decodes all of its entries into a list.
+     */
+    static List<TagIndexEntry> read(File file) throws IOException {
+        List<TagIndexEntry> indexEntries = new ArrayList<>();
+        read(file, indexEntries::add);
+        return indexEntries;
+    }
+
+    /**
+     * Memory-maps the given binary index file and hands its entries to the given consumer,
+     * decoding each one from its record only when the consumer is ready for it, so the entries
+     * are never all decoded and held in a list of their own. Only the LOCATIONS and TAGS sections
+     * are decoded up front. Tags are interned into the global TagDictionary as the TAGS section
+     * is read, so each distinct tag is decoded only once no matter how many entries use it.
+     * The file is unmapped again before this returns.
+     */
+    static void read(File file, Consumer<TagIndexEntry> consumer) throws IOException {
+        try (MappedIndex index = MappedIndex.open(file)) {
+            int recordSize = index.recordSize;
+            int entryCount = index.entryCount;
+            if (index.formatVersion < FORMAT_VERSION || recordSize < RECORD_SIZE || entryCount < 0) {
+                throw new IOException("Unsupported tag index format (version " + index.formatVersion
+                                              + ", record size " + recordSize + "): " + file.getAbsolutePath());
+            }
+
+            ByteBuffer records = index.getSection(SECTION_RECORDS);
+            ByteBuffer heap = index.getSection(SECTION_HEAP);
+            if (records == null || heap == null || records.remaining() < (long)entryCount * recordSize) {
+                throw new IOException("Tag index file is missing required sections: " + file.getAbsolutePath());
+            }
+
+            String[] locations = readStrings(index.getSection(SECTION_LOCATIONS));
+            String[] tagNames = readStrings(index.getSection(SECTION_TAGS));
+            int[] globalTagIds = new int[tagNames.length];
+            TagDictionary dictionary = TagDictionary.getInstance();
+            for (int i = 0; i < tagNames.length; i++) {
+                globalTagIds[i] = dictionary.intern(TagList.stripTag(tagNames[i]));
+            }
+
+            for (int i = 0; i < entryCount; i++) {
+                int recordStart = i * recordSize;
+                int locationId = records.getInt(recordStart);
+                long heapOffset = records.getLong(recordStart + 4);
+                long tagFileSize = records.getLong(recordStart + 12);
+                long tagFileLastModified = records.getLong(recordStart + 20);
+                long tagFileHash = records.getLong(recordStart + 28);
+                if (locationId < 0 || locationId >= locations.length || heapOffset < 0 || heapOffset >= heap.limit()) {
+                    throw new IOException("Corrupt record " + i + " in tag index file: " + file.getAbsolutePath());
+                }
+
+                heap.position((int)heapOffset);
+                String imageFileName = readString(heap);
+                int tagCount = heap.getInt();
+                if (tagCount < 0 || tagCount > heap.remaining() / 4) {
+                    throw new IOException("Corrupt tag list for record " + i + " in tag index file: " + file.getAbsolutePath());
+                }
+                int[] tagIds = new int[tagCount];
+                for (int t = 0; t < tagCount; t++) {
+                    tagIds[t] = globalTagIds[heap.getInt()];
+                }
+
+                TagIndexEntry entry = new TagIndexEntry();
+                entry.setImageFile(new File(locations[locationId], imageFileName));
+                entry.setTagFile(new File(locations[locationId], FilenameUtils.getBaseName(imageFileName) + ".ice"));
+                entry.setTagFileSize(tagFileSize);
+                entry.setTagFileLastModified(tagFileLastModified);
+                entry.setTagFileHash(tagFileHash);
+                entry.setTagIds(tagIds);
+                consumer.accept(entry);
+            }
+        }
+        catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Tag index file is truncated or corrupt: " + file.getAbsolutePath(), e);
+        }
+    }
+
+    private static String[] readStrings(ByteBuffer buffer) {
+        if (buffer == null) {
+            return new String[0];
+        }
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / 4) {
+            throw new IllegalArgumentException("Invalid string count: " + count);
+        }
+        String[] strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            strings[i] = readString(buffer);
+        }
+        return strings;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The sections of an open binary index file, each mapped into its own read-only buffer.
+     * Mapping sections individually means only a single section (rather than the whole file)
+     * is limited to 2GB. Closing it unmaps them all straight away.
+     */
+    private static final class MappedIndex implements Closeable {
+        final int formatVersion;
+        final int recordSize;
+        final int entryCount;
+        private final List<MappedByteBuffer> mappings = new ArrayList<>();
+        private final Map<Integer, ByteBuffer> sections = new HashMap<>();
+
+        private MappedIndex(int formatVersion, int recordSize, int entryCount) {
+            this.formatVersion = formatVersion;
+            this.recordSize = recordSize;
+            this.entryCount = entryCount;
+        }
+
+        /**
+         * Reads the header and section table of the given file, and maps each section.
+         */
+        static MappedIndex open(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long fileSize = channel.size();
+                ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+                byte[] magic = new byte[MAGIC.length];
+                header.get(magic);
+                if (!Arrays.equals(MAGIC, magic)) {
+                    throw new IOException("Not a binary tag index file.");
+                }
+                MappedIndex index = new MappedIndex(header.getInt(), header.getInt(), header.getInt());
+                int sectionCount = header.getInt();
+                if (sectionCount < 0 || HEADER_SIZE + (long)sectionCount * SECTION_TABLE_ENTRY_SIZE > fileSize) {
+                    throw new IOException("Invalid section count in tag index file: " + sectionCount);
+                }
+
+                ByteBuffer table = readFully(channel, HEADER_SIZE, sectionCount * SECTION_TABLE_ENTRY_SIZE);
+                try {
+                    for (int i = 0; i < sectionCount; i++) {
+                        int type = table.getInt();
+                        long offset = table.getLong();
+                        long length = table.getLong();
+                        if (offset < 0 || length < 0 || offset + length > fileSize || length > Integer.MAX_VALUE) {
+                            throw new IOException("Invalid section " + type + " in tag index file.");
+                        }
+                        MappedByteBuffer section = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                        index.mappings.add(section);
+                        index.sections.put(type, section);
+                    }
+                }
+                catch (IOException | RuntimeException e) {
+                    index.close();
+                    throw e;
+                }
+                return index; // the mappings stay valid after the channel is closed
+            }
+        }
+
+        /**
+         * Returns the given section, or null if the file doesn't have one. The buffer must not
+         * be used once this MappedIndex is closed.
+         */
+        ByteBuffer getSection(int type) {
+            return sections.get(type);
+        }
+
+        @Override
+        public void close() {
+            sections.clear();
+            for (MappedByteBuffer mapping : mappings) {
+                unmap(mapping);
+            }
+            mappings.clear();
+        }
+
+        private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Tag index file is truncated.");
+                }
+            }
+            return buffer.flip();
+        }
+    }
+
+    /**
+     * Releases the given mapping right away, rather than whenever its buffer happens to be garbage
+     * collected. Until then, Windows keeps the file locked, and the next save can't replace it.
+     * Where that isn't possible, the mapping is simply left to the garbage collector.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            log.log(Level.FINE, "TagIndexBinaryFormat: unable to unmap buffer: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Buffers sequential writes to one section of the file, starting at a fixed offset,
+     * and writes them to the channel at the right position as the buffer fills up.
+     */
+    private static final class SectionWriter {
+        private final FileChannel channel;
+        private final long start;
+        private final ByteBuffer buffer;
+        private long flushedLength;
+
+        SectionWriter(FileChannel channel, long start) {
+            this.channel = channel;
+            this.start = start;
+            this.buffer = ByteBuffer.allocate(64 * 1024);
+            this.flushedLength = 0;
+        }
+
+        long start() {
+            return start;
+        }
+
+        long length() {
+            return flushedLength + buffer.position();
+        }
+
+        long end() {
+            return start + length();
+        }
+
+        void putInt(int value) throws IOException {
+            ensureRemaining(4);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensureRemaining(8);
+            buffer.putLong(value);
+        }
+
+        void putString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            putBytes(bytes);
+        }
+
+        void putBytes(byte[] bytes) throws IOException {
+            if (bytes.length > buffer.capacity()) {
+                flush();
+                ByteBuffer large = ByteBuffer.wrap(bytes);
+                while (large.hasRemaining()) {
+                    flushedLength += channel.write(large, start + flushedLength);
+                }
+                return;
+            }
+            ensureRemaining(bytes.length);
+            buffer.put(bytes);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                flushedLength += channel.write(buffer, start + flushedLength);
+            }
+            buffer.clear();
+        }
+
+        private void ensureRemaining(int needed) throws IOException {
+            if (buffer.remaining() < needed) {
+                flush();
+            }
+        }
+    }
+}
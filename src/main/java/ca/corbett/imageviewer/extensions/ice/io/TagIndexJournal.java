@@ -0,0 +1,359 @@
+package ca.corbett.imageviewer.extensions.ice.io;
+
+import ca.corbett.imageviewer.extensions.ice.TagIndexEntry;
+import ca.corbett.imageviewer.extensions.ice.TagList;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of changes to the TagIndex since it was last saved in full.
+ * Each call to TagIndex.addOrUpdateEntry() or TagIndex.removeEntry() that changes the index
+ * appends one small record here, so that a crash only loses whatever was never flushed from
+ * this journal, rather than every change since the last full save. On startup, the journal is
+ * replayed on top of the main index file.
+ * <p>
+ *     <b>Compaction</b> - the journal is periodically folded into the main index file. To do that
+ *     without blocking new changes, the journal is first rotated: the current journal file is
+ *     renamed to a ".compacting" file and a fresh journal is started. Once the main index file
+ *     has been rewritten, the compacting file is deleted. If we crash before that happens,
+ *     the compacting file is simply replayed (before the journal) on the next startup.
+ *     Replaying a record more than once is harmless, because each record holds the complete
+ *     state of an entry rather than a change to it.
+ * </p>
+ * <p>
+ *     <b>Format</b> - a magic header, followed by records of the form: payload length (int),
+ *     payload, CRC32 of the payload (int). A record that was only partially written when we
+ *     crashed (or that fails its CRC check) ends the replay; everything before it is kept, and
+ *     the rest is cut off, so that records appended later aren't stuck behind it. For the same
+ *     reason, if an append fails partway, the journal is truncated back to the end of the last
+ *     complete record.
+ *     Fields added to a record type later go at the end of its payload, and are read only if
+ *     present, so that journals written by older versions can still be replayed.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public class TagIndexJournal {
+
+    private static final Logger log = Logger.getLogger(TagIndexJournal.class.getName());
+
+    private static final int MAGIC = 0x49434A31; // "ICJ1"
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    /**
+     * Receives the records of a journal as it is replayed.
+     */
+    public interface Listener {
+        void entryPut(TagIndexEntry entry);
+
+        void entryRemoved(File imageFile);
+    }
+
+    private final File journalFile;
+    private final File compactingFile;
+    private FileChannel channel;
+    private long goodSize; // bytes of complete records (and header) in the journal file, while the channel is open
+    private boolean needsTruncation; // an append failed partway, and we couldn't cut it off yet
+
+    public TagIndexJournal(File journalFile) {
+        this.journalFile = journalFile;
+        this.compactingFile = new File(journalFile.getPath() + ".compacting");
+    }
+
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * Returns the current size of the journal in bytes. Used to decide when to compact, after
+     * every append, so while the journal is open this is tracked rather than asked of the file.
+     */
+    public synchronized long size() {
+        return channel != null ? goodSize : journalFile.length();
+    }
+
+    /**
+     * Appends a record describing the complete current state of the given entry.
+     */
+    public synchronized void appendPut(TagIndexEntry entry) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream payload = new DataOutputStream(bytes)) {
+            payload.writeByte(RECORD_PUT);
+            writeString(payload, entry.getImageFile().getAbsolutePath());
+            writeString(payload, entry.getTagFile() == null ? "" : entry.getTagFile().getAbsolutePath());
+            payload.writeLong(entry.getTagFileSize());
+            payload.writeLong(entry.getTagFileLastModified());
+            writeString(payload, entry.getTagList().toString());
+            payload.writeLong(entry.getTagFileHash());
+        }
+        catch (IOException ioe) {
+            log.log(Level.WARNING, "TagIndexJournal: unable to encode entry: " + ioe.getMessage(), ioe);
+            return;
+        }
+        appendRecord(bytes.toByteArray());
+    }
+
+    /**
+     * Appends a record noting that the given image was removed from the index.
+     */
+    public synchronized void appendRemove(File imageFile) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream payload = new DataOutputStream(bytes)) {
+            payload.writeByte(RECORD_REMOVE);
+            writeString(payload, imageFile.getAbsolutePath());
+        }
+        catch (IOException ioe) {
+            log.log(Level.WARNING, "TagIndexJournal: unable to encode removal: " + ioe.getMessage(), ioe);
+            return;
+        }
+        appendRecord(bytes.toByteArray());
+    }
+
+    /**
+     * Replays any leftover compacting file followed by the journal itself, in the order
+     * the changes were made.
+     *
+     * @return The number of records replayed.
+     */
+    public synchronized int replay(Listener listener) {
+        close();
+        return replayFile(compactingFile, listener) + replayFile(journalFile, listener);
+    }
+
+    /**
+     * Starts a new journal, setting the current contents aside in the compacting file until
+     * finishCompaction() is called. The caller should take its snapshot of the index AFTER
+     * calling this, so that every change in the compacting file is also in the snapshot.
+     * If a previous compaction never finished, the current journal is added to the end of
+     * its compacting file rather than replacing it.
+     */
+    public synchronized void rotate() throws IOException {
+        close();
+        if (!journalFile.exists()) {
+            return;
+        }
+        if (journalFile.length() <= 4) {
+            Files.delete(journalFile.toPath()); // nothing but a header
+        }
+        else if (compactingFile.exists()) {
+            try (InputStream in = Files.newInputStream(journalFile.toPath());
+                 OutputStream compacting = Files.newOutputStream(compactingFile.toPath(), StandardOpenOption.APPEND)) {
+                in.skipNBytes(4); // the new journal's header; the compacting file already has one
+                in.transferTo(compacting);
+            }
+            Files.delete(journalFile.toPath());
+        }
+        else {
+            Files.move(journalFile.toPath(), compactingFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Discards the compacting file once its contents have safely made it into the main index file.
+     */
+    public synchronized void finishCompaction() throws IOException {
+        Files.deleteIfExists(compactingFile.toPath());
+    }
+
+    /**
+     * Closes the journal file if it's open. It will be reopened on the next append.
+     */
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        }
+        catch (IOException ioe) {
+            log.log(Level.WARNING, "TagIndexJournal: problem closing journal: " + ioe.getMessage(), ioe);
+        }
+        channel = null;
+    }
+
+    private void appendRecord(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(payload.length + 8);
+        record.putInt(payload.length).put(payload).putInt((int)crc.getValue()).flip();
+        try {
+            if (channel == null) {
+                open();
+            }
+            // One write per record, straight to the OS, so an application crash doesn't lose it:
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            goodSize += record.limit();
+        }
+        catch (IOException ioe) {
+            log.log(Level.WARNING, "TagIndexJournal: unable to append to journal: " + ioe.getMessage(), ioe);
+            boolean wasOpen = channel != null;
+            close();
+            if (wasOpen) {
+                needsTruncation = true;
+                truncateTornRecord();
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        if (needsTruncation) {
+            truncateTornRecord();
+            if (needsTruncation) {
+                throw new IOException("journal still ends in a partial record");
+            }
+        }
+        FileChannel opened = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE,
+                                              StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            goodSize = opened.size();
+        }
+        catch (IOException ioe) {
+            opened.close();
+            throw ioe;
+        }
+        channel = opened; // from here on, a failed write is cut back to goodSize
+        if (goodSize == 0) {
+            ByteBuffer header = ByteBuffer.allocate(4).putInt(MAGIC).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            goodSize = 4;
+        }
+    }
+
+    /**
+     * Cuts the journal back to the end of its last complete record, after a failed append.
+     * If even that fails, we try again before the next append.
+     */
+    private void truncateTornRecord() {
+        try (FileChannel truncator = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+            truncator.truncate(goodSize);
+            needsTruncation = false;
+        }
+        catch (IOException ioe) {
+            log.log(Level.WARNING, "TagIndexJournal: unable to truncate journal after failed append: "
+                    + ioe.getMessage(), ioe);
+        }
+    }
+
+    private static int replayFile(File file, Listener listener) {
+        if (!file.exists() || file.length() == 0) {
+            return 0;
+        }
+        int count = 0;
+        long goodLength = 4; // the header, and then every complete record we've read
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != MAGIC) {
+                log.warning("TagIndexJournal: ignoring unrecognized journal file: " + file.getAbsolutePath());
+                return 0;
+            }
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                }
+                catch (EOFException eof) {
+                    break; // clean end of journal
+                }
+                if (length <= 0 || length > 16 * 1024 * 1024) {
+                    log.warning("TagIndexJournal: corrupt record length in " + file.getName() + "; ignoring the rest.");
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                int expectedCrc = in.readInt();
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int)crc.getValue() != expectedCrc) {
+                    log.warning("TagIndexJournal: checksum mismatch in " + file.getName() + "; ignoring the rest.");
+                    break;
+                }
+                applyRecord(payload, listener);
+                count++;
+                goodLength += length + 8;
+            }
+        }
+        catch (EOFException eof) {
+            log.info("TagIndexJournal: last record in " + file.getName() + " was incomplete and was ignored.");
+        }
+        catch (IOException ioe) {
+            log.log(Level.SEVERE, "TagIndexJournal: problem replaying journal: " + ioe.getMessage(), ioe);
+            return count; // we don't know what's wrong with it, so leave it be
+        }
+
+        // Cut off whatever we couldn't read, so that it doesn't hide what gets appended next:
+        if (file.length() > goodLength) {
+            try (FileChannel truncator = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                truncator.truncate(goodLength);
+            }
+            catch (IOException ioe) {
+                log.log(Level.WARNING, "TagIndexJournal: unable to truncate " + file.getName() + ": "
+                        + ioe.getMessage(), ioe);
+            }
+        }
+        return count;
+    }
+
+    private static void applyRecord(byte[] payload, Listener listener) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            byte type = in.readByte();
+            if (type == RECORD_PUT) {
+                TagIndexEntry entry = new TagIndexEntry();
+                entry.setImageFile(new File(readString(in)));
+                String tagFilePath = readString(in);
+                entry.setTagFile(tagFilePath.isEmpty() ? null : new File(tagFilePath));
+                entry.setTagFileSize(in.readLong());
+                entry.setTagFileLastModified(in.readLong());
+                entry.setTagIds(TagList.parseTagIds(readString(in)));
+                if (in.available() >= 8) {
+                    entry.setTagFileHash(in.readLong());
+                }
+                listener.entryPut(entry);
+            }
+            else if (type == RECORD_REMOVE) {
+                listener.entryRemoved(new File(readString(in)));
+            }
+            else {
+                log.warning("TagIndexJournal: ignoring unknown record type " + type);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid string length in journal record: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -4,7 +4,6 @@ import ca.corbett.imageviewer.Version;
 import ca.corbett.imageviewer.extensions.ice.IceExtension;
 import ca.corbett.imageviewer.extensions.ice.TagIndexEntry;
 import ca.corbett.imageviewer.extensions.ice.TagList;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 
 import javax.swing.text.html.HTML;
@@ -15,10 +14,9 @@ import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -45,6 +43,11 @@ public class TagIndexPersistence {
      * @return A String version which will be the ICE extension version which created this file.
      */
     public static String getIndexVersion(File tagIndexFile) throws IOException {
+        // Binary files (3.5.0 and later) store the version in their META section:
+        if (TagIndexBinaryFormat.isBinaryIndex(tagIndexFile)) {
+            return TagIndexBinaryFormat.readExtensionVersion(tagIndexFile);
+        }
+
         // Grab the first line in the file:
         String firstLine;
         try (Stream<String> lines = Files.lines(tagIndexFile.toPath(), StandardCharsets.UTF_8)) {
@@ -64,43 +67,11 @@ public class TagIndexPersistence {
 
     /**
      * Saves the given list of TagIndexEntry instances to the given tag index file.
+     * As of ICE 3.5.0, this always writes the binary format - see TagIndexBinaryFormat.
+     * Older text-format files are still loaded, and are migrated on the next save.
      */
     public static void save(List<TagIndexEntry> indexEntries, File tagIndexFile) throws IOException {
-        List<String> lines = new ArrayList<>(1000);
-        lines.add(HEADER + "|" + IceExtension.extInfo.getVersion());
-
-        // Build up our list of unique locations:
-        Set<String> uniqueLocations = new LinkedHashSet<>(1000);
-        for (TagIndexEntry entry : indexEntries) {
-            uniqueLocations.add(entry.getImageFile().getParentFile().getAbsolutePath());
-        }
-
-        // Write out our unique location list and build out a map of location to identifier:
-        int locationIdentifier = 0;
-        Map<String, Integer> locationMap = new HashMap<>();
-        for (String location : uniqueLocations) {
-            lines.add("LOC|"+locationIdentifier+"|"+location);
-            locationMap.put(location, locationIdentifier);
-            locationIdentifier++;
-        }
-
-        // Now write out our entries:
-        for (TagIndexEntry entry : indexEntries) {
-            int locationId = locationMap.get(entry.getImageFile().getParentFile().getAbsolutePath());
-            String line = locationId +
-                    "|" +
-                    entry.getImageFile().getName() +
-                    "|" +
-                    entry.getTagFileSize() +
-                    "|" +
-                    entry.getTagFileLastModified() +
-                    "|" +
-                    entry.getTagList().toString();
-            lines.add(line);
-        }
-
-        // Save it in one shot (... do we REALLY want to build out the whole thing in memory first?):
-        FileUtils.writeLines(tagIndexFile, lines);
+        TagIndexBinaryFormat.write(indexEntries, tagIndexFile, IceExtension.extInfo.getVersion());
     }
 
     /**
@@ -108,11 +79,28 @@ public class TagIndexPersistence {
      * that are populated and ready to use.
      */
     public static List<TagIndexEntry> load(File tagIndexFile) throws IOException {
+        if (TagIndexBinaryFormat.isBinaryIndex(tagIndexFile)) {
+            return TagIndexBinaryFormat.read(tagIndexFile);
+        }
         String indexVersion = getIndexVersion(tagIndexFile);
         if ("2.2.0".equals(indexVersion)) {
             return loadLegacyFormat(tagIndexFile);
         }
-        return loadCurrentFormat(tagIndexFile);
+        return loadTextFormat(tagIndexFile);
+    }
+
+    /**
+     * Like load(), but hands each entry to the given consumer instead of returning a list.
+     * Entries in a binary index file are decoded one at a time, as the consumer takes them,
+     * so that the whole file is never decoded into a list of its own first. If this throws,
+     * the consumer may already have been given some of the entries.
+     */
+    public static void load(File tagIndexFile, Consumer<TagIndexEntry> consumer) throws IOException {
+        if (TagIndexBinaryFormat.isBinaryIndex(tagIndexFile)) {
+            TagIndexBinaryFormat.read(tagIndexFile, consumer);
+            return;
+        }
+        load(tagIndexFile).forEach(consumer);
     }
 
     /**
@@ -151,7 +139,7 @@ public class TagIndexPersistence {
                     }
                 }
                 if (parts.length > 4) {
-                    indexEntry.setTagList(TagList.of(parts[4]));
+                    indexEntry.setTagIds(TagList.parseTagIds(parts[4])); // interned, no intermediate TagList
                     indexEntries.add(indexEntry);
                 }
             });
@@ -161,10 +149,11 @@ public class TagIndexPersistence {
     }
 
     /**
-     * Loads a tag index file using the current save format. This format is used as of the 2.2.1
-     * release, and is much more efficient with disk space.
+     * Loads a tag index file using the text save format. This format was used from the 2.2.1
+     * release until the binary format replaced it, and is much more efficient with disk space
+     * than the legacy format.
      */
-    private static List<TagIndexEntry> loadCurrentFormat(File tagIndexFile) throws IOException {
+    private static List<TagIndexEntry> loadTextFormat(File tagIndexFile) throws IOException {
         Map<Integer, String> locationMap = new HashMap<>(1000);
         List<TagIndexEntry> indexEntries = new ArrayList<>(1000);
         try (Stream<String> lines = Files.lines(tagIndexFile.toPath(), StandardCharsets.UTF_8)) {
@@ -194,7 +183,7 @@ public class TagIndexPersistence {
                             entry.setTagFile(new File(parentPath, tagFileName));
                             entry.setTagFileSize(Long.parseLong(parts[2].trim()));
                             entry.setTagFileLastModified(Long.parseLong(parts[3].trim()));
-                            entry.setTagList(TagList.of(parts[4]));
+                            entry.setTagIds(TagList.parseTagIds(parts[4])); // interned, no intermediate TagList
                             indexEntries.add(entry);
                         }
                         else {
@@ -0,0 +1,37 @@
+package ca.corbett.imageviewer.extensions.ice.query;
+
+import ca.corbett.imageviewer.extensions.ice.index.TagBitmap;
+
+import java.util.List;
+
+/**
+ * The view of an index that a QueryPlan needs in order to be planned and executed.
+ * The TagIndex provides one of these while holding its read lock. Bitmaps returned
+ * from here belong to the index and must never be modified.
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public interface QueryContext {
+
+    /**
+     * Returns the ids of all images that have the given (already stripped) tag,
+     * or null if no image has it.
+     */
+    TagBitmap getPostingList(String tag);
+
+    /**
+     * Returns the ids of all images in the index.
+     */
+    TagBitmap getAllImageIds();
+
+    /**
+     * Returns every tag in the index that matches the given pattern.
+     */
+    List<String> expand(TagPattern pattern);
+
+    /**
+     * Returns every tag in the index within maxDistance edits of the given (already stripped) tag.
+     */
+    List<String> expandFuzzy(String tag, int maxDistance);
+}
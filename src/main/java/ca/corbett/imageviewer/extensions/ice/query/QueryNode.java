@@ -0,0 +1,183 @@
+package ca.corbett.imageviewer.extensions.ice.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The abstract syntax tree of a tag query, as produced by QueryParser. Nodes are immutable
+ * and carry no information about the index they'll be run against - turning a tree into
+ * something that can be executed is the job of the QueryPlanner.
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public abstract class QueryNode {
+
+    private QueryNode() {
+    }
+
+    /**
+     * Matches images that have the given tag. The tag is stored already stripped (see TagList.stripTag()).
+     */
+    public static final class Term extends QueryNode {
+        private final String tag;
+
+        public Term(String tag) {
+            this.tag = tag;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+
+        @Override
+        public String toString() {
+            boolean needsQuotes = tag.contains(" ") || tag.contains("(") || tag.contains(")") || tag.contains("~")
+                    || TagPattern.isPattern(tag) || QueryParser.isKeyword(tag);
+            return needsQuotes ? "\"" + tag + "\"" : tag;
+        }
+    }
+
+    /**
+     * Matches images that have at least one tag matching the given wildcard pattern.
+     */
+    public static final class Pattern extends QueryNode {
+        private final TagPattern pattern;
+
+        public Pattern(TagPattern pattern) {
+            this.pattern = pattern;
+        }
+
+        public TagPattern getPattern() {
+            return pattern;
+        }
+
+        @Override
+        public String toString() {
+            String text = pattern.getPattern();
+            boolean needsQuotes = text.contains(" ") || text.contains("(") || text.contains(")");
+            return needsQuotes ? "\"" + text + "\"" : text;
+        }
+    }
+
+    /**
+     * Matches images that have at least one tag within the given number of edits of the given tag,
+     * so that a search for "landscpae" still finds images tagged "landscape".
+     */
+    public static final class Fuzzy extends QueryNode {
+        /** The largest edit distance we allow; beyond this, almost every short tag matches almost every other. */
+        public static final int MAX_DISTANCE = 2;
+
+        private final String tag;
+        private final int maxDistance;
+
+        public Fuzzy(String tag, int maxDistance) {
+            if (maxDistance < 0 || maxDistance > MAX_DISTANCE) {
+                throw new IllegalArgumentException("Edit distance must be between 0 and " + MAX_DISTANCE);
+            }
+            this.tag = tag;
+            this.maxDistance = maxDistance;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+
+        public int getMaxDistance() {
+            return maxDistance;
+        }
+
+        @Override
+        public String toString() {
+            boolean needsQuotes = tag.contains(" ") || tag.contains("(") || tag.contains(")");
+            return (needsQuotes ? "\"" + tag + "\"" : tag) + "~" + maxDistance;
+        }
+    }
+
+    /**
+     * Matches images that match every one of its children.
+     */
+    public static final class And extends QueryNode {
+        private final List<QueryNode> children;
+
+        public And(List<QueryNode> children) {
+            this.children = Collections.unmodifiableList(new ArrayList<>(children));
+        }
+
+        public List<QueryNode> getChildren() {
+            return children;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + join(children, " AND ") + ")";
+        }
+    }
+
+    /**
+     * Matches images that match at least one of its children.
+     */
+    public static final class Or extends QueryNode {
+        private final List<QueryNode> children;
+
+        public Or(List<QueryNode> children) {
+            this.children = Collections.unmodifiableList(new ArrayList<>(children));
+        }
+
+        public List<QueryNode> getChildren() {
+            return children;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + join(children, " OR ") + ")";
+        }
+    }
+
+    /**
+     * Matches images that do not match its child.
+     */
+    public static final class Not extends QueryNode {
+        private final QueryNode child;
+
+        public Not(QueryNode child) {
+            this.child = child;
+        }
+
+        public QueryNode getChild() {
+            return child;
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + child;
+        }
+    }
+
+    /**
+     * Matches every image. This is what an empty query means.
+     */
+    public static final class MatchAll extends QueryNode {
+        public static final MatchAll INSTANCE = new MatchAll();
+
+        private MatchAll() {
+        }
+
+        @Override
+        public String toString() {
+            return "*";
+        }
+    }
+
+    private static String join(List<QueryNode> nodes, String separator) {
+        StringBuilder sb = new StringBuilder();
+        for (QueryNode node : nodes) {
+            if (sb.length() > 0) {
+                sb.append(separator);
+            }
+            sb.append(node);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,25 @@
+package ca.corbett.imageviewer.extensions.ice.query;
+
+/**
+ * Thrown by QueryParser when a tag query can't be understood. The message is suitable
+ * for showing to the user as-is.
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public class QueryParseException extends Exception {
+
+    private final int position;
+
+    public QueryParseException(String message, int position) {
+        super(message);
+        this.position = position;
+    }
+
+    /**
+     * Returns the (zero-based) character offset in the query text where the problem was found.
+     */
+    public int getPosition() {
+        return position;
+    }
+}
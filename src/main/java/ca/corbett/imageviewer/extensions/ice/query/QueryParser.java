@@ -0,0 +1,275 @@
+package ca.corbett.imageviewer.extensions.ice.query;
+
+import ca.corbett.imageviewer.extensions.ice.TagList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the text of a tag query into a QueryNode tree. The grammar is small:
+ * <pre>
+ *     query  := or
+ *     or     := and ( OR and )*
+ *     and    := unary ( AND unary )*
+ *     unary  := NOT unary | '(' or ')' | term
+ *     term   := ( "quoted text" | word+ ) fuzzy?
+ *     fuzzy  := '~' digit?
+ * </pre>
+ * <p>
+ *     A term containing <code>*</code> or <code>?</code> is a wildcard pattern (see TagPattern),
+ *     unless it is in double quotes, in which case it is taken literally.
+ * </p>
+ * <p>
+ *     A term followed by <code>~</code> is fuzzy: it also matches tags that are one edit
+ *     (an inserted, deleted or changed character) away from it, so <code>landscpae~</code>
+ *     finds "landscape". <code>~2</code> allows two edits.
+ * </p>
+ * <p>
+ *     Keywords are case-insensitive. Because tags may contain spaces, consecutive words
+ *     that aren't keywords are joined into a single term: <code>blue sky AND cat</code>
+ *     means the tag "blue sky" and the tag "cat". A tag that is itself a keyword (or that
+ *     contains parentheses) can be searched for by putting it in double quotes.
+ *     As everywhere else, tags are matched case-insensitively.
+ * </p>
+ * <p>
+ *     Example: <code>(cat OR dog) AND outdoor AND NOT blurry</code>
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public final class QueryParser {
+
+    private enum TokenType {
+        LEFT_PAREN, RIGHT_PAREN, AND, OR, NOT, WORD, QUOTED, END
+    }
+
+    private static final class Token {
+        final TokenType type;
+        final String text;
+        final int position;
+        final String fuzzySuffix; // for QUOTED only: a '~' suffix right after the closing quote, or null
+
+        Token(TokenType type, String text, int position) {
+            this(type, text, position, null);
+        }
+
+        Token(TokenType type, String text, int position, String fuzzySuffix) {
+            this.type = type;
+            this.text = text;
+            this.position = position;
+            this.fuzzySuffix = fuzzySuffix;
+        }
+    }
+
+    private final List<Token> tokens;
+    private int index;
+
+    private QueryParser(List<Token> tokens) {
+        this.tokens = tokens;
+        this.index = 0;
+    }
+
+    /**
+     * Parses the given query text. A null or blank query parses to MatchAll.
+     *
+     * @throws QueryParseException if the query is malformed.
+     */
+    public static QueryNode parse(String query) throws QueryParseException {
+        if (query == null || query.isBlank()) {
+            return QueryNode.MatchAll.INSTANCE;
+        }
+        QueryParser parser = new QueryParser(tokenize(query));
+        QueryNode root = parser.parseOr();
+        Token next = parser.peek();
+        if (next.type != TokenType.END) {
+            throw new QueryParseException("Unexpected " + describe(next) + " at position " + next.position, next.position);
+        }
+        return root;
+    }
+
+    /**
+     * Reports whether the given word would be read as an operator rather than a tag.
+     */
+    static boolean isKeyword(String word) {
+        return keywordType(word) != null;
+    }
+
+    private QueryNode parseOr() throws QueryParseException {
+        List<QueryNode> children = new ArrayList<>();
+        children.add(parseAnd());
+        while (peek().type == TokenType.OR) {
+            index++;
+            children.add(parseAnd());
+        }
+        return children.size() == 1 ? children.get(0) : new QueryNode.Or(children);
+    }
+
+    private QueryNode parseAnd() throws QueryParseException {
+        List<QueryNode> children = new ArrayList<>();
+        children.add(parseUnary());
+        while (peek().type == TokenType.AND) {
+            index++;
+            children.add(parseUnary());
+        }
+        return children.size() == 1 ? children.get(0) : new QueryNode.And(children);
+    }
+
+    private QueryNode parseUnary() throws QueryParseException {
+        Token token = peek();
+        switch (token.type) {
+            case NOT:
+                index++;
+                return new QueryNode.Not(parseUnary());
+
+            case LEFT_PAREN: {
+                index++;
+                QueryNode inner = parseOr();
+                Token closing = peek();
+                if (closing.type != TokenType.RIGHT_PAREN) {
+                    throw new QueryParseException("Expected ')' at position " + closing.position
+                                                          + " to match '(' at position " + token.position,
+                                                  closing.position);
+                }
+                index++;
+                return inner;
+            }
+
+            case QUOTED: {
+                index++;
+                int suffixPosition = token.position + token.text.length() + 2; // just past the closing quote
+                return createTerm(token.text, token.position, false,
+                                  fuzzyDistanceOf(token.fuzzySuffix, suffixPosition));
+            }
+
+            case WORD: {
+                // Consecutive words make up one multi-word tag:
+                StringBuilder tag = new StringBuilder(token.text);
+                index++;
+                while (peek().type == TokenType.WORD) {
+                    tag.append(' ').append(peek().text);
+                    index++;
+                }
+                int suffixLength = fuzzySuffixLength(tag.toString());
+                int suffixStart = tag.length() - suffixLength;
+                String suffix = tag.substring(suffixStart);
+                tag.setLength(suffixStart);
+                return createTerm(tag.toString(), token.position, true,
+                                  fuzzyDistanceOf(suffix, tokens.get(index - 1).position
+                                          + tokens.get(index - 1).text.length() - suffixLength));
+            }
+
+            default:
+                throw new QueryParseException("Expected a tag at position " + token.position
+                                                      + " but found " + describe(token), token.position);
+        }
+    }
+
+    private static QueryNode createTerm(String text, int position, boolean allowWildcards,
+                                        int fuzzyDistance) throws QueryParseException {
+        String tag = TagList.stripTag(text);
+        if (tag.isEmpty()) {
+            throw new QueryParseException("Empty tag at position " + position, position);
+        }
+        if (allowWildcards && TagPattern.isPattern(tag)) {
+            if (fuzzyDistance >= 0) {
+                throw new QueryParseException("Wildcard pattern at position " + position
+                                                      + " can't also be fuzzy", position);
+            }
+            return new QueryNode.Pattern(new TagPattern(tag));
+        }
+        return fuzzyDistance >= 0 ? new QueryNode.Fuzzy(tag, fuzzyDistance) : new QueryNode.Term(tag);
+    }
+
+    /**
+     * Returns the length of the fuzzy suffix ('~' or '~' and a digit) at the end of the given word, or 0 if none.
+     */
+    private static int fuzzySuffixLength(String word) {
+        int length = word.length();
+        if (length > 0 && word.charAt(length - 1) == '~') {
+            return 1;
+        }
+        if (length > 1 && word.charAt(length - 2) == '~' && Character.isDigit(word.charAt(length - 1))) {
+            return 2;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the edit distance given by the given fuzzy suffix, or -1 if there is no suffix.
+     */
+    private static int fuzzyDistanceOf(String suffix, int position) throws QueryParseException {
+        if (suffix == null || suffix.isEmpty()) {
+            return -1;
+        }
+        int distance = suffix.length() == 1 ? 1 : suffix.charAt(1) - '0';
+        if (distance > QueryNode.Fuzzy.MAX_DISTANCE) {
+            throw new QueryParseException("Edit distance at position " + position
+                                                  + " must be at most " + QueryNode.Fuzzy.MAX_DISTANCE, position);
+        }
+        return distance;
+    }
+
+    private Token peek() {
+        return tokens.get(index);
+    }
+
+    private static List<Token> tokenize(String query) throws QueryParseException {
+        List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            }
+            else if (c == '(') {
+                tokens.add(new Token(TokenType.LEFT_PAREN, "(", i++));
+            }
+            else if (c == ')') {
+                tokens.add(new Token(TokenType.RIGHT_PAREN, ")", i++));
+            }
+            else if (c == '"') {
+                int end = query.indexOf('"', i + 1);
+                if (end < 0) {
+                    throw new QueryParseException("Unterminated quote at position " + i, i);
+                }
+                // A fuzzy suffix may follow the closing quote directly, as in "blue sky"~
+                int suffixEnd = end + 1;
+                if (suffixEnd < query.length() && query.charAt(suffixEnd) == '~') {
+                    suffixEnd++;
+                    if (suffixEnd < query.length() && Character.isDigit(query.charAt(suffixEnd))) {
+                        suffixEnd++;
+                    }
+                }
+                String suffix = suffixEnd > end + 1 ? query.substring(end + 1, suffixEnd) : null;
+                tokens.add(new Token(TokenType.QUOTED, query.substring(i + 1, end), i, suffix));
+                i = suffixEnd;
+            }
+            else {
+                int start = i;
+                while (i < query.length() && !Character.isWhitespace(query.charAt(i))
+                        && "()\"".indexOf(query.charAt(i)) < 0) {
+                    i++;
+                }
+                String word = query.substring(start, i);
+                TokenType keyword = keywordType(word);
+                tokens.add(new Token(keyword == null ? TokenType.WORD : keyword, word, start));
+            }
+        }
+        tokens.add(new Token(TokenType.END, "", query.length()));
+        return tokens;
+    }
+
+    private static TokenType keywordType(String word) {
+        return switch (word.toUpperCase()) {
+            case "AND" -> TokenType.AND;
+            case "OR" -> TokenType.OR;
+            case "NOT" -> TokenType.NOT;
+            default -> null;
+        };
+    }
+
+    private static String describe(Token token) {
+        return token.type == TokenType.END ? "end of query" : "'" + token.text + "'";
+    }
+}
@@ -0,0 +1,363 @@
+package ca.corbett.imageviewer.extensions.ice.query;
+
+import ca.corbett.imageviewer.extensions.ice.TagList;
+import ca.corbett.imageviewer.extensions.ice.index.TagBitmap;
+import ca.corbett.imageviewer.extensions.ice.index.TagBkTree;
+
+import java.util.List;
+
+/**
+ * An executable form of a tag query, produced by the QueryPlanner. A plan can be run in
+ * two ways: against an index, with execute(), which combines posting lists into a bitmap
+ * of matching image ids; or against a single TagList, with matches(), for tag files that
+ * aren't in the index. Both short-circuit as early as they can - an AND stops as soon as
+ * its result is empty (or a child doesn't match), and an OR as soon as a child matches.
+ * <p>
+ *     Plans are cheap to build and are tied to the statistics of the index they were
+ *     planned against, so they should be rebuilt for each search rather than kept around.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public final class QueryPlan {
+
+    private final Step root;
+
+    QueryPlan(Step root) {
+        this.root = root;
+    }
+
+    /**
+     * Runs this plan against the given index and returns the ids of all matching images.
+     * The returned bitmap is a new copy and may be freely modified.
+     */
+    public TagBitmap execute(QueryContext context) {
+        return root.execute(context);
+    }
+
+    /**
+     * Reports whether the given tag list satisfies this plan.
+     */
+    public boolean matches(TagList tagList) {
+        return root.matches(tagList);
+    }
+
+    /**
+     * Returns the estimated number of matching images, as of when this plan was made.
+     */
+    public int getEstimatedCount() {
+        return root.estimate;
+    }
+
+    /**
+     * Describes the plan in execution order, with the estimated match count of each step.
+     * Handy for logging.
+     */
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+
+    /**
+     * One node of an execution plan.
+     */
+    abstract static class Step {
+        final int estimate; // estimated number of matching images
+
+        Step(int estimate) {
+            this.estimate = estimate;
+        }
+
+        abstract TagBitmap execute(QueryContext context);
+
+        abstract boolean matches(TagList tagList);
+
+        /**
+         * Returns a bitmap of this step's matches that the caller may read but must not modify.
+         * Terms can hand back their posting list directly, which saves a copy.
+         */
+        TagBitmap executeReadOnly(QueryContext context) {
+            return execute(context);
+        }
+    }
+
+    static final class TermStep extends Step {
+        final String tag;
+
+        TermStep(String tag, int estimate) {
+            super(estimate);
+            this.tag = tag;
+        }
+
+        @Override
+        TagBitmap execute(QueryContext context) {
+            TagBitmap postingList = context.getPostingList(tag);
+            return postingList == null ? new TagBitmap() : postingList.copy();
+        }
+
+        @Override
+        TagBitmap executeReadOnly(QueryContext context) {
+            TagBitmap postingList = context.getPostingList(tag);
+            return postingList == null ? new TagBitmap() : postingList;
+        }
+
+        @Override
+        boolean matches(TagList tagList) {
+            return tagList.hasTag(tag);
+        }
+
+        @Override
+        public String toString() {
+            return tag + "{" + estimate + "}";
+        }
+    }
+
+    /**
+     * A wildcard pattern, already expanded into the indexed tags that it matches. Against the
+     * index it is the union of their posting lists; against a TagList the pattern itself is used,
+     * since a tag file that isn't indexed yet may have tags the index has never seen.
+     */
+    static final class PatternStep extends Step {
+        final TagPattern pattern;
+        final List<String> expandedTags;
+
+        PatternStep(TagPattern pattern, List<String> expandedTags, int estimate) {
+            super(estimate);
+            this.pattern = pattern;
+            this.expandedTags = expandedTags;
+        }
+
+        @Override
+        TagBitmap execute(QueryContext context) {
+            return union(expandedTags, context);
+        }
+
+        @Override
+        boolean matches(TagList tagList) {
+            for (String tag : tagList.getTags()) {
+                if (pattern.matches(tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return pattern + expandedTags.toString() + "{" + estimate + "}";
+        }
+    }
+
+    /**
+     * A fuzzy term, already expanded into the indexed tags within its edit distance. Like a
+     * PatternStep, it is a union against the index and checks the edit distance itself against a TagList.
+     */
+    static final class FuzzyStep extends Step {
+        final String tag;
+        final int maxDistance;
+        final List<String> expandedTags;
+
+        FuzzyStep(String tag, int maxDistance, List<String> expandedTags, int estimate) {
+            super(estimate);
+            this.tag = tag;
+            this.maxDistance = maxDistance;
+            this.expandedTags = expandedTags;
+        }
+
+        @Override
+        TagBitmap execute(QueryContext context) {
+            return union(expandedTags, context);
+        }
+
+        @Override
+        boolean matches(TagList tagList) {
+            for (String candidate : tagList.getTags()) {
+                // No string is closer than the difference in their lengths, which is much cheaper to check:
+                if (Math.abs(candidate.length() - tag.length()) <= maxDistance
+                        && TagBkTree.distance(candidate, tag) <= maxDistance) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return tag + "~" + maxDistance + expandedTags.toString() + "{" + estimate + "}";
+        }
+    }
+
+    static final class MatchAllStep extends Step {
+        MatchAllStep(int estimate) {
+            super(estimate);
+        }
+
+        @Override
+        TagBitmap execute(QueryContext context) {
+            return context.getAllImageIds().copy();
+        }
+
+        @Override
+        TagBitmap executeReadOnly(QueryContext context) {
+            return context.getAllImageIds();
+        }
+
+        @Override
+        boolean matches(TagList tagList) {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "*{" + estimate + "}";
+        }
+    }
+
+    /**
+     * Intersects the included steps, most selective first, then subtracts the excluded ones.
+     * NOT children of an AND are planned as exclusions rather than as a complement followed by
+     * an intersection, so that we never materialize "every image except these".
+     */
+    static final class AndStep extends Step {
+        final List<Step> included; // sorted by estimate, smallest first
+        final List<Step> excluded; // sorted by estimate, largest first
+
+        AndStep(List<Step> included, List<Step> excluded, int estimate) {
+            super(estimate);
+            this.included = included;
+            this.excluded = excluded;
+        }
+
+        @Override
+        TagBitmap execute(QueryContext context) {
+            TagBitmap result = included.isEmpty()
+                    ? context.getAllImageIds().copy()
+                    : included.get(0).execute(context);
+            for (int i = 1; i < included.size() && !result.isEmpty(); i++) {
+                result.andInPlace(included.get(i).executeReadOnly(context));
+            }
+            for (int i = 0; i < excluded.size() && !result.isEmpty(); i++) {
+                result.andNotInPlace(excluded.get(i).executeReadOnly(context));
+            }
+            return result;
+        }
+
+        @Override
+        boolean matches(TagList tagList) {
+            // Most selective first means the term most likely to fail is checked first:
+            for (Step step : included) {
+                if (!step.matches(tagList)) {
+                    return false;
+                }
+            }
+            for (Step step : excluded) {
+                if (step.matches(tagList)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("AND{").append(estimate).append("}[");
+            String separator = "";
+            for (Step step : included) {
+                sb.append(separator).append(step);
+                separator = ", ";
+            }
+            for (Step step : excluded) {
+                sb.append(separator).append("-").append(step);
+                separator = ", ";
+            }
+            return sb.append("]").toString();
+        }
+    }
+
+    /**
+     * Unions its children, least selective first.
+     */
+    static final class OrStep extends Step {
+        final List<Step> children; // sorted by estimate, largest first
+
+        OrStep(List<Step> children, int estimate) {
+            super(estimate);
+            this.children = children;
+        }
+
+        @Override
+        TagBitmap execute(QueryContext context) {
+            TagBitmap result = children.get(0).execute(context);
+            for (int i = 1; i < children.size(); i++) {
+                result.orInPlace(children.get(i).executeReadOnly(context));
+            }
+            return result;
+        }
+
+        @Override
+        boolean matches(TagList tagList) {
+            // Least selective first means the term most likely to succeed is checked first:
+            for (Step step : children) {
+                if (step.matches(tagList)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("OR{").append(estimate).append("}[");
+            String separator = "";
+            for (Step step : children) {
+                sb.append(separator).append(step);
+                separator = ", ";
+            }
+            return sb.append("]").toString();
+        }
+    }
+
+    /**
+     * Complements its child. Only used where the NOT can't be folded into an enclosing AND.
+     */
+    static final class NotStep extends Step {
+        final Step child;
+
+        NotStep(Step child, int estimate) {
+            super(estimate);
+            this.child = child;
+        }
+
+        @Override
+        TagBitmap execute(QueryContext context) {
+            TagBitmap result = context.getAllImageIds().copy();
+            result.andNotInPlace(child.executeReadOnly(context));
+            return result;
+        }
+
+        @Override
+        boolean matches(TagList tagList) {
+            return !child.matches(tagList);
+        }
+
+        @Override
+        public String toString() {
+            return "NOT{" + estimate + "}[" + child + "]";
+        }
+    }
+
+    /**
+     * Returns the union of the posting lists of the given tags, as a new bitmap.
+     */
+    private static TagBitmap union(List<String> tags, QueryContext context) {
+        TagBitmap result = new TagBitmap();
+        for (String tag : tags) {
+            TagBitmap postingList = context.getPostingList(tag);
+            if (postingList != null) {
+                result.orInPlace(postingList);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,142 @@
+package ca.corbett.imageviewer.extensions.ice.query;
+
+import ca.corbett.imageviewer.extensions.ice.index.TagBitmap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Turns a QueryNode tree into a QueryPlan, using the posting list sizes of the given index
+ * to estimate how many images each part of the query will match. The planner:
+ * <ul>
+ *     <li>flattens nested ANDs and ORs, and removes double negation,</li>
+ *     <li>orders the children of each AND from most to least selective, so that intersections
+ *         shrink the result as fast as possible (and per-file checks fail as early as possible),</li>
+ *     <li>orders the children of each OR from least to most selective, so that per-file checks
+ *         succeed as early as possible,</li>
+ *     <li>turns each NOT inside an AND into a subtraction instead of a complement,</li>
+ *     <li>expands each wildcard pattern and fuzzy term into the tags it currently matches in the index.</li>
+ * </ul>
+ * The planner never changes what a query matches - only the order in which it is evaluated.
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public final class QueryPlanner {
+
+    private static final Comparator<QueryPlan.Step> MOST_SELECTIVE_FIRST = Comparator.comparingInt(step -> step.estimate);
+
+    private QueryPlanner() {
+    }
+
+    /**
+     * Builds a plan for the given query. If context is null (for example, because the tag index
+     * is disabled), every term is assumed to be equally selective and the query's own order is kept.
+     */
+    public static QueryPlan plan(QueryNode query, QueryContext context) {
+        TagBitmap allImageIds = context == null ? null : context.getAllImageIds();
+        int total = allImageIds == null ? 0 : allImageIds.getCardinality();
+        return new QueryPlan(plan(query, context, total));
+    }
+
+    private static QueryPlan.Step plan(QueryNode node, QueryContext context, int total) {
+        if (node instanceof QueryNode.Term term) {
+            TagBitmap postingList = context == null ? null : context.getPostingList(term.getTag());
+            return new QueryPlan.TermStep(term.getTag(), postingList == null ? 0 : postingList.getCardinality());
+        }
+
+        if (node instanceof QueryNode.Pattern pattern) {
+            if (context == null) {
+                return new QueryPlan.PatternStep(pattern.getPattern(), List.of(), 0);
+            }
+            List<String> tags = context.expand(pattern.getPattern());
+            return new QueryPlan.PatternStep(pattern.getPattern(), tags, estimateUnion(tags, context, total));
+        }
+
+        if (node instanceof QueryNode.Fuzzy fuzzy) {
+            if (context == null) {
+                return new QueryPlan.FuzzyStep(fuzzy.getTag(), fuzzy.getMaxDistance(), List.of(), 0);
+            }
+            List<String> tags = new ArrayList<>(context.expandFuzzy(fuzzy.getTag(), fuzzy.getMaxDistance()));
+            Collections.sort(tags);
+            return new QueryPlan.FuzzyStep(fuzzy.getTag(), fuzzy.getMaxDistance(), tags,
+                                           estimateUnion(tags, context, total));
+        }
+
+        if (node instanceof QueryNode.Not not) {
+            if (not.getChild() instanceof QueryNode.Not inner) {
+                return plan(inner.getChild(), context, total); // NOT NOT x is just x
+            }
+            QueryPlan.Step child = plan(not.getChild(), context, total);
+            return new QueryPlan.NotStep(child, Math.max(0, total - child.estimate));
+        }
+
+        if (node instanceof QueryNode.And and) {
+            List<QueryPlan.Step> included = new ArrayList<>();
+            List<QueryPlan.Step> excluded = new ArrayList<>();
+            for (QueryNode child : flatten(and.getChildren(), QueryNode.And.class)) {
+                if (child instanceof QueryNode.Not not && !(not.getChild() instanceof QueryNode.Not)) {
+                    excluded.add(plan(not.getChild(), context, total));
+                }
+                else {
+                    included.add(plan(child, context, total));
+                }
+            }
+            included.sort(MOST_SELECTIVE_FIRST);
+            excluded.sort(MOST_SELECTIVE_FIRST.reversed()); // the biggest subtraction shrinks the result the most
+            int estimate = included.isEmpty() ? total : included.get(0).estimate;
+            if (!excluded.isEmpty()) {
+                estimate = Math.max(0, estimate - excluded.get(0).estimate);
+            }
+            return new QueryPlan.AndStep(included, excluded, estimate);
+        }
+
+        if (node instanceof QueryNode.Or or) {
+            List<QueryPlan.Step> children = new ArrayList<>();
+            long estimate = 0;
+            for (QueryNode child : flatten(or.getChildren(), QueryNode.Or.class)) {
+                QueryPlan.Step step = plan(child, context, total);
+                children.add(step);
+                estimate += step.estimate;
+            }
+            children.sort(MOST_SELECTIVE_FIRST.reversed());
+            return new QueryPlan.OrStep(children, (int)Math.min(estimate, context == null ? Integer.MAX_VALUE : total));
+        }
+
+        return new QueryPlan.MatchAllStep(total);
+    }
+
+    /**
+     * Estimates the size of the union of the posting lists of the given tags, assuming they don't overlap.
+     */
+    private static int estimateUnion(List<String> tags, QueryContext context, int total) {
+        long estimate = 0;
+        for (String tag : tags) {
+            TagBitmap postingList = context.getPostingList(tag);
+            estimate += postingList == null ? 0 : postingList.getCardinality();
+        }
+        return (int)Math.min(estimate, total);
+    }
+
+    /**
+     * Pulls the children of nested nodes of the given type up into their parent,
+     * so that (a AND (b AND c)) is planned as a single three-way AND.
+     */
+    private static List<QueryNode> flatten(List<QueryNode> children, Class<? extends QueryNode> type) {
+        List<QueryNode> flattened = new ArrayList<>();
+        for (QueryNode child : children) {
+            if (type == QueryNode.And.class && child instanceof QueryNode.And and) {
+                flattened.addAll(flatten(and.getChildren(), type));
+            }
+            else if (type == QueryNode.Or.class && child instanceof QueryNode.Or or) {
+                flattened.addAll(flatten(or.getChildren(), type));
+            }
+            else {
+                flattened.add(child);
+            }
+        }
+        return flattened;
+    }
+}
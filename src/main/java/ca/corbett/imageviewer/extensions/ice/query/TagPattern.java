@@ -0,0 +1,141 @@
+package ca.corbett.imageviewer.extensions.ice.query;
+
+import ca.corbett.imageviewer.extensions.ice.index.TagVocabulary;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A tag with wildcards in it: <code>*</code> matches any run of characters (including none),
+ * and <code>?</code> matches exactly one character. For example, <code>car*</code> matches
+ * "car", "cars" and "car show", and <code>*_2024</code> matches every tag ending in "_2024".
+ * <p>
+ *     Patterns are expanded into the concrete tags they match by looking them up in the
+ *     TagVocabulary. If the pattern starts or ends with literal text, only the tags that share
+ *     that prefix or suffix are looked at, which is O(log n + matches). A pattern with
+ *     wildcards at both ends, like <code>*car*</code>, has to look at every tag.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public final class TagPattern {
+
+    private final String pattern;
+    private final String literalPrefix;
+    private final String literalSuffix;
+
+    /**
+     * Creates a pattern from the given (already stripped) text.
+     */
+    public TagPattern(String pattern) {
+        this.pattern = pattern;
+        int firstWildcard = indexOfWildcard(pattern);
+        int lastWildcard = lastIndexOfWildcard(pattern);
+        this.literalPrefix = firstWildcard < 0 ? pattern : pattern.substring(0, firstWildcard);
+        this.literalSuffix = lastWildcard < 0 ? pattern : pattern.substring(lastWildcard + 1);
+    }
+
+    /**
+     * Reports whether the given text contains any wildcard characters.
+     */
+    public static boolean isPattern(String text) {
+        return indexOfWildcard(text) >= 0;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Returns the literal text before the first wildcard (possibly empty).
+     */
+    public String getLiteralPrefix() {
+        return literalPrefix;
+    }
+
+    /**
+     * Returns the literal text after the last wildcard (possibly empty).
+     */
+    public String getLiteralSuffix() {
+        return literalSuffix;
+    }
+
+    /**
+     * Returns every tag in the given vocabulary that this pattern matches.
+     */
+    public List<String> expand(TagVocabulary vocabulary) {
+        List<String> candidates;
+        if (!literalPrefix.isEmpty() && literalPrefix.length() >= literalSuffix.length()) {
+            candidates = vocabulary.getTagsWithPrefix(literalPrefix);
+        }
+        else if (!literalSuffix.isEmpty()) {
+            candidates = vocabulary.getTagsWithSuffix(literalSuffix);
+        }
+        else {
+            candidates = vocabulary.getTags();
+        }
+        List<String> matches = new ArrayList<>();
+        for (String candidate : candidates) {
+            if (matches(candidate)) {
+                matches.add(candidate);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Reports whether the given tag matches this pattern.
+     */
+    public boolean matches(String tag) {
+        // Classic linear-time glob matching: on a mismatch, backtrack to just after the most recent *
+        int p = 0;
+        int t = 0;
+        int starP = -1;
+        int starT = 0;
+        while (t < tag.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == tag.charAt(t))) {
+                p++;
+                t++;
+            }
+            else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                starP = p++;
+                starT = t;
+            }
+            else if (starP >= 0) {
+                p = starP + 1;
+                t = ++starT;
+            }
+            else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+    private static int indexOfWildcard(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '*' || text.charAt(i) == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOfWildcard(String text) {
+        for (int i = text.length() - 1; i >= 0; i--) {
+            if (text.charAt(i) == '*' || text.charAt(i) == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,179 @@
+package ca.corbett.imageviewer.extensions.ice.query;
+
+import ca.corbett.imageviewer.extensions.ice.TagList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A parsed tag query, ready to be handed to the TagIndex or to a SearchThread.
+ * A TagQuery can come from free-form query text, like <code>(cat OR dog) AND NOT blurry</code>
+ * (see QueryParser for the syntax), or from the classic "all / any / none" tag lists of
+ * the search dialog, which are simply translated into the equivalent expression.
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public final class TagQuery {
+
+    /**
+     * Terms shorter than this are left alone by withFuzzyTerms(): nearly every two or three letter
+     * tag is a single typo away from some other one, so fuzzy matching them mostly finds noise.
+     */
+    public static final int MIN_FUZZY_TAG_LENGTH = 4;
+
+    private final QueryNode root;
+
+    private TagQuery(QueryNode root) {
+        this.root = root;
+    }
+
+    /**
+     * Parses the given query text.
+     *
+     * @throws QueryParseException if the query is malformed.
+     */
+    public static TagQuery parse(String query) throws QueryParseException {
+        return new TagQuery(QueryParser.parse(query));
+    }
+
+    /**
+     * Builds the query equivalent to the given tag lists: images must have all the tags in
+     * findAll, at least one of the tags in findAny, and none of the tags in findNone.
+     * Null or empty lists are ignored. If all three are empty, the query matches everything.
+     * Every tag is matched literally: <code>*</code> and <code>?</code> are legal tag characters,
+     * so wildcard patterns are only recognized in query text (see parse()).
+     */
+    public static TagQuery of(TagList findAll, TagList findAny, TagList findNone) {
+        List<QueryNode> clauses = new ArrayList<>();
+        if (findAll != null) {
+            for (String tag : findAll.getTags()) {
+                clauses.add(new QueryNode.Term(tag));
+            }
+        }
+        if (findAny != null && !findAny.isEmpty()) {
+            clauses.add(orOf(findAny));
+        }
+        if (findNone != null && !findNone.isEmpty()) {
+            clauses.add(new QueryNode.Not(orOf(findNone)));
+        }
+        if (clauses.isEmpty()) {
+            return new TagQuery(QueryNode.MatchAll.INSTANCE);
+        }
+        return new TagQuery(clauses.size() == 1 ? clauses.get(0) : new QueryNode.And(clauses));
+    }
+
+    /**
+     * Returns a query that matches only images matched by both this query and the given one.
+     */
+    public TagQuery and(TagQuery other) {
+        if (other.isMatchAll()) {
+            return this;
+        }
+        if (isMatchAll()) {
+            return other;
+        }
+        return new TagQuery(new QueryNode.And(List.of(root, other.root)));
+    }
+
+    /**
+     * Returns a copy of this query in which every plain term of at least MIN_FUZZY_TAG_LENGTH
+     * characters also matches tags up to maxDistance edits away, to forgive typos in either the
+     * search or the tags themselves. Wildcard patterns and terms that are already fuzzy are kept as they are.
+     */
+    public TagQuery withFuzzyTerms(int maxDistance) {
+        if (maxDistance <= 0) {
+            return this;
+        }
+        return new TagQuery(fuzzify(root, Math.min(maxDistance, QueryNode.Fuzzy.MAX_DISTANCE)));
+    }
+
+    public QueryNode getRoot() {
+        return root;
+    }
+
+    /**
+     * Reports whether this query matches every image (that is, it has no search terms at all).
+     */
+    public boolean isMatchAll() {
+        return root instanceof QueryNode.MatchAll;
+    }
+
+    /**
+     * Returns a canonical form of this query, for use as a cache key: two queries that are
+     * written differently but are obviously the same, like <code>b AND a</code> and
+     * <code>(a AND b) AND a</code>, give the same string. Nested ANDs and ORs are flattened,
+     * their children are sorted and de-duplicated, and double negation is removed.
+     */
+    public String toNormalizedString() {
+        return normalize(root);
+    }
+
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+
+    private static String normalize(QueryNode node) {
+        if (node instanceof QueryNode.Not not) {
+            return not.getChild() instanceof QueryNode.Not inner
+                    ? normalize(inner.getChild())
+                    : "NOT " + normalize(not.getChild());
+        }
+        if (node instanceof QueryNode.And || node instanceof QueryNode.Or) {
+            Set<String> children = new TreeSet<>();
+            collectNormalized(node, node.getClass(), children);
+            if (children.size() == 1) {
+                return children.iterator().next();
+            }
+            return "(" + String.join(node instanceof QueryNode.And ? " AND " : " OR ", children) + ")";
+        }
+        return node.toString();
+    }
+
+    private static void collectNormalized(QueryNode node, Class<? extends QueryNode> type, Set<String> result) {
+        List<QueryNode> children = node instanceof QueryNode.And and ? and.getChildren() : ((QueryNode.Or)node).getChildren();
+        for (QueryNode child : children) {
+            if (child.getClass() == type) {
+                collectNormalized(child, type, result);
+            }
+            else {
+                result.add(normalize(child));
+            }
+        }
+    }
+
+    private static QueryNode orOf(TagList tags) {
+        List<QueryNode> terms = new ArrayList<>();
+        for (String tag : tags.getTags()) {
+            terms.add(new QueryNode.Term(tag));
+        }
+        return terms.size() == 1 ? terms.get(0) : new QueryNode.Or(terms);
+    }
+
+    private static QueryNode fuzzify(QueryNode node, int maxDistance) {
+        if (node instanceof QueryNode.Term term && term.getTag().length() >= MIN_FUZZY_TAG_LENGTH) {
+            return new QueryNode.Fuzzy(term.getTag(), maxDistance);
+        }
+        if (node instanceof QueryNode.Not not) {
+            return new QueryNode.Not(fuzzify(not.getChild(), maxDistance));
+        }
+        if (node instanceof QueryNode.And and) {
+            return new QueryNode.And(fuzzify(and.getChildren(), maxDistance));
+        }
+        if (node instanceof QueryNode.Or or) {
+            return new QueryNode.Or(fuzzify(or.getChildren(), maxDistance));
+        }
+        return node;
+    }
+
+    private static List<QueryNode> fuzzify(List<QueryNode> nodes, int maxDistance) {
+        List<QueryNode> result = new ArrayList<>(nodes.size());
+        for (QueryNode node : nodes) {
+            result.add(fuzzify(node, maxDistance));
+        }
+        return result;
+    }
+}
@@ -5,6 +5,7 @@ import ca.corbett.extras.io.FileSystemUtil;
 import ca.corbett.extras.progress.SimpleProgressWorker;
 import ca.corbett.imageviewer.extensions.ice.TagIndex;
 import ca.corbett.imageviewer.extensions.ice.TagList;
+import ca.corbett.imageviewer.extensions.ice.io.FileAttributes;
 import ca.corbett.imageviewer.ui.ThumbContainerPanel;
 import ca.corbett.imageviewer.ui.imagesets.ImageSet;
 import org.apache.commons.io.FilenameUtils;
@@ -149,13 +150,14 @@ public class BatchTagThread extends SimpleProgressWorker {
         int currentStep = 1;
         for (File imageFile : imageFiles) {
             File tagFile = new File(imageFile.getParentFile(), FilenameUtils.getBaseName(imageFile.getName())+".ice");
-            if (tagFile.exists()) {
+            boolean tagFileExists = FileAttributes.read(tagFile).exists();
+            if (tagFileExists) {
                 countUpdated++;
             }
             else {
                 countCreated++;
             }
-            TagList tagsToModify = TagList.fromFile(tagFile);
+            TagList tagsToModify = TagList.fromFile(tagFile, tagFileExists);
 
             // Clear the existing tags if we're replacing them:
             if (tagOp == TaggingOperation.REPLACE) {
@@ -181,8 +183,7 @@ public class BatchTagThread extends SimpleProgressWorker {
             }
 
             // Save this tag list and update the tag index:
-            tagsToModify.save();
-            TagIndex.getInstance().addOrUpdateEntry(imageFile, tagFile);
+            TagIndex.getInstance().saveTagList(imageFile, tagsToModify);
             totalProcessed++;
             if (! fireProgressUpdate(currentStep++, imageFile.getName())) {
                 wasCanceled = true;
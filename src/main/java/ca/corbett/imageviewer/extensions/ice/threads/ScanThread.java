@@ -1,18 +1,66 @@
 package ca.corbett.imageviewer.extensions.ice.threads;
 
-import ca.corbett.extras.io.FileSystemUtil;
 import ca.corbett.extras.progress.MultiProgressWorker;
 import ca.corbett.imageviewer.extensions.ice.IceExtension;
 import ca.corbett.imageviewer.extensions.ice.TagIndex;
+import ca.corbett.imageviewer.extensions.ice.TagIndexEntry;
+import ca.corbett.imageviewer.extensions.ice.TagList;
+import ca.corbett.imageviewer.extensions.ice.io.DirectoryScanState;
+import ca.corbett.imageviewer.extensions.ice.io.FileAttributes;
+import ca.corbett.imageviewer.extensions.ice.io.TagFileHash;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A worker thread to scan a given directory with optional recursion, adding or
  * updating entries to the TagIndex as needed. Does nothing if the tag index
  * is disabled in configuration.
+ * <p>
+ *     <b>Parallel scanning</b> - the work is done on a ForkJoinPool sized by the
+ *     "scan threads" option in application settings. The scan runs in two phases:
+ *     first the directory tree is walked (one task per directory, so sibling directories
+ *     are listed concurrently), then the tag files that were found are parsed concurrently,
+ *     in batches, and handed to the (thread-safe) TagIndex as they're ready. Each directory
+ *     entry's metadata is read once, as a FileAttributes snapshot, while its directory is
+ *     listed; that one snapshot tells us whether it's a directory, and whether the tag file
+ *     has changed since it was indexed. This thread itself only polls for progress and for
+ *     cancellation; when canceled, the pool is told to stop and any work in progress winds
+ *     down quickly.
+ * </p>
+ * <p>
+ *     <b>Incremental scanning</b> - every scan records what each directory looked like in the
+ *     TagIndex's DirectoryScanState. In incremental mode, a directory whose last modified time
+ *     hasn't changed since then, and which still has as many entries in the TagIndex as it did
+ *     then, is neither listed nor are its tag files statted; we go straight to the
+ *     subdirectories it had last time. Only a scan that finishes without being canceled
+ *     records anything, and a directory with a tag file we failed to read isn't recorded at all,
+ *     so that it's looked at again next time. See DirectoryScanState for what this can miss.
+ * </p>
+ * <p>
+ *     <b>Verifying</b> - in verify mode, tag files whose size and timestamp haven't changed are
+ *     read and hashed anyway, in parallel like everything else, and compared against the
+ *     TagFileHash in their index entry. Only those whose content turns out to be different
+ *     (or that were never hashed) are parsed. Outside of verify mode, tag files are only hashed
+ *     as they're read, if the "hash tag file contents" option is on.
+ * </p>
  *
  * @author <a href="https://github.com/scorbo2">scorbo2</a>
  */
@@ -20,17 +68,76 @@ public class ScanThread extends MultiProgressWorker {
 
     private static final Logger log = Logger.getLogger(ScanThread.class.getName());
 
+    /**
+     * How many tag files each parse task handles before splitting is no longer worthwhile.
+     */
+    private static final int PARSE_BATCH_SIZE = 64;
+
+    /**
+     * How often we wake up to report progress and check for cancellation.
+     */
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
+    /**
+     * The ways in which a scan can decide what to look at.
+     */
+    public enum ScanMode {
+        /** Look in every directory, and re-read tag files whose size or timestamp has changed. */
+        FULL,
+
+        /** As FULL, but skip directories that haven't changed since they were last scanned. */
+        INCREMENTAL,
+
+        /** As FULL, but also rehash tag files whose size and timestamp haven't changed. */
+        VERIFY
+    }
+
     private final File startDir;
     private final boolean isRecursive;
-    private boolean wasCanceled;
+    private final int parallelism;
+    private final ScanMode mode;
+    private boolean isHashingContent; // set before any tasks start
+    private volatile boolean wasCanceled;
 
     private int entriesCreated;
     private int entriesUpdated;
     private int entriesSkippedBecauseUpToDate;
+    private int directoriesSkippedBecauseUnchanged;
+    private int tagFilesRehashed;
+
+    private final AtomicInteger createdCounter = new AtomicInteger();
+    private final AtomicInteger updatedCounter = new AtomicInteger();
+    private final AtomicInteger skippedCounter = new AtomicInteger();
+    private final AtomicInteger processedCounter = new AtomicInteger();
+    private final AtomicInteger skippedDirectoryCounter = new AtomicInteger();
+    private final AtomicInteger skippedTagFileCounter = new AtomicInteger();
+    private final AtomicInteger rehashedCounter = new AtomicInteger();
+    private final Map<File, DirectoryScanState.Record> scannedDirectories = new ConcurrentHashMap<>();
+    private final Set<File> failedDirectories = ConcurrentHashMap.newKeySet();
+    private Map<File, Integer> entryCountsAtStart = Map.of(); // set before any tasks start
 
     public ScanThread(File startDir, boolean isRecursive) {
+        this(startDir, isRecursive, IceExtension.getScanThreadsOption(),
+             IceExtension.getIncrementalScanOption() ? ScanMode.INCREMENTAL : ScanMode.FULL);
+    }
+
+    /**
+     * Creates a full ScanThread with an explicit degree of parallelism,
+     * rather than the one configured in application settings.
+     */
+    public ScanThread(File startDir, boolean isRecursive, int parallelism) {
+        this(startDir, isRecursive, parallelism, ScanMode.FULL);
+    }
+
+    /**
+     * Creates a ScanThread with an explicit degree of parallelism and scan mode, rather than
+     * the ones configured in application settings.
+     */
+    public ScanThread(File startDir, boolean isRecursive, int parallelism, ScanMode mode) {
         this.startDir = startDir;
         this.isRecursive = isRecursive;
+        this.parallelism = Math.max(1, parallelism);
+        this.mode = mode;
         wasCanceled = false;
     }
 
@@ -46,6 +153,21 @@ public class ScanThread extends MultiProgressWorker {
         return entriesSkippedBecauseUpToDate;
     }
 
+    /**
+     * Returns the number of directories that an incremental scan didn't need to look in.
+     */
+    public int getDirectoriesSkippedBecauseUnchanged() {
+        return directoriesSkippedBecauseUnchanged;
+    }
+
+    /**
+     * Returns the number of tag files that a verify scan read and hashed despite their size
+     * and timestamp being unchanged. Any that had really changed are counted as updated too.
+     */
+    public int getTagFilesRehashed() {
+        return tagFilesRehashed;
+    }
+
     @Override
     public void run() {
         wasCanceled = false;
@@ -53,41 +175,89 @@ public class ScanThread extends MultiProgressWorker {
             log.info("IceExtension: skipping tag scan because tag index is disabled. You can enable it in application settings.");
             return;
         }
-        log.info("IceExtension: scanning "+startDir.getAbsolutePath() + (isRecursive?" recursively":""));
-        entriesCreated = 0;
-        entriesUpdated = 0;
-        entriesSkippedBecauseUpToDate = 0;
+        log.info("IceExtension: scanning "+startDir.getAbsolutePath() + (isRecursive?" recursively":"")
+                         + (mode != ScanMode.FULL ? " (" + mode.name().toLowerCase() + ")" : "")
+                         + " with " + parallelism + " thread(s)");
+        isHashingContent = mode == ScanMode.VERIFY || TagIndex.isContentHashEnabled();
+        createdCounter.set(0);
+        updatedCounter.set(0);
+        skippedCounter.set(0);
+        processedCounter.set(0);
+        skippedDirectoryCounter.set(0);
+        skippedTagFileCounter.set(0);
+        rehashedCounter.set(0);
+        scannedDirectories.clear();
+        failedDirectories.clear();
+        entryCountsAtStart = mode == ScanMode.INCREMENTAL ? TagIndex.getInstance().countEntriesByDirectory() : Map.of();
         fireProgressBegins(2);
-        List<File> tagFiles = FileSystemUtil.findFiles(startDir, isRecursive, "ice");
-        fireMajorProgressUpdate(1, tagFiles.size(), "Scanning tag files...");
-        int minorStep = 0;
-        boolean shouldContinue;
-        for (File tagFile : tagFiles) {
-            shouldContinue = fireMinorProgressUpdate(1, minorStep++, tagFile.getName());
-            if (! shouldContinue) {
-                wasCanceled = true;
-                break;
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            // Phase 1: walk the directory tree looking for tag files:
+            Queue<FileAttributes> foundTagFiles = new ConcurrentLinkedQueue<>();
+            fireMajorProgressUpdate(0, 1, "Finding tag files...");
+            wasCanceled = ! runAndPoll(pool, new DirectoryTask(startDir, null, foundTagFiles),
+                                       () -> fireMinorProgressUpdate(0, 0, "Found " + foundTagFiles.size() + " tag files..."));
+
+            // Phase 2: parse them in parallel:
+            if (! wasCanceled) {
+                List<FileAttributes> tagFiles = new ArrayList<>(foundTagFiles);
+                foundTagFiles.clear();
+                fireMajorProgressUpdate(1, tagFiles.size(), "Scanning tag files...");
+                wasCanceled = ! runAndPoll(pool, new ParseTask(tagFiles, 0, tagFiles.size()), () -> {
+                    int processed = processedCounter.get();
+                    String currentName = tagFiles.isEmpty() ? ""
+                            : tagFiles.get(Math.min(processed, tagFiles.size() - 1)).getFile().getName();
+                    return fireMinorProgressUpdate(1, processed, currentName);
+                });
             }
-            File imageFile = IceExtension.getMatchingImageFile(tagFile);
-            if (imageFile == null) {
-                continue;
+        }
+        finally {
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(5, TimeUnit.SECONDS); // tasks check wasCanceled, so this is quick
             }
-
-            switch (TagIndex.getInstance().addOrUpdateEntry(imageFile, tagFile)) {
-                case ExistingEntryUpdated: entriesUpdated++; break;
-                case NewEntryCreated: entriesCreated++; break;
-                case SkippedBecauseUpToDate: entriesSkippedBecauseUpToDate++; break;
-                case SkippedBecauseDisabled: break; // irrelevant as we check isEnabled() above
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
             }
         }
 
+        entriesCreated = createdCounter.get();
+        entriesUpdated = updatedCounter.get();
+        entriesSkippedBecauseUpToDate = skippedCounter.get();
+        directoriesSkippedBecauseUnchanged = skippedDirectoryCounter.get();
+        tagFilesRehashed = rehashedCounter.get();
         log.info("IceExtension: tag scan complete. Entries added: " + entriesCreated
                          + "; entries updated: " + entriesUpdated
-                         + "; entries skipped (unchanged): " + entriesSkippedBecauseUpToDate);
+                         + "; entries skipped (unchanged): " + entriesSkippedBecauseUpToDate
+                         + "; directories skipped (unchanged): " + directoriesSkippedBecauseUnchanged
+                         + " (" + skippedTagFileCounter.get() + " indexed tag files)"
+                         + (mode == ScanMode.VERIFY ? "; tag files rehashed: " + tagFilesRehashed : ""));
+
+        // Remember what the directories we finished with looked like, for the next incremental scan:
+        boolean scanStateChanged = false;
+        if (! wasCanceled) {
+            DirectoryScanState scanState = TagIndex.getInstance().getDirectoryScanState();
+            Map<File, Integer> entryCounts = TagIndex.getInstance().countEntriesByDirectory();
+            for (Map.Entry<File, DirectoryScanState.Record> entry : scannedDirectories.entrySet()) {
+                if (! failedDirectories.contains(entry.getKey())) {
+                    DirectoryScanState.Record listed = entry.getValue();
+                    scanState.put(entry.getKey(), new DirectoryScanState.Record(
+                            listed.getLastModified(),
+                            entryCounts.getOrDefault(entry.getKey().getAbsoluteFile(), 0),
+                            listed.getSubdirectories()));
+                    scanStateChanged = true;
+                }
+            }
+        }
+        scannedDirectories.clear();
 
         // Auto-save if anything was changed:
         if (entriesCreated > 0 || entriesUpdated > 0) {
-            TagIndex.getInstance().save();
+            TagIndex.getInstance().save(); // saves the scan state too
+        }
+        else if (scanStateChanged) {
+            TagIndex.getInstance().saveScanState();
         }
 
         if (wasCanceled) {
@@ -97,4 +267,187 @@ public class ScanThread extends MultiProgressWorker {
             fireProgressComplete();
         }
     }
+
+    /**
+     * Runs the given task on the given pool, and waits for it to finish, calling the given progress
+     * callback every PROGRESS_INTERVAL_MS. Returns false if the callback asked us to cancel.
+     * We don't use ForkJoinPool.awaitQuiescence() for this: called from outside the pool, it has
+     * this thread help run the pool's tasks, and once it's in one of those it can't report
+     * progress or notice a cancel until that whole subtree of tasks is done.
+     */
+    private boolean runAndPoll(ForkJoinPool pool, ForkJoinTask<?> task, BooleanSupplier progressCallback) {
+        pool.execute(task);
+        while (true) {
+            try {
+                task.get(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                return true;
+            }
+            catch (TimeoutException te) {
+                if (! progressCallback.getAsBoolean()) {
+                    return false;
+                }
+            }
+            catch (ExecutionException ee) {
+                log.log(Level.WARNING, "IceExtension: problem during tag scan: " + ee.getCause(), ee.getCause());
+                return true; // whatever did get scanned is still good
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Parses a single tag file, and applies the result to the TagIndex. Unchanged tag files are
+     * detected from the size and timestamp we saw when listing their directory, and never read.
+     * If a tag file changes after that, we store the older metadata with the newer tags, which
+     * just means it's read again next time. In verify mode, unchanged tag files are hashed, and
+     * only parsed if the hash doesn't match the one in the index.
+     */
+    private void processTagFile(FileAttributes tagFileAttributes) {
+        File tagFile = tagFileAttributes.getFile();
+        try {
+            File imageFile = IceExtension.getMatchingImageFile(tagFile);
+            if (imageFile == null) {
+                return;
+            }
+
+            TagIndex tagIndex = TagIndex.getInstance();
+            long tagFileSize = tagFileAttributes.getSize();
+            long tagFileLastModified = tagFileAttributes.getLastModified();
+            boolean isUpToDate = tagIndex.isUpToDate(imageFile, tagFileSize, tagFileLastModified);
+            if (isUpToDate && mode != ScanMode.VERIFY) {
+                skippedCounter.incrementAndGet();
+                return;
+            }
+
+            // The slow part, done before touching the index:
+            TagList tagList;
+            long tagFileHash = TagFileHash.NONE;
+            if (isHashingContent) {
+                byte[] content = TagFileHash.readContent(tagFile);
+                tagFileHash = TagFileHash.of(content);
+                if (isUpToDate) {
+                    rehashedCounter.incrementAndGet();
+                    TagIndexEntry entry = tagIndex.getEntry(imageFile);
+                    if (entry != null && entry.getTagFileHash() == tagFileHash) {
+                        skippedCounter.incrementAndGet(); // verified, so no need to even parse it
+                        return;
+                    }
+                }
+                tagList = TagList.fromBytes(tagFile, content);
+            }
+            else {
+                tagList = TagList.fromFile(tagFile);
+            }
+            switch (tagIndex.addOrUpdateEntry(imageFile, tagFile, tagFileSize, tagFileLastModified, tagList, tagFileHash)) {
+                case ExistingEntryUpdated: updatedCounter.incrementAndGet(); break;
+                case NewEntryCreated: createdCounter.incrementAndGet(); break;
+                case SkippedBecauseUpToDate: skippedCounter.incrementAndGet(); break;
+                case SkippedBecauseDisabled: break; // irrelevant as we check isEnabled() above
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            // One bad file shouldn't take down the whole scan:
+            log.log(Level.WARNING, "IceExtension: problem scanning tag file " + tagFile.getAbsolutePath(), e);
+            failedDirectories.add(tagFile.getParentFile()); // so it isn't skipped next time
+        }
+        finally {
+            processedCounter.incrementAndGet();
+        }
+    }
+
+    /**
+     * Lists a single directory, collecting its tag files and forking a new task
+     * for each subdirectory (if we're recursive). In incremental mode, a directory that
+     * hasn't changed since it was last scanned isn't listed; its recorded subdirectories
+     * are visited instead.
+     */
+    private final class DirectoryTask extends RecursiveAction {
+        private final File dir;
+        private final FileAttributes dirAttributes; // from our parent's listing, or null to read them ourselves
+        private final Queue<FileAttributes> foundTagFiles;
+
+        DirectoryTask(File dir, FileAttributes dirAttributes, Queue<FileAttributes> foundTagFiles) {
+            this.dir = dir;
+            this.dirAttributes = dirAttributes;
+            this.foundTagFiles = foundTagFiles;
+        }
+
+        @Override
+        protected void compute() {
+            if (wasCanceled) {
+                return;
+            }
+            // Read before listing, so that a change while we list isn't missed:
+            long lastModified = (dirAttributes != null ? dirAttributes : FileAttributes.read(dir)).getLastModified();
+            List<DirectoryTask> subTasks = new ArrayList<>();
+            DirectoryScanState.Record record = mode == ScanMode.INCREMENTAL
+                    ? TagIndex.getInstance().getDirectoryScanState().get(dir) : null;
+            if (record != null && lastModified != 0L && record.getLastModified() == lastModified
+                    && record.getTagFileCount() == entryCountsAtStart.getOrDefault(dir.getAbsoluteFile(), 0)) {
+                skippedDirectoryCounter.incrementAndGet();
+                skippedTagFileCounter.addAndGet(record.getTagFileCount());
+                if (isRecursive) {
+                    for (String name : record.getSubdirectories()) {
+                        subTasks.add(new DirectoryTask(new File(dir, name), null, foundTagFiles));
+                    }
+                }
+                invokeAll(subTasks);
+                return;
+            }
+
+            long listedAt = System.currentTimeMillis();
+            List<FileAttributes> children = FileAttributes.list(dir);
+            if (children == null) {
+                return; // not a directory, or unreadable
+            }
+            List<String> subdirectories = new ArrayList<>();
+            for (FileAttributes child : children) {
+                String name = child.getFile().getName();
+                if (child.isDirectory()) {
+                    subdirectories.add(name);
+                    if (isRecursive) {
+                        subTasks.add(new DirectoryTask(child.getFile(), child, foundTagFiles));
+                    }
+                }
+                else if (name.toLowerCase().endsWith(".ice")) {
+                    foundTagFiles.add(child);
+                }
+            }
+            if (DirectoryScanState.isTrustworthy(lastModified, listedAt)) {
+                // The entry count isn't known until the tag files are processed; it's filled in at the end:
+                scannedDirectories.put(dir, new DirectoryScanState.Record(lastModified, 0, subdirectories));
+            }
+            invokeAll(subTasks);
+        }
+    }
+
+    /**
+     * Processes a range of tag files, splitting in half until the range is small enough.
+     */
+    private final class ParseTask extends RecursiveAction {
+        private final List<FileAttributes> tagFiles;
+        private final int start;
+        private final int end;
+
+        ParseTask(List<FileAttributes> tagFiles, int start, int end) {
+            this.tagFiles = tagFiles;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > PARSE_BATCH_SIZE) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new ParseTask(tagFiles, start, middle), new ParseTask(tagFiles, middle, end));
+                return;
+            }
+            for (int i = start; i < end && ! wasCanceled; i++) {
+                processTagFile(tagFiles.get(i));
+            }
+        }
+    }
 }
@@ -0,0 +1,106 @@
+package ca.corbett.imageviewer.extensions.ice.threads;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small LRU cache of search results, so that running the same search again (for example,
+ * just to sort the results differently) doesn't repeat all the work. Each result is stored
+ * along with the TagIndex generation it was computed against, and is thrown away as soon as
+ * it's looked up under a different generation - so any change to the index invalidates it
+ * automatically.
+ * <p>
+ *     The cache is bounded both by number of entries and by the total number of result files
+ *     it holds, since a single search of a big collection can return hundreds of thousands of
+ *     files. A result too big for the budget is simply not cached. Entries also expire after
+ *     a while, because tag files that change on disk without going through ICE don't change
+ *     the index generation until something notices them.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+final class SearchResultCache {
+
+    private static final class Entry {
+        final long generation;
+        final long createdAt;
+        final List<File> results;
+
+        Entry(long generation, long createdAt, List<File> results) {
+            this.generation = generation;
+            this.createdAt = createdAt;
+            this.results = results;
+        }
+    }
+
+    private final int maxEntries;
+    private final int maxTotalResults;
+    private final long maxAgeMs;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // access order
+    private int totalResults;
+
+    SearchResultCache(int maxEntries, int maxTotalResults, long maxAgeMs) {
+        this.maxEntries = maxEntries;
+        this.maxTotalResults = maxTotalResults;
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * Returns the cached results for the given key, or null if there are none, or if they were
+     * computed against a different index generation, or are too old.
+     * The returned list is unmodifiable.
+     */
+    synchronized List<File> get(String key, long generation) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.generation != generation || System.currentTimeMillis() - entry.createdAt > maxAgeMs) {
+            remove(key);
+            return null;
+        }
+        return entry.results;
+    }
+
+    /**
+     * Caches a copy of the given results under the given key, evicting the least recently used
+     * entries as needed to stay within budget.
+     */
+    synchronized void put(String key, long generation, List<File> results) {
+        remove(key);
+        if (results.size() > maxTotalResults) {
+            return;
+        }
+        entries.put(key, new Entry(generation, System.currentTimeMillis(),
+                                   Collections.unmodifiableList(new ArrayList<>(results))));
+        totalResults += results.size();
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || totalResults > maxTotalResults) && iterator.hasNext()) {
+            totalResults -= iterator.next().getValue().results.size();
+            iterator.remove();
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        totalResults = 0;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            totalResults -= removed.results.size();
+        }
+    }
+}
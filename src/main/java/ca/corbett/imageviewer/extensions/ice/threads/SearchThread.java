@@ -1,23 +1,68 @@
 package ca.corbett.imageviewer.extensions.ice.threads;
 
-import ca.corbett.extras.io.FileSystemUtil;
 import ca.corbett.extras.progress.MultiProgressWorker;
 import ca.corbett.imageviewer.extensions.ice.IceExtension;
 import ca.corbett.imageviewer.extensions.ice.TagIndex;
+import ca.corbett.imageviewer.extensions.ice.TagIndexEntry;
 import ca.corbett.imageviewer.extensions.ice.TagList;
+import ca.corbett.imageviewer.extensions.ice.index.TagBitmap;
+import ca.corbett.imageviewer.extensions.ice.io.FileAttributes;
+import ca.corbett.imageviewer.extensions.ice.query.QueryPlan;
+import ca.corbett.imageviewer.extensions.ice.query.QueryPlanner;
+import ca.corbett.imageviewer.extensions.ice.query.TagQuery;
 import ca.corbett.imageviewer.ui.imagesets.ImageSet;
 import org.apache.commons.io.FilenameUtils;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
  * Searches through all tag files in a given directory with optional recursion, looking for any
  * that match the specified tag list with the specified search mode. If the tag index is enabled
  * in settings, it will be consulted to potentially greatly speed up the search.
+ * <p>
+ *     <b>Queries</b> - the search criteria are held as a TagQuery, which is either given
+ *     to us directly (for advanced queries like <code>(cat OR dog) AND NOT blurry</code>)
+ *     or built from the classic "all / any / none" tag lists. The query is planned once,
+ *     up front: its result against the tag index is computed in one pass over the posting lists,
+ *     after which each indexed tag file is just a lookup in that result. Only tag files that
+ *     aren't in the index (or whose index entry is stale) are read and checked one by one.
+ * </p>
+ * <p>
+ *     <b>Index-only mode</b> - by default, we still enumerate every tag file on disk so that
+ *     we can catch tag files that the index doesn't know about yet. If index-only mode is enabled
+ *     via setIndexOnly(), we skip the filesystem entirely and answer the search directly
+ *     from the TagIndex, which is dramatically faster on large trees or network shares.
+ *     The trade-off is that tag files that were never scanned won't be found. Optionally,
+ *     a background staleness check can be started after the search to refresh or drop
+ *     index entries whose tag files have changed or disappeared since they were indexed.
+ * </p>
+ * <p>
+ *     <b>Fuzzy matching</b> - optionally, via setFuzzyDistance(), search tags can also match
+ *     tags that are a typo or two away from them, using the tag index's BK-tree for lookups.
+ * </p>
+ * <p>
+ *     <b>Result cache</b> - in index-only mode, the results of each completed search are kept in
+ *     a small cache, keyed on the normalized query, the search scope and the index generation.
+ *     Running the same search again (say, to sort it differently) returns the cached results
+ *     immediately, until anything in the index changes. Searches that read the filesystem are
+ *     never cached: they exist to find tag files the index doesn't know about yet, and those
+ *     can appear or change without the index generation moving.
+ * </p>
+ * <p>
+ *     <b>Streaming results</b> - callers that don't want to wait for the whole search can register
+ *     a ResultListener, which is handed new matches in found order, in chunks, as the search goes.
+ *     A search can also be told to stop after a given number of matches with setMaxResults().
+ * </p>
  *
  * @author <a href="https://github.com/scorbo2">scorbo2</a>
  */
@@ -25,6 +70,26 @@ public class SearchThread extends MultiProgressWorker {
 
     private static final Logger log = Logger.getLogger(SearchThread.class.getName());
 
+    private static final int RESULT_CACHE_MAX_ENTRIES = 16;
+    private static final int RESULT_CACHE_MAX_FILES = 100_000; // roughly 25MB of File objects at worst
+    private static final long RESULT_CACHE_MAX_AGE_MS = 5 * 60 * 1000;
+    private static final int RESULT_CHUNK_SIZE = 250;
+    private static final long RESULT_CHUNK_INTERVAL_MS = 250;
+    private static final SearchResultCache resultCache = new SearchResultCache(RESULT_CACHE_MAX_ENTRIES,
+                                                                               RESULT_CACHE_MAX_FILES,
+                                                                               RESULT_CACHE_MAX_AGE_MS);
+
+    /**
+     * Receives the matches of a search as they are found. Listeners are notified on the search
+     * thread, so anything touching the UI must be handed over to the EDT. Every match is delivered
+     * exactly once, in found order, and all of them are delivered before the search's progress
+     * listeners hear that it has completed or been canceled.
+     */
+    @FunctionalInterface
+    public interface ResultListener {
+        void resultsFound(List<File> newResults);
+    }
+
     /**
      * Describes options for determining the sort order of the result set.
      */
@@ -54,30 +119,40 @@ public class SearchThread extends MultiProgressWorker {
     private final File initialDir;
     private final boolean isRecursive;
     private final List<ImageSet> imageSetsToSearch;
-    private final TagList searchTagsAll;
-    private final TagList searchTagsAny;
-    private final TagList searchTagsNone;
+    private final TagQuery query;
     private final List<File> searchResults;
     private boolean wasCanceled;
+    private boolean isIndexOnly;
+    private boolean isBackgroundVerifyEnabled;
+    private int fuzzyDistance;
+    private int maxResults;
+    private boolean wasTruncated;
+    private final List<ResultListener> resultListeners = new ArrayList<>();
+    private int publishedCount; // how many of searchResults have been handed to resultListeners
+    private long lastPublishTime;
 
     public SearchThread(File initialDir, boolean isRecursive, TagList findAll, TagList findAny, TagList findNone) {
+        this(initialDir, isRecursive, TagQuery.of(findAll, findAny, findNone));
+    }
+
+    public SearchThread(List<ImageSet> imageSets, TagList findAll, TagList findAny, TagList findNone) {
+        this(imageSets, TagQuery.of(findAll, findAny, findNone));
+    }
+
+    public SearchThread(File initialDir, boolean isRecursive, TagQuery query) {
         this.initialDir = initialDir;
         this.isRecursive = isRecursive;
         this.imageSetsToSearch = null;
-        this.searchTagsAll = findAll;
-        this.searchTagsAny = findAny;
-        this.searchTagsNone = findNone;
+        this.query = query;
         searchResults = new ArrayList<>();
         wasCanceled = false;
     }
 
-    public SearchThread(List<ImageSet> imageSets, TagList findAll, TagList findAny, TagList findNone) {
+    public SearchThread(List<ImageSet> imageSets, TagQuery query) {
         this.initialDir = null;
         this.isRecursive = false;
         this.imageSetsToSearch = new ArrayList<>(imageSets);
-        this.searchTagsAll = findAll;
-        this.searchTagsAny = findAny;
-        this.searchTagsNone = findNone;
+        this.query = query;
         searchResults = new ArrayList<>();
         wasCanceled = false;
     }
@@ -86,65 +161,171 @@ public class SearchThread extends MultiProgressWorker {
      * Returns the result set of this search, using the given SortMode to order them.
      */
     public List<File> getSearchResults(SortMode sortMode) {
+        return getSearchResults(sortMode, 0);
+    }
+
+    /**
+     * Returns the first limit results of this search, in the order given by the given SortMode.
+     * A limit of zero or less returns all of them. When only a few results are wanted out of many,
+     * this is much cheaper than sorting them all: the first results are picked out with a bounded
+     * heap in O(n log limit) time.
+     * <p>
+     *     Sorting by date or path uses keys computed once per result, up front, rather than calling
+     *     File.lastModified() or building path strings in every comparison. Dates are always read
+     *     from the image itself, since it may have been edited since it was last indexed; paths
+     *     come from the tag index where possible. Results that tie keep their found order.
+     * </p>
+     */
+    public List<File> getSearchResults(SortMode sortMode, int limit) {
+        int count = searchResults.size();
+        int wanted = (limit <= 0 || limit > count) ? count : limit;
+
         // If the search found nothing, sorting is irrelevant:
-        if (searchResults.isEmpty()) {
-            return new ArrayList<>(searchResults);
+        if (wanted == 0) {
+            return new ArrayList<>();
         }
 
-        // Otherwise, apply sort mode:
-        List<File> sortedResults = new ArrayList<>(searchResults);
         switch (sortMode) {
             case FOUND_ORDER_ASCENDING:
-                // No sorting needed, already in found order
-                break;
-            case FOUND_ORDER_DESCENDING:
-                Collections.reverse(sortedResults);
-                break;
-            case FILENAME_ASCENDING:
-                sortedResults.sort((f1, f2) -> f1.getName().compareToIgnoreCase(f2.getName()));
-                break;
-            case FILENAME_DESCENDING:
-                sortedResults.sort((f1, f2) -> f2.getName().compareToIgnoreCase(f1.getName()));
-                break;
-            case PATH_ASCENDING:
-                sortedResults.sort((f1, f2) -> f1.getAbsolutePath().compareToIgnoreCase(f2.getAbsolutePath()));
-                break;
-            case PATH_DESCENDING:
-                sortedResults.sort((f1, f2) -> f2.getAbsolutePath().compareToIgnoreCase(f1.getAbsolutePath()));
-                break;
-            case DATE_ASCENDING:
-                sortedResults.sort((f1, f2) -> Long.compare(f1.lastModified(), f2.lastModified()));
-                break;
-            case DATE_DESCENDING:
-                sortedResults.sort((f1, f2) -> Long.compare(f2.lastModified(), f1.lastModified()));
-                break;
-            case RANDOM:
-                Collections.shuffle(sortedResults);
+                return new ArrayList<>(searchResults.subList(0, wanted));
+            case FOUND_ORDER_DESCENDING: {
+                List<File> results = new ArrayList<>(searchResults.subList(count - wanted, count));
+                Collections.reverse(results);
+                return results;
+            }
+            case RANDOM: {
+                List<File> results = new ArrayList<>(searchResults);
+                Collections.shuffle(results);
+                return new ArrayList<>(results.subList(0, wanted));
+            }
+            default:
                 break;
         }
 
-        return sortedResults;
+        SortKey[] keys = SortKey.createAll(searchResults, sortMode);
+        Comparator<SortKey> comparator = SortKey.comparator(sortMode);
+        if (wanted < count / 2) {
+            return SortKey.selectFirst(keys, comparator, wanted);
+        }
+        Arrays.parallelSort(keys, comparator); // sorts sequentially below its own size threshold
+        List<File> results = new ArrayList<>(wanted);
+        for (int i = 0; i < wanted; i++) {
+            results.add(keys[i].file);
+        }
+        return results;
+    }
+
+    /**
+     * Returns the number of results this search found (up to the limit given to setMaxResults()).
+     */
+    public int getResultCount() {
+        return searchResults.size();
     }
 
     public boolean wasCanceled() {
         return wasCanceled;
     }
 
+    /**
+     * Enables or disables index-only mode for this search. In index-only mode, candidates are
+     * resolved directly from the TagIndex instead of by enumerating tag files on disk.
+     * This option is ignored if the tag index is disabled in application settings.
+     *
+     * @param indexOnly        true to trust the tag index and skip filesystem enumeration.
+     * @param verifyInBackground true to start a background check after the search completes,
+     *                         which refreshes or removes stale index entries in the search scope.
+     */
+    public void setIndexOnly(boolean indexOnly, boolean verifyInBackground) {
+        this.isIndexOnly = indexOnly;
+        this.isBackgroundVerifyEnabled = verifyInBackground;
+    }
+
+    public boolean isIndexOnly() {
+        return isIndexOnly;
+    }
+
+    /**
+     * Optionally lets each search tag also match tags up to the given number of edits away,
+     * so that typos (in the search or in the tag files) don't hide images. Short tags are
+     * always matched exactly; see TagQuery.withFuzzyTerms() for details. Zero, the default,
+     * disables fuzzy matching.
+     */
+    public void setFuzzyDistance(int maxDistance) {
+        this.fuzzyDistance = Math.max(0, maxDistance);
+    }
+
+    public int getFuzzyDistance() {
+        return fuzzyDistance;
+    }
+
+    /**
+     * Stops the search once the given number of matches have been found. Zero, the default,
+     * means no limit. Which matches make the cut depends on the order in which they're found,
+     * so this is best combined with a ResultListener or with SortMode.FOUND_ORDER_ASCENDING.
+     */
+    public void setMaxResults(int maxResults) {
+        this.maxResults = Math.max(0, maxResults);
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    /**
+     * Reports whether the search stopped early because it reached the limit given to setMaxResults().
+     */
+    public boolean wasTruncated() {
+        return wasTruncated;
+    }
+
+    /**
+     * Registers a listener to be given matches as they are found. Must be called before the search starts.
+     */
+    public void addResultListener(ResultListener listener) {
+        resultListeners.add(listener);
+    }
+
     @Override
     public void run() {
         // Log the ridiculous case where caller provided no search tags at all:
-        if (searchTagsAll.isEmpty() && searchTagsAny.isEmpty() && searchTagsNone.isEmpty()) {
+        if (query.isMatchAll()) {
             log.warning("ICE SearchThread executed with no search tags! All images will match.");
         }
 
+        TagQuery searchQuery = query.withFuzzyTerms(fuzzyDistance);
+        boolean useIndexOnly = isIndexOnly && TagIndex.isEnabled();
+
+        if (useIndexOnly) {
+            // If nothing in the index has changed since we last ran this exact search, we already know the answer:
+            String cacheKey = getCacheKey(searchQuery);
+            long generation = TagIndex.getInstance().getGeneration();
+            List<File> cachedResults = resultCache.get(cacheKey, generation);
+            if (cachedResults != null) {
+                runFromCache(cachedResults);
+            }
+            else {
+                runIndexOnly(searchQuery, cacheKey, generation);
+            }
+            return;
+        }
+
         fireProgressBegins(2);
-        List<File> iceFiles = getTagFiles();
-        searchResults.clear();
-        wasCanceled = false;
+        List<FileAttributes> iceFiles = getTagFiles();
+        resetResults();
         int currentStep = 0;
         int indexHits = 0;
         int indexMisses = 0;
-        for (File candidateFile : iceFiles) {
+
+        // Answer the query for everything in the index in one go; indexed files are then just a lookup:
+        boolean isIndexEnabled = TagIndex.isEnabled();
+        TagIndex tagIndex = TagIndex.getInstance();
+        QueryPlan plan = isIndexEnabled ? tagIndex.plan(searchQuery) : QueryPlanner.plan(searchQuery.getRoot(), null);
+        long matchesGeneration = tagIndex.getGeneration(); // read first, so it's no newer than the matches
+        TagBitmap indexMatches = isIndexEnabled ? tagIndex.getMatchingImageIds(searchQuery) : null;
+        log.fine("ICE SearchThread: query plan is " + plan);
+
+        for (FileAttributes candidate : iceFiles) {
+            File candidateFile = candidate.getFile();
             log.fine("ICE SearchThread: Considering "+candidateFile.getAbsolutePath());
             fireMajorProgressUpdate(1, iceFiles.size(), "Searching...");
             boolean shouldContinue = fireMinorProgressUpdate(1, currentStep, candidateFile.getName());
@@ -153,45 +334,38 @@ public class SearchThread extends MultiProgressWorker {
                 log.fine("ICE SearchThread: Found matching image file "+imageFile.getAbsolutePath());
 
                 boolean isMatch;
+                long tagFileSize = candidate.getSize(); // as seen when we found it; no need to ask again
+                long tagFileLastModified = candidate.getLastModified();
+                TagIndexEntry entry = isIndexEnabled ? tagIndex.getEntry(imageFile) : null;
 
-                // Give the tag index first crack at it:
-                if (TagIndex.isEnabled() && TagIndex.getInstance().IsIndexedAndUpToDate(imageFile, candidateFile)) {
-                    isMatch = true;
-                    if (! searchTagsAll.isEmpty()) {
-                        isMatch = TagIndex.getInstance().containsAll(imageFile, searchTagsAll);
-                    }
-                    if (isMatch && ! searchTagsAny.isEmpty()) {
-                        isMatch = TagIndex.getInstance().containsAny(imageFile, searchTagsAny);
-                    }
-                    if (isMatch && ! searchTagsNone.isEmpty()) {
-                        isMatch = TagIndex.getInstance().containsNone(imageFile, searchTagsNone);
-                    }
+                // Give the tag index first crack at it. The matches only hold for an entry that hasn't
+                // changed since they were found (its image id may even belong to another image now),
+                // and the generation must be checked after the metadata - see TagIndexEntry.getGeneration():
+                if (entry != null
+                        && entry.getTagFileSize() == tagFileSize
+                        && entry.getTagFileLastModified() == tagFileLastModified
+                        && entry.getGeneration() <= matchesGeneration) {
+                    isMatch = indexMatches.contains(entry.getImageId());
                     indexHits++;
                 }
 
-                // If not found in the index or if index is disabled, build a new one:
+                // If not found in the index or if index is disabled, read the tag file and check it directly:
                 else {
                     TagList tagList = TagList.fromFile(candidateFile);
-                    if (TagIndex.isEnabled()) {
-                        TagIndex.getInstance().addOrUpdateEntry(imageFile, candidateFile);
-                    }
-
-                    isMatch = true;
-                    if (! searchTagsAll.isEmpty()) {
-                        isMatch = tagList.containsAll(searchTagsAll);
-                    }
-                    if (isMatch && ! searchTagsAny.isEmpty()) {
-                        isMatch = tagList.containsAny(searchTagsAny);
-                    }
-                    if (isMatch && ! searchTagsNone.isEmpty()) {
-                        isMatch = tagList.containsNone(searchTagsNone);
+                    if (isIndexEnabled) {
+                        tagIndex.addOrUpdateEntry(imageFile, candidateFile, tagFileSize, tagFileLastModified, tagList);
                     }
+                    isMatch = plan.matches(tagList);
                     indexMisses++;
                 }
 
                 if (isMatch) {
                     log.fine("ICE SearchThread: search matched!");
                     searchResults.add(imageFile);
+                    if (maxResults > 0 && searchResults.size() >= maxResults) {
+                        wasTruncated = true;
+                        break;
+                    }
                 }
                 else {
                     log.fine("ICE SearchThread: search did not match.");
@@ -201,11 +375,13 @@ public class SearchThread extends MultiProgressWorker {
                 log.fine("ICE SearchThread: no matching image file.");
             }
             currentStep++;
+            publishResults(false);
             if (! shouldContinue) {
                 wasCanceled = true;
                 break;
             }
         }
+        publishResults(true);
         if (wasCanceled) {
             log.fine("ICE SearchThread: search was canceled by user input.");
             fireProgressCanceled();
@@ -225,21 +401,256 @@ public class SearchThread extends MultiProgressWorker {
         }
     }
 
-    private List<File> getTagFiles() {
+    /**
+     * Completes the search with results from an earlier identical search.
+     */
+    private void runFromCache(List<File> cachedResults) {
+        fireProgressBegins(1);
+        fireMajorProgressUpdate(1, 1, "Using cached search results...");
+        resetResults();
+        searchResults.addAll(cachedResults);
+        applyMaxResults();
+        publishResults(true);
+        log.info("IceExtension: search answered from cache with " + searchResults.size() + " results.");
+        fireProgressComplete();
+
+        if (isBackgroundVerifyEnabled) {
+            startStalenessCheck();
+        }
+    }
+
+    private void resetResults() {
+        searchResults.clear();
+        wasCanceled = false;
+        wasTruncated = false;
+        publishedCount = 0;
+        lastPublishTime = System.currentTimeMillis();
+    }
+
+    private void applyMaxResults() {
+        if (maxResults > 0 && searchResults.size() > maxResults) {
+            searchResults.subList(maxResults, searchResults.size()).clear();
+            wasTruncated = true;
+        }
+    }
+
+    /**
+     * Hands any matches that haven't been published yet to our result listeners, if there are
+     * enough of them or it has been long enough since the last batch (or if force is set).
+     */
+    private void publishResults(boolean force) {
+        int unpublished = searchResults.size() - publishedCount;
+        if (resultListeners.isEmpty() || unpublished == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (force || unpublished >= RESULT_CHUNK_SIZE || now - lastPublishTime >= RESULT_CHUNK_INTERVAL_MS) {
+            List<File> chunk = new ArrayList<>(searchResults.subList(publishedCount, searchResults.size()));
+            publishedCount = searchResults.size();
+            lastPublishTime = now;
+            for (ResultListener listener : resultListeners) {
+                listener.resultsFound(chunk);
+            }
+        }
+    }
+
+    /**
+     * Describes this search - what we're looking for, and where - as a string that's equal
+     * for any two index-only searches that would give the same results against the same index.
+     */
+    private String getCacheKey(TagQuery searchQuery) {
+        StringBuilder key = new StringBuilder();
+        if (initialDir != null) {
+            key.append(initialDir.getAbsolutePath()).append(isRecursive ? "|recursive|" : "|flat|");
+        }
+        else {
+            // Image sets can be edited between searches, so their contents are part of the key too:
+            for (ImageSet imageSet : imageSetsToSearch) {
+                List<String> paths = imageSet.getImageFilePaths();
+                key.append(imageSet.getFullyQualifiedName())
+                   .append(':').append(paths.size())
+                   .append(':').append(Integer.toHexString(paths.hashCode()))
+                   .append('|');
+            }
+        }
+        return key.append(searchQuery.toNormalizedString()).toString();
+    }
+
+    /**
+     * Answers the search entirely from the TagIndex, without enumerating the filesystem.
+     */
+    private void runIndexOnly(TagQuery searchQuery, String cacheKey, long generation) {
+        fireProgressBegins(1);
+        fireMajorProgressUpdate(1, 1, "Searching tag index...");
+        resetResults();
+
         if (initialDir != null) {
-            return FileSystemUtil.findFiles(initialDir, isRecursive, "ice");
+            searchResults.addAll(TagIndex.getInstance().search(initialDir, isRecursive, searchQuery));
+        }
+        else {
+            Set<String> imageSetPaths = new HashSet<>();
+            for (ImageSet imageSet : imageSetsToSearch) {
+                imageSetPaths.addAll(imageSet.getImageFilePaths());
+            }
+            for (File imageFile : TagIndex.getInstance().search(null, true, searchQuery)) {
+                if (imageSetPaths.contains(imageFile.getAbsolutePath())) {
+                    searchResults.add(imageFile);
+                }
+            }
         }
 
-        List<File> tagFiles = new ArrayList<>();
+        // The index hands us everything at once, so cache it all and only then apply the limit:
+        resultCache.put(cacheKey, generation, searchResults);
+        applyMaxResults();
+        publishResults(true);
+        log.info("IceExtension: index-only search complete with " + searchResults.size() + " results.");
+        fireProgressComplete();
+
+        if (isBackgroundVerifyEnabled) {
+            startStalenessCheck();
+        }
+    }
+
+    /**
+     * Kicks off a low-priority background thread that looks at each index entry in our search
+     * scope and checks it against the filesystem. Entries whose image or tag file has disappeared
+     * are removed, and entries whose tag file has changed are refreshed, all on that thread.
+     * The results of the search that just completed are not modified; the point is to make the
+     * next search more accurate.
+     */
+    private void startStalenessCheck() {
+        final List<TagIndexEntry> entriesToCheck = new ArrayList<>();
+        if (initialDir != null) {
+            entriesToCheck.addAll(TagIndex.getInstance().getEntries(initialDir, isRecursive));
+        }
+        else {
+            for (File imageFile : searchResults) {
+                TagIndexEntry entry = TagIndex.getInstance().getEntry(imageFile);
+                if (entry != null) {
+                    entriesToCheck.add(entry);
+                }
+            }
+        }
+
+        Thread thread = new Thread(() -> {
+            int removed = 0;
+            int refreshed = 0;
+            for (TagIndexEntry entry : entriesToCheck) {
+                FileAttributes tagFile = FileAttributes.read(entry.getTagFile());
+                if (! tagFile.exists() || ! entry.getImageFile().exists()) {
+                    TagIndex.getInstance().removeEntry(entry.getImageFile());
+                    removed++;
+                }
+                else if (entry.getTagFileSize() != tagFile.getSize()
+                        || entry.getTagFileLastModified() != tagFile.getLastModified()) {
+                    // The TagIndex is thread-safe, so the re-read happens right here rather than on the EDT:
+                    TagIndex.getInstance().addOrUpdateEntry(entry.getImageFile(), entry.getTagFile());
+                    refreshed++;
+                }
+            }
+            log.info("IceExtension: index staleness check complete. Entries removed: " + removed
+                             + "; entries refreshed: " + refreshed);
+        }, "ICE-index-staleness-check");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Finds the tag files to search, along with their metadata, read once here so that
+     * checking each one against the tag index doesn't need to go back to the filesystem.
+     */
+    private List<FileAttributes> getTagFiles() {
+        if (initialDir != null) {
+            return FileAttributes.findFiles(initialDir, isRecursive, "ice");
+        }
+
+        List<FileAttributes> tagFiles = new ArrayList<>();
         for (ImageSet imageSet : imageSetsToSearch) {
             for (String filePath : imageSet.getImageFilePaths()) {
                 File imageFile = new File(filePath);
                 File tagFile = new File(imageFile.getParentFile(), FilenameUtils.getBaseName(imageFile.getName())+".ice");
-                if (tagFile.exists()) {
-                    tagFiles.add(tagFile);
+                FileAttributes tagFileAttributes = FileAttributes.read(tagFile);
+                if (tagFileAttributes.exists()) {
+                    tagFiles.add(tagFileAttributes);
                 }
             }
         }
         return tagFiles;
     }
+
+    /**
+     * A search result together with the keys it's sorted on, computed once per result so that
+     * comparisons only ever look at a long or an existing string.
+     */
+    private static final class SortKey {
+        final File file;
+        final int foundOrder;
+        final long date;
+        final String text; // lower case path or file name, depending on the sort mode
+
+        private SortKey(File file, int foundOrder, long date, String text) {
+            this.file = file;
+            this.foundOrder = foundOrder;
+            this.date = date;
+            this.text = text;
+        }
+
+        static SortKey[] createAll(List<File> files, SortMode sortMode) {
+            boolean byDate = sortMode == SortMode.DATE_ASCENDING || sortMode == SortMode.DATE_DESCENDING;
+            boolean byName = sortMode == SortMode.FILENAME_ASCENDING || sortMode == SortMode.FILENAME_DESCENDING;
+            TagIndex tagIndex = TagIndex.getInstance();
+            SortKey[] keys = new SortKey[files.size()];
+            for (int i = 0; i < keys.length; i++) {
+                File file = files.get(i);
+                if (byDate) {
+                    keys[i] = new SortKey(file, i, file.lastModified(), null); // once per file, not per comparison
+                }
+                else if (byName) {
+                    keys[i] = new SortKey(file, i, 0L, file.getName().toLowerCase(Locale.ROOT));
+                }
+                else {
+                    TagIndexEntry entry = tagIndex.getEntry(file);
+                    String path = entry != null ? entry.getPathSortKey() : file.getAbsolutePath().toLowerCase(Locale.ROOT);
+                    keys[i] = new SortKey(file, i, 0L, path);
+                }
+            }
+            return keys;
+        }
+
+        static Comparator<SortKey> comparator(SortMode sortMode) {
+            Comparator<SortKey> byKey = switch (sortMode) {
+                case DATE_ASCENDING -> Comparator.comparingLong(key -> key.date);
+                case DATE_DESCENDING -> (a, b) -> Long.compare(b.date, a.date);
+                case FILENAME_DESCENDING, PATH_DESCENDING -> (a, b) -> b.text.compareTo(a.text);
+                default -> (a, b) -> a.text.compareTo(b.text);
+            };
+            return byKey.thenComparingInt(key -> key.foundOrder);
+        }
+
+        /**
+         * Returns the files of the first count keys in the given order, without sorting all of them:
+         * a max-heap holds the best count keys seen so far, and each remaining key either displaces
+         * the worst of those or is dropped.
+         */
+        static List<File> selectFirst(SortKey[] keys, Comparator<SortKey> comparator, int count) {
+            PriorityQueue<SortKey> heap = new PriorityQueue<>(count, comparator.reversed());
+            for (SortKey key : keys) {
+                if (heap.size() < count) {
+                    heap.add(key);
+                }
+                else if (comparator.compare(key, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(key);
+                }
+            }
+            SortKey[] first = heap.toArray(new SortKey[0]);
+            Arrays.sort(first, comparator);
+            List<File> results = new ArrayList<>(first.length);
+            for (SortKey key : first) {
+                results.add(key.file);
+            }
+            return results;
+        }
+    }
 }
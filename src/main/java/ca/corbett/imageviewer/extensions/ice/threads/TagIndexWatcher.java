@@ -0,0 +1,332 @@
+package ca.corbett.imageviewer.extensions.ice.threads;
+
+import ca.corbett.imageviewer.extensions.ice.IceExtension;
+import ca.corbett.imageviewer.extensions.ice.TagIndex;
+import ca.corbett.imageviewer.extensions.ice.TagIndexEntry;
+import ca.corbett.imageviewer.extensions.ice.io.DirectoryListingCache;
+import ca.corbett.imageviewer.extensions.ice.io.FileAttributes;
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches one or more directory trees for changes to tag files and image files, and applies
+ * those changes to the TagIndex as they happen. This keeps the index up to date with changes
+ * made outside of ImageViewer (for example, tag files synced in from another machine), without
+ * having to periodically rescan everything.
+ * <p>
+ *     <b>Debouncing</b> - a single save of a tag file often produces several events in quick
+ *     succession (create, then one or more modifies). Events are therefore collected per path,
+ *     and a path is only looked at once it has been quiet for DEBOUNCE_MS. Each path is then
+ *     checked against the filesystem as it is <i>now</i>, so the order and number of the
+ *     events that led up to it don't matter.
+ * </p>
+ * <p>
+ *     <b>Overflow</b> - if the operating system drops events because too many happened at once,
+ *     the affected directory is simply rescanned, along with its subdirectories, any of which
+ *     might be new and not yet watched. Unchanged tag files are skipped based on their size
+ *     and timestamp, so this is cheap. A directory that can't be watched (unreadable, or over
+ *     the operating system's limit on watches) is logged and skipped, with its subdirectories.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public class TagIndexWatcher {
+
+    private static final Logger log = Logger.getLogger(TagIndexWatcher.class.getName());
+
+    /**
+     * How long a path must go without new events before we act on it.
+     */
+    public static final long DEBOUNCE_MS = 500;
+
+    private final List<File> roots;
+    private final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>();
+    private final Map<Path, Long> pendingPaths = new HashMap<>(); // path -> time of last event; watcher thread only
+    private final Set<Path> pendingRescans = ConcurrentHashMap.newKeySet();
+    private WatchService watchService;
+    private Thread thread;
+    private volatile boolean isRunning;
+
+    public TagIndexWatcher(List<File> roots) {
+        this.roots = new ArrayList<>(roots);
+    }
+
+    public List<File> getRoots() {
+        return new ArrayList<>(roots);
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * Registers all configured roots (recursively) and starts watching them on a background
+     * thread. Roots that don't exist are logged and skipped. Does nothing if already running.
+     */
+    public synchronized void start() {
+        if (isRunning) {
+            return;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        }
+        catch (IOException ioe) {
+            log.log(Level.SEVERE, "TagIndexWatcher: unable to create watch service: " + ioe.getMessage(), ioe);
+            return;
+        }
+        for (File root : roots) {
+            if (!root.isDirectory()) {
+                log.warning("TagIndexWatcher: skipping watch directory that doesn't exist: " + root.getAbsolutePath());
+                continue;
+            }
+            registerTree(root.toPath());
+        }
+        log.info("TagIndexWatcher: watching " + watchedDirs.size() + " directories for tag changes.");
+        isRunning = true;
+        thread = new Thread(this::watchLoop, "ICE-tag-index-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching and waits briefly for the background thread to finish.
+     * Any changes that were still waiting out their debounce period are dropped;
+     * they'll be picked up the next time the tag file is seen.
+     */
+    public synchronized void stop() {
+        if (!isRunning) {
+            return;
+        }
+        isRunning = false;
+        try {
+            watchService.close(); // wakes up the watcher thread
+        }
+        catch (IOException ioe) {
+            log.log(Level.WARNING, "TagIndexWatcher: problem closing watch service: " + ioe.getMessage(), ioe);
+        }
+        try {
+            thread.join(2000);
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        watchedDirs.clear();
+        thread = null;
+        watchService = null;
+    }
+
+    private void watchLoop() {
+        try {
+            while (isRunning) {
+                WatchKey key = watchService.poll(pendingPaths.isEmpty() ? 1000 : DEBOUNCE_MS / 2, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    handleKey(key);
+                    key = watchService.poll();
+                }
+                processPendingRescans();
+                processPendingPaths(System.currentTimeMillis());
+            }
+        }
+        catch (ClosedWatchServiceException | InterruptedException ignored) {
+            // We've been stopped.
+        }
+        catch (RuntimeException e) {
+            log.log(Level.SEVERE, "TagIndexWatcher: watcher stopped unexpectedly: " + e.getMessage(), e);
+            isRunning = false;
+        }
+    }
+
+    private void handleKey(WatchKey key) {
+        Path dir = watchedDirs.get(key);
+        if (dir == null) {
+            key.cancel();
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                pendingRescans.add(dir);
+                continue;
+            }
+            Path path = dir.resolve((Path)event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                // A new directory (or one moved in from elsewhere) - watch it, and pick up whatever is already in it:
+                registerTree(path);
+                pendingRescans.add(path);
+                continue;
+            }
+            if (isInteresting(path)) {
+                pendingPaths.put(path, now);
+            }
+        }
+        if (!key.reset()) {
+            // The directory is gone (or no longer accessible):
+            watchedDirs.remove(key);
+            if (!Files.exists(dir)) {
+                for (TagIndexEntry entry : TagIndex.getInstance().getEntries(dir.toFile(), true)) {
+                    TagIndex.getInstance().removeEntry(entry.getImageFile());
+                }
+            }
+        }
+    }
+
+    private void processPendingPaths(long now) {
+        List<Path> settledPaths = new ArrayList<>();
+        Iterator<Map.Entry<Path, Long>> iterator = pendingPaths.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Long> pending = iterator.next();
+            if (now - pending.getValue() < DEBOUNCE_MS) {
+                continue; // still settling
+            }
+            iterator.remove();
+            settledPaths.add(pending.getKey());
+        }
+
+        // Something changed in each of these directories, so our listings of them are suspect.
+        // Once per directory is enough, however many files changed in it:
+        Set<File> changedDirs = new HashSet<>();
+        for (Path path : settledPaths) {
+            File dir = path.toFile().getAbsoluteFile().getParentFile();
+            if (changedDirs.add(dir)) {
+                DirectoryListingCache.getInstance().invalidate(dir);
+            }
+        }
+
+        for (Path path : settledPaths) {
+            try {
+                applyChange(path.toFile());
+            }
+            catch (RuntimeException e) {
+                log.log(Level.WARNING, "TagIndexWatcher: problem updating index for " + path, e);
+            }
+        }
+    }
+
+    private void processPendingRescans() {
+        Iterator<Path> iterator = pendingRescans.iterator();
+        while (iterator.hasNext()) {
+            Path dir = iterator.next();
+            iterator.remove();
+            File[] children = dir.toFile().listFiles();
+            if (children == null) {
+                continue;
+            }
+            // We may have missed this directory being created, along with the events inside it:
+            register(dir);
+            long now = System.currentTimeMillis();
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    pendingRescans.add(child.toPath()); // picked up on the next pass
+                }
+                else if (child.getName().toLowerCase().endsWith(".ice")) {
+                    pendingPaths.put(child.toPath(), now - DEBOUNCE_MS); // no need to wait for these
+                }
+            }
+        }
+    }
+
+    /**
+     * Brings the TagIndex in line with the current state of the given tag file or image file.
+     */
+    private void applyChange(File file) {
+        TagIndex tagIndex = TagIndex.getInstance();
+        if (file.getName().toLowerCase().endsWith(".ice")) {
+            File imageFile = IceExtension.getMatchingImageFile(file);
+            if (imageFile == null) {
+                return; // a tag file with no image; nothing we can index
+            }
+            FileAttributes tagFileAttributes = FileAttributes.read(file);
+            if (tagFileAttributes.exists()) {
+                tagIndex.addOrUpdateEntry(imageFile, file, tagFileAttributes.getSize(),
+                                          tagFileAttributes.getLastModified(), null);
+            }
+            else {
+                tagIndex.removeEntry(imageFile);
+            }
+            return;
+        }
+
+        // Otherwise, it's an image file:
+        if (!file.exists()) {
+            tagIndex.removeEntry(file);
+            return;
+        }
+        File tagFile = new File(file.getParentFile(), FilenameUtils.getBaseName(file.getName()) + ".ice");
+        FileAttributes tagFileAttributes = FileAttributes.read(tagFile);
+        if (tagFileAttributes.exists()) {
+            tagIndex.addOrUpdateEntry(file, tagFile, tagFileAttributes.getSize(),
+                                      tagFileAttributes.getLastModified(), null);
+        }
+    }
+
+    private void registerTree(Path start) {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    // If we can't watch this one, its subdirectories are unlikely to fare better:
+                    return register(dir) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE; // unreadable directory - skip it rather than give up
+                }
+            });
+        }
+        catch (IOException ioe) {
+            log.log(Level.WARNING, "TagIndexWatcher: unable to watch " + start + ": " + ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * Watches the given directory (not its subdirectories), if it isn't already watched.
+     * Failures - an unreadable directory, or running out of OS watches - are logged, and
+     * false is returned, so that one bad directory doesn't stop the rest from being watched.
+     */
+    private boolean register(Path dir) {
+        try {
+            WatchKey key = dir.register(watchService,
+                                        StandardWatchEventKinds.ENTRY_CREATE,
+                                        StandardWatchEventKinds.ENTRY_MODIFY,
+                                        StandardWatchEventKinds.ENTRY_DELETE);
+            watchedDirs.put(key, dir); // registering again returns the same key, so this is idempotent
+            return true;
+        }
+        catch (IOException e) {
+            log.log(Level.WARNING, "TagIndexWatcher: unable to watch " + dir + ": " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private static boolean isInteresting(Path path) {
+        String extension = FilenameUtils.getExtension(path.getFileName().toString()).toLowerCase(Locale.ROOT);
+        return "ice".equals(extension) || DirectoryListingCache.IMAGE_EXTENSIONS.contains(extension);
+    }
+}
@@ -190,6 +190,7 @@ public class QuickTagPanel extends JPanel {
             }
 
             // Add the options group at the end, with actions for managing the quick tag groups and sources:
+            actionPanel.add(OPTIONS_GROUP, new SuggestTagsAction());
             actionPanel.add(OPTIONS_GROUP, new AddGroupAction());
             actionPanel.add(OPTIONS_GROUP, new ChangeSourceAction());
             actionPanel.add(OPTIONS_GROUP, new HidePanelAction());
@@ -417,13 +418,57 @@ public class QuickTagPanel extends JPanel {
                 else {
                     imageTags.add(tag);
                 }
-                imageTags.save();
-                TagIndex.getInstance().addOrUpdateEntry(image.getImageFile(), tagFile);
+                TagIndex.getInstance().saveTagList(image.getImageFile(), imageTags);
                 ImageViewerExtensionManager.getInstance().imageSelected(image);
             }
         }
     }
 
+    /**
+     * An Action that suggests tags for the current image, based on which tags tend to go together
+     * across the tag index (see TagIndex.suggestRelatedTags()). The user picks one from a list,
+     * and it's applied just as if its quick tag button had been clicked.
+     */
+    private static class SuggestTagsAction extends EnhancedAction {
+        private static final int MAX_SUGGESTIONS = 8;
+
+        public SuggestTagsAction() {
+            super("Suggest tags...");
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            ImageInstance image = MainWindow.getInstance().getSelectedImage();
+            if (image.isEmpty()) {
+                return;
+            }
+            if (!TagIndex.isEnabled()) {
+                MainWindow.getInstance().showMessageDialog("Suggest tags",
+                                                           "Tag suggestions require the tag index to be enabled.");
+                return;
+            }
+            File tagFile = new File(image.getImageFile().getParentFile(),
+                                    FilenameUtils.getBaseName(image.getImageFile().getName()) + ".ice");
+            List<String> suggestions = TagIndex.getInstance()
+                                               .suggestRelatedTags(TagList.fromFile(tagFile), MAX_SUGGESTIONS);
+            if (suggestions.isEmpty()) {
+                MainWindow.getInstance().showMessageDialog("Suggest tags",
+                                                           "No suggestions for this image's tags.");
+                return;
+            }
+            Object choice = JOptionPane.showInputDialog(MainWindow.getInstance(),
+                                                        "Tags often used together with this image's tags:",
+                                                        "Suggest tags",
+                                                        JOptionPane.QUESTION_MESSAGE,
+                                                        null,
+                                                        suggestions.toArray(),
+                                                        suggestions.get(0));
+            if (choice != null) {
+                new TagAction(choice.toString()).actionPerformed(e);
+            }
+        }
+    }
+
     /**
      * An Action for adding a new, empty ActionGroup to the current quick tag source.
      */
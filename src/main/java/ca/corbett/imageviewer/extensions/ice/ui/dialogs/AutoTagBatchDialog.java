@@ -406,8 +406,7 @@ public class AutoTagBatchDialog extends JDialog {
             File tagFile = new File(imageFile.getParentFile(), FilenameUtils.getBaseName(imageFile.getName()) + ".ice");
             TagList originalTags = TagList.fromFile(tagFile); // might be empty; that's okay
             originalTags.addAll(tagList); // duplicates are pruned automatically, it's not a problem.
-            originalTags.save(); // commit changes to disk
-            TagIndex.getInstance().addOrUpdateEntry(imageFile, tagFile); // tell the TagIndex of this change
+            TagIndex.getInstance().saveTagList(imageFile, originalTags); // commit to disk and tell the TagIndex
         }
 
         private void handleError(File imageFile, AiErrorBody error) {
@@ -0,0 +1,141 @@
+package ca.corbett.imageviewer.extensions.ice.ui.dialogs;
+
+import ca.corbett.imageviewer.extensions.ice.TagIndex;
+import ca.corbett.imageviewer.ui.MainWindow;
+import ca.corbett.imageviewer.ui.imagesets.ImageSet;
+import ca.corbett.imageviewer.ui.imagesets.ImageSetManager;
+
+import javax.swing.BorderFactory;
+import javax.swing.DefaultListModel;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.ListSelectionModel;
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Shows the most common tags among the results of a search, with a count for each, and lets
+ * the user drill down: picking a tag and choosing "Only with tag" or "Without tag" narrows the
+ * results to the images that do (or don't) have it. Each step creates a new image set next to
+ * the original one, so earlier steps are still there to go back to, and the tag counts are
+ * updated for the narrowed results so that the user can keep going.
+ * <p>
+ *     Everything here is answered from the tag index, using the results we already have: nothing
+ *     is searched again, and the filesystem isn't touched. See TagIndex.getFacetCounts().
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ICE 3.5.0
+ */
+public class RefineResultsDialog extends JDialog {
+
+    private static final int MAX_FACETS = 50;
+
+    private final String baseName;
+    private final boolean isTransient;
+    private final DefaultListModel<String> facetListModel = new DefaultListModel<>();
+    private final List<String> facetTags = new ArrayList<>(); // parallel to facetListModel
+    private final JList<String> facetList = new JList<>(facetListModel);
+    private final JLabel summaryLabel = new JLabel();
+    private List<File> currentResults;
+    private String currentName;
+
+    /**
+     * @param resultSet The image set holding the search results to refine.
+     */
+    public RefineResultsDialog(ImageSet resultSet) {
+        super(MainWindow.getInstance(), "Refine search results", false);
+        this.baseName = resultSet.getFullyQualifiedName();
+        this.isTransient = resultSet.isTransient();
+        this.currentName = baseName;
+        this.currentResults = new ArrayList<>();
+        for (String path : resultSet.getImageFilePaths()) {
+            currentResults.add(new File(path));
+        }
+
+        setSize(new Dimension(360, 460));
+        setLocationRelativeTo(MainWindow.getInstance());
+        setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+        setLayout(new BorderLayout());
+
+        summaryLabel.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+        add(summaryLabel, BorderLayout.NORTH);
+        facetList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        add(new JScrollPane(facetList), BorderLayout.CENTER);
+        add(buildButtonPanel(), BorderLayout.SOUTH);
+        refreshFacets();
+    }
+
+    private JPanel buildButtonPanel() {
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttonPanel.setBorder(BorderFactory.createRaisedBevelBorder());
+
+        JButton button = new JButton("Only with tag");
+        button.addActionListener(e -> refine(true));
+        buttonPanel.add(button);
+
+        button = new JButton("Without tag");
+        button.addActionListener(e -> refine(false));
+        buttonPanel.add(button);
+
+        button = new JButton("Close");
+        button.addActionListener(e -> dispose());
+        buttonPanel.add(button);
+
+        return buttonPanel;
+    }
+
+    private void refreshFacets() {
+        facetListModel.clear();
+        facetTags.clear();
+        TagIndex tagIndex = TagIndex.getInstance();
+        Map<String, Integer> facets = tagIndex.getFacetCounts(tagIndex.getImageIds(currentResults), MAX_FACETS);
+        for (Map.Entry<String, Integer> facet : facets.entrySet()) {
+            facetTags.add(facet.getKey());
+            facetListModel.addElement(facet.getKey() + " (" + facet.getValue() + ")");
+        }
+        summaryLabel.setText("<html>" + currentResults.size() + " images in " + currentName
+                                     + (facets.isEmpty() ? "<br>Nothing left to narrow down by." : "") + "</html>");
+    }
+
+    private void refine(boolean keep) {
+        int selectedIndex = facetList.getSelectedIndex();
+        if (selectedIndex < 0) {
+            return;
+        }
+        String tag = facetTags.get(selectedIndex);
+        currentResults = TagIndex.getInstance().filterByTag(currentResults, tag, keep);
+        currentName = getUniqueSetName(currentName + (keep ? " + " : " - ") + tag);
+
+        ImageSet imageSet = new ImageSet(currentName);
+        imageSet.setTransient(isTransient);
+        for (File file : currentResults) {
+            imageSet.addImageFilePath(file.getAbsolutePath());
+        }
+        MainWindow.getInstance().getImageSetManager().addImageSet(imageSet);
+        MainWindow.getInstance().getImageSetPanel().resync(imageSet);
+        refreshFacets();
+    }
+
+    private String getUniqueSetName(String candidateName) {
+        ImageSetManager manager = MainWindow.getInstance().getImageSetManager();
+        String name = ImageSetManager.parseFullyQualifiedName(candidateName);
+        for (int attempt = 2; attempt < 100; attempt++) {
+            if (! manager.findImageSet(name).isPresent()) {
+                return name;
+            }
+            name = ImageSetManager.parseFullyQualifiedName(candidateName + " (" + attempt + ")");
+        }
+        return ImageSetManager.parseFullyQualifiedName(baseName + " " + UUID.randomUUID());
+    }
+}
@@ -9,10 +9,15 @@ import ca.corbett.forms.fields.CheckBoxField;
 import ca.corbett.forms.fields.ComboField;
 import ca.corbett.forms.fields.FileField;
 import ca.corbett.forms.fields.LabelField;
+import ca.corbett.forms.fields.NumberField;
 import ca.corbett.forms.fields.ShortTextField;
 import ca.corbett.forms.validators.FieldValidator;
 import ca.corbett.forms.validators.ValidationResult;
+import ca.corbett.imageviewer.extensions.ice.IceExtension;
+import ca.corbett.imageviewer.extensions.ice.TagIndex;
 import ca.corbett.imageviewer.extensions.ice.TagList;
+import ca.corbett.imageviewer.extensions.ice.query.QueryParseException;
+import ca.corbett.imageviewer.extensions.ice.query.TagQuery;
 import ca.corbett.imageviewer.extensions.ice.threads.SearchThread;
 import ca.corbett.imageviewer.ui.MainWindow;
 import ca.corbett.imageviewer.ui.imagesets.ImageSet;
@@ -22,6 +27,7 @@ import javax.swing.BorderFactory;
 import javax.swing.JButton;
 import javax.swing.JDialog;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
@@ -45,8 +51,14 @@ import java.util.logging.Logger;
  *     <li><b>ALL of these tags</b> candidate images must contain all specified tags in order to match.</li>
  *     <li><b>ANY of these tags</b> candidate images must contain at least one of the specified tags in order to match.</li>
  *     <li><b>NONE of these tags</b> candidate images must not contain any of the specified tags in order to match.</li>
+ *     <li><b>Advanced query</b> a boolean expression like <code>(cat OR dog) AND outdoor AND NOT blurry</code>.
+ *         If given along with any of the above, candidate images must match both.</li>
  * </ul>
  * <p>
+ *     <b>Refining results</b> - optionally, once the results are in, a RefineResultsDialog lists
+ *     the most common tags among them, so that the user can narrow them down a tag at a time.
+ * </p>
+ * <p>
  *     <b>Controlling sort order</b> - by default, search results are returned in whatever
  *     order they are found. You can use the "sort search results by" dropdown to specify a different sort order.
  * </p>
@@ -64,6 +76,10 @@ public class SearchDialog extends JDialog {
     private static String previousTagAllContents = "";
     private static String previousTagAnyContents = "";
     private static String previousTagNoneContents = "";
+    private static String previousQueryContents = "";
+    private static boolean previousFuzzyChecked = false;
+    private static int previousMaxResults = 0;
+    private static boolean previousRefineChecked = false;
 
     private MessageUtil messageUtil;
     private final MainWindow.BrowseMode browseMode;
@@ -75,7 +91,12 @@ public class SearchDialog extends JDialog {
     private ShortTextField tagFieldAll;
     private ShortTextField tagFieldAny;
     private ShortTextField tagFieldNone;
+    private ShortTextField queryField;
+    private CheckBoxField fuzzyField;
     private ComboField<SearchThread.SortMode> sortModeField;
+    private NumberField maxResultsField;
+    private CheckBoxField refineField;
+    private ImageSet streamedResultSet; // created when the first results of a streamed search arrive
 
     public SearchDialog() {
         this("Search");
@@ -83,7 +104,7 @@ public class SearchDialog extends JDialog {
 
     public SearchDialog(String title) {
         super(MainWindow.getInstance(), title, true);
-        setSize(new Dimension(630, 440));
+        setSize(new Dimension(630, 570));
         setResizable(false);
         setLocationRelativeTo(MainWindow.getInstance());
         setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
@@ -95,17 +116,41 @@ public class SearchDialog extends JDialog {
 
     private void doSearch() {
         MultiProgressDialog progressDialog = new MultiProgressDialog(this, "Search in progress");
+        final SearchThread.SortMode sortMode = sortModeField.getSelectedItem();
+        final int maxResults = maxResultsField.getCurrentValue().intValue();
+
+        // If results are wanted in the order they're found, we can show them as they come in,
+        // and stop searching as soon as we have enough. Otherwise we need every match in order to
+        // pick the first ones by the chosen sort order. Result chunks are queued on the EDT ahead
+        // of the completion handling below, so we route that through the EDT as well to make sure
+        // it sees every result:
+        final boolean isStreaming = sortMode == SearchThread.SortMode.FOUND_ORDER_ASCENDING;
         final SearchThread searchThread = createSearchThread();
+        searchThread.setMaxResults(isStreaming ? maxResults : 0);
+        streamedResultSet = null;
+        if (isStreaming) {
+            searchThread.addResultListener(newResults -> SwingUtilities.invokeLater(() -> addStreamedResults(newResults)));
+        }
+
         searchThread.addProgressListener(new MultiProgressAdapter() {
             @Override
             public void progressCanceled() {
-                getMessageUtil().info("Search was canceled.");
+                if (isStreaming) {
+                    SwingUtilities.invokeLater(() -> handleSearchCanceled());
+                }
+                else {
+                    getMessageUtil().info("Search was canceled.");
+                }
             }
 
             @Override
             public void progressComplete() {
-                SearchThread.SortMode sortMode = sortModeField.getSelectedItem();
-                handleSearchComplete(searchThread.wasCanceled(), searchThread.getSearchResults(sortMode));
+                if (isStreaming) {
+                    SwingUtilities.invokeLater(() -> handleSearchComplete(searchThread, sortMode, maxResults));
+                }
+                else {
+                    handleSearchComplete(searchThread, sortMode, maxResults);
+                }
             }
         });
         progressDialog.runWorker(searchThread, true);
@@ -114,30 +159,82 @@ public class SearchDialog extends JDialog {
         previousTagAllContents = tagFieldAll.getText();
         previousTagAnyContents = tagFieldAny.getText();
         previousTagNoneContents = tagFieldNone.getText();
+        previousQueryContents = queryField.getText();
+        previousFuzzyChecked = fuzzyField.isChecked();
+        previousMaxResults = maxResultsField.getCurrentValue().intValue();
+        previousRefineChecked = refineField.isChecked();
     }
 
-    private void handleSearchComplete(boolean wasCanceled, List<File> searchResults) {
-        if (wasCanceled) {
+    private void handleSearchComplete(SearchThread searchThread, SearchThread.SortMode sortMode, int maxResults) {
+        if (searchThread.wasCanceled()) {
             getMessageUtil().info("Search was canceled.");
             return;
         }
-        if (searchResults.isEmpty()) {
-            getMessageUtil().info("Search returned no results.");
+        List<File> searchResults = searchThread.getSearchResults(sortMode, maxResults);
+        boolean wasTruncated = searchThread.wasTruncated() || searchThread.getResultCount() > searchResults.size();
+
+        // If the results were streamed to us, they're already in place:
+        ImageSet resultSet = streamedResultSet;
+        if (resultSet == null) {
+            if (searchResults.isEmpty()) {
+                getMessageUtil().info("Search returned no results.");
+                return;
+            }
+            resultSet = createResultSet();
+            for (File result : searchResults) {
+                resultSet.addImageFilePath(result.getAbsolutePath());
+            }
+            MainWindow.getInstance().getImageSetManager().addImageSet(resultSet);
+        }
+        if (wasTruncated) {
+            getMessageUtil().info("Showing the first " + searchResults.size() + " results.");
+        }
+        boolean shouldRefine = refineField.isChecked() && TagIndex.isEnabled();
+        dispose();
+        MainWindow.getInstance().setBrowseMode(MainWindow.BrowseMode.IMAGE_SET, false);
+        MainWindow.getInstance().getImageSetPanel().resync(resultSet);
+        if (shouldRefine) {
+            new RefineResultsDialog(resultSet).setVisible(true);
+        }
+    }
+
+    /**
+     * A streamed search was canceled: anything it found before that is already in its
+     * image set, so we keep it rather than throw it away.
+     */
+    private void handleSearchCanceled() {
+        if (streamedResultSet == null) {
+            getMessageUtil().info("Search was canceled.");
             return;
         }
+        getMessageUtil().info("Search was canceled. The results found so far have been kept.");
+        dispose();
+        MainWindow.getInstance().getImageSetPanel().resync(streamedResultSet);
+    }
 
+    /**
+     * Adds newly found results to the result set, creating and showing it on the first call,
+     * so the user can start looking at results while the search is still going.
+     */
+    private void addStreamedResults(List<File> newResults) {
+        if (streamedResultSet == null) {
+            streamedResultSet = createResultSet();
+            MainWindow.getInstance().getImageSetManager().addImageSet(streamedResultSet);
+            MainWindow.getInstance().setBrowseMode(MainWindow.BrowseMode.IMAGE_SET, false);
+        }
+        for (File result : newResults) {
+            streamedResultSet.addImageFilePath(result.getAbsolutePath());
+        }
+        MainWindow.getInstance().getImageSetPanel().resync(streamedResultSet);
+    }
+
+    private ImageSet createResultSet() {
         String fullyQualifiedName = createImageSetName(searchNameField.getText());
         ImageSet resultSet = new ImageSet(createImageSetName(fullyQualifiedName));
         if (fullyQualifiedName.startsWith("/ICE/")) {
             resultSet.setTransient(true); // don't persist stuff in /ICE/
         }
-        for (File result : searchResults) {
-            resultSet.addImageFilePath(result.getAbsolutePath());
-        }
-        MainWindow.getInstance().getImageSetManager().addImageSet(resultSet);
-        dispose();
-        MainWindow.getInstance().setBrowseMode(MainWindow.BrowseMode.IMAGE_SET, false);
-        MainWindow.getInstance().getImageSetPanel().resync(resultSet);
+        return resultSet;
     }
 
     private FormPanel buildFormPanel() {
@@ -199,13 +296,48 @@ public class SearchDialog extends JDialog {
         tagFieldNone.getMargins().setLeft(18);
         tagFieldNone.addFieldValidator(new TagFieldValidator());
         formPanel.add(tagFieldNone);
+        queryField = new ShortTextField("Advanced query:", 28);
+        queryField.setText(previousQueryContents);
+        queryField.setHelpText("<html>For example: (cat OR dog) AND outdoor AND NOT blurry<br>" +
+                                       "Wildcards: * matches anything, ? matches one character (car*, *_2024).<br>" +
+                                       "Fuzzy: landscpae~ also matches tags one typo away (~2 for two).<br>" +
+                                       "Put a tag in double quotes if it contains parentheses, * or ?, or is AND, OR or NOT.</html>");
+        queryField.getMargins().setLeft(18);
+        queryField.addFieldValidator(new TagFieldValidator());
+        queryField.addFieldValidator(new FieldValidator<ShortTextField>() {
+            @Override
+            public ValidationResult validate(ShortTextField fieldToValidate) {
+                try {
+                    TagQuery.parse(fieldToValidate.getText());
+                    return ValidationResult.valid();
+                }
+                catch (QueryParseException qpe) {
+                    return ValidationResult.invalid(qpe.getMessage());
+                }
+            }
+        });
+        formPanel.add(queryField);
         formPanel.add(LabelField.createPlainHeaderLabel("(fill in at least one)"));
+        fuzzyField = new CheckBoxField("Also match tags that are one typo away from search tags", previousFuzzyChecked);
+        fuzzyField.setHelpText("Tags shorter than " + TagQuery.MIN_FUZZY_TAG_LENGTH + " characters are always matched exactly.");
+        formPanel.add(fuzzyField);
 
         sortModeField = new ComboField<>("Sort search results by:",
                                          Arrays.asList(SearchThread.SortMode.values()), 0);
         sortModeField.getMargins().setTop(12);
+        sortModeField.setHelpText("With found order, ascending, results are shown as they are found.");
         formPanel.add(sortModeField);
 
+        maxResultsField = new NumberField("Maximum results:", previousMaxResults, 0, Integer.MAX_VALUE, 100);
+        maxResultsField.setHelpText("<html>0 means no limit. In found order, the search stops once it has this many;<br>" +
+                                            "otherwise, the first ones in the chosen sort order are kept.</html>");
+        formPanel.add(maxResultsField);
+
+        refineField = new CheckBoxField("Show the most common tags in the results, to narrow them down",
+                                        previousRefineChecked);
+        refineField.setHelpText("Requires the tag index. Narrowing the results down doesn't search again.");
+        formPanel.add(refineField);
+
         return formPanel;
     }
 
@@ -266,16 +398,37 @@ public class SearchDialog extends JDialog {
         TagList searchAll = TagList.of(tagFieldAll.getText());
         TagList searchAny = TagList.of(tagFieldAny.getText());
         TagList searchNone = TagList.of(tagFieldNone.getText());
-        return !searchAll.isEmpty() || !searchAny.isEmpty() || !searchNone.isEmpty();
+        return !searchAll.isEmpty() || !searchAny.isEmpty() || !searchNone.isEmpty() || !queryField.getText().isBlank();
+    }
+
+    /**
+     * Combines the three tag fields and the advanced query field into a single query.
+     * The advanced query has already been validated by the time we get here.
+     */
+    private TagQuery buildQuery() {
+        TagQuery listQuery = TagQuery.of(TagList.of(tagFieldAll.getText()),
+                                         TagList.of(tagFieldAny.getText()),
+                                         TagList.of(tagFieldNone.getText()));
+        try {
+            return listQuery.and(TagQuery.parse(queryField.getText()));
+        }
+        catch (QueryParseException qpe) {
+            log.warning("SearchDialog: ignoring invalid advanced query: " + qpe.getMessage());
+            return listQuery;
+        }
     }
 
     private SearchThread createSearchThread() {
+        SearchThread searchThread = createSearchThreadForBrowseMode();
+        searchThread.setIndexOnly(IceExtension.getIndexOnlySearchOption(),
+                                  IceExtension.getIndexOnlySearchVerifyOption());
+        searchThread.setFuzzyDistance(fuzzyField.isChecked() ? 1 : 0);
+        return searchThread;
+    }
+
+    private SearchThread createSearchThreadForBrowseMode() {
         if (browseMode == MainWindow.BrowseMode.FILE_SYSTEM) {
-            return new SearchThread(dirField.getFile(),
-                                    recursiveField.isChecked(),
-                                    TagList.of(tagFieldAll.getText()),
-                                    TagList.of(tagFieldAny.getText()),
-                                    TagList.of(tagFieldNone.getText()));
+            return new SearchThread(dirField.getFile(), recursiveField.isChecked(), buildQuery());
         }
 
         final MainWindow mw = MainWindow.getInstance();
@@ -291,10 +444,7 @@ public class SearchDialog extends JDialog {
         else {
             imageSetsToSearch = mw.getImageSetManager().getImageSets();
         }
-        return new SearchThread(imageSetsToSearch,
-                                TagList.of(tagFieldAll.getText()),
-                                TagList.of(tagFieldAny.getText()),
-                                TagList.of(tagFieldNone.getText()));
+        return new SearchThread(imageSetsToSearch, buildQuery());
     }
 
     private MessageUtil getMessageUtil() {
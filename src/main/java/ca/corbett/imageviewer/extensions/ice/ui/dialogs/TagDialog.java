@@ -7,6 +7,7 @@ import ca.corbett.forms.fields.LongTextField;
 import ca.corbett.imageviewer.extensions.ImageViewerExtensionManager;
 import ca.corbett.imageviewer.extensions.ice.TagIndex;
 import ca.corbett.imageviewer.extensions.ice.TagList;
+import ca.corbett.imageviewer.extensions.ice.ui.formfield.TagListValidator;
 import ca.corbett.imageviewer.ui.MainWindow;
 
 import javax.swing.AbstractAction;
@@ -16,25 +17,38 @@ import javax.swing.InputMap;
 import javax.swing.JButton;
 import javax.swing.JComponent;
 import javax.swing.JDialog;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JRootPane;
 import javax.swing.KeyStroke;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.BorderLayout;
+import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
+import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 import java.io.File;
+import java.util.List;
 
 public class TagDialog extends JDialog {
 
+    private static final int TYPO_CHECK_DELAY_MS = 300;
+    private static final int MAX_SUGGESTIONS = 5;
+
     private TagList tagList;
     private LongTextField textField;
+    private JLabel typoLabel;
+    private JPanel suggestionPanel;
+    private Timer typoCheckTimer;
     private final File imageFile;
 
     public TagDialog(String title, File imageFile, TagList tagList) {
         super(MainWindow.getInstance(), title, true);
-        setSize(new Dimension(500, 220));
+        setSize(new Dimension(500, 270));
         setResizable(false);
         setLocationRelativeTo(MainWindow.getInstance());
         setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
@@ -42,8 +56,10 @@ public class TagDialog extends JDialog {
         this.imageFile = imageFile;
         setLayout(new BorderLayout());
         add(buildFormPanel(), BorderLayout.CENTER);
-        add(buildButtonPanel(), BorderLayout.SOUTH);
+        add(buildSouthPanel(), BorderLayout.SOUTH);
         addKeyBindings();
+        addTypoCheck();
+        refreshSuggestions();
     }
 
     private JPanel buildFormPanel() {
@@ -57,6 +73,19 @@ public class TagDialog extends JDialog {
         return formPanel;
     }
 
+    private JPanel buildSouthPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        typoLabel = new JLabel(" "); // a space rather than empty, so the label keeps its height
+        typoLabel.setForeground(Color.RED.darker());
+        typoLabel.setBorder(BorderFactory.createEmptyBorder(0, 20, 4, 8));
+        suggestionPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 4, 0));
+        suggestionPanel.setBorder(BorderFactory.createEmptyBorder(0, 16, 4, 8));
+        panel.add(typoLabel, BorderLayout.NORTH);
+        panel.add(suggestionPanel, BorderLayout.CENTER);
+        panel.add(buildButtonPanel(), BorderLayout.SOUTH);
+        return panel;
+    }
+
     private JPanel buildButtonPanel() {
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
 
@@ -81,12 +110,77 @@ public class TagDialog extends JDialog {
         newList.setPersistenceFile(tagList.getPersistenceFile());
         //newList.addAll(tagList.getTags()); // wtf? why add the original tags instead of just using the text field?
         tagList = newList;
-        tagList.save();
-        TagIndex.getInstance().addOrUpdateEntry(imageFile, tagList.getPersistenceFile());
+        TagIndex.getInstance().saveTagList(imageFile, tagList);
         ImageViewerExtensionManager.getInstance().imageSelected(MainWindow.getInstance().getSelectedImage());
         dispose();
     }
 
+    /**
+     * Offers a button for each of a few tags that often go with the tags entered so far
+     * (see TagIndex.suggestRelatedTags()). Clicking one adds that tag to the list.
+     */
+    private void refreshSuggestions() {
+        suggestionPanel.removeAll();
+        if (TagIndex.isEnabled()) {
+            TagList currentTags = TagList.of(textField.getText());
+            List<String> suggestions = TagIndex.getInstance().suggestRelatedTags(currentTags, MAX_SUGGESTIONS);
+            if (!suggestions.isEmpty()) {
+                suggestionPanel.add(new JLabel("Suggested:"));
+            }
+            for (String suggestion : suggestions) {
+                JButton button = new JButton(suggestion);
+                button.setMargin(new Insets(0, 4, 0, 4));
+                button.addActionListener(e -> addTag(suggestion));
+                suggestionPanel.add(button);
+            }
+        }
+        suggestionPanel.revalidate();
+        suggestionPanel.repaint();
+    }
+
+    private void addTag(String tag) {
+        String text = textField.getText().strip();
+        textField.setText(text.isEmpty() ? tag : text + ", " + tag);
+    }
+
+    /**
+     * Checks for likely typos shortly after the user stops typing, and shows any we find
+     * above the buttons. This is only a hint; it never prevents saving. Tag suggestions
+     * are refreshed at the same time.
+     */
+    private void addTypoCheck() {
+        typoCheckTimer = new Timer(TYPO_CHECK_DELAY_MS, e -> {
+            String warning = TagListValidator.getTypoWarning(textField.getText());
+            typoLabel.setText(warning == null ? " " : warning);
+            refreshSuggestions();
+        });
+        typoCheckTimer.setRepeats(false);
+        textField.getTextArea().getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                typoCheckTimer.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                typoCheckTimer.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                typoCheckTimer.restart();
+            }
+        });
+    }
+
+    @Override
+    public void dispose() {
+        if (typoCheckTimer != null) {
+            typoCheckTimer.stop();
+        }
+        super.dispose();
+    }
+
     private void addKeyBindings() {
         // Modify our text area so that "enter" key triggers the dialog save:
         InputMap im = textField.getTextArea().getInputMap(JComponent.WHEN_FOCUSED);
@@ -8,7 +8,10 @@ import ca.corbett.forms.Alignment;
 import ca.corbett.forms.FormPanel;
 import ca.corbett.forms.fields.CheckBoxField;
 import ca.corbett.forms.fields.LabelField;
+import ca.corbett.imageviewer.extensions.ice.TagIndex;
+import ca.corbett.imageviewer.extensions.ice.TagIndexEntry;
 import ca.corbett.imageviewer.extensions.ice.TagList;
+import ca.corbett.imageviewer.extensions.ice.index.DirectoryStats;
 import ca.corbett.imageviewer.ui.ThumbContainerPanel;
 import org.apache.commons.io.FilenameUtils;
 
@@ -28,6 +31,13 @@ import java.util.logging.Logger;
 /**
  * Shows statistics about tagged/untagged images in a directory, with optional recursion.
  * This dialog is only available in file system browse mode.
+ * <p>
+ *     If the tag index is enabled, the tag statistics come from the per-directory totals that
+ *     the index keeps, and the only tag files we read are ones the index doesn't know about yet
+ *     (which are added to it as we go). We still have to list the directory to count untagged
+ *     images, since the index only knows about tagged ones. With the index disabled, we fall
+ *     back to reading every tag file.
+ * </p>
  *
  * @author <a href="https://github.com/scorbo2">scorbo2</a>
  * @since 2.4.0
@@ -36,12 +46,15 @@ public class TagDirStatsDialog extends JDialog {
 
     private final static Logger log = Logger.getLogger(TagDirStatsDialog.class.getName());
 
+    private static final int TOP_TAG_COUNT = 5;
+
     private final File directory;
     private final CheckBoxField recursiveField;
     private final LabelField totalLabel;
     private final LabelField taggedLabel;
     private final LabelField untaggedLabel;
     private final LabelField averageLabel;
+    private final LabelField topTagsLabel;
     private boolean isScanInProgress = false;
 
     public TagDirStatsDialog(Frame owner, File dir) {
@@ -54,6 +67,7 @@ public class TagDirStatsDialog extends JDialog {
         taggedLabel = new LabelField("Total tagged: ", "0");
         untaggedLabel = new LabelField("Total untagged: ", "0");
         averageLabel = new LabelField("Average tags: ", "0");
+        topTagsLabel = new LabelField("Top tags: ", "");
         FormPanel formPanel = new FormPanel(Alignment.TOP_LEFT);
         formPanel.setBorderMargin(16);
         formPanel.add(List.of(
@@ -61,14 +75,15 @@ public class TagDirStatsDialog extends JDialog {
                 totalLabel,
                 taggedLabel,
                 untaggedLabel,
-                averageLabel
+                averageLabel,
+                topTagsLabel
         ));
 
         setLayout(new BorderLayout());
         add(formPanel, BorderLayout.CENTER);
         add(buildButtonPanel(), BorderLayout.SOUTH);
 
-        setSize(400, 300);
+        setSize(400, 330);
         setResizable(false);
         setLocationRelativeTo(owner);
         setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
@@ -140,6 +155,7 @@ public class TagDirStatsDialog extends JDialog {
         private int taggedCount;
         private int untaggedCount;
         private int averageTags;
+        private String topTags;
 
         public ScanWorker(File dir, boolean recursive) {
             this.dir = dir;
@@ -152,8 +168,10 @@ public class TagDirStatsDialog extends JDialog {
             taggedCount = 0;
             untaggedCount = 0;
             averageTags = 0;
+            topTags = "";
 
-            int totalTagsFound = 0;
+            long totalTagsFound = 0;
+            boolean useIndex = TagIndex.isEnabled();
 
             List<File> allFiles = FileSystemUtil.findFiles(dir, recursive)
                                                 .stream()
@@ -166,12 +184,28 @@ public class TagDirStatsDialog extends JDialog {
                     File candidate = allFiles.get(i);
                     imageCount++;
 
-                    File iceFile = getICEFile(candidate);
-                    if (iceFile != null) {
-                        taggedCount++;
-                        totalTagsFound += TagList.fromFile(iceFile).size();
-                    } else {
-                        untaggedCount++;
+                    if (useIndex) {
+                        // Count from the listing rather than the index's totals, which can include
+                        // entries for images that are no longer on disk:
+                        TagIndexEntry entry = TagIndex.getInstance().getEntry(candidate);
+                        if (entry == null) {
+                            File iceFile = getICEFile(candidate);
+                            if (iceFile != null) {
+                                TagIndex.getInstance().addOrUpdateEntry(candidate, iceFile);
+                                entry = TagIndex.getInstance().getEntry(candidate);
+                            }
+                        }
+                        if (entry != null) {
+                            taggedCount++;
+                            totalTagsFound += entry.getTagCount();
+                        }
+                    }
+                    else {
+                        File iceFile = getICEFile(candidate);
+                        if (iceFile != null) {
+                            taggedCount++;
+                            totalTagsFound += TagList.fromFile(iceFile).size();
+                        }
                     }
 
                     // Update progress
@@ -181,7 +215,13 @@ public class TagDirStatsDialog extends JDialog {
                     }
                 }
 
-                averageTags = (imageCount > 0) ? (totalTagsFound / imageCount) : 0;
+                if (useIndex) {
+                    DirectoryStats stats = TagIndex.getInstance().getDirectoryStats(dir, recursive);
+                    topTags = String.join(", ", stats.getMostFrequentTags(TOP_TAG_COUNT));
+                }
+                untaggedCount = imageCount - taggedCount;
+
+                averageTags = (imageCount > 0) ? (int)(totalTagsFound / imageCount) : 0;
 
                 // Update UI fields with final counts, but do it on the Swing EDT thread:
                 SwingUtilities.invokeLater(() -> {
@@ -189,6 +229,7 @@ public class TagDirStatsDialog extends JDialog {
                     taggedLabel.setText(taggedCount + " tagged");
                     untaggedLabel.setText(untaggedCount + " untagged");
                     averageLabel.setText(averageTags + " tags per image");
+                    topTagsLabel.setText(topTags);
                 });
             }
             finally {
@@ -30,7 +30,7 @@ public class TagStatsDialog extends JDialog {
 
     public TagStatsDialog() {
         super(MainWindow.getInstance(), "Tag index statistics", true);
-        setSize(new Dimension(600,240));
+        setSize(new Dimension(600,270));
         setLocationRelativeTo(MainWindow.getInstance());
         setResizable(false);
         setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
@@ -65,9 +65,12 @@ public class TagStatsDialog extends JDialog {
         String fileSize = FileSystemUtil.getPrintableSize(TagIndex.getInstance().fileSize());
         formPanel.add(new LabelField("Tag file size:", fileSize));
 
+        List<String> excludedTags = List.of("square", "landscape", "portrait");
         TagList popularTags = new TagList();
-        popularTags.addAll(TagIndex.getInstance().getMostFrequentTags(5, List.of("square", "landscape", "portrait")));
+        popularTags.addAll(TagIndex.getInstance().getMostFrequentTags(5, excludedTags));
         formPanel.add(new LabelField("Popular tags:", popularTags.toString()));
+        String commonPairs = String.join(", ", TagIndex.getInstance().getMostCommonTagPairs(3, excludedTags));
+        formPanel.add(new LabelField("Common pairs:", commonPairs));
 
         return formPanel;
     }
@@ -5,14 +5,22 @@ import ca.corbett.forms.fields.LongTextField;
 import ca.corbett.forms.fields.ShortTextField;
 import ca.corbett.forms.validators.FieldValidator;
 import ca.corbett.forms.validators.ValidationResult;
+import ca.corbett.imageviewer.extensions.ice.TagIndex;
 import ca.corbett.imageviewer.extensions.ice.TagList;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
  * Attach this validator to any ShortTextField or LongTextField to ensure that the given
  * input is a valid, non-empty tag list according to the rules of our TagList class.
  * See TagList.isValidNonEmptyTagString().
+ * <p>
+ *     Likely typos aren't a validation failure - a brand new tag that happens to be close
+ *     to an existing one is perfectly legal - but getTypoWarning() can be used to point
+ *     them out to the user as they type, without blocking the save.
+ * </p>
  *
  * @author <a href="https://github.com/scorbo2">scorbo2</a>
  */
@@ -54,4 +62,24 @@ public class TagListValidator implements FieldValidator<FormField> {
 
         return ValidationResult.valid();
     }
+
+    /**
+     * Checks each tag in the given tag string against the tag index, and returns a short
+     * message like "Did you mean landscape (not landscpae)?" for any that look like typos of
+     * tags that are already in use. Returns null if nothing looks wrong, or if the tag index
+     * is disabled. See TagIndex.suggestCorrection() for what counts as a likely typo.
+     */
+    public static String getTypoWarning(String tagString) {
+        if (tagString == null || tagString.isBlank() || !TagIndex.isEnabled()) {
+            return null;
+        }
+        List<String> corrections = new ArrayList<>();
+        for (String tag : TagList.of(tagString).getTags()) {
+            String suggestion = TagIndex.getInstance().suggestCorrection(tag);
+            if (suggestion != null) {
+                corrections.add(suggestion + " (not " + tag + ")");
+            }
+        }
+        return corrections.isEmpty() ? null : "Did you mean " + String.join(", ", corrections) + "?";
+    }
 }
@@ -0,0 +1,193 @@
+package ca.corbett.imageviewer.extensions.ice;
+
+import ca.corbett.extensions.AppExtensionInfo;
+import ca.corbett.extras.io.FileSystemUtil;
+import ca.corbett.extras.properties.BooleanProperty;
+import ca.corbett.extras.properties.PropertiesManager;
+import ca.corbett.imageviewer.AppConfig;
+import ca.corbett.imageviewer.extensions.ice.threads.ScanThread;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScanThreadTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static AppConfig appConfig;
+    private TagIndex tagIndex;
+    private File root;
+    private int imageCount;
+
+    @BeforeAll
+    public static void setUpClass() {
+        appConfig = Mockito.mock(AppConfig.class);
+        PropertiesManager propsManager = Mockito.mock(PropertiesManager.class);
+        Mockito.when(appConfig.getPropertiesManager()).thenReturn(propsManager);
+        Mockito.when(propsManager.getProperty(TagIndex.PROP_NAME))
+               .thenReturn(new BooleanProperty(TagIndex.PROP_NAME, "isEnabled", true));
+        IceExtension.extInfo = new AppExtensionInfo.Builder("Test").setVersion("2.2.1").build();
+    }
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        tagIndex = TagIndex.getInstance();
+        tagIndex.setAppConfigProvider(() -> appConfig);
+        tagIndex.setIndexFile(new File(tempDir.toFile(), "tagIndex.ice"));
+        tagIndex.clear();
+        root = new File(tempDir.toFile(), "photos");
+        createTree();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        tagIndex.clear();
+        tagIndex.setAppConfigProvider(null);
+    }
+
+    @Test
+    public void testRun_inParallel_shouldBuildSameIndexAsSequentialScan() {
+        // GIVEN the index a single-threaded scan builds:
+        ScanThread sequentialScan = new ScanThread(root, true, 1, ScanThread.ScanMode.FULL);
+        sequentialScan.run();
+        List<String> sequentialIndex = describeIndex();
+        assertEquals(imageCount, sequentialIndex.size());
+        tagIndex.clear();
+
+        // WHEN we scan the same tree with many threads:
+        ScanThread parallelScan = new ScanThread(root, true, 8, ScanThread.ScanMode.FULL);
+        parallelScan.run();
+
+        // THEN we should end up with exactly the same index:
+        assertEquals(sequentialIndex, describeIndex());
+        assertEquals(sequentialScan.getEntriesCreated(), parallelScan.getEntriesCreated());
+        assertEquals(0, parallelScan.getEntriesUpdated());
+
+        // AND the scan's pool should have been shut down behind it:
+        assertTrue(awaitNoScanWorkers(), "scan worker threads still running");
+    }
+
+    @Test
+    public void testRun_whenCanceled_shouldStopWithoutLeavingTasksRunning() throws Exception {
+        // GIVEN a scan whose workers are held up as soon as they try to add an entry to the index:
+        CountDownLatch workerArrived = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        tagIndex.setAppConfigProvider(() -> {
+            if (Thread.currentThread() instanceof ForkJoinWorkerThread) {
+                workerArrived.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return appConfig;
+        });
+
+        // WHEN the user cancels from the progress dialog while they're waiting:
+        ScanThread scanThread = new ScanThread(root, true, 4, ScanThread.ScanMode.FULL) {
+            @Override
+            protected boolean fireMinorProgressUpdate(int majorStep, int minorStep, String message) {
+                if (workerArrived.getCount() == 0) {
+                    release.countDown();
+                    return false;
+                }
+                return true;
+            }
+        };
+        scanThread.run();
+
+        // THEN the scan should have stopped early, and taken its pool down with it:
+        assertEquals(0, release.getCount(), "scan finished before it could be canceled");
+        int indexedAfterCancel = tagIndex.size();
+        assertTrue(indexedAfterCancel < imageCount, "indexed " + indexedAfterCancel + " of " + imageCount);
+        assertTrue(awaitNoScanWorkers(), "scan worker threads still running");
+
+        // AND nothing should still be adding to the index behind our back:
+        Thread.sleep(200);
+        assertEquals(indexedAfterCancel, tagIndex.size());
+    }
+
+    /**
+     * Creates a few levels of directories with tagged images in each, plus an untagged image
+     * and a tag file with no image, neither of which should be indexed.
+     */
+    private void createTree() throws IOException {
+        imageCount = 0;
+        for (int i = 0; i < 4; i++) {
+            File dir = new File(root, "dir" + i);
+            createImages(dir, 30);
+            for (int j = 0; j < 3; j++) {
+                createImages(new File(dir, "sub" + j), 20);
+            }
+        }
+        assertTrue(new File(root, "untagged.jpg").createNewFile());
+        FileSystemUtil.writeStringToFile("orphan\n", new File(root, "orphan.ice"));
+    }
+
+    private void createImages(File dir, int count) throws IOException {
+        assertTrue(dir.mkdirs());
+        for (int i = 0; i < count; i++) {
+            assertTrue(new File(dir, "image" + i + ".jpg").createNewFile());
+            String tags = "tag" + (i % 7) + "\n" + dir.getName() + "\n" + (i % 2 == 0 ? "even\n" : "");
+            FileSystemUtil.writeStringToFile(tags, new File(dir, "image" + i + ".ice"));
+            imageCount++;
+        }
+    }
+
+    private List<String> describeIndex() {
+        List<String> description = new ArrayList<>();
+        for (TagIndexEntry entry : tagIndex.getEntries(root, true)) {
+            description.add(entry.getImageFile().getAbsolutePath() + "|" + entry.getTagList()
+                                    + "|" + entry.getTagFileSize() + "|" + entry.getTagFileLastModified());
+        }
+        Collections.sort(description);
+        return description;
+    }
+
+    /**
+     * Waits a little while for any ForkJoinPool workers other than the common pool's to exit.
+     */
+    private static boolean awaitNoScanWorkers() {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            boolean found = false;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread instanceof ForkJoinWorkerThread worker && worker.getPool() != ForkJoinPool.commonPool()
+                        && thread.isAlive()) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return true;
+            }
+            try {
+                Thread.sleep(20);
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+}
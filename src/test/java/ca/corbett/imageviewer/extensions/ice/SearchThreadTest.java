@@ -0,0 +1,265 @@
+package ca.corbett.imageviewer.extensions.ice;
+
+import ca.corbett.extensions.AppExtensionInfo;
+import ca.corbett.extras.io.FileSystemUtil;
+import ca.corbett.extras.properties.BooleanProperty;
+import ca.corbett.extras.properties.PropertiesManager;
+import ca.corbett.imageviewer.AppConfig;
+import ca.corbett.imageviewer.extensions.ice.io.DirectoryListingCache;
+import ca.corbett.imageviewer.extensions.ice.threads.SearchThread;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchThreadTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static AppConfig appConfig;
+    private TagIndex tagIndex;
+    private File root;
+
+    @BeforeAll
+    public static void setUpClass() {
+        appConfig = Mockito.mock(AppConfig.class);
+        PropertiesManager propsManager = Mockito.mock(PropertiesManager.class);
+        Mockito.when(appConfig.getPropertiesManager()).thenReturn(propsManager);
+        Mockito.when(propsManager.getProperty(TagIndex.PROP_NAME))
+               .thenReturn(new BooleanProperty(TagIndex.PROP_NAME, "isEnabled", true));
+        IceExtension.extInfo = new AppExtensionInfo.Builder("Test").setVersion("2.2.1").build();
+    }
+
+    @BeforeEach
+    public void setUp() {
+        tagIndex = TagIndex.getInstance();
+        tagIndex.setAppConfigProvider(() -> appConfig);
+        tagIndex.setIndexFile(new File(tempDir.toFile(), "tagIndex.ice"));
+        tagIndex.clear();
+        root = new File(tempDir.toFile(), "photos");
+        assertTrue(root.mkdirs());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        tagIndex.clear();
+        tagIndex.setAppConfigProvider(null);
+    }
+
+    @Test
+    public void testRun_inFilesMode_shouldSeeTagFilesTheIndexHasNotSeen() throws IOException {
+        // GIVEN a files-mode search that has already been run (twice, so the index has settled):
+        createImageWithTags("image1", "cat");
+        assertEquals(1, search("cat").getResultCount());
+        assertEquals(1, search("cat").getResultCount());
+
+        // WHEN a matching tag file appears without the index hearing about it:
+        createImageWithTags("image2", "cat");
+        DirectoryListingCache.getInstance().invalidate(root);
+
+        // THEN running the search again should find it:
+        assertEquals(2, search("cat").getResultCount());
+    }
+
+    @Test
+    public void testGetSearchResults_byDate_shouldUseCurrentImageDates() throws IOException {
+        // GIVEN three images that have been searched for (and so indexed) in date order:
+        File image1 = createImageWithTags("image1", "cat");
+        File image2 = createImageWithTags("image2", "cat");
+        File image3 = createImageWithTags("image3", "cat");
+        assertTrue(image1.setLastModified(1_700_000_001_000L));
+        assertTrue(image2.setLastModified(1_700_000_002_000L));
+        assertTrue(image3.setLastModified(1_700_000_003_000L));
+        SearchThread searchThread = search("cat");
+
+        // WHEN the oldest image is edited after that:
+        assertTrue(image1.setLastModified(1_700_000_005_000L));
+
+        // THEN sorting by date should see its new timestamp:
+        assertEquals(List.of(image2, image3, image1), searchThread.getSearchResults(SearchThread.SortMode.DATE_ASCENDING));
+        assertEquals(List.of(image1), searchThread.getSearchResults(SearchThread.SortMode.DATE_DESCENDING, 1));
+    }
+
+    @Test
+    public void testGetSearchResults_withLimit_shouldMatchFullSort() throws IOException {
+        // GIVEN eight results, several of which share a date:
+        long[] dates = {3, 1, 2, 1, 3, 2, 1, 3};
+        for (int i = 0; i < dates.length; i++) {
+            File image = createImageWithTags("image" + i, "cat");
+            assertTrue(image.setLastModified(1_700_000_000_000L + dates[i] * 1000));
+        }
+        SearchThread searchThread = search("cat");
+        assertEquals(dates.length, searchThread.getResultCount());
+
+        for (SearchThread.SortMode sortMode : List.of(SearchThread.SortMode.DATE_ASCENDING,
+                                                      SearchThread.SortMode.DATE_DESCENDING,
+                                                      SearchThread.SortMode.FILENAME_ASCENDING,
+                                                      SearchThread.SortMode.FILENAME_DESCENDING,
+                                                      SearchThread.SortMode.PATH_ASCENDING,
+                                                      SearchThread.SortMode.PATH_DESCENDING)) {
+            // WHEN we ask for the first few results, which picks them out without a full sort:
+            List<File> allResults = searchThread.getSearchResults(sortMode);
+
+            // THEN we should get exactly the start of the fully sorted list:
+            for (int limit = 1; limit <= dates.length; limit++) {
+                assertEquals(allResults.subList(0, limit), searchThread.getSearchResults(sortMode, limit),
+                             sortMode + " limited to " + limit);
+            }
+        }
+    }
+
+    @Test
+    public void testGetSearchResults_withTiedDates_shouldKeepFoundOrder() throws IOException {
+        // GIVEN results that all share one of two dates:
+        for (int i = 0; i < 6; i++) {
+            File image = createImageWithTags("image" + i, "cat");
+            assertTrue(image.setLastModified(1_700_000_000_000L + (i % 2) * 1000));
+        }
+        SearchThread searchThread = search("cat");
+        List<File> foundOrder = searchThread.getSearchResults(SearchThread.SortMode.FOUND_ORDER_ASCENDING);
+
+        // WHEN we sort them by date, with and without a limit:
+        List<File> allResults = searchThread.getSearchResults(SearchThread.SortMode.DATE_ASCENDING);
+        List<File> firstResults = searchThread.getSearchResults(SearchThread.SortMode.DATE_ASCENDING, 2);
+
+        // THEN images with the same date should stay in the order they were found:
+        List<File> expected = new ArrayList<>(foundOrder);
+        expected.sort(Comparator.comparingLong(File::lastModified)); // a stable sort
+        assertEquals(expected, allResults);
+        assertEquals(expected.subList(0, 2), firstResults);
+    }
+
+    @Test
+    public void testRun_whenImageIdsAreReusedDuringSearch_shouldNotMixUpImages() throws IOException {
+        // GIVEN two indexed images, only one of which matches:
+        File cat = createImageWithTags("image1", "cat");
+        File dog = createImageWithTags("image2", "dog");
+        search("cat");
+        int catImageId = tagIndex.getEntry(cat).getImageId();
+
+        // WHEN, once the search has its matches from the index, both are re-added so that they swap image ids:
+        SearchThread searchThread = new SearchThread(root, true, TagList.of("cat"), new TagList(), new TagList()) {
+            private boolean swapped;
+
+            @Override
+            protected boolean fireMinorProgressUpdate(int majorStep, int minorStep, String message) {
+                if (!swapped) {
+                    swapped = true;
+                    tagIndex.removeEntry(dog);
+                    tagIndex.removeEntry(cat);
+                    tagIndex.addOrUpdateEntry(dog, new File(root, "image2.ice"));
+                    tagIndex.addOrUpdateEntry(cat, new File(root, "image1.ice"));
+                }
+                return true;
+            }
+        };
+        searchThread.run();
+        assertEquals(catImageId, tagIndex.getEntry(dog).getImageId());
+
+        // THEN the search should still find the right image, and only that one:
+        assertEquals(List.of(cat), searchThread.getSearchResults(SearchThread.SortMode.FOUND_ORDER_ASCENDING));
+    }
+
+    @Test
+    public void testRun_withResultListener_shouldDeliverEveryResultInChunks() throws IOException {
+        // GIVEN more matches than fit in one chunk, mixed in with images that don't match:
+        for (int i = 0; i < 600; i++) {
+            createImageWithTags(String.format("image%03d", i), i % 5 == 0 ? "dog" : "cat");
+        }
+        SearchThread searchThread = new SearchThread(root, true, TagList.of("cat"), new TagList(), new TagList());
+        List<List<File>> chunks = new ArrayList<>();
+        searchThread.addResultListener(chunks::add);
+
+        // WHEN we run the search:
+        searchThread.run();
+
+        // THEN the chunks should add up to exactly the results, in found order:
+        assertTrue(chunks.size() > 1, "expected several chunks, got " + chunks.size());
+        List<File> streamed = new ArrayList<>();
+        chunks.forEach(streamed::addAll);
+        assertEquals(480, searchThread.getResultCount());
+        assertEquals(searchThread.getSearchResults(SearchThread.SortMode.FOUND_ORDER_ASCENDING), streamed);
+    }
+
+    @Test
+    public void testRun_withMaxResults_shouldStopAfterThatManyMatches() throws IOException {
+        // GIVEN twenty matches, and what a search without a limit finds:
+        for (int i = 0; i < 20; i++) {
+            createImageWithTags(String.format("image%02d", i), "cat");
+        }
+        List<File> allResults = search("cat").getSearchResults(SearchThread.SortMode.FOUND_ORDER_ASCENDING);
+
+        // WHEN we search again, stopping after five:
+        AtomicInteger candidatesLookedAt = new AtomicInteger();
+        SearchThread searchThread = new SearchThread(root, true, TagList.of("cat"), new TagList(), new TagList()) {
+            @Override
+            protected boolean fireMinorProgressUpdate(int majorStep, int minorStep, String message) {
+                candidatesLookedAt.incrementAndGet();
+                return true;
+            }
+        };
+        searchThread.setMaxResults(5);
+        List<File> streamed = new ArrayList<>();
+        searchThread.addResultListener(streamed::addAll);
+        searchThread.run();
+
+        // THEN we should get the first five, without having looked at the rest:
+        assertTrue(searchThread.wasTruncated());
+        assertFalse(searchThread.wasCanceled());
+        assertEquals(allResults.subList(0, 5), searchThread.getSearchResults(SearchThread.SortMode.FOUND_ORDER_ASCENDING));
+        assertEquals(allResults.subList(0, 5), streamed);
+        assertEquals(5, candidatesLookedAt.get());
+    }
+
+    @Test
+    public void testRun_whenCanceled_shouldKeepAndDeliverPartialResults() throws IOException {
+        // GIVEN a search that the user cancels part way through:
+        for (int i = 0; i < 20; i++) {
+            createImageWithTags(String.format("image%02d", i), "cat");
+        }
+        SearchThread searchThread = new SearchThread(root, true, TagList.of("cat"), new TagList(), new TagList()) {
+            @Override
+            protected boolean fireMinorProgressUpdate(int majorStep, int minorStep, String message) {
+                return minorStep < 7;
+            }
+        };
+        List<File> streamed = new ArrayList<>();
+        searchThread.addResultListener(streamed::addAll);
+
+        // WHEN it runs:
+        searchThread.run();
+
+        // THEN whatever it found before then should be kept, and handed to the listener too:
+        assertTrue(searchThread.wasCanceled());
+        assertEquals(8, searchThread.getResultCount()); // the candidate we were on when canceled still counts
+        assertEquals(searchThread.getSearchResults(SearchThread.SortMode.FOUND_ORDER_ASCENDING), streamed);
+    }
+
+    private SearchThread search(String tags) {
+        SearchThread searchThread = new SearchThread(root, true, TagList.of(tags), new TagList(), new TagList());
+        searchThread.run();
+        assertFalse(searchThread.wasCanceled());
+        return searchThread;
+    }
+
+    private File createImageWithTags(String baseName, String tags) throws IOException {
+        File imageFile = new File(root, baseName + ".jpg");
+        assertTrue(imageFile.createNewFile());
+        FileSystemUtil.writeStringToFile(String.join("\n", tags.split(",\\s*")) + "\n",
+                                         new File(root, baseName + ".ice"));
+        return imageFile;
+    }
+}
@@ -5,6 +5,11 @@ import ca.corbett.extras.io.FileSystemUtil;
 import ca.corbett.extras.properties.BooleanProperty;
 import ca.corbett.extras.properties.PropertiesManager;
 import ca.corbett.imageviewer.AppConfig;
+import ca.corbett.imageviewer.extensions.ice.io.DirectoryScanState;
+import ca.corbett.imageviewer.extensions.ice.io.FileAttributes;
+import ca.corbett.imageviewer.extensions.ice.io.TagFileHash;
+import ca.corbett.imageviewer.extensions.ice.query.TagQuery;
+import ca.corbett.imageviewer.extensions.ice.threads.ScanThread;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
@@ -14,13 +19,19 @@ import org.mockito.Mockito;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -39,6 +50,7 @@ class TagIndexTest {
 
     private static AppConfig appConfig;
     private static BooleanProperty enabledProp;
+    private static BooleanProperty contentHashProp;
     private static PropertiesManager propsManager;
     private TagIndex tagIndex;
 
@@ -50,6 +62,8 @@ class TagIndexTest {
         enabledProp = new BooleanProperty(TagIndex.PROP_NAME, "isEnabled", true);
         Mockito.when(appConfig.getPropertiesManager()).thenReturn(propsManager);
         Mockito.when(propsManager.getProperty(TagIndex.PROP_NAME)).thenReturn(enabledProp);
+        contentHashProp = new BooleanProperty(TagIndex.CONTENT_HASH_PROP_NAME, "hashTagFiles", false);
+        Mockito.when(propsManager.getProperty(TagIndex.CONTENT_HASH_PROP_NAME)).thenReturn(contentHashProp);
 
         IceExtension.extInfo = new AppExtensionInfo.Builder("Test")
                 .setVersion("2.2.1")
@@ -74,6 +88,7 @@ class TagIndexTest {
         tagIndex.clear(); // Clean up after each test
         tagIndex.setAppConfigProvider(null); // Remove custom AppConfig provider
         enabledProp.setValue(true); // Reset to enabled if any test disabled it
+        contentHashProp.setValue(false);
     }
 
     @Test
@@ -181,6 +196,73 @@ class TagIndexTest {
         enabledProp.setValue(true);
     }
 
+    @Test
+    public void testSaveTagList_shouldWriteFileAndUpdateIndexFromMemory() throws IOException {
+        // GIVEN an image with no tag file yet:
+        File imageFile = new File(tempDir.toFile(), "image.jpg");
+        assertTrue(imageFile.createNewFile());
+        File tagFile = new File(tempDir.toFile(), "image.ice");
+        TagList tagList = TagList.of("cat,dog");
+        tagList.setPersistenceFile(tagFile);
+
+        // WHEN we save its tags through the index:
+        assertTrue(tagIndex.saveTagList(imageFile, tagList));
+
+        // THEN the tag file should be written, and the entry should match it exactly:
+        assertEquals(List.of("cat", "dog"), TagList.fromFile(tagFile).getTags());
+        TagIndexEntry entry = tagIndex.getEntry(imageFile);
+        assertNotNull(entry);
+        assertEquals(tagFile.length(), entry.getTagFileSize());
+        assertEquals(tagFile.lastModified(), entry.getTagFileLastModified());
+        assertEquals(1, tagIndex.getTagCount("cat"));
+
+        // AND a scan afterwards should have nothing to do:
+        ScanThread scanThread = new ScanThread(tempDir.toFile(), false, 2, ScanThread.ScanMode.FULL);
+        scanThread.run();
+        assertEquals(1, scanThread.getEntriesSkippedBecauseUpToDate());
+        assertEquals(0, scanThread.getEntriesUpdated());
+    }
+
+    @Test
+    public void testPutEntry_withSameMetadataButDifferentTags_shouldUpdate() throws IOException {
+        // GIVEN an entry for a tag file:
+        File imageFile = new File(tempDir.toFile(), "image.jpg");
+        File tagFile = createTestTagFile("image.ice", "cat");
+        tagIndex.addOrUpdateEntry(imageFile, tagFile);
+        FileAttributes attributes = FileAttributes.read(tagFile);
+
+        // WHEN it's rewritten too quickly for its size or timestamp to change:
+        TagList rewritten = TagList.of("dog");
+        rewritten.setPersistenceFile(tagFile);
+        TagIndex.EntryAddResult result = tagIndex.putEntry(imageFile, rewritten, attributes, TagFileHash.NONE);
+
+        // THEN the entry should still be updated, since we know what was written:
+        assertEquals(TagIndex.EntryAddResult.ExistingEntryUpdated, result);
+        assertEquals(0, tagIndex.getTagCount("cat"));
+        assertEquals(1, tagIndex.getTagCount("dog"));
+
+        // AND putting the same tags again should change nothing:
+        assertEquals(TagIndex.EntryAddResult.SkippedBecauseUpToDate,
+                     tagIndex.putEntry(imageFile, rewritten, attributes, TagFileHash.NONE));
+    }
+
+    @Test
+    public void testSaveTagList_whenDisabled_shouldStillWriteFile() {
+        // GIVEN a disabled tag index
+        enabledProp.setValue(false);
+        File imageFile = new File(tempDir.toFile(), "image.jpg");
+        File tagFile = new File(tempDir.toFile(), "image.ice");
+        TagList tagList = TagList.of("cat");
+        tagList.setPersistenceFile(tagFile);
+
+        // WHEN we save tags through it:
+        assertTrue(tagIndex.saveTagList(imageFile, tagList));
+
+        // THEN the tags should be saved, but not indexed:
+        assertEquals(List.of("cat"), TagList.fromFile(tagFile).getTags());
+        assertNull(tagIndex.getEntry(imageFile));
+    }
+
     @Test
     public void testRemoveEntry_withExistingEntry_shouldRemove() throws IOException {
         // GIVEN an entry in the index
@@ -367,6 +449,37 @@ class TagIndexTest {
         assertTrue(result.contains("test"));
     }
 
+    @Test
+    public void testGetMostFrequentTags_afterUpdateAndRemove_shouldReflectCurrentCounts() throws IOException {
+        // GIVEN entries where "hello" is initially the most common tag
+        File image1 = new File(tempDir.toFile(), "image1.jpg");
+        File tag1 = createTestTagFile("tag1.ice", "hello, world");
+        tagIndex.addOrUpdateEntry(image1, tag1);
+
+        File image2 = new File(tempDir.toFile(), "image2.jpg");
+        File tag2 = createTestTagFile("tag2.ice", "hello, world");
+        tagIndex.addOrUpdateEntry(image2, tag2);
+
+        File image3 = new File(tempDir.toFile(), "image3.jpg");
+        File tag3 = createTestTagFile("tag3.ice", "hello");
+        tagIndex.addOrUpdateEntry(image3, tag3);
+
+        // WHEN we retag one image and remove another
+        createTestTagFile("tag3.ice", "world, foo");
+        tagIndex.addOrUpdateEntry(image3, tag3);
+        tagIndex.removeEntry(image1);
+
+        // THEN the counts should follow, with ties broken alphabetically
+        assertEquals(List.of("world", "foo", "hello"), tagIndex.getMostFrequentTags(10, null));
+        assertEquals(2, tagIndex.getTagCount("world"));
+        assertEquals(1, tagIndex.getTagCount("hello"));
+
+        // AND clearing the index should reset them
+        tagIndex.clear();
+        assertTrue(tagIndex.getMostFrequentTags(10, null).isEmpty());
+        assertEquals(0, tagIndex.getTagCount("world"));
+    }
+
     @Test
     public void testGetMostFrequentTags_withLimitSmallerThanUniqueTagCount_shouldReturnLimitedResults() throws IOException {
         // GIVEN multiple entries with different tags
@@ -397,6 +510,175 @@ class TagIndexTest {
         assertNotNull(tagIndex.scan(dir, true));
     }
 
+    @Test
+    public void testScan_incremental_shouldSkipUnchangedDirectories() throws IOException {
+        // GIVEN a directory tree that last changed an hour ago, and a full scan of it:
+        long anHourAgo = System.currentTimeMillis() - 3_600_000L;
+        File root = new File(tempDir.toFile(), "photos");
+        File album = new File(root, "album");
+        assertTrue(album.mkdirs());
+        createImageWithTags(album, "image1", "cat");
+        assertTrue(album.setLastModified(anHourAgo));
+        assertTrue(root.setLastModified(anHourAgo));
+        ScanThread scanThread = new ScanThread(root, true, 2, ScanThread.ScanMode.INCREMENTAL);
+        scanThread.run();
+        assertEquals(1, scanThread.getEntriesCreated());
+        assertEquals(0, scanThread.getDirectoriesSkippedBecauseUnchanged());
+
+        // WHEN we scan again, after an in-place edit that doesn't touch the directory:
+        FileSystemUtil.writeStringToFile("dog\n", new File(album, "image1.ice"));
+        assertTrue(album.setLastModified(anHourAgo));
+        scanThread = new ScanThread(root, true, 2, ScanThread.ScanMode.INCREMENTAL);
+        scanThread.run();
+
+        // THEN neither directory should have been looked in:
+        assertEquals(2, scanThread.getDirectoriesSkippedBecauseUnchanged());
+        assertEquals(0, scanThread.getEntriesUpdated());
+        assertEquals(0, scanThread.getEntriesSkippedBecauseUpToDate());
+        assertEquals(1, tagIndex.getTagCount("cat"));
+
+        // AND a full scan should still notice the edit:
+        scanThread = new ScanThread(root, true, 2, ScanThread.ScanMode.FULL);
+        scanThread.run();
+        assertEquals(0, scanThread.getDirectoriesSkippedBecauseUnchanged());
+        assertEquals(1, scanThread.getEntriesUpdated());
+        assertEquals(1, tagIndex.getTagCount("dog"));
+
+        // WHEN a new image is added to the album:
+        createImageWithTags(album, "image2", "bird");
+        assertTrue(album.setLastModified(anHourAgo + 1000));
+        scanThread = new ScanThread(root, true, 2, ScanThread.ScanMode.INCREMENTAL);
+        scanThread.run();
+
+        // THEN only the album should be looked in again, and the new image found:
+        assertEquals(1, scanThread.getDirectoriesSkippedBecauseUnchanged());
+        assertEquals(1, scanThread.getEntriesCreated());
+        assertEquals(1, scanThread.getEntriesSkippedBecauseUpToDate());
+        assertEquals(1, tagIndex.getTagCount("bird"));
+    }
+
+    @Test
+    public void testScan_incremental_afterRemoveEntry_shouldRestoreIt() throws IOException {
+        // GIVEN a directory that an incremental scan would skip:
+        long anHourAgo = System.currentTimeMillis() - 3_600_000L;
+        File root = new File(tempDir.toFile(), "photos");
+        assertTrue(root.mkdirs());
+        createImageWithTags(root, "image1", "cat");
+        createImageWithTags(root, "image2", "dog");
+        assertTrue(root.setLastModified(anHourAgo));
+        new ScanThread(root, false, 2, ScanThread.ScanMode.INCREMENTAL).run();
+        DirectoryScanState.Record record = tagIndex.getDirectoryScanState().get(root);
+        assertNotNull(record);
+        assertEquals(2, record.getTagFileCount());
+
+        // WHEN an entry is removed although its tag file is still there:
+        File imageFile = new File(root, "image1.jpg");
+        tagIndex.removeEntry(imageFile);
+
+        // THEN the directory should be forgotten, and the next incremental scan should restore the entry:
+        assertNull(tagIndex.getDirectoryScanState().get(root));
+        ScanThread scanThread = new ScanThread(root, false, 2, ScanThread.ScanMode.INCREMENTAL);
+        scanThread.run();
+        assertEquals(0, scanThread.getDirectoriesSkippedBecauseUnchanged());
+        assertEquals(1, scanThread.getEntriesCreated());
+        assertNotNull(tagIndex.getEntry(imageFile));
+
+        // AND even if a stale record survives (say, from a scan state saved before a removal),
+        // the entry count should give it away:
+        tagIndex.removeEntry(imageFile);
+        tagIndex.getDirectoryScanState().put(root, record);
+        scanThread = new ScanThread(root, false, 2, ScanThread.ScanMode.INCREMENTAL);
+        scanThread.run();
+        assertEquals(0, scanThread.getDirectoriesSkippedBecauseUnchanged());
+        assertEquals(1, scanThread.getEntriesCreated());
+
+        // AND once everything is back, the directory should be skipped again:
+        scanThread = new ScanThread(root, false, 2, ScanThread.ScanMode.INCREMENTAL);
+        scanThread.run();
+        assertEquals(1, scanThread.getDirectoriesSkippedBecauseUnchanged());
+    }
+
+    @Test
+    public void testVerify_shouldCatchRewritesThatKeepSizeAndTimestamp() throws IOException {
+        // GIVEN a tag file indexed with content hashing on:
+        contentHashProp.setValue(true);
+        File root = new File(tempDir.toFile(), "photos");
+        assertTrue(root.mkdirs());
+        createImageWithTags(root, "image1", "cat");
+        File tagFile = new File(root, "image1.ice");
+        long timestamp = tagFile.lastModified();
+        new ScanThread(root, false, 2, ScanThread.ScanMode.FULL).run();
+        assertNotEquals(TagFileHash.NONE, tagIndex.getEntry(new File(root, "image1.jpg")).getTagFileHash());
+
+        // WHEN it's rewritten with the same size and timestamp, as some sync tools do:
+        FileSystemUtil.writeStringToFile("dog\n", tagFile);
+        assertTrue(tagFile.setLastModified(timestamp));
+
+        // THEN a normal scan can't tell:
+        ScanThread scanThread = new ScanThread(root, false, 2, ScanThread.ScanMode.FULL);
+        scanThread.run();
+        assertEquals(1, scanThread.getEntriesSkippedBecauseUpToDate());
+        assertEquals(1, tagIndex.getTagCount("cat"));
+
+        // BUT a verify scan should:
+        scanThread = new ScanThread(root, false, 2, ScanThread.ScanMode.VERIFY);
+        scanThread.run();
+        assertEquals(1, scanThread.getTagFilesRehashed());
+        assertEquals(1, scanThread.getEntriesUpdated());
+        assertEquals(0, tagIndex.getTagCount("cat"));
+        assertEquals(1, tagIndex.getTagCount("dog"));
+
+        // AND verifying again should find nothing more to do:
+        scanThread = new ScanThread(root, false, 2, ScanThread.ScanMode.VERIFY);
+        scanThread.run();
+        assertEquals(1, scanThread.getTagFilesRehashed());
+        assertEquals(0, scanThread.getEntriesUpdated());
+        assertEquals(1, scanThread.getEntriesSkippedBecauseUpToDate());
+    }
+
+    @Test
+    public void testVerify_withEntryNeverHashed_shouldRecordHashWithoutUpdating() throws IOException {
+        // GIVEN an entry indexed with content hashing off:
+        File root = new File(tempDir.toFile(), "photos");
+        assertTrue(root.mkdirs());
+        createImageWithTags(root, "image1", "cat");
+        File imageFile = new File(root, "image1.jpg");
+        tagIndex.addOrUpdateEntry(imageFile, new File(root, "image1.ice"));
+        assertEquals(TagFileHash.NONE, tagIndex.getEntry(imageFile).getTagFileHash());
+        long generation = tagIndex.getGeneration();
+
+        // WHEN we verify it:
+        ScanThread scanThread = new ScanThread(root, false, 2, ScanThread.ScanMode.VERIFY);
+        scanThread.run();
+
+        // THEN its hash should be recorded, without its tags being treated as changed:
+        assertEquals(0, scanThread.getEntriesUpdated());
+        assertEquals(1, scanThread.getEntriesSkippedBecauseUpToDate());
+        assertEquals(TagFileHash.of("cat\n".getBytes()), tagIndex.getEntry(imageFile).getTagFileHash());
+        assertEquals(generation, tagIndex.getGeneration());
+    }
+
+    @Test
+    public void testDirectoryScanState_shouldBeSavedLoadedAndClearedWithIndex() throws IOException {
+        // GIVEN a scanned directory that last changed an hour ago:
+        File root = new File(tempDir.toFile(), "photos");
+        assertTrue(root.mkdirs());
+        createImageWithTags(root, "image1", "cat");
+        assertTrue(root.setLastModified(System.currentTimeMillis() - 3_600_000L));
+        new ScanThread(root, false, 1, ScanThread.ScanMode.FULL).run();
+        assertNotNull(tagIndex.getDirectoryScanState().get(root));
+
+        // WHEN we reload the index from disk:
+        tagIndex.load();
+
+        // THEN what we knew about the directory should have come back with it:
+        assertEquals(1, tagIndex.getDirectoryScanState().get(root).getTagFileCount());
+
+        // AND clearing the index should clear it too, since it describes the entries:
+        tagIndex.clear();
+        assertNull(tagIndex.getDirectoryScanState().get(root));
+    }
+
     @Test
     public void testLoad_withNonExistentFile_shouldNotThrow() {
         // GIVEN an index with no file
@@ -521,6 +803,319 @@ class TagIndexTest {
         assertFalse(result);
     }
 
+    @Test
+    public void testSearch_withAllTags_shouldReturnIntersection() throws IOException {
+        // GIVEN entries with overlapping tags
+        File image1 = new File(tempDir.toFile(), "image1.jpg");
+        tagIndex.addOrUpdateEntry(image1, createTestTagFile("image1.ice", "cat, outdoor"));
+        File image2 = new File(tempDir.toFile(), "image2.jpg");
+        tagIndex.addOrUpdateEntry(image2, createTestTagFile("image2.ice", "cat, indoor"));
+        File image3 = new File(tempDir.toFile(), "image3.jpg");
+        tagIndex.addOrUpdateEntry(image3, createTestTagFile("image3.ice", "dog, outdoor"));
+
+        // WHEN we search for images with all of the given tags
+        List<File> result = tagIndex.search(TagList.of("cat, outdoor"), new TagList(), new TagList());
+
+        // THEN only the image with both tags should match
+        assertEquals(List.of(image1), result);
+    }
+
+    @Test
+    public void testSearch_withAnyAndNoneTags_shouldReturnUnionMinusExclusions() throws IOException {
+        // GIVEN entries with overlapping tags
+        File image1 = new File(tempDir.toFile(), "image1.jpg");
+        tagIndex.addOrUpdateEntry(image1, createTestTagFile("image1.ice", "cat, outdoor"));
+        File image2 = new File(tempDir.toFile(), "image2.jpg");
+        tagIndex.addOrUpdateEntry(image2, createTestTagFile("image2.ice", "cat, blurry"));
+        File image3 = new File(tempDir.toFile(), "image3.jpg");
+        tagIndex.addOrUpdateEntry(image3, createTestTagFile("image3.ice", "dog, outdoor"));
+        File image4 = new File(tempDir.toFile(), "image4.jpg");
+        tagIndex.addOrUpdateEntry(image4, createTestTagFile("image4.ice", "bird"));
+
+        // WHEN we search for cats or dogs that are not blurry
+        List<File> result = tagIndex.search(new TagList(), TagList.of("cat, dog"), TagList.of("blurry"));
+
+        // THEN we should get the non-blurry cat and the dog
+        assertEquals(2, result.size());
+        assertTrue(result.contains(image1));
+        assertTrue(result.contains(image3));
+    }
+
+    @Test
+    public void testSearch_withOnlyNoneTags_shouldReturnAllOtherImages() throws IOException {
+        // GIVEN entries with different tags
+        File image1 = new File(tempDir.toFile(), "image1.jpg");
+        tagIndex.addOrUpdateEntry(image1, createTestTagFile("image1.ice", "cat"));
+        File image2 = new File(tempDir.toFile(), "image2.jpg");
+        tagIndex.addOrUpdateEntry(image2, createTestTagFile("image2.ice", "dog"));
+
+        // WHEN we search with only an exclusion list
+        List<File> result = tagIndex.search(new TagList(), new TagList(), TagList.of("cat"));
+
+        // THEN everything except the excluded image should match
+        assertEquals(List.of(image2), result);
+    }
+
+    @Test
+    public void testSearch_afterUpdateAndRemove_shouldReflectChanges() throws IOException {
+        // GIVEN an indexed entry
+        File image1 = new File(tempDir.toFile(), "image1.jpg");
+        File tagFile1 = createTestTagFile("image1.ice", "cat");
+        tagIndex.addOrUpdateEntry(image1, tagFile1);
+        File image2 = new File(tempDir.toFile(), "image2.jpg");
+        tagIndex.addOrUpdateEntry(image2, createTestTagFile("image2.ice", "cat"));
+
+        // WHEN the first one is retagged and the second one is removed
+        FileSystemUtil.writeStringToFile("dog" + System.lineSeparator(), tagFile1);
+        assertTrue(tagFile1.setLastModified(tagFile1.lastModified() + 1000L));
+        tagIndex.addOrUpdateEntry(image1, tagFile1);
+        tagIndex.removeEntry(image2);
+
+        // THEN the posting lists should have followed along
+        assertTrue(tagIndex.search(TagList.of("cat"), new TagList(), new TagList()).isEmpty());
+        assertEquals(List.of(image1), tagIndex.search(TagList.of("dog"), new TagList(), new TagList()));
+        assertEquals(0, tagIndex.getTagCount("cat"));
+        assertEquals(1, tagIndex.getTagCount("dog"));
+    }
+
+    @Test
+    public void testSearch_withDirectoryScope_shouldOnlyReturnImagesInScope() throws IOException {
+        // GIVEN entries in a directory and in a subdirectory of it
+        File subDir = new File(tempDir.toFile(), "sub");
+        assertTrue(subDir.mkdirs());
+        File image1 = new File(tempDir.toFile(), "image1.jpg");
+        tagIndex.addOrUpdateEntry(image1, createTestTagFile("image1.ice", "cat"));
+        File image2 = new File(subDir, "image2.jpg");
+        tagIndex.addOrUpdateEntry(image2, createTestTagFile("image2.ice", "cat"));
+
+        // WHEN we search with and without recursion
+        List<File> flatResult = tagIndex.search(tempDir.toFile(), false,
+                                                TagList.of("cat"), new TagList(), new TagList());
+        List<File> recursiveResult = tagIndex.search(tempDir.toFile(), true,
+                                                     TagList.of("cat"), new TagList(), new TagList());
+
+        // THEN only the recursive search should descend into the subdirectory
+        assertEquals(List.of(image1), flatResult);
+        assertEquals(2, recursiveResult.size());
+        assertEquals(1, tagIndex.getEntries(subDir, false).size());
+    }
+
+    @Test
+    public void testLoad_withUnsavedChanges_shouldReplayJournal() throws IOException {
+        // GIVEN changes that were made but never saved:
+        File image1 = new File(tempDir.toFile(), "image1.jpg");
+        File tag1 = createTestTagFile("image1.ice", "hello, world");
+        File image2 = new File(tempDir.toFile(), "image2.jpg");
+        File tag2 = createTestTagFile("image2.ice", "foo, bar");
+        tagIndex.addOrUpdateEntry(image1, tag1);
+        tagIndex.addOrUpdateEntry(image2, tag2);
+        tagIndex.removeEntry(image2);
+
+        // WHEN we throw away the in-memory index and load it again:
+        tagIndex.clear();
+        tagIndex.load();
+
+        // THEN the changes should have been recovered from the journal:
+        assertEquals(1, tagIndex.size());
+        assertTrue(tagIndex.containsAll(image1, TagList.of("hello, world")));
+        tagIndex.save(); // waits for any background compaction to finish
+        assertFalse(new File(tempDir.toFile(), "tagIndex.ice.journal").exists());
+    }
+
+    @Test
+    public void testLoad_withTornJournalRecord_shouldKeepEarlierChanges() throws IOException {
+        // GIVEN a saved index, followed by a journaled change and a partially-written record:
+        File image1 = new File(tempDir.toFile(), "image1.jpg");
+        File tag1 = createTestTagFile("image1.ice", "hello");
+        tagIndex.addOrUpdateEntry(image1, tag1);
+        tagIndex.save();
+        File image2 = new File(tempDir.toFile(), "image2.jpg");
+        File tag2 = createTestTagFile("image2.ice", "world");
+        tagIndex.addOrUpdateEntry(image2, tag2);
+        tagIndex.clear(); // closes the journal
+        File journalFile = new File(tempDir.toFile(), "tagIndex.ice.journal");
+        Files.write(journalFile.toPath(), new byte[]{0, 0, 0, 50, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        // WHEN we load:
+        tagIndex.load();
+
+        // THEN everything up to the torn record should be there:
+        assertEquals(2, tagIndex.size());
+        assertTrue(tagIndex.containsAll(image2, TagList.of("world")));
+        tagIndex.save();
+    }
+
+    @Test
+    public void testLoad_whenDisabled_shouldReplayWithoutCompacting() throws IOException {
+        // GIVEN a saved index with a journaled change on top:
+        File image1 = new File(tempDir.toFile(), "image1.jpg");
+        tagIndex.addOrUpdateEntry(image1, createTestTagFile("image1.ice", "hello"));
+        tagIndex.save();
+        File image2 = new File(tempDir.toFile(), "image2.jpg");
+        tagIndex.addOrUpdateEntry(image2, createTestTagFile("image2.ice", "world"));
+        tagIndex.clear(); // closes the journal
+        File indexFile = new File(tempDir.toFile(), "tagIndex.ice");
+        File journalFile = new File(tempDir.toFile(), "tagIndex.ice.journal");
+        long indexLastModified = indexFile.lastModified();
+        long journalSize = journalFile.length();
+
+        // WHEN we load it with the index disabled:
+        enabledProp.setValue(false);
+        tagIndex.load();
+
+        // THEN the change should be there in memory, but the files on disk should be left alone:
+        assertEquals(2, tagIndex.size());
+        assertEquals(journalSize, journalFile.length());
+        assertEquals(indexLastModified, indexFile.lastModified());
+        assertFalse(new File(tempDir.toFile(), "tagIndex.ice.journal.compacting").exists());
+    }
+
+    @Test
+    public void testAddOrUpdateEntry_fromManyThreads_shouldIndexEverything() throws Exception {
+        // GIVEN a batch of tag files, some sharing a tag:
+        int count = 400;
+        File[] images = new File[count];
+        File[] tagFiles = new File[count];
+        for (int i = 0; i < count; i++) {
+            images[i] = new File(tempDir.toFile(), "image" + i + ".jpg");
+            tagFiles[i] = createTestTagFile("image" + i + ".ice", "common, tag" + i);
+        }
+
+        // WHEN several threads add them while another thread searches:
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int offset = t;
+            writers[t] = new Thread(() -> {
+                for (int i = offset; i < count; i += writers.length) {
+                    tagIndex.addOrUpdateEntry(images[i], tagFiles[i]);
+                }
+            });
+        }
+        Thread reader = new Thread(() -> {
+            for (int i = 0; i < 200; i++) {
+                tagIndex.search(tempDir.toFile(), false, TagList.of("common"), null, null);
+            }
+        });
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        reader.start();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        reader.join();
+
+        // THEN every entry should have made it in:
+        assertEquals(count, tagIndex.size());
+        assertEquals(count, tagIndex.getTagCount("common"));
+        assertEquals(count, tagIndex.search(tempDir.toFile(), false, TagList.of("common"), null, null).size());
+        assertEquals(1, tagIndex.getTagCount("tag123"));
+    }
+
+    @Test
+    public void testSearch_withWildcardAfterLastImageRemoved_shouldNotExpandStaleTag() throws Exception {
+        // GIVEN two images sharing a tag prefix:
+        File image1 = new File(tempDir.toFile(), "image1.jpg");
+        File image2 = new File(tempDir.toFile(), "image2.jpg");
+        tagIndex.addOrUpdateEntry(image1, createTestTagFile("image1.ice", "car, trip"));
+        tagIndex.addOrUpdateEntry(image2, createTestTagFile("image2.ice", "carnival"));
+        TagQuery query = TagQuery.parse("car*");
+        assertEquals(2, tagIndex.search(null, true, query).size());
+
+        // WHEN the only image with one of those tags is removed:
+        tagIndex.removeEntry(image2);
+
+        // THEN the pattern should only expand to the tag that is still in use:
+        assertEquals(List.of(image1), tagIndex.search(null, true, query));
+        assertEquals("car*[car]{1}", tagIndex.plan(query).toString());
+    }
+
+    @Test
+    public void testGetFacetCounts_shouldCountTagsWithinResults() throws Exception {
+        // GIVEN five images, all tagged "sky":
+        String[] tags = {"sky, beach, sand", "sky, beach", "sky, cat", "sky, cat", "sky, beach, sand"};
+        List<File> images = new ArrayList<>();
+        for (int i = 0; i < tags.length; i++) {
+            File image = new File(tempDir.toFile(), "facet" + i + ".jpg");
+            tagIndex.addOrUpdateEntry(image, createTestTagFile("facet" + i + ".ice", tags[i]));
+            images.add(image);
+        }
+
+        // WHEN we get facets for all of them, and for just the first three:
+        Map<String, Integer> allFacets = tagIndex.getFacetCounts(tagIndex.getImageIds(images), 10);
+        Map<String, Integer> someFacets = tagIndex.getFacetCounts(tagIndex.getImageIds(images.subList(0, 3)), 10);
+
+        // THEN each should be ordered by count, leaving out "sky" since every image has it:
+        assertEquals(List.of("beach", "cat", "sand"), List.copyOf(allFacets.keySet()));
+        assertEquals(List.of(3, 2, 2), List.copyOf(allFacets.values()));
+        assertEquals(List.of("beach", "cat", "sand"), List.copyOf(someFacets.keySet()));
+        assertEquals(List.of(2, 1, 1), List.copyOf(someFacets.values()));
+        assertEquals(1, tagIndex.getFacetCounts(tagIndex.getImageIds(images), 1).size());
+    }
+
+    @Test
+    public void testFilterByTag_shouldKeepOrderAndSupportExclusion() throws Exception {
+        // GIVEN three images, two of them tagged "beach":
+        File image1 = new File(tempDir.toFile(), "image1.jpg");
+        tagIndex.addOrUpdateEntry(image1, createTestTagFile("image1.ice", "beach"));
+        File image2 = new File(tempDir.toFile(), "image2.jpg");
+        tagIndex.addOrUpdateEntry(image2, createTestTagFile("image2.ice", "cat"));
+        File image3 = new File(tempDir.toFile(), "image3.jpg");
+        tagIndex.addOrUpdateEntry(image3, createTestTagFile("image3.ice", "beach, cat"));
+        List<File> results = List.of(image3, image2, image1);
+
+        // WHEN we narrow them down by "beach" each way
+        // THEN the order of the given results should be kept:
+        assertEquals(List.of(image3, image1), tagIndex.filterByTag(results, "beach", true));
+        assertEquals(List.of(image2), tagIndex.filterByTag(results, "beach", false));
+        assertTrue(tagIndex.filterByTag(results, "nothing", true).isEmpty());
+    }
+
+    @Test
+    public void testFindSimilarTags_shouldRankByDistanceThenUsage() throws Exception {
+        // GIVEN a few near-identical tags with different usage counts:
+        for (int i = 0; i < 3; i++) {
+            tagIndex.addOrUpdateEntry(new File(tempDir.toFile(), "a" + i + ".jpg"),
+                                      createTestTagFile("a" + i + ".ice", "landscape"));
+        }
+        tagIndex.addOrUpdateEntry(new File(tempDir.toFile(), "b.jpg"), createTestTagFile("b.ice", "landscpae, landscapes"));
+        tagIndex.addOrUpdateEntry(new File(tempDir.toFile(), "c.jpg"), createTestTagFile("c.ice", "landscapes"));
+
+        // THEN similar tags should be closest first, then most used first:
+        assertEquals(List.of("landscapes", "landscpae"), tagIndex.findSimilarTags("landscape", 2));
+        assertEquals(List.of("landscape", "landscapes", "landscpae"), tagIndex.findSimilarTags("landscaep", 2));
+        assertTrue(tagIndex.findSimilarTags("landscape", 0).isEmpty());
+
+        // AND only the rarely used spelling should be reported as a likely typo:
+        assertEquals("landscape", tagIndex.suggestCorrection("landscpae"));
+        assertEquals("landscape", tagIndex.suggestCorrection("Landscapr"));
+        assertNull(tagIndex.suggestCorrection("landscape"));
+        assertNull(tagIndex.suggestCorrection("portrait"));
+    }
+
+    @Test
+    public void testGetGeneration_shouldOnlyChangeWhenIndexChanges() throws Exception {
+        // GIVEN an indexed image:
+        File image1 = new File(tempDir.toFile(), "image1.jpg");
+        File tagFile = createTestTagFile("image1.ice", "cat");
+        tagIndex.addOrUpdateEntry(image1, tagFile);
+        long generation = tagIndex.getGeneration();
+
+        // WHEN we re-add it unchanged, THEN nothing should change:
+        tagIndex.addOrUpdateEntry(image1, tagFile);
+        assertEquals(generation, tagIndex.getGeneration());
+
+        // WHEN we remove it, THEN the generation should move on:
+        tagIndex.removeEntry(image1);
+        assertTrue(tagIndex.getGeneration() > generation);
+    }
+
+    // Helper method to create an (empty) image file with a tag file next to it
+    private static void createImageWithTags(File dir, String baseName, String tag) throws IOException {
+        assertTrue(new File(dir, baseName + ".jpg").createNewFile());
+        FileSystemUtil.writeStringToFile(tag + "\n", new File(dir, baseName + ".ice"));
+    }
+
     // Helper method to create a test tag file
     // Note: TagList.fromFile() reads one tag per line, not comma-separated
     private File createTestTagFile(String filename, String content) throws IOException {
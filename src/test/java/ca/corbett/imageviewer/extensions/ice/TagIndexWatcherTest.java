@@ -0,0 +1,151 @@
+package ca.corbett.imageviewer.extensions.ice;
+
+import ca.corbett.extensions.AppExtensionInfo;
+import ca.corbett.extras.io.FileSystemUtil;
+import ca.corbett.extras.properties.BooleanProperty;
+import ca.corbett.extras.properties.PropertiesManager;
+import ca.corbett.imageviewer.AppConfig;
+import ca.corbett.imageviewer.extensions.ice.threads.TagIndexWatcher;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * These tests use the real WatchService, so they wait (with a generous timeout) for the
+ * watcher thread to catch up rather than expecting changes to show up immediately.
+ */
+class TagIndexWatcherTest {
+
+    private static final long TIMEOUT_MS = 10_000;
+
+    @TempDir
+    Path tempDir;
+
+    private static AppConfig appConfig;
+    private TagIndex tagIndex;
+    private TagIndexWatcher watcher;
+    private File root;
+
+    @BeforeAll
+    public static void setUpClass() {
+        appConfig = Mockito.mock(AppConfig.class);
+        PropertiesManager propsManager = Mockito.mock(PropertiesManager.class);
+        Mockito.when(appConfig.getPropertiesManager()).thenReturn(propsManager);
+        Mockito.when(propsManager.getProperty(TagIndex.PROP_NAME))
+               .thenReturn(new BooleanProperty(TagIndex.PROP_NAME, "isEnabled", true));
+        IceExtension.extInfo = new AppExtensionInfo.Builder("Test").setVersion("2.2.1").build();
+    }
+
+    @BeforeEach
+    public void setUp() {
+        tagIndex = TagIndex.getInstance();
+        tagIndex.setAppConfigProvider(() -> appConfig);
+        tagIndex.setIndexFile(new File(tempDir.toFile(), "tagIndex.ice"));
+        tagIndex.clear();
+        root = new File(tempDir.toFile(), "photos");
+        assertTrue(root.mkdirs());
+        watcher = new TagIndexWatcher(List.of(root));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        watcher.stop();
+        tagIndex.clear();
+        tagIndex.setAppConfigProvider(null);
+    }
+
+    @Test
+    public void testWatch_shouldFollowCreateModifyAndDeleteOfTagFiles() throws IOException {
+        // GIVEN a watched directory with an untagged image:
+        File imageFile = new File(root, "image1.jpg");
+        assertTrue(imageFile.createNewFile());
+        watcher.start();
+        assertTrue(watcher.isRunning());
+        File tagFile = new File(root, "image1.ice");
+
+        // WHEN a tag file is created, THEN it should be indexed:
+        FileSystemUtil.writeStringToFile("cat\n", tagFile);
+        awaitTrue(() -> tagIndex.getTagCount("cat") == 1);
+
+        // WHEN it's modified, THEN the entry should follow:
+        FileSystemUtil.writeStringToFile("dog\nbird\n", tagFile);
+        awaitTrue(() -> tagIndex.getTagCount("dog") == 1);
+        assertEquals(0, tagIndex.getTagCount("cat"));
+
+        // WHEN it's deleted, THEN the entry should go:
+        assertTrue(tagFile.delete());
+        awaitTrue(() -> tagIndex.getEntry(imageFile) == null);
+    }
+
+    @Test
+    public void testWatch_withBurstOfWrites_shouldApplyOnlyOnceSettled() throws Exception {
+        // GIVEN a watched image with a tag file:
+        File imageFile = new File(root, "image1.jpg");
+        assertTrue(imageFile.createNewFile());
+        File tagFile = new File(root, "image1.ice");
+        FileSystemUtil.writeStringToFile("a\n", tagFile);
+        tagIndex.addOrUpdateEntry(imageFile, tagFile);
+        watcher.start();
+        long generation = tagIndex.getGeneration();
+
+        // WHEN the tag file is rewritten several times, faster than the debounce period:
+        String[] versions = {"ab\n", "abc\n", "abcd\n", "abcde\n"};
+        for (String version : versions) {
+            FileSystemUtil.writeStringToFile(version, tagFile);
+            Thread.sleep(TagIndexWatcher.DEBOUNCE_MS / 5);
+        }
+
+        // THEN only the final version should be applied, and only once:
+        awaitTrue(() -> tagIndex.getTagCount("abcde") == 1);
+        Thread.sleep(TagIndexWatcher.DEBOUNCE_MS * 2); // in case anything else was still pending
+        assertEquals(generation + 1, tagIndex.getGeneration());
+    }
+
+    @Test
+    public void testWatch_withNewSubdirectory_shouldWatchItAndIndexWhatsInIt() throws IOException {
+        // GIVEN a running watcher:
+        watcher.start();
+
+        // WHEN a directory appears with a tagged image already in it (as when moved in from elsewhere):
+        File album = new File(root, "album/nested");
+        assertTrue(album.mkdirs());
+        File imageFile = new File(album, "image1.jpg");
+        assertTrue(imageFile.createNewFile());
+        File tagFile = new File(album, "image1.ice");
+        FileSystemUtil.writeStringToFile("cat\n", tagFile);
+
+        // THEN what's in it should be indexed:
+        awaitTrue(() -> tagIndex.getTagCount("cat") == 1);
+
+        // AND later changes in it should be noticed, since it's now watched:
+        FileSystemUtil.writeStringToFile("dog\n", tagFile);
+        awaitTrue(() -> tagIndex.getTagCount("dog") == 1);
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) {
+        long giveUpAt = System.currentTimeMillis() + TIMEOUT_MS;
+        while (! condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > giveUpAt) {
+                fail("Timed out waiting for the watcher");
+            }
+            try {
+                Thread.sleep(50);
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                fail("Interrupted");
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package ca.corbett.imageviewer.extensions.ice;
 
+import ca.corbett.imageviewer.extensions.ice.index.TagDictionary;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -295,4 +296,49 @@ class TagListTest {
             assertFalse(result, "Expected tag with multiple disallowed characters '" + input + "' to be invalid");
         }
     }
+
+    @Test
+    public void testParseTagIds_withDuplicatesAndMixedCase_shouldRoundTrip() {
+        // GIVEN comma-separated input with duplicates, mixed case and blanks:
+        String input = "Hello, there,,HELLO ,  donkey";
+
+        // WHEN we parse it straight to tag ids and back:
+        int[] tagIds = TagList.parseTagIds(input);
+        TagList actual = TagList.fromTagIds(tagIds);
+
+        // THEN we should get the same result as TagList.of():
+        assertEquals(3, tagIds.length);
+        assertEquals(TagList.of(input).toString(), actual.toString());
+        assertArrayEquals(tagIds, TagList.of(input).getTagIds());
+    }
+
+    @Test
+    public void testAdd_withIndexedTagInDifferentLists_shouldShareOneString() {
+        // GIVEN a tag that's in the dictionary, because some entry in the index has it:
+        TagDictionary.getInstance().intern("shared-tag");
+
+        // WHEN two lists are built separately from different input strings:
+        TagList list1 = TagList.of(new String("Shared-Tag"));
+        TagList list2 = TagList.of(new String(" shared-tag "));
+
+        // THEN they should both hold the same canonical String instance:
+        assertSame(list1.getTags().get(0), list2.getTags().get(0));
+    }
+
+    @Test
+    public void testOf_withUnknownTags_shouldNotGrowDictionary() {
+        // GIVEN a tag nobody has indexed, such as a half-typed search term:
+        TagDictionary dictionary = TagDictionary.getInstance();
+        String unknownTag = "half-typed-" + System.nanoTime();
+
+        // WHEN we build, query and compare throwaway lists with it:
+        TagList list = TagList.of(unknownTag + ", other-" + unknownTag);
+        list.replace("other-" + unknownTag, "replaced-" + unknownTag);
+        assertTrue(list.hasTag(unknownTag));
+        assertFalse(list.containsAll(TagList.of("nope-" + unknownTag)));
+
+        // THEN none of it should have been interned:
+        assertEquals(-1, dictionary.getId(unknownTag));
+        assertEquals(-1, dictionary.getId("replaced-" + unknownTag));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,70 @@
+package ca.corbett.imageviewer.extensions.ice.index;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectoryStatsTreeTest {
+
+    private static final File ROOT = new File("photos").getAbsoluteFile();
+    private static final File TRIPS = new File(ROOT, "trips");
+    private static final File BEACH = new File(TRIPS, "beach");
+
+    @Test
+    public void testGetStats_shouldAggregateDirectAndRecursive() {
+        // GIVEN images spread over a few nested directories:
+        TagDictionary dictionary = TagDictionary.getInstance();
+        int sky = dictionary.intern("sky");
+        int sand = dictionary.intern("sand");
+        int cat = dictionary.intern("cat");
+        DirectoryStatsTree tree = new DirectoryStatsTree();
+        tree.add(ROOT, new int[]{cat});
+        tree.add(TRIPS, new int[]{sky});
+        tree.add(BEACH, new int[]{sky, sand});
+        tree.add(BEACH, new int[]{sand});
+
+        // WHEN we ask for stats at various levels:
+        DirectoryStats rootDirect = tree.getStats(ROOT, false);
+        DirectoryStats rootRecursive = tree.getStats(ROOT, true);
+        DirectoryStats trips = tree.getStats(TRIPS, true);
+        DirectoryStats beach = tree.getStats(BEACH, false);
+
+        // THEN each should only count what's in scope:
+        assertEquals(1, rootDirect.getTaggedImageCount());
+        assertEquals(1, rootDirect.getTotalTagCount());
+        assertEquals(0, rootDirect.getTagCount("sky"));
+        assertEquals(4, rootRecursive.getTaggedImageCount());
+        assertEquals(5, rootRecursive.getTotalTagCount());
+        assertEquals(List.of("sand", "sky", "cat"), rootRecursive.getMostFrequentTags(10));
+        assertEquals(3, trips.getTaggedImageCount());
+        assertEquals(2, trips.getTagCount("sky"));
+        assertEquals(2, beach.getTaggedImageCount());
+        assertEquals(2, beach.getTagCount("sand"));
+    }
+
+    @Test
+    public void testRemove_shouldDropEmptyDirectories() {
+        // GIVEN a tree with one image in a nested directory and one higher up:
+        int sky = TagDictionary.getInstance().intern("sky");
+        DirectoryStatsTree tree = new DirectoryStatsTree();
+        tree.add(ROOT, new int[]{sky});
+        tree.add(BEACH, new int[]{sky});
+
+        // WHEN we remove the nested image:
+        tree.remove(BEACH, new int[]{sky});
+
+        // THEN its directories should be empty and the totals above them adjusted:
+        assertSame(DirectoryStats.EMPTY, tree.getStats(BEACH, true));
+        assertSame(DirectoryStats.EMPTY, tree.getStats(TRIPS, true));
+        assertEquals(1, tree.getStats(ROOT, true).getTaggedImageCount());
+        assertEquals(1, tree.getStats(ROOT, true).getTagCount("sky"));
+
+        // AND adding to it again should work as before:
+        tree.add(BEACH, new int[]{sky});
+        assertEquals(2, tree.getStats(ROOT, true).getTagCount("sky"));
+        assertEquals(1, tree.getStats(TRIPS, true).getTaggedImageCount());
+    }
+}
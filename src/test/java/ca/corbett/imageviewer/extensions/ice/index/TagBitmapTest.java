@@ -0,0 +1,111 @@
+package ca.corbett.imageviewer.extensions.ice.index;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TagBitmapTest {
+
+    @Test
+    public void testAdd_withSparseValues_shouldContainOnlyThoseValues() {
+        // GIVEN a bitmap with a handful of values spread across several chunks:
+        TagBitmap bitmap = TagBitmap.of(5, 1, 70000, 3, 5, 200000);
+
+        // THEN duplicates should be ignored and values should come back sorted:
+        assertEquals(5, bitmap.getCardinality());
+        assertArrayEquals(new int[]{1, 3, 5, 70000, 200000}, bitmap.toArray());
+        assertTrue(bitmap.contains(70000));
+        assertFalse(bitmap.contains(2));
+        assertFalse(bitmap.contains(-1));
+    }
+
+    @Test
+    public void testAddAndRemove_crossingContainerThreshold_shouldKeepContents() {
+        // GIVEN a bitmap that grows well past the array container limit:
+        TagBitmap bitmap = new TagBitmap();
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(bitmap.add(i * 2));
+        }
+        assertEquals(10000, bitmap.getCardinality());
+        assertFalse(bitmap.add(0));
+
+        // WHEN we remove most of the values again:
+        for (int i = 0; i < 9990; i++) {
+            assertTrue(bitmap.remove(i * 2));
+        }
+
+        // THEN only the remaining values should be left:
+        assertEquals(10, bitmap.getCardinality());
+        assertTrue(bitmap.contains(19980));
+        assertFalse(bitmap.contains(19978));
+        assertFalse(bitmap.remove(19978));
+    }
+
+    @Test
+    public void testRemove_lastValueInChunk_shouldLeaveEmptyBitmap() {
+        // GIVEN a bitmap with a single value:
+        TagBitmap bitmap = TagBitmap.of(123456);
+
+        // WHEN we remove it:
+        bitmap.remove(123456);
+
+        // THEN the bitmap should be empty:
+        assertTrue(bitmap.isEmpty());
+        assertEquals(0, bitmap.getCardinality());
+        assertArrayEquals(new int[0], bitmap.toArray());
+    }
+
+    @Test
+    public void testSetOperations_withRandomData_shouldMatchBitSet() {
+        // GIVEN two random bitmaps with a mix of sparse and dense chunks:
+        Random random = new Random(42);
+        TagBitmap a = new TagBitmap();
+        TagBitmap b = new TagBitmap();
+        BitSet expectedA = new BitSet();
+        BitSet expectedB = new BitSet();
+        for (int i = 0; i < 40000; i++) {
+            int valueA = random.nextInt(150000);
+            int valueB = i < 20000 ? random.nextInt(70000) : 65536 * 2 + random.nextInt(500);
+            a.add(valueA);
+            b.add(valueB);
+            expectedA.set(valueA);
+            expectedB.set(valueB);
+        }
+
+        // WHEN we combine them:
+        BitSet expectedAnd = (BitSet)expectedA.clone();
+        expectedAnd.and(expectedB);
+        BitSet expectedOr = (BitSet)expectedA.clone();
+        expectedOr.or(expectedB);
+        BitSet expectedAndNot = (BitSet)expectedA.clone();
+        expectedAndNot.andNot(expectedB);
+
+        // THEN the results should match what BitSet gives us:
+        assertArrayEquals(expectedAnd.stream().toArray(), TagBitmap.and(a, b).toArray());
+        assertEquals(expectedAnd.cardinality(), TagBitmap.andCardinality(a, b));
+        assertArrayEquals(expectedOr.stream().toArray(), TagBitmap.or(a, b).toArray());
+        assertArrayEquals(expectedAndNot.stream().toArray(), TagBitmap.andNot(a, b).toArray());
+
+        // AND the inputs should not have been modified:
+        assertArrayEquals(expectedA.stream().toArray(), a.toArray());
+        assertArrayEquals(expectedB.stream().toArray(), b.toArray());
+    }
+
+    @Test
+    public void testCopy_shouldBeIndependent() {
+        // GIVEN a bitmap and a copy of it:
+        TagBitmap original = TagBitmap.of(1, 2, 3);
+        TagBitmap copy = original.copy();
+
+        // WHEN we modify the copy:
+        copy.add(4);
+        copy.remove(1);
+
+        // THEN the original should be unchanged:
+        assertArrayEquals(new int[]{1, 2, 3}, original.toArray());
+        assertArrayEquals(new int[]{2, 3, 4}, copy.toArray());
+    }
+}
@@ -0,0 +1,81 @@
+package ca.corbett.imageviewer.extensions.ice.index;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TagBkTreeTest {
+
+    @Test
+    public void testDistance_shouldCountEdits() {
+        assertEquals(0, TagBkTree.distance("landscape", "landscape"));
+        assertEquals(1, TagBkTree.distance("landscape", "landscap"));
+        assertEquals(1, TagBkTree.distance("landscape", "landscaoe"));
+        assertEquals(2, TagBkTree.distance("landscape", "landscpae"));
+        assertEquals(3, TagBkTree.distance("kitten", "sitting"));
+        assertEquals(4, TagBkTree.distance("", "blue"));
+    }
+
+    @Test
+    public void testFind_shouldAgreeWithBruteForce() {
+        // GIVEN a tree of random short tags, so that plenty of them are near each other:
+        Random random = new Random(1234);
+        TagBkTree tree = new TagBkTree();
+        List<String> tags = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            String tag = randomTag(random);
+            if (tree.add(tag)) {
+                tags.add(tag);
+            }
+        }
+        assertEquals(tags.size(), tree.size());
+
+        // WHEN we look up random queries at various distances:
+        for (int i = 0; i < 200; i++) {
+            String query = randomTag(random);
+            int maxDistance = i % 3;
+
+            // THEN we should find exactly what comparing against every tag finds:
+            Set<String> expected = new HashSet<>();
+            for (String tag : tags) {
+                if (TagBkTree.distance(query, tag) <= maxDistance) {
+                    expected.add(tag);
+                }
+            }
+            assertEquals(expected, new HashSet<>(tree.find(query, maxDistance)), "query '" + query + "'");
+        }
+    }
+
+    @Test
+    public void testGetTagsWithin_afterRemovals_shouldOnlyFindLiveTags() {
+        // GIVEN a vocabulary that has had most of its tags removed (enough to force a rebuild):
+        TagVocabulary vocabulary = new TagVocabulary();
+        for (int i = 0; i < 500; i++) {
+            vocabulary.add("tag" + i);
+        }
+        for (int i = 0; i < 490; i++) {
+            vocabulary.remove("tag" + i);
+        }
+
+        // THEN removed tags should never come back as matches:
+        assertEquals(Set.of("tag490", "tag491", "tag492", "tag493", "tag494",
+                            "tag495", "tag496", "tag497", "tag498", "tag499"),
+                     new HashSet<>(vocabulary.getTagsWithin("tag49", 1)));
+        assertTrue(vocabulary.getTagsWithin("tag1", 1).isEmpty());
+    }
+
+    private static String randomTag(Random random) {
+        int length = 3 + random.nextInt(4);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char)('a' + random.nextInt(4)));
+        }
+        return sb.toString();
+    }
+}
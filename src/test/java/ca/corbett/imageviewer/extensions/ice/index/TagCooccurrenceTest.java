@@ -0,0 +1,89 @@
+package ca.corbett.imageviewer.extensions.ice.index;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TagCooccurrenceTest {
+
+    private final TagDictionary dictionary = TagDictionary.getInstance();
+    private final int beach = dictionary.intern("beach");
+    private final int sand = dictionary.intern("sand");
+    private final int sky = dictionary.intern("sky");
+    private final int cat = dictionary.intern("cat");
+    private final int sofa = dictionary.intern("sofa");
+
+    private final TagCooccurrence cooccurrence = new TagCooccurrence();
+    private final Map<Integer, Integer> tagCounts = new HashMap<>();
+    private int imageCount;
+
+    @Test
+    public void testGetRelatedTags_shouldRankByLiftNotPopularity() {
+        // GIVEN "sky" on nearly everything, and "sand" only ever with "beach":
+        addImage(beach, sand, sky);
+        addImage(beach, sand, sky);
+        addImage(beach, sky);
+        addImage(cat, sofa, sky);
+        addImage(cat, sofa, sky);
+        addImage(cat, sky);
+
+        // WHEN we ask what goes with "beach":
+        List<TagCooccurrence.RelatedTag> related = cooccurrence.getRelatedTags(beach, 5, 2, tagCounts::get, imageCount);
+
+        // THEN "sand" should be the only one; "sky" is just as common everywhere else:
+        assertEquals(1, related.size());
+        assertEquals("sand", related.get(0).getTag());
+        assertEquals(2, related.get(0).getCount());
+        assertEquals(2.0, related.get(0).getLift(), 1e-9);
+        assertEquals(1.0, related.get(0).getPmi(), 1e-9);
+    }
+
+    @Test
+    public void testSuggest_shouldExcludeGivenTagsAndRespectMinCount() {
+        // GIVEN a few images:
+        addImage(beach, sand);
+        addImage(beach, sand);
+        addImage(cat, sofa);
+        addImage(cat);
+        addImage(sky);
+
+        // WHEN we ask for suggestions for an image tagged "beach":
+        List<String> suggestions = cooccurrence.suggest(new int[]{beach}, 5, 2, tagCounts::get, imageCount);
+
+        // THEN we should get "sand" but not "beach" itself:
+        assertEquals(List.of("sand"), suggestions);
+
+        // AND "sofa" should not be suggested for "cat", having only been seen with it once:
+        assertTrue(cooccurrence.suggest(new int[]{cat}, 5, 2, tagCounts::get, imageCount).isEmpty());
+    }
+
+    @Test
+    public void testRemove_shouldUndoAdd() {
+        // GIVEN two images sharing a pair of tags:
+        addImage(beach, sand, sky);
+        addImage(beach, sand);
+
+        // WHEN one of them is removed:
+        cooccurrence.remove(new int[]{beach, sand, sky});
+
+        // THEN the counts should reflect only the other:
+        assertEquals(1, cooccurrence.getCount(beach, sand));
+        assertEquals(1, cooccurrence.getCount(sand, beach));
+        assertEquals(0, cooccurrence.getCount(beach, sky));
+        assertEquals(List.of("beach + sand"), cooccurrence.getMostCommonPairs(5, Set.of()));
+        assertTrue(cooccurrence.getMostCommonPairs(5, Set.of(sand)).isEmpty());
+    }
+
+    private void addImage(int... tagIds) {
+        cooccurrence.add(tagIds);
+        for (int tagId : tagIds) {
+            tagCounts.merge(tagId, 1, Integer::sum);
+        }
+        imageCount++;
+    }
+}
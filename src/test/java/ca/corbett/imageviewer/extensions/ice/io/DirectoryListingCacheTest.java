@@ -0,0 +1,100 @@
+package ca.corbett.imageviewer.extensions.ice.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectoryListingCacheTest {
+
+    private static final long AN_HOUR_AGO = System.currentTimeMillis() - 3_600_000L;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testFindImageFile_shouldIgnoreExtensionCaseAndPreferEarlierExtensions() throws IOException {
+        // GIVEN a directory with a few images, a tag file, and something else:
+        File dir = tempDir.toFile();
+        createFile(dir, "one.JPG");
+        createFile(dir, "two.png");
+        createFile(dir, "two.gif");
+        createFile(dir, "one.ice");
+        createFile(dir, "three.txt");
+        DirectoryListingCache cache = new DirectoryListingCache(10);
+
+        // WHEN we look up images by base name
+        // THEN we should find them however their extension is written, and prefer gif over png:
+        assertEquals(new File(dir, "one.JPG"), cache.findImageFile(dir, "one"));
+        assertEquals(new File(dir, "two.gif"), cache.findImageFile(dir, "two"));
+        assertNull(cache.findImageFile(dir, "three"));
+        assertNull(cache.findImageFile(dir, "four"));
+        assertNull(cache.findImageFile(new File(dir, "nope"), "one"));
+    }
+
+    @Test
+    public void testFindImageFile_withMixedCaseBaseNames_shouldStillMatch() throws IOException {
+        // GIVEN tag files and images whose base names differ only in case:
+        File dir = tempDir.toFile();
+        createFile(dir, "img.jpg");
+        createFile(dir, "IMG.ice");
+        createFile(dir, "Photo.PNG");
+        createFile(dir, "photo.gif");
+        DirectoryListingCache cache = new DirectoryListingCache(10);
+
+        // WHEN we look up the image for each tag file
+        // THEN case shouldn't matter, and the extension preference should still decide between images:
+        assertEquals(new File(dir, "img.jpg"), cache.findImageFile(dir, "IMG"));
+        assertEquals(new File(dir, "img.jpg"), cache.findImageFile(dir, "img"));
+        assertEquals(new File(dir, "photo.gif"), cache.findImageFile(dir, "PHOTO"));
+    }
+
+    @Test
+    public void testFindImageFile_shouldNoticeDirectoryChanges() throws IOException {
+        // GIVEN a cached listing of a directory that last changed a while ago:
+        File dir = tempDir.toFile();
+        createFile(dir, "one.jpg");
+        assertTrue(dir.setLastModified(AN_HOUR_AGO));
+        DirectoryListingCache cache = new DirectoryListingCache(10);
+        assertNull(cache.findImageFile(dir, "two"));
+
+        // WHEN an image is added, changing the directory's timestamp:
+        createFile(dir, "two.jpg");
+        assertTrue(dir.setLastModified(AN_HOUR_AGO + 1000));
+
+        // THEN the next lookup should find it:
+        assertEquals(new File(dir, "two.jpg"), cache.findImageFile(dir, "two"));
+
+        // AND if the timestamp didn't change, invalidating should do the same job:
+        createFile(dir, "three.jpg");
+        assertTrue(dir.setLastModified(AN_HOUR_AGO + 1000));
+        assertNull(cache.findImageFile(dir, "three"));
+        cache.invalidate(dir);
+        assertEquals(new File(dir, "three.jpg"), cache.findImageFile(dir, "three"));
+    }
+
+    @Test
+    public void testFindImageFile_shouldBoundNumberOfDirectories() throws IOException {
+        // GIVEN a cache that only remembers two directories:
+        DirectoryListingCache cache = new DirectoryListingCache(2);
+
+        // WHEN we look things up in three:
+        for (int i = 0; i < 3; i++) {
+            File dir = new File(tempDir.toFile(), "dir" + i);
+            assertTrue(dir.mkdir());
+            createFile(dir, "image.jpg");
+            assertNotNull(cache.findImageFile(dir, "image"));
+        }
+
+        // THEN only two should be remembered:
+        assertEquals(2, cache.size());
+    }
+
+    private static void createFile(File dir, String name) throws IOException {
+        assertTrue(new File(dir, name).createNewFile());
+    }
+}
@@ -0,0 +1,76 @@
+package ca.corbett.imageviewer.extensions.ice.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileAttributesTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testRead_shouldMatchWhatFileReports() throws IOException {
+        // GIVEN a file with some content and a known timestamp:
+        File file = new File(tempDir.toFile(), "image.ice");
+        Files.writeString(file.toPath(), "cat\ndog\n");
+        assertTrue(file.setLastModified(1_600_000_000_000L));
+
+        // WHEN we take a snapshot of it:
+        FileAttributes attributes = FileAttributes.read(file);
+
+        // THEN it should agree with the File methods it replaces:
+        assertTrue(attributes.exists());
+        assertFalse(attributes.isDirectory());
+        assertEquals(file.length(), attributes.getSize());
+        assertEquals(file.lastModified(), attributes.getLastModified());
+        assertEquals(file, attributes.getFile());
+    }
+
+    @Test
+    public void testRead_withMissingFile_shouldReportZeroes() {
+        // GIVEN a file that doesn't exist
+        File file = new File(tempDir.toFile(), "nope.ice");
+
+        // WHEN we take a snapshot of it:
+        FileAttributes attributes = FileAttributes.read(file);
+
+        // THEN it should report what File would have:
+        assertFalse(attributes.exists());
+        assertEquals(0L, attributes.getSize());
+        assertEquals(0L, attributes.getLastModified());
+    }
+
+    @Test
+    public void testListAndFindFiles_shouldTellFilesFromDirectories() throws IOException {
+        // GIVEN a small directory tree with tag files at two levels:
+        File dir = tempDir.toFile();
+        File subdir = new File(dir, "sub");
+        assertTrue(subdir.mkdir());
+        assertTrue(new File(dir, "b.ice").createNewFile());
+        assertTrue(new File(dir, "a.ICE").createNewFile());
+        assertTrue(new File(dir, "a.jpg").createNewFile());
+        assertTrue(new File(subdir, "c.ice").createNewFile());
+
+        // WHEN we list the top directory
+        // THEN we should see everything in it, and know which one is a directory:
+        List<FileAttributes> children = FileAttributes.list(dir);
+        assertNotNull(children);
+        assertEquals(4, children.size());
+        assertEquals(1, children.stream().filter(FileAttributes::isDirectory).count());
+        assertNull(FileAttributes.list(new File(dir, "a.jpg")));
+
+        // AND finding tag files should ignore case and honour recursion, in path order:
+        assertEquals(List.of(new File(dir, "a.ICE"), new File(dir, "b.ice")),
+                     FileAttributes.findFiles(dir, false, "ice").stream().map(FileAttributes::getFile).toList());
+        assertEquals(List.of(new File(dir, "a.ICE"), new File(dir, "b.ice"), new File(subdir, "c.ice")),
+                     FileAttributes.findFiles(dir, true, "ice").stream().map(FileAttributes::getFile).toList());
+    }
+}
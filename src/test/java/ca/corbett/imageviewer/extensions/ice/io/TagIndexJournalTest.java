@@ -0,0 +1,85 @@
+package ca.corbett.imageviewer.extensions.ice.io;
+
+import ca.corbett.imageviewer.extensions.ice.TagIndexEntry;
+import ca.corbett.imageviewer.extensions.ice.TagList;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TagIndexJournalTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testReplay_withTornRecord_shouldCutItOffSoLaterAppendsSurvive() throws IOException {
+        // GIVEN a journal whose last record was only partly written when we crashed:
+        File journalFile = new File(tempDir.toFile(), "tagIndex.ice.journal");
+        TagIndexJournal journal = new TagIndexJournal(journalFile);
+        journal.appendPut(createEntry("image1", "cat"));
+        journal.close();
+        Files.write(journalFile.toPath(), new byte[]{0, 0, 0, 50, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        // WHEN we replay it, and then carry on appending:
+        assertEquals(1, journal.replay(new RecordingListener()));
+        journal.appendPut(createEntry("image2", "dog"));
+        journal.appendRemove(new File(tempDir.toFile(), "image1.jpg"));
+        journal.close();
+
+        // THEN the next replay should see everything after the torn record as well:
+        RecordingListener listener = new RecordingListener();
+        assertEquals(3, journal.replay(listener));
+        assertEquals(List.of("put image1.jpg", "put image2.jpg", "remove image1.jpg"), listener.records);
+    }
+
+    @Test
+    public void testSize_shouldTrackAppendsWithoutReopening() throws IOException {
+        // GIVEN an empty journal
+        File journalFile = new File(tempDir.toFile(), "tagIndex.ice.journal");
+        TagIndexJournal journal = new TagIndexJournal(journalFile);
+        assertEquals(0, journal.size());
+
+        // WHEN we append to it
+        for (int i = 0; i < 10; i++) {
+            journal.appendPut(createEntry("image" + i, "tag" + i));
+            assertEquals(journalFile.length(), journal.size());
+        }
+
+        // THEN its size should agree with the file, before and after closing:
+        long size = journal.size();
+        journal.close();
+        assertEquals(size, journal.size());
+        assertEquals(10, journal.replay(new RecordingListener()));
+    }
+
+    private TagIndexEntry createEntry(String baseName, String tag) {
+        TagIndexEntry entry = new TagIndexEntry();
+        entry.setImageFile(new File(tempDir.toFile(), baseName + ".jpg"));
+        entry.setTagFile(new File(tempDir.toFile(), baseName + ".ice"));
+        entry.setTagList(TagList.of(tag));
+        return entry;
+    }
+
+    private static class RecordingListener implements TagIndexJournal.Listener {
+        final List<String> records = new ArrayList<>();
+
+        @Override
+        public void entryPut(TagIndexEntry entry) {
+            records.add("put " + entry.getImageFile().getName());
+        }
+
+        @Override
+        public void entryRemoved(File imageFile) {
+            records.add("remove " + imageFile.getName());
+        }
+    }
+}
@@ -7,8 +7,12 @@ import ca.corbett.imageviewer.extensions.ice.TagIndexEntry;
 import ca.corbett.imageviewer.extensions.ice.TagList;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -16,6 +20,9 @@ import static org.junit.jupiter.api.Assertions.*;
 
 class TagIndexPersistenceTest {
 
+    @TempDir
+    Path tempDir;
+
     @BeforeAll
     public static void setup() {
         IceExtension.extInfo = new AppExtensionInfo.Builder("Test")
@@ -71,6 +78,162 @@ class TagIndexPersistenceTest {
         }
     }
 
+    @Test
+    public void loadTextFormat_withValidFile_shouldLoad() throws Exception {
+        // GIVEN a valid tag index in the 2.2.1 text format:
+        final String tagIndex = """
+                ICE_tag_index|2.2.1
+                LOC|0|/tmp
+                0|image1.jpg|30|0|hello,there
+                0|image2.jpg|40|1|hello,again
+                """;
+        File indexFile = File.createTempFile("TagIndexTest", ".txt");
+        indexFile.deleteOnExit();
+        FileSystemUtil.writeStringToFile(tagIndex, indexFile);
+
+        // WHEN we load it and save it back out:
+        assertEquals("2.2.1", TagIndexPersistence.getIndexVersion(indexFile));
+        List<TagIndexEntry> entries = TagIndexPersistence.load(indexFile);
+        TagIndexPersistence.save(entries, indexFile);
+
+        // THEN it should have been migrated to the binary format with nothing lost:
+        assertTrue(TagIndexBinaryFormat.isBinaryIndex(indexFile));
+        List<TagIndexEntry> migrated = TagIndexPersistence.load(indexFile);
+        assertEquals(entries, migrated);
+        assertEquals("hello, again", migrated.get(1).getTagList().toString());
+        assertEquals("/tmp/image2.ice", migrated.get(1).getTagFile().getAbsolutePath());
+    }
+
+    @Test
+    public void saveBinaryFormat_withNoEntries_shouldSaveAndLoad() throws Exception {
+        // GIVEN an empty index:
+        File indexFile = File.createTempFile("TagIndexTest", ".ice");
+        indexFile.deleteOnExit();
+
+        // WHEN we save it and load it back:
+        TagIndexPersistence.save(new ArrayList<>(), indexFile);
+
+        // THEN we should get an empty list back:
+        assertTrue(TagIndexBinaryFormat.isBinaryIndex(indexFile));
+        assertEquals("2.2.1", TagIndexPersistence.getIndexVersion(indexFile));
+        assertTrue(TagIndexPersistence.load(indexFile).isEmpty());
+    }
+
+    @Test
+    public void loadBinaryFormat_withTruncatedFile_shouldThrow() throws Exception {
+        // GIVEN a binary index file that has been cut short:
+        List<TagIndexEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            entries.add(generateIndexEntry(i));
+        }
+        File indexFile = File.createTempFile("TagIndexTest", ".ice");
+        indexFile.deleteOnExit();
+        TagIndexPersistence.save(entries, indexFile);
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+            raf.setLength(raf.length() - 20);
+        }
+
+        // WHEN we try to load it, THEN we should get an IOException rather than garbage:
+        assertThrows(IOException.class, () -> TagIndexPersistence.load(indexFile));
+    }
+
+    @Test
+    public void loadBinaryFormat_withOlderFormatVersion_shouldThrow() throws Exception {
+        // GIVEN a binary index file that claims the pre-release version 4 layout:
+        File indexFile = tempDir.resolve("tagIndex.ice").toFile();
+        TagIndexPersistence.save(List.of(generateIndexEntry(0)), indexFile);
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+            raf.seek(TagIndexBinaryFormat.MAGIC.length);
+            raf.writeInt(4);
+        }
+
+        // WHEN we try to load it, THEN we should refuse rather than guess at its records:
+        assertThrows(IOException.class, () -> TagIndexPersistence.load(indexFile));
+    }
+
+    @Test
+    public void loadBinaryFormat_withConsumer_shouldStreamEntriesAndReleaseFile() throws Exception {
+        // GIVEN a binary index file:
+        File indexFile = tempDir.resolve("tagIndex.ice").toFile();
+        List<TagIndexEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            entries.add(generateIndexEntry(i));
+        }
+        TagIndexPersistence.save(entries, indexFile);
+
+        // WHEN we load it one entry at a time:
+        List<TagIndexEntry> loaded = new ArrayList<>();
+        TagIndexPersistence.load(indexFile, loaded::add);
+
+        // THEN we should get every entry, in order, and still be able to use them once it's unmapped:
+        assertEquals(5, loaded.size());
+        for (int i = 0; i < 5; i++) {
+            validateIndexEntry(loaded.get(i), i);
+        }
+
+        // AND the file should not be held open, so that it can be saved over:
+        TagIndexPersistence.save(loaded.subList(0, 2), indexFile);
+        assertEquals(loaded.subList(0, 2), TagIndexPersistence.load(indexFile));
+    }
+
+    @Test
+    public void save_overExistingFile_shouldReplaceItAndLeaveNoTempFiles() throws Exception {
+        // GIVEN an existing index file:
+        File indexFile = tempDir.resolve("tagIndex.ice").toFile();
+        List<TagIndexEntry> entries = new ArrayList<>();
+        entries.add(generateIndexEntry(0));
+        TagIndexPersistence.save(entries, indexFile);
+
+        // WHEN we save over it with more entries, one of which has a very long tag:
+        TagIndexEntry bigEntry = generateIndexEntry(1);
+        bigEntry.setTagList(TagList.of("x".repeat(100_000)));
+        entries.add(bigEntry);
+        TagIndexPersistence.save(entries, indexFile);
+
+        // THEN the file should have been replaced, and nothing else left behind:
+        List<TagIndexEntry> loaded = TagIndexPersistence.load(indexFile);
+        assertEquals(entries, loaded);
+        String[] filesInDir = tempDir.toFile().list();
+        assertNotNull(filesInDir);
+        assertEquals(1, filesInDir.length);
+    }
+
+    @Test
+    public void saveBinaryFormat_shouldRestorePathSortKeys() throws Exception {
+        // GIVEN some entries:
+        List<TagIndexEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            entries.add(generateIndexEntry(i));
+        }
+
+        // WHEN we save and load them:
+        File indexFile = tempDir.resolve("tagIndex.ice").toFile();
+        TagIndexPersistence.save(entries, indexFile);
+        List<TagIndexEntry> loaded = TagIndexPersistence.load(indexFile);
+
+        // THEN each loaded entry should sort by its full image path:
+        for (int i = 0; i < 3; i++) {
+            assertEquals("/tmp/image" + i + ".jpg", loaded.get(i).getPathSortKey());
+        }
+    }
+
+    @Test
+    public void saveBinaryFormat_withContentHashes_shouldKeepThem() throws Exception {
+        // GIVEN one entry with a content hash and one without:
+        TagIndexEntry hashed = generateIndexEntry(0);
+        hashed.setTagFileHash(TagFileHash.of("cat\n".getBytes()));
+        TagIndexEntry unhashed = generateIndexEntry(1);
+
+        // WHEN we save and load them:
+        File indexFile = tempDir.resolve("tagIndex.ice").toFile();
+        TagIndexPersistence.save(List.of(hashed, unhashed), indexFile);
+        List<TagIndexEntry> loaded = TagIndexPersistence.load(indexFile);
+
+        // THEN each should come back as it was:
+        assertEquals(hashed.getTagFileHash(), loaded.get(0).getTagFileHash());
+        assertEquals(TagFileHash.NONE, loaded.get(1).getTagFileHash());
+    }
+
     private void validateIndexEntry(TagIndexEntry entry, int number) {
         assertNotNull(entry);
         assertNotNull(entry.getImageFile());
@@ -0,0 +1,265 @@
+package ca.corbett.imageviewer.extensions.ice.query;
+
+import ca.corbett.imageviewer.extensions.ice.TagList;
+import ca.corbett.imageviewer.extensions.ice.index.TagBitmap;
+import ca.corbett.imageviewer.extensions.ice.index.TagVocabulary;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TagQueryTest {
+
+    private List<TagList> images;
+    private QueryContext context;
+
+    @BeforeEach
+    public void setUp() {
+        // A tiny "index" of a few images, where the image id is the position in the list:
+        images = new ArrayList<>();
+        images.add(TagList.of("cat, outdoor"));
+        images.add(TagList.of("dog, outdoor, blurry"));
+        images.add(TagList.of("cat, indoor"));
+        images.add(TagList.of("dog, outdoor"));
+        images.add(TagList.of("blue sky, outdoor"));
+        images.add(TagList.of("car, trip_2024"));
+        images.add(TagList.of("cars, trip_2023, carnival"));
+
+        context = createContext(images);
+    }
+
+    private static QueryContext createContext(List<TagList> images) {
+        Map<String, TagBitmap> postings = new HashMap<>();
+        TagBitmap all = new TagBitmap();
+        TagVocabulary vocabulary = new TagVocabulary();
+        for (int i = 0; i < images.size(); i++) {
+            all.add(i);
+            for (String tag : images.get(i).getTags()) {
+                postings.computeIfAbsent(tag, k -> new TagBitmap()).add(i);
+                vocabulary.add(tag);
+            }
+        }
+        return new QueryContext() {
+            @Override
+            public TagBitmap getPostingList(String tag) {
+                return postings.get(tag);
+            }
+
+            @Override
+            public TagBitmap getAllImageIds() {
+                return all;
+            }
+
+            @Override
+            public List<String> expand(TagPattern pattern) {
+                return pattern.expand(vocabulary);
+            }
+
+            @Override
+            public List<String> expandFuzzy(String tag, int maxDistance) {
+                return vocabulary.getTagsWithin(tag, maxDistance);
+            }
+        };
+    }
+
+    @Test
+    public void testParse_withNestedExpression_shouldRespectPrecedence() throws Exception {
+        // GIVEN a query mixing all three operators:
+        QueryNode root = QueryParser.parse("(cat OR dog) and Outdoor AND NOT blurry");
+
+        // THEN AND should bind tighter than OR, and tags should be normalized:
+        assertEquals("((cat OR dog) AND outdoor AND NOT blurry)", root.toString());
+        assertEquals("(a OR (b AND c))", QueryParser.parse("a OR b AND c").toString());
+    }
+
+    @Test
+    public void testParse_withMultiWordAndQuotedTags_shouldKeepThemWhole() throws Exception {
+        // GIVEN tags with spaces, and a tag that happens to be a keyword:
+        QueryNode root = QueryParser.parse("blue sky AND \"or\"");
+
+        // THEN each should come back as a single term:
+        assertEquals("(\"blue sky\" AND \"or\")", root.toString());
+    }
+
+    @Test
+    public void testParse_withBlankQuery_shouldMatchAll() throws Exception {
+        assertTrue(TagQuery.parse("   ").isMatchAll());
+        assertTrue(TagQuery.of(new TagList(), null, TagList.of("")).isMatchAll());
+    }
+
+    @Test
+    public void testParse_withMalformedQueries_shouldThrow() {
+        assertThrows(QueryParseException.class, () -> QueryParser.parse("(cat OR dog"));
+        assertThrows(QueryParseException.class, () -> QueryParser.parse("cat AND"));
+        assertThrows(QueryParseException.class, () -> QueryParser.parse("cat dog)"));
+        assertThrows(QueryParseException.class, () -> QueryParser.parse("OR cat"));
+        assertThrows(QueryParseException.class, () -> QueryParser.parse("\"unterminated"));
+        QueryParseException e = assertThrows(QueryParseException.class, () -> QueryParser.parse("cat AND ()"));
+        assertEquals(9, e.getPosition());
+    }
+
+    @Test
+    public void testPlan_shouldOrderAndFromMostSelective() throws Exception {
+        // GIVEN a query whose terms are written least selective first:
+        TagQuery query = TagQuery.parse("outdoor AND dog AND NOT blurry");
+
+        // WHEN we plan it:
+        QueryPlan plan = QueryPlanner.plan(query.getRoot(), context);
+
+        // THEN the rarest included term should come first, and exclusions last:
+        assertEquals("AND{1}[dog{2}, outdoor{4}, -blurry{1}]", plan.toString());
+    }
+
+    @Test
+    public void testPattern_shouldMatchGlobs() {
+        assertTrue(new TagPattern("car*").matches("car"));
+        assertTrue(new TagPattern("car*").matches("car show"));
+        assertFalse(new TagPattern("car*").matches("scar"));
+        assertTrue(new TagPattern("*_2024").matches("trip_2024"));
+        assertTrue(new TagPattern("a*b*c").matches("aXbYbZc"));
+        assertFalse(new TagPattern("a*b*c").matches("aXbYbZ"));
+        assertTrue(new TagPattern("c?t").matches("cat"));
+        assertFalse(new TagPattern("c?t").matches("ct"));
+        assertTrue(new TagPattern("*").matches(""));
+        assertEquals("a", new TagPattern("a*b*c").getLiteralPrefix());
+        assertEquals("c", new TagPattern("a*b*c").getLiteralSuffix());
+    }
+
+    @Test
+    public void testExecute_withWildcards_shouldExpandThroughVocabulary() throws Exception {
+        // GIVEN prefix, suffix and infix patterns:
+        QueryPlan prefixPlan = QueryPlanner.plan(TagQuery.parse("car*").getRoot(), context);
+        QueryPlan suffixPlan = QueryPlanner.plan(TagQuery.parse("*_2024").getRoot(), context);
+        QueryPlan infixPlan = QueryPlanner.plan(TagQuery.parse("*o*").getRoot(), context);
+
+        // THEN each should expand to the matching tags and find their images:
+        assertEquals("car*[car, carnival, cars]{3}", prefixPlan.toString());
+        assertArrayEquals(new int[]{5, 6}, prefixPlan.execute(context).toArray());
+        assertArrayEquals(new int[]{5}, suffixPlan.execute(context).toArray());
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4}, infixPlan.execute(context).toArray());
+
+        // AND a quoted pattern should be taken literally:
+        assertTrue(QueryPlanner.plan(TagQuery.parse("\"car*\"").getRoot(), context).execute(context).isEmpty());
+        assertEquals("\"car*\"", TagQuery.parse("\"car*\"").toString());
+    }
+
+    @Test
+    public void testOf_withWildcardCharsInTagList_shouldMatchThemLiterally() {
+        // GIVEN an image whose tag really contains a wildcard character:
+        images.add(TagList.of("rated 5*"));
+        context = createContext(images);
+
+        // WHEN those characters are given in the tag lists:
+        TagQuery literal = TagQuery.of(TagList.of("rated 5*"), null, null);
+        TagQuery noMatch = TagQuery.of(TagList.of("trip_*"), null, null);
+
+        // THEN they should only match that exact tag, and not act as wildcards:
+        assertEquals("\"rated 5*\"", literal.getRoot().toString());
+        assertArrayEquals(new int[]{7}, QueryPlanner.plan(literal.getRoot(), context).execute(context).toArray());
+        assertTrue(QueryPlanner.plan(noMatch.getRoot(), context).execute(context).isEmpty());
+    }
+
+    @Test
+    public void testExecute_shouldAgreeWithPerImageMatching() throws Exception {
+        String[] queries = {
+                "cat",
+                "(cat OR dog) AND outdoor AND NOT blurry",
+                "NOT outdoor",
+                "NOT NOT cat",
+                "blue sky OR (dog AND (blurry OR indoor))",
+                "nosuchtag OR cat",
+                "nosuchtag AND cat",
+                "NOT (cat OR dog)",
+                "car* AND NOT *_2023",
+                "c?t OR *sky",
+                "outdor~ AND NOT dgo~2",
+                "\"blue skies\"~2 OR carnivl~",
+                ""
+        };
+        for (String text : queries) {
+            // GIVEN a plan for each query:
+            QueryPlan plan = QueryPlanner.plan(TagQuery.parse(text).getRoot(), context);
+
+            // WHEN we run it against the index:
+            TagBitmap result = plan.execute(context);
+
+            // THEN it should agree with checking each image one at a time:
+            for (int i = 0; i < images.size(); i++) {
+                assertEquals(plan.matches(images.get(i)), result.contains(i), "query '" + text + "', image " + i);
+            }
+        }
+
+        // AND spot-check a few:
+        assertArrayEquals(new int[]{0, 3}, QueryPlanner.plan(
+                TagQuery.parse("(cat OR dog) AND outdoor AND NOT blurry").getRoot(), context).execute(context).toArray());
+        assertArrayEquals(new int[]{2, 5, 6}, QueryPlanner.plan(
+                TagQuery.parse("NOT outdoor").getRoot(), context).execute(context).toArray());
+    }
+
+    @Test
+    public void testParse_withFuzzySuffix_shouldBeFuzzy() throws Exception {
+        assertEquals("(outdor~1 AND \"blue skies\"~2)", QueryParser.parse("outdor~ AND \"blue skies\"~2").toString());
+        assertEquals("(\"blue skie\"~1 OR \"cat~\")", QueryParser.parse("blue skie~1 OR \"cat~\"").toString());
+        assertEquals("cat~0", QueryParser.parse("cat~0").toString());
+        assertThrows(QueryParseException.class, () -> QueryParser.parse("cat~3"));
+        assertThrows(QueryParseException.class, () -> QueryParser.parse("car*~"));
+    }
+
+    @Test
+    public void testExecute_withFuzzyTerm_shouldFindNearMisses() throws Exception {
+        // GIVEN a misspelled fuzzy term:
+        QueryPlan plan = QueryPlanner.plan(TagQuery.parse("outdor~").getRoot(), context);
+
+        // THEN it should expand to the real tag and find its images:
+        assertEquals("outdor~1[outdoor]{4}", plan.toString());
+        assertArrayEquals(new int[]{0, 1, 3, 4}, plan.execute(context).toArray());
+        assertTrue(plan.matches(TagList.of("outdors")));
+        assertFalse(plan.matches(TagList.of("outdoors")));
+        assertFalse(plan.matches(TagList.of("indoor")));
+    }
+
+    @Test
+    public void testWithFuzzyTerms_shouldLeaveShortTermsAndPatternsAlone() throws Exception {
+        TagQuery query = TagQuery.parse("cat AND outdor AND NOT car*").withFuzzyTerms(1);
+        assertEquals("(cat AND outdor~1 AND NOT car*)", query.toString());
+        assertArrayEquals(new int[]{0}, QueryPlanner.plan(query.getRoot(), context).execute(context).toArray());
+        assertSame(query, query.withFuzzyTerms(0));
+    }
+
+    @Test
+    public void testToNormalizedString_withEquivalentQueries_shouldBeEqual() throws Exception {
+        String expected = TagQuery.parse("cat AND (dog OR bird)").toNormalizedString();
+        assertEquals(expected, TagQuery.parse("(bird OR dog) AND cat AND cat").toNormalizedString());
+        assertEquals(expected, TagQuery.parse("NOT NOT cat AND (dog OR (bird))").toNormalizedString());
+        assertEquals(expected, TagQuery.of(TagList.of("cat"), TagList.of("dog, bird"), null).toNormalizedString());
+        assertNotEquals(expected, TagQuery.parse("cat OR dog OR bird").toNormalizedString());
+    }
+
+    @Test
+    public void testOf_withTagLists_shouldMatchClassicSemantics() {
+        // GIVEN the classic all/any/none lists:
+        TagQuery query = TagQuery.of(TagList.of("outdoor"), TagList.of("cat, dog"), TagList.of("blurry"));
+
+        // WHEN we run it without any index statistics:
+        QueryPlan plan = QueryPlanner.plan(query.getRoot(), null);
+
+        // THEN it should behave like containsAll / containsAny / containsNone:
+        assertTrue(plan.matches(images.get(0)));
+        assertFalse(plan.matches(images.get(1)));
+        assertFalse(plan.matches(images.get(2)));
+        assertTrue(plan.matches(images.get(3)));
+        assertFalse(plan.matches(images.get(4)));
+    }
+
+    @Test
+    public void testAnd_shouldCombineQueries() throws Exception {
+        TagQuery query = TagQuery.of(TagList.of("outdoor"), null, null).and(TagQuery.parse("cat OR blue sky"));
+        assertArrayEquals(new int[]{0, 4}, QueryPlanner.plan(query.getRoot(), context).execute(context).toArray());
+        assertSame(query, query.and(TagQuery.parse("")));
+    }
+}
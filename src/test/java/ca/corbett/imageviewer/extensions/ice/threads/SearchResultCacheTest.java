@@ -0,0 +1,50 @@
+package ca.corbett.imageviewer.extensions.ice.threads;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchResultCacheTest {
+
+    @Test
+    public void testGet_withDifferentGeneration_shouldMissAndEvict() {
+        // GIVEN a result cached against generation 7:
+        SearchResultCache cache = new SearchResultCache(4, 100, 60_000);
+        cache.put("cat", 7, List.of(new File("a.jpg"), new File("b.jpg")));
+        assertEquals(List.of(new File("a.jpg"), new File("b.jpg")), cache.get("cat", 7));
+
+        // WHEN the index has moved on:
+        List<File> result = cache.get("cat", 8);
+
+        // THEN the stale entry should be gone, even for its old generation:
+        assertNull(result);
+        assertNull(cache.get("cat", 7));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testPut_overBudget_shouldEvictLeastRecentlyUsed() {
+        // GIVEN a cache that holds at most five result files:
+        SearchResultCache cache = new SearchResultCache(10, 5, 60_000);
+        cache.put("a", 1, List.of(new File("1"), new File("2")));
+        cache.put("b", 1, List.of(new File("3"), new File("4")));
+        cache.get("a", 1); // now b is the least recently used
+
+        // WHEN another result pushes it over budget:
+        cache.put("c", 1, List.of(new File("5"), new File("6")));
+
+        // THEN b should have been evicted:
+        assertNotNull(cache.get("a", 1));
+        assertNull(cache.get("b", 1));
+        assertNotNull(cache.get("c", 1));
+
+        // AND a result bigger than the whole budget should not be cached at all:
+        cache.put("d", 1, List.of(new File("1"), new File("2"), new File("3"), new File("4"), new File("5"),
+                                  new File("6")));
+        assertNull(cache.get("d", 1));
+        assertEquals(2, cache.size());
+    }
+}